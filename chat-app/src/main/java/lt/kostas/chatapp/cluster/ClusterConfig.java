@@ -0,0 +1,49 @@
+package lt.kostas.chatapp.cluster;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Klasterio mazgo nustatymai.
+ *
+ * @param nodeId          unikalus mazgo vardas klasteryje
+ * @param host            adresas, kuriuo kiti mazgai pasiekia šį (skelbiamas kitiems)
+ * @param port            mazgų tarpusavio ryšio portas (ne klientų)
+ * @param seeds           žinomi kitų mazgų adresai "host:port"; likusius mazgai sužino per gossip
+ * @param heartbeatMillis kas kiek siunčiamas gyvybės signalas; mazgas laikomas nukritusiu po 5 praleistų
+ */
+public record ClusterConfig(String nodeId, String host, int port, List<String> seeds, long heartbeatMillis) {
+  public ClusterConfig {
+    if (nodeId == null || nodeId.isBlank()) throw new IllegalArgumentException("nodeId negali būti tuščias");
+    if (host == null || host.isBlank()) throw new IllegalArgumentException("host negali būti tuščias");
+    if (port <= 0 || port > 65535) throw new IllegalArgumentException("Netinkamas klasterio portas: " + port);
+    if (heartbeatMillis <= 0) throw new IllegalArgumentException("heartbeatMillis turi būti teigiamas");
+    seeds = seeds == null ? List.of() : List.copyOf(seeds);
+  }
+
+  /**
+   * Šio mazgo adresas "host:port" - tokiu pavidalu jis nurodomas kitų mazgų {@code seeds}.
+   */
+  public String address() {
+    return host + ":" + port;
+  }
+
+  public long failureTimeoutMillis() {
+    return heartbeatMillis * 5;
+  }
+
+  /**
+   * Iš {@code -Dchat.cluster.*}; null, jei {@code chat.cluster.port} nenurodytas (vienas mazgas).
+   */
+  public static ClusterConfig fromSystemProperties() {
+    Integer port = Integer.getInteger("chat.cluster.port");
+    if (port == null) return null;
+    String seeds = System.getProperty("chat.cluster.seeds", "");
+    return new ClusterConfig(
+            System.getProperty("chat.cluster.node", "node-" + port),
+            System.getProperty("chat.cluster.host", "127.0.0.1"),
+            port,
+            Arrays.stream(seeds.split(",")).map(String::trim).filter(s -> !s.isEmpty()).toList(),
+            Long.getLong("chat.cluster.heartbeatMillis", 1000));
+  }
+}
@@ -0,0 +1,58 @@
+package lt.kostas.chatapp.cluster;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Vienas mazgų tarpusavio ryšio kadras (JSON eilutė). Naudojami tik tie laukai, kurių reikia {@link Kind}.
+ *
+ * @param kind    kadro rūšis
+ * @param node    siuntėjo mazgo vardas
+ * @param version siuntėjo būsenos (vartotojai, kambariai) versija - būsenos kadrams ir gyvybės signalui
+ * @param message perduodama žinutė
+ * @param roomId  kambarys
+ * @param name    vartotojo vardas arba kambario pavadinimas
+ * @param users   siuntėjo prisijungę vartotojai
+ * @param rooms   kambariai, kuriuose siuntėjas turi prisijungusių narių
+ * @param catalog visi siuntėjo žinomi kambariai: id → pavadinimas
+ * @param peers   siuntėjo žinomi gyvi mazgai: vardas → adresas "host:port" (įskaitant jį patį)
+ */
+record ClusterFrame(Kind kind, String node, long version, Message message, String roomId, String name,
+                    List<String> users, List<String> rooms, Map<String, String> catalog,
+                    Map<String, String> peers) {
+
+  enum Kind {
+    /** visa siuntėjo būsena; siunčiama prisijungus ir paprašius {@link #SYNC} */
+    HELLO,
+    /** gyvybės signalas su dabartine versija ir žinomais mazgais (gossip) */
+    HEARTBEAT,
+    /** gavėjo būsenos versija nesutampa - prašoma atsiųsti {@link #HELLO} */
+    SYNC,
+    USER_ONLINE,
+    USER_OFFLINE,
+    INTEREST_ADD,
+    INTEREST_REMOVE,
+    ROOM_CREATED,
+    ROOM_JOINED,
+    /** kambario žinutė siunčiama jo savininkui */
+    ROOM_FORWARD,
+    /** savininkas perduoda kambario žinutę mazgams, kuriuose yra prisijungusių narių */
+    ROOM_DELIVER,
+    /** privati žinutė mazgui, prie kurio prisijungęs gavėjas */
+    DIRECT
+  }
+
+  static ClusterFrame of(Kind kind, String node) {
+    return new ClusterFrame(kind, node, 0, null, null, null, null, null, null, null);
+  }
+
+  static ClusterFrame state(Kind kind, String node, long version, String roomId, String name) {
+    return new ClusterFrame(kind, node, version, null, roomId, name, null, null, null, null);
+  }
+
+  static ClusterFrame message(Kind kind, String node, Message message) {
+    return new ClusterFrame(kind, node, 0, message, null, null, null, null, null, null);
+  }
+}
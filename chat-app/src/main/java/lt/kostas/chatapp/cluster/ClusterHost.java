@@ -0,0 +1,39 @@
+package lt.kostas.chatapp.cluster;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.Map;
+
+/**
+ * Ką {@link ClusterNode} daro su iš kitų mazgų gautais įvykiais. Metodai kviečiami mazgų ryšio
+ * skaitymo gijose, todėl neturi ilgai blokuoti.
+ */
+public interface ClusterHost {
+  /**
+   * Šis mazgas yra kambario savininkas: išsaugoti, išsiųsti vietiniams nariams ir perduoti kitiems mazgams.
+   */
+  void ownerMessage(Message message);
+
+  /**
+   * Savininko jau apdorota kambario žinutė - tik išsiųsti vietiniams nariams.
+   */
+  void deliverRoom(Message message);
+
+  /**
+   * Privati žinutė šiame mazge prisijungusiam gavėjui.
+   */
+  void deliverDirect(Message message);
+
+  void roomCreated(String roomId, String displayName);
+
+  void roomJoined(String roomId, String username);
+
+  void remoteUserOnline(String username);
+
+  void remoteUserOffline(String username);
+
+  /**
+   * Visi šio mazgo kambariai: id → pavadinimas (siunčiama kitiems mazgams kartu su būsena).
+   */
+  Map<String, String> roomCatalog();
+}
@@ -0,0 +1,469 @@
+package lt.kostas.chatapp.cluster;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.protocol.FrameReader;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Vienas klasterio mazgas: kiti mazgai, jų prisijungę vartotojai ir kambarių savininkai.
+ * <p>
+ * Kambario savininkas nustatomas {@link HashRing} pagal gyvų mazgų sąrašą. Kambario žinutė keliauja
+ * savininkui, o šis ją vienintelis išsaugo ir perduoda tik tiems mazgams, kuriuose tame kambaryje yra
+ * prisijungusių narių. Privati žinutė siunčiama tiesiai gavėjo mazgui.
+ * <p>
+ * Būsena (prisijungę vartotojai, kambariai su prisijungusiais nariais) platinama pasikeitimais su
+ * didėjančia versija; praleidęs versiją ar gavęs kitokią versiją gyvybės signale mazgas paprašo visos
+ * būsenos. Gyvybės signaluose siunčiamas ir žinomų mazgų sąrašas, todėl naujam mazgui užtenka žinoti
+ * vieną esamą ({@link ClusterConfig#seeds()}).
+ * <p>
+ * Tarp mazgų - po vieną TCP ryšį kiekviena kryptimi: savo ryšiu ({@link PeerLink}) mazgas tik rašo,
+ * o iš kitų priimtais tik skaito.
+ */
+public final class ClusterNode {
+  private static final Logger logger = Logger.getLogger(ClusterNode.class.getName());
+
+  private final ClusterConfig config;
+  private final ClusterHost host;
+  private final Gson gson = new Gson();
+  // adresas "host:port" → išeinantis ryšys
+  private final Map<String, PeerLink> links = new ConcurrentHashMap<>();
+  // mazgo vardas → žinoma jo būsena
+  private final Map<String, Peer> peers = new ConcurrentHashMap<>();
+  // kitame mazge prisijungęs vartotojas → to mazgo vardas
+  private final Map<String, String> directory = new ConcurrentHashMap<>();
+  private final Set<Socket> inbound = ConcurrentHashMap.newKeySet();
+
+  // šio mazgo būsena; keičiama ir išsiunčiama laikant stateLock, kad versijos ryšiuose eitų iš eilės
+  private final Object stateLock = new Object();
+  private final Set<String> localUsers = new HashSet<>();
+  private final Set<String> localInterest = new HashSet<>();
+  private long version;
+
+  private volatile HashRing ring;
+  private volatile boolean running;
+  private ServerSocket acceptor;
+  private ScheduledExecutorService heartbeats;
+
+  public ClusterNode(ClusterConfig config, ClusterHost host) {
+    this.config = config;
+    this.host = host;
+    this.ring = HashRing.of(List.of(config.nodeId()), HashRing.DEFAULT_VIRTUAL_NODES);
+  }
+
+  public String nodeId() {
+    return config.nodeId();
+  }
+
+  /**
+   * Gyvų mazgų skaičius (įskaitant šį).
+   */
+  public int size() {
+    return ring.nodes().size();
+  }
+
+  public void start() throws IOException {
+    running = true;
+    acceptor = new ServerSocket();
+    acceptor.bind(new InetSocketAddress(config.port()));
+    Thread t = new Thread(this::acceptLoop, "Cluster-Accept");
+    t.setDaemon(true);
+    t.start();
+    for (String seed : config.seeds()) {
+      ensureLink(seed);
+    }
+    heartbeats = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread h = new Thread(r, "Cluster-Heartbeat");
+      h.setDaemon(true);
+      return h;
+    });
+    heartbeats.scheduleWithFixedDelay(this::heartbeat, config.heartbeatMillis(), config.heartbeatMillis(),
+            TimeUnit.MILLISECONDS);
+    logger.info("Klasterio mazgas " + config.nodeId() + " klauso " + config.address()
+            + (config.seeds().isEmpty() ? "" : ", seeds " + config.seeds()));
+  }
+
+  public void close() {
+    running = false;
+    if (heartbeats != null) heartbeats.shutdownNow();
+    try {
+      if (acceptor != null) acceptor.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Nepavyko uždaryti klasterio ServerSocket", e);
+    }
+    for (PeerLink link : links.values()) link.close();
+    for (Socket s : inbound) {
+      try {
+        s.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  // ---- maršrutizavimas ----
+
+  /**
+   * Ar šis mazgas yra kambario savininkas pagal dabartinį žiedą.
+   */
+  public boolean ownsRoom(String roomId) {
+    String owner = ring.owner(roomId);
+    return owner == null || owner.equals(config.nodeId());
+  }
+
+  /**
+   * Perduoda kambario žinutę jo savininkui.
+   *
+   * @return false, jei savininkas nepasiekiamas - tada žinutę turi apdoroti šis mazgas
+   */
+  public boolean forwardToOwner(Message message) {
+    PeerLink link = linkTo(ring.owner(message.roomId()));
+    if (link == null) return false;
+    link.send(ClusterFrame.message(ClusterFrame.Kind.ROOM_FORWARD, config.nodeId(), message));
+    return true;
+  }
+
+  /**
+   * Savininkas perduoda kambario žinutę mazgams, kuriuose tame kambaryje yra prisijungusių narių.
+   */
+  public void relayRoom(Message message) {
+    ClusterFrame frame = null;
+    for (Peer p : peers.values()) {
+      if (!p.up || !p.interest.contains(message.roomId())) continue;
+      PeerLink link = links.get(p.address);
+      if (link == null) continue;
+      if (frame == null) frame = ClusterFrame.message(ClusterFrame.Kind.ROOM_DELIVER, config.nodeId(), message);
+      link.send(frame);
+    }
+  }
+
+  /**
+   * Siunčia privačią žinutę gavėjo mazgui.
+   *
+   * @return false, jei gavėjas neprisijungęs jokiame kitame mazge
+   */
+  public boolean sendDirect(Message message) {
+    String nodeId = directory.get(message.to());
+    PeerLink link = nodeId == null ? null : linkTo(nodeId);
+    if (link == null) return false;
+    link.send(ClusterFrame.message(ClusterFrame.Kind.DIRECT, config.nodeId(), message));
+    return true;
+  }
+
+  /**
+   * Ar vartotojas prisijungęs kitame mazge (vardai unikalūs visame klasteryje).
+   */
+  public boolean isOnlineElsewhere(String username) {
+    return directory.containsKey(username);
+  }
+
+  // ---- šio mazgo pasikeitimai ----
+
+  public void userOnline(String username) {
+    synchronized (stateLock) {
+      if (localUsers.add(username)) publish(ClusterFrame.Kind.USER_ONLINE, null, username);
+    }
+  }
+
+  public void userOffline(String username) {
+    synchronized (stateLock) {
+      if (localUsers.remove(username)) publish(ClusterFrame.Kind.USER_OFFLINE, null, username);
+    }
+  }
+
+  /**
+   * Perskaito, ar kambaryje dar yra šio mazgo prisijungusių narių, ir praneša kitiems, jei tai pasikeitė.
+   * Būsena skaitoma laikant užraktą, todėl paskutinis kvietimas po paskutinio pasikeitimo visada laimi.
+   */
+  public void refreshInterest(String roomId, BooleanSupplier hasLocalMembers) {
+    synchronized (stateLock) {
+      if (hasLocalMembers.getAsBoolean()) {
+        if (localInterest.add(roomId)) publish(ClusterFrame.Kind.INTEREST_ADD, roomId, null);
+      } else if (localInterest.remove(roomId)) {
+        publish(ClusterFrame.Kind.INTEREST_REMOVE, roomId, null);
+      }
+    }
+  }
+
+  public void roomCreated(String roomId, String displayName) {
+    broadcast(ClusterFrame.state(ClusterFrame.Kind.ROOM_CREATED, config.nodeId(), 0, roomId, displayName));
+  }
+
+  public void roomJoined(String roomId, String username) {
+    broadcast(ClusterFrame.state(ClusterFrame.Kind.ROOM_JOINED, config.nodeId(), 0, roomId, username));
+  }
+
+  private void publish(ClusterFrame.Kind kind, String roomId, String name) {
+    version++;
+    broadcast(ClusterFrame.state(kind, config.nodeId(), version, roomId, name));
+  }
+
+  private void broadcast(ClusterFrame frame) {
+    for (PeerLink link : links.values()) {
+      link.send(frame);
+    }
+  }
+
+  // ---- ryšiai ----
+
+  private void ensureLink(String address) {
+    if (address == null || address.equals(config.address()) || !running) return;
+    links.computeIfAbsent(address, a -> {
+      PeerLink link = new PeerLink(a, this);
+      link.start();
+      return link;
+    });
+  }
+
+  private PeerLink linkTo(String nodeId) {
+    Peer p = nodeId == null ? null : peers.get(nodeId);
+    if (p == null || !p.up) return null;
+    PeerLink link = links.get(p.address);
+    return link != null && link.isConnected() ? link : null;
+  }
+
+  /**
+   * Išeinantis ryšys ką tik prisijungė: pirmas kadras - visa būsena.
+   */
+  void linkConnected(PeerLink link) {
+    synchronized (stateLock) {
+      link.reset(hello());
+    }
+  }
+
+  private ClusterFrame hello() {
+    return new ClusterFrame(ClusterFrame.Kind.HELLO, config.nodeId(), version, null, null, null,
+            List.copyOf(localUsers), List.copyOf(localInterest), host.roomCatalog(), knownPeers());
+  }
+
+  private Map<String, String> knownPeers() {
+    Map<String, String> result = new HashMap<>();
+    result.put(config.nodeId(), config.address());
+    for (Peer p : peers.values()) {
+      if (p.up && p.address != null) result.put(p.id, p.address);
+    }
+    return result;
+  }
+
+  private void acceptLoop() {
+    while (running) {
+      Socket s;
+      try {
+        s = acceptor.accept();
+      } catch (IOException e) {
+        if (running) logger.log(Level.WARNING, "Klasterio accept klaida", e);
+        continue;
+      }
+      inbound.add(s);
+      Thread t = new Thread(() -> readLoop(s), "Cluster-In-" + s.getRemoteSocketAddress());
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  private void readLoop(Socket s) {
+    try (s) {
+      FrameReader in = new FrameReader(s.getInputStream());
+      String line;
+      while ((line = in.readLine()) != null) {
+        ClusterFrame frame;
+        try {
+          frame = gson.fromJson(line, ClusterFrame.class);
+        } catch (JsonSyntaxException e) {
+          logger.warning("Netinkamas klasterio kadras: " + e.getMessage());
+          continue;
+        }
+        if (frame == null || frame.kind() == null || frame.node() == null) continue;
+        if (frame.node().equals(config.nodeId())) continue;
+        try {
+          onFrame(frame);
+        } catch (RuntimeException e) {
+          logger.log(Level.WARNING, "Nepavyko apdoroti klasterio kadro " + frame.kind(), e);
+        }
+      }
+    } catch (IOException e) {
+      if (running) logger.log(Level.FINE, "Klasterio ryšys nutrūko", e);
+    } finally {
+      inbound.remove(s);
+    }
+  }
+
+  // ---- kitų mazgų kadrai ----
+
+  private void onFrame(ClusterFrame f) {
+    Peer peer = peers.get(f.node());
+    if (peer != null) peer.lastSeen = System.currentTimeMillis();
+    switch (f.kind()) {
+      case HELLO -> applyHello(f);
+      case HEARTBEAT -> onHeartbeat(peer, f);
+      case SYNC -> {
+        PeerLink link = peer == null ? null : links.get(peer.address);
+        if (link != null && link.isConnected()) linkConnected(link);
+      }
+      case USER_ONLINE, USER_OFFLINE, INTEREST_ADD, INTEREST_REMOVE -> applyDelta(peer, f);
+      case ROOM_CREATED -> host.roomCreated(f.roomId(), f.name());
+      case ROOM_JOINED -> host.roomJoined(f.roomId(), f.name());
+      case ROOM_FORWARD -> host.ownerMessage(f.message());
+      case ROOM_DELIVER -> host.deliverRoom(f.message());
+      case DIRECT -> host.deliverDirect(f.message());
+    }
+  }
+
+  private void applyHello(ClusterFrame f) {
+    if (f.catalog() != null) f.catalog().forEach(host::roomCreated);
+    Peer p = peers.computeIfAbsent(f.node(), Peer::new);
+    boolean cameUp;
+    synchronized (p) {
+      if (f.peers() != null && f.peers().get(f.node()) != null) p.address = f.peers().get(f.node());
+      Set<String> users = f.users() == null ? Set.of() : new HashSet<>(f.users());
+      for (String u : List.copyOf(p.users)) {
+        if (!users.contains(u)) removeUser(p, u);
+      }
+      for (String u : users) {
+        if (!p.users.contains(u)) addUser(p, u);
+      }
+      p.interest.clear();
+      if (f.rooms() != null) p.interest.addAll(f.rooms());
+      p.version = f.version();
+      p.lastSeen = System.currentTimeMillis();
+      cameUp = !p.up;
+      p.up = true;
+    }
+    gossip(f.peers());
+    if (cameUp) {
+      rebuildRing();
+      logger.info("Mazgas " + p.id + " (" + p.address + ") prisijungė; klasteryje " + size() + " mazgai");
+    }
+  }
+
+  private void onHeartbeat(Peer p, ClusterFrame f) {
+    gossip(f.peers());
+    if (p == null || !p.up || p.version != f.version()) requestSync(f.node(), f.peers());
+  }
+
+  private void applyDelta(Peer p, ClusterFrame f) {
+    if (p == null) return; // dar nežinomas mazgas - būseną gausime su jo HELLO
+    boolean stale;
+    synchronized (p) {
+      stale = !p.up || f.version() != p.version + 1;
+      if (!stale) {
+        p.version = f.version();
+        switch (f.kind()) {
+          case USER_ONLINE -> addUser(p, f.name());
+          case USER_OFFLINE -> removeUser(p, f.name());
+          case INTEREST_ADD -> p.interest.add(f.roomId());
+          case INTEREST_REMOVE -> p.interest.remove(f.roomId());
+          default -> {
+          }
+        }
+      }
+    }
+    if (stale) requestSync(p.id, null);
+  }
+
+  /**
+   * Paprašo mazgo visos būsenos; ne dažniau nei kartą per gyvybės signalo intervalą.
+   */
+  private void requestSync(String nodeId, Map<String, String> gossiped) {
+    Peer p = peers.computeIfAbsent(nodeId, Peer::new);
+    long now = System.currentTimeMillis();
+    synchronized (p) {
+      if (p.address == null && gossiped != null) p.address = gossiped.get(nodeId);
+      if (p.address == null || now - p.lastSyncRequest < config.heartbeatMillis()) return;
+      p.lastSyncRequest = now;
+    }
+    ensureLink(p.address);
+    PeerLink link = links.get(p.address);
+    if (link != null) link.send(ClusterFrame.of(ClusterFrame.Kind.SYNC, config.nodeId()));
+  }
+
+  private void gossip(Map<String, String> known) {
+    if (known == null) return;
+    for (Map.Entry<String, String> e : known.entrySet()) {
+      if (!e.getKey().equals(config.nodeId())) ensureLink(e.getValue());
+    }
+  }
+
+  private void addUser(Peer p, String username) {
+    if (username == null) return;
+    p.users.add(username);
+    directory.put(username, p.id);
+    host.remoteUserOnline(username);
+  }
+
+  private void removeUser(Peer p, String username) {
+    if (username == null) return;
+    p.users.remove(username);
+    if (directory.remove(username, p.id)) host.remoteUserOffline(username);
+  }
+
+  private void heartbeat() {
+    try {
+      long now = System.currentTimeMillis();
+      for (Peer p : peers.values()) {
+        if (p.up && now - p.lastSeen > config.failureTimeoutMillis()) markDown(p);
+      }
+      synchronized (stateLock) {
+        broadcast(new ClusterFrame(ClusterFrame.Kind.HEARTBEAT, config.nodeId(), version, null, null, null,
+                null, null, null, knownPeers()));
+      }
+    } catch (RuntimeException e) {
+      logger.log(Level.WARNING, "Klasterio gyvybės signalo klaida", e);
+    }
+  }
+
+  /**
+   * Mazgas neatsiliepia: jo vartotojai laikomi atsijungusiais, o jo kambariai pereina kitiems mazgams.
+   */
+  private void markDown(Peer p) {
+    synchronized (p) {
+      if (!p.up) return;
+      p.up = false;
+      for (String u : List.copyOf(p.users)) {
+        removeUser(p, u);
+      }
+      p.interest.clear();
+    }
+    rebuildRing();
+    logger.warning("Mazgas " + p.id + " neatsiliepia; klasteryje " + size() + " mazgai");
+  }
+
+  private synchronized void rebuildRing() {
+    List<String> alive = new ArrayList<>();
+    alive.add(config.nodeId());
+    for (Peer p : peers.values()) {
+      if (p.up) alive.add(p.id);
+    }
+    ring = HashRing.of(alive, HashRing.DEFAULT_VIRTUAL_NODES);
+  }
+
+  /**
+   * Kito mazgo būsena, kaip ją žinome. Keičiama jo skaitymo gijoje, laikant šio objekto monitorių.
+   */
+  private static final class Peer {
+    final String id;
+    final Set<String> users = ConcurrentHashMap.newKeySet();
+    final Set<String> interest = ConcurrentHashMap.newKeySet();
+    volatile String address;
+    volatile boolean up;
+    volatile long lastSeen;
+    long version;
+    long lastSyncRequest;
+
+    Peer(String id) {
+      this.id = id;
+    }
+  }
+}
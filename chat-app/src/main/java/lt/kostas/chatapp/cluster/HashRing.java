@@ -0,0 +1,81 @@
+package lt.kostas.chatapp.cluster;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Nekintamas nuoseklaus maišymo (consistent hashing) žiedas: kambario savininkas - pirmasis mazgo taškas
+ * pagal laikrodžio rodyklę nuo kambario maišos. Kiekvienas mazgas žiede turi {@code virtualNodes} taškų,
+ * todėl kambariai pasiskirsto tolygiai, o mazgui prisijungus ar nukritus persikelia tik jo dalis.
+ */
+public final class HashRing {
+  public static final int DEFAULT_VIRTUAL_NODES = 64;
+
+  private final long[] points;
+  private final String[] owners;
+  private final Set<String> nodes;
+
+  private HashRing(long[] points, String[] owners, Set<String> nodes) {
+    this.points = points;
+    this.owners = owners;
+    this.nodes = nodes;
+  }
+
+  public static HashRing of(Collection<String> nodes, int virtualNodes) {
+    Set<String> sorted = new TreeSet<>(nodes);
+    int n = sorted.size() * virtualNodes;
+    long[] hashes = new long[n];
+    String[] names = new String[n];
+    // rikiuojame poras (maiša, mazgas); vienodų maišų atveju lemia mazgo vardas, kad žiedas būtų vienodas visuose mazguose
+    Point[] all = new Point[n];
+    int i = 0;
+    for (String node : sorted) {
+      for (int v = 0; v < virtualNodes; v++) {
+        all[i++] = new Point(hash(node + "#" + v), node);
+      }
+    }
+    Arrays.sort(all, (a, b) -> a.hash != b.hash ? Long.compare(a.hash, b.hash) : a.node.compareTo(b.node));
+    for (i = 0; i < n; i++) {
+      hashes[i] = all[i].hash;
+      names[i] = all[i].node;
+    }
+    return new HashRing(hashes, names, Set.copyOf(sorted));
+  }
+
+  /**
+   * Rakto savininkas arba null, jei žiedas tuščias.
+   */
+  public String owner(String key) {
+    if (points.length == 0) return null;
+    int i = Arrays.binarySearch(points, hash(key));
+    if (i < 0) i = -i - 1;
+    return owners[i == points.length ? 0 : i];
+  }
+
+  public Set<String> nodes() {
+    return nodes;
+  }
+
+  /**
+   * 64 bitų FNV-1a su galutiniu maišymu (murmur3 fmix64) - nepriklauso nuo JVM, todėl visi mazgai skaičiuoja vienodai.
+   */
+  static long hash(String key) {
+    long h = 0xcbf29ce484222325L;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      h ^= b & 0xff;
+      h *= 0x100000001b3L;
+    }
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+
+  private record Point(long hash, String node) {
+  }
+}
@@ -0,0 +1,136 @@
+package lt.kostas.chatapp.cluster;
+
+import com.google.gson.Gson;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Išeinantis ryšys į vieną kitą mazgą. Atskira gija jungiasi (nutrūkus - vėl, su didėjančia pauze),
+ * o prisijungus pirmiausia išsiunčia visą šio mazgo būseną ({@link ClusterFrame.Kind#HELLO}).
+ * Kol ryšio nėra, kadrai neįdedami: prisijungęs mazgas būseną vis tiek gaus visą.
+ */
+final class PeerLink {
+  private static final Logger logger = Logger.getLogger(PeerLink.class.getName());
+  private static final int CAPACITY = 64 * 1024;
+  private static final int MAX_BATCH = 256;
+  private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+  private static final long MIN_BACKOFF_MILLIS = 100;
+  private static final long MAX_BACKOFF_MILLIS = 5000;
+
+  private final String address;
+  private final ClusterNode node;
+  private final Gson gson = new Gson();
+  private final BlockingQueue<ClusterFrame> queue = new LinkedBlockingQueue<>(CAPACITY);
+  private final Thread thread;
+  private final AtomicLong dropped = new AtomicLong();
+  private volatile boolean connected;
+  private volatile boolean running = true;
+  private volatile Socket socket;
+
+  PeerLink(String address, ClusterNode node) {
+    this.address = address;
+    this.node = node;
+    this.thread = new Thread(this::run, "Cluster-Link-" + address);
+    this.thread.setDaemon(true);
+  }
+
+  void start() {
+    thread.start();
+  }
+
+  String address() {
+    return address;
+  }
+
+  boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * Įdeda kadrą siuntimui. Pilna eilė reiškia, kad kitas mazgas nespėja - kadras išmetamas;
+   * praleistą būsenos pasikeitimą gavėjas pastebės pagal versiją ir paprašys visos būsenos.
+   */
+  void send(ClusterFrame frame) {
+    if (!connected) return;
+    if (!queue.offer(frame) && dropped.getAndIncrement() % 1000 == 0) {
+      logger.warning("Mazgas " + address + " nespėja priimti, kadrai išmetami");
+    }
+  }
+
+  /**
+   * Išmeta, kas liko eilėje, ir pradeda nuo nurodyto kadro. Kviečiama laikant mazgo būsenos užraktą,
+   * kad tarp {@code hello} ir vėlesnių pasikeitimų nieko neįsiterptų.
+   */
+  void reset(ClusterFrame hello) {
+    queue.clear();
+    queue.offer(hello);
+    connected = true;
+  }
+
+  void close() {
+    running = false;
+    thread.interrupt();
+    Socket s = socket;
+    if (s != null) {
+      try {
+        s.close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private void run() {
+    long backoff = MIN_BACKOFF_MILLIS;
+    List<ClusterFrame> batch = new ArrayList<>(MAX_BATCH);
+    while (running) {
+      try (Socket s = new Socket()) {
+        int colon = address.lastIndexOf(':');
+        s.connect(new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1))),
+                CONNECT_TIMEOUT_MILLIS);
+        s.setTcpNoDelay(true);
+        socket = s;
+        OutputStream out = new BufferedOutputStream(s.getOutputStream(), 64 * 1024);
+        node.linkConnected(this);
+        backoff = MIN_BACKOFF_MILLIS;
+        while (running) {
+          ClusterFrame first = queue.poll(1, TimeUnit.SECONDS);
+          if (first == null) continue;
+          batch.add(first);
+          queue.drainTo(batch, MAX_BATCH - 1);
+          for (ClusterFrame frame : batch) {
+            out.write((gson.toJson(frame) + "\n").getBytes(StandardCharsets.UTF_8));
+          }
+          out.flush();
+          batch.clear();
+        }
+      } catch (IOException | RuntimeException e) {
+        if (connected) logger.log(Level.INFO, "Ryšys su mazgu " + address + " nutrūko: " + e.getMessage());
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        connected = false;
+        socket = null;
+        batch.clear();
+      }
+      try {
+        Thread.sleep(backoff);
+      } catch (InterruptedException e) {
+        return;
+      }
+      backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+    }
+  }
+}
@@ -1,17 +1,36 @@
 package lt.kostas.chatapp.controller;
 
-import javafx.application.Platform;
+import javafx.animation.AnimationTimer;
+import javafx.collections.ObservableList;
 import javafx.fxml.FXML;
-import javafx.scene.control.Button;
-import javafx.scene.control.ComboBox;
-import javafx.scene.control.TextArea;
-import javafx.scene.control.TextField;
+import javafx.geometry.Orientation;
+import javafx.scene.Node;
+import javafx.scene.control.*;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
 import lt.kostas.chatapp.network.NetworkClient;
+import lt.kostas.chatapp.protocol.WireFormat;
 
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Gautos žinutės nekeliauja į FX giją po vieną: skaitymo gija jas tik įdeda į eilę, o
+ * {@link AnimationTimer} kiekvieno kadro metu paima viską, kas susikaupė, ir pritaiko vienu kartu -
+ * eilutės į sąrašą įdedamos vienu {@code addAll}, o kambarių ir gavėjų sąrašai atnaujinami tik
+ * kartą per kadrą. Pokalbio langas - virtualizuotas {@link ListView}, laikantis ne daugiau
+ * {@link #MAX_LINES} eilučių.
+ */
 public class ChatController {
+  // kiek žinučių prašoma vienu istorijos puslapiu
+  private static final int HISTORY_PAGE = 50;
+  // daugiausiai eilučių pokalbio lange; senesnės išmetamos (jas galima vėl užkrauti iš istorijos)
+  private static final int MAX_LINES = 5000;
+  // kiek gautų žinučių daugiausiai apdorojama per vieną kadrą, kad kadras neužtruktų
+  private static final int MAX_PER_PULSE = 10_000;
+
   @FXML
   private TextField usernameField;
   @FXML
@@ -21,7 +40,7 @@ public class ChatController {
   @FXML
   private ComboBox<String> recipientSelector;
   @FXML
-  private TextArea chatArea;
+  private ListView<String> chatList;
   @FXML
   private TextArea inputField;
   @FXML
@@ -34,6 +53,24 @@ public class ChatController {
   private NetworkClient client;
   private String username;
 
+  // gautos (ir vietinės) žinutės, laukiančios kito kadro; pildoma skaitymo gijoje
+  private final Queue<Message> inbox = new ConcurrentLinkedQueue<>();
+  // toliau - tik FX gijoje: per kadrą sukaupti pasikeitimai
+  private final List<String> pendingLines = new ArrayList<>();
+  private final Set<String> pendingRooms = new LinkedHashSet<>();
+  private final Map<String, Boolean> pendingPresence = new LinkedHashMap<>();
+  private List<String> pendingSnapshot;
+  private ScrollBar chatScroll;
+
+  // rodomo pokalbio istorija: kambarys arba gavėjas (PM), senesnio puslapio žymeklis
+  private String historyRoom;
+  private String historyPeer;
+  private long historyCursor;
+  private boolean historyMore;
+  private boolean historyLoading;
+  // gaunamo puslapio eilutės, įterpiamos į viršų gavus history-end
+  private final List<String> historyPage = new ArrayList<>();
+
   @FXML
   public void initialize() {
     // Saugūs null patikrinimai (jei FXML neatlieka injekcijos)
@@ -55,12 +92,41 @@ public class ChatController {
         if (client != null && username != null && !username.isEmpty()) {
           String selectedRoom = roomSelector.getValue();
           if (selectedRoom != null && !selectedRoom.isEmpty()) {
-            Message join = new Message("join-room", username, null, selectedRoom, null);
+            Message join = new Message(MessageKind.JOIN_ROOM, username, null, selectedRoom, null);
             client.send(join);
+            openConversation();
           }
         }
       });
     }
+    if (recipientSelector != null) {
+      recipientSelector.setOnAction(ev -> {
+        if (client != null && username != null && !username.isEmpty()) openConversation();
+      });
+    }
+    chatList.setCellFactory(lv -> new ListCell<>() {
+      {
+        // be šito ListCell neriboja pločio ir ilgos eilutės nesilaužo
+        setWrapText(true);
+        setPrefWidth(0);
+      }
+
+      @Override
+      protected void updateItem(String item, boolean empty) {
+        super.updateItem(item, empty);
+        setText(empty ? null : item);
+      }
+    });
+    // slinkties juosta atsiranda tik sukūrus sąrašo skin'ą
+    chatList.skinProperty().addListener((obs, oldSkin, newSkin) -> {
+      if (newSkin != null) installScrollListener();
+    });
+    new AnimationTimer() {
+      @Override
+      public void handle(long now) {
+        drainInbox();
+      }
+    }.start();
     // 'Enter' išsiunčia žinutę, 'Shift+Enter' įterpia naują eilutę
     if (inputField != null) {
       inputField.addEventFilter(KeyEvent.KEY_PRESSED, ev -> {
@@ -82,18 +148,22 @@ public class ChatController {
   private void doConnect() {
     username = usernameField.getText().trim();
     if (username.isEmpty()) return;
-    client = new NetworkClient();
+    // -Dchat.codec=binary įjungia kompaktišką dvejetainį protokolą
+    // žinutės įdedamos į eilę skaitymo gijoje; FX gijoje jas paima drainInbox()
+    // nutrūkus ryšiui klientas jungiasi iš naujo pats, todėl senas uždaromas tik jungiantis kitu vardu
+    if (client != null) client.close();
+    client = new NetworkClient(WireFormat.fromOption(System.getProperty("chat.codec")), Runnable::run);
     try {
       client.connect("localhost", 55555, this::onMessage);
-      Message m = new Message("register", username, null, null, null);
-      client.send(m);
+      client.register(username);
 
       String currentRoom = roomSelector.getValue();
       if (currentRoom != null && !currentRoom.isEmpty()) {
-        Message join = new Message("join-room", username, null, currentRoom, null);
+        Message join = new Message(MessageKind.JOIN_ROOM, username, null, currentRoom, null);
         client.send(join);
       }
       appendLocal("Prisijungta kaip: " + username);
+      openConversation();
     } catch (Exception e) {
       appendLocal("Prisijungimas nepavyko: " + e.getMessage());
       client = null;
@@ -124,14 +194,14 @@ public class ChatController {
 
     Message m;
     if (to != null) {
-      m = new Message("message", username, to, null, text);
+      m = new Message(MessageKind.MESSAGE, username, to, null, text);
     } else {
       String roomId = roomSelector != null ? roomSelector.getValue() : null;
       if (roomId == null || roomId.isEmpty()) {
         appendLocal("Pasirinkite kambarį.");
         return;
       }
-      m = new Message("message", username, null, roomId, text);
+      m = new Message(MessageKind.MESSAGE, username, null, roomId, text);
     }
 
     try {
@@ -150,70 +220,240 @@ public class ChatController {
     String rn = newRoomField.getText();
     if (rn == null || rn.isEmpty()) return;
     String id = rn.trim().toLowerCase().replaceAll("\\s+", "-");
-    Message m = new Message("create-room", username, null, id, rn);
+    Message m = new Message(MessageKind.CREATE_ROOM, username, null, id, rn);
     client.send(m);
 
     if (roomSelector != null && !roomSelector.getItems().contains(id)) {
       roomSelector.getItems().add(id);
     }
-    Message join = new Message("join-room", username, null, id, null);
+    Message join = new Message(MessageKind.JOIN_ROOM, username, null, id, null);
     client.send(join);
     newRoomField.clear();
   }
 
+  /**
+   * Kviečiama skaitymo gijoje - tik įdeda į eilę.
+   */
   private void onMessage(Message m) {
-    Platform.runLater(() -> {
-      // Saugiai nuskaityti tipą — jei nėra, laikome "message"
-      String type = "message";
-      try {
-        String t = m.type();
-        if (t != null) type = t;
-      } catch (NoSuchMethodError | AbstractMethodError | Exception err) {
-        type = "message";
-      }
+    inbox.add(m);
+  }
 
-      switch (type) {
-        case "room-created" -> {
-          String id = m.roomId();
-          if (id != null && roomSelector != null && !roomSelector.getItems().contains(id)) {
-            roomSelector.getItems().add(id);
-          }
-          return;
-        }
-        case "user-joined" -> {
-          // Išsaugome m.text() ir m.from() į lokalius kintamuosius
-          String text = m.text();
-          String from = m.from();
-          String user = (text != null && !text.isBlank()) ? text : from;
-          if (user != null && recipientSelector != null && !recipientSelector.getItems().contains(user)) {
-            recipientSelector.getItems().add(user);
-          }
-          return;
-        }
-        case "user-left" -> {
-          String text = m.text();
-          String from = m.from();
-          String user = (text != null && !text.isBlank()) ? text : from;
-          if (recipientSelector != null) recipientSelector.getItems().remove(user);
-          return;
+  /**
+   * Kartą per kadrą (FX gijoje): apdoroja susikaupusias žinutes ir pritaiko visus pasikeitimus vienu kartu.
+   */
+  private void drainInbox() {
+    Message m;
+    for (int i = 0; i < MAX_PER_PULSE && (m = inbox.poll()) != null; i++) {
+      process(m);
+    }
+    applyRooms();
+    applyPresence();
+    if (!pendingLines.isEmpty()) appendLines();
+  }
+
+  private void process(Message m) {
+    MessageKind type = m.type() != null ? m.type() : MessageKind.MESSAGE;
+    switch (type) {
+      case LOCAL -> pendingLines.add("[local] " + m.text());
+      case ROOM_CREATED -> {
+        if (m.roomId() != null) pendingRooms.add(m.roomId());
+      }
+      case PRESENCE_SNAPSHOT -> {
+        // visi šiuo metu prisijungę; ankstesni nepritaikyti pasikeitimai nebeaktualūs
+        pendingSnapshot = new ArrayList<>(List.of(splitNames(m.text())));
+        pendingPresence.clear();
+      }
+      case PRESENCE -> {
+        // "+vardas" prisijungė, "-vardas" atsijungė; per kadrą galioja paskutinė būsena
+        for (String change : splitNames(m.text())) {
+          if (change.length() >= 2) pendingPresence.put(change.substring(1), change.charAt(0) == '+');
         }
       }
-      // message (viešas/privatus) - taip pat naudojame lokalius kintamuosius
-      String msgText = m.text();
-      String from = m.from();
-      String resolvedFrom = (from != null) ? from : "server";
-      String to = m.to();
-
-      if (to != null && !to.isBlank()) {
-        chatArea.appendText(String.format("[PM] %s -> %s: %s%n", resolvedFrom, to, msgText));
+      case HISTORY -> {
+        if (isCurrentConversation(m)) historyPage.add(format(m));
+      }
+      case HISTORY_END -> {
+        if (isCurrentConversation(m)) onHistoryEnd(m);
+      }
+      case SYSTEM -> onSystem(m);
+      // message (viešas/privatus)
+      default -> pendingLines.add(format(m));
+    }
+  }
+
+  /**
+   * Registracijos ir sesijos pratęsimo atsakymai - protokolo dalis, ne pokalbio žinutės: jų tekstas
+   * (su sesijos raktu) sąraše nerodomas.
+   */
+  private void onSystem(Message m) {
+    String text = m.text() != null ? m.text() : "";
+    if (text.startsWith("registered")) return;
+    if (text.startsWith("resumed")) {
+      String replayed = "0";
+      boolean complete = true;
+      for (String part : text.split(";")) {
+        if (part.startsWith("replayed=")) replayed = part.substring("replayed=".length());
+        if (part.equals("complete=false")) complete = false;
+      }
+      pendingLines.add("[local] Sesija pratęsta, praleistų žinučių: " + replayed
+              + (complete ? "" : " (dalis senesnių - tik istorijoje)"));
+      return;
+    }
+    pendingLines.add(format(m));
+  }
+
+  private void applyRooms() {
+    if (pendingRooms.isEmpty() || roomSelector == null) {
+      pendingRooms.clear();
+      return;
+    }
+    pendingRooms.removeAll(roomSelector.getItems());
+    roomSelector.getItems().addAll(pendingRooms);
+    pendingRooms.clear();
+  }
+
+  /**
+   * Perskaičiuoja gavėjų sąrašą ir keičia {@link ComboBox} elementus vienu {@code setAll}.
+   */
+  private void applyPresence() {
+    if (pendingSnapshot == null && pendingPresence.isEmpty()) return;
+    if (recipientSelector != null) {
+      // "" - viešas pranešimas kambariui
+      Set<String> users = new LinkedHashSet<>();
+      if (pendingSnapshot != null) {
+        users.addAll(pendingSnapshot);
       } else {
-        String room = m.roomId() != null ? m.roomId() : "pm";
-        chatArea.appendText(String.format("[%s] %s: %s%n", room, resolvedFrom, msgText));
+        users.addAll(recipientSelector.getItems());
       }
-    });
+      pendingPresence.forEach((user, online) -> {
+        if (online) {
+          users.add(user);
+        } else {
+          users.remove(user);
+        }
+      });
+      users.remove("");
+      users.remove(username);
+      List<String> items = new ArrayList<>(users.size() + 1);
+      items.add("");
+      items.addAll(users);
+      if (!items.equals(recipientSelector.getItems())) {
+        String selected = recipientSelector.getValue();
+        recipientSelector.getItems().setAll(items);
+        recipientSelector.setValue(selected != null && items.contains(selected) ? selected : "");
+      }
+    }
+    pendingSnapshot = null;
+    pendingPresence.clear();
+  }
+
+  /**
+   * Prideda per kadrą sukauptas eilutes ir, jei vartotojas buvo apačioje, nuslenka iki naujausios.
+   */
+  private void appendLines() {
+    ObservableList<String> items = chatList.getItems();
+    boolean follow = chatScroll == null || chatScroll.getValue() >= chatScroll.getMax() - 0.001;
+    List<String> lines = pendingLines.size() > MAX_LINES
+            ? pendingLines.subList(pendingLines.size() - MAX_LINES, pendingLines.size()) : pendingLines;
+    items.addAll(lines);
+    pendingLines.clear();
+    if (items.size() > MAX_LINES) items.remove(0, items.size() - MAX_LINES);
+    if (follow) chatList.scrollTo(items.size() - 1);
+  }
+
+  private void onHistoryEnd(Message m) {
+    historyLoading = false;
+    historyCursor = m.timestamp();
+    historyMore = "more".equals(m.text());
+    if (historyPage.isEmpty()) return;
+    ObservableList<String> items = chatList.getItems();
+    int added = historyPage.size();
+    items.addAll(0, historyPage);
+    historyPage.clear();
+    // įterpus viršuje, išmetamos naujausios eilutės, kad sąrašas neviršytų ribos
+    if (items.size() > MAX_LINES) {
+      items.remove(MAX_LINES, items.size());
+      historyMore = historyMore || added >= MAX_LINES;
+    }
+    // rodome tą pačią vietą, kurią vartotojas skaitė prieš įterpiant
+    chatList.scrollTo(Math.min(added, items.size() - 1));
+  }
+
+  /**
+   * Priėjus sąrašo viršų, užkraunamas senesnis istorijos puslapis.
+   */
+  private void installScrollListener() {
+    for (Node node : chatList.lookupAll(".scroll-bar")) {
+      if (node instanceof ScrollBar bar && bar.getOrientation() == Orientation.VERTICAL) {
+        chatScroll = bar;
+        bar.valueProperty().addListener((obs, oldValue, newValue) -> {
+          if (newValue.doubleValue() <= bar.getMin() && oldValue.doubleValue() > bar.getMin()) requestOlderHistory();
+        });
+        return;
+      }
+    }
+  }
+
+  private static String[] splitNames(String text) {
+    return text == null || text.isEmpty() ? new String[0] : text.split("\n");
+  }
+
+  private static String format(Message m) {
+    String msgText = m.text();
+    String from = m.from();
+    String resolvedFrom = (from != null) ? from : "server";
+    String to = m.to();
+
+    if (to != null && !to.isBlank()) {
+      return "[PM] " + resolvedFrom + " -> " + to + ": " + msgText;
+    }
+    String room = m.roomId() != null ? m.roomId() : "pm";
+    return "[" + room + "] " + resolvedFrom + ": " + msgText;
+  }
+
+  /**
+   * Pakeitus kambarį ar gavėją, išvalo langą ir paprašo naujausio to pokalbio istorijos puslapio.
+   */
+  private void openConversation() {
+    String peer = recipientSelector != null ? recipientSelector.getValue() : null;
+    if (peer != null && !peer.isBlank()) {
+      historyPeer = peer.trim();
+      historyRoom = null;
+    } else {
+      historyPeer = null;
+      historyRoom = roomSelector != null ? roomSelector.getValue() : null;
+      if (historyRoom == null || historyRoom.isEmpty()) return;
+    }
+    chatList.getItems().clear();
+    pendingLines.clear();
+    historyPage.clear();
+    historyMore = false;
+    requestHistory(0);
+  }
+
+  private void requestOlderHistory() {
+    if (historyMore && !historyLoading) requestHistory(historyCursor);
+  }
+
+  private void requestHistory(long before) {
+    if (client == null || username == null) return;
+    historyLoading = true;
+    client.send(new Message(MessageKind.HISTORY, username, historyPeer, historyRoom, String.valueOf(HISTORY_PAGE), before));
+  }
+
+  /**
+   * Ar istorijos kadras priklauso šiuo metu rodomam pokalbiui (atsakymas galėjo ateiti jau perjungus).
+   */
+  private boolean isCurrentConversation(Message m) {
+    if (historyPeer != null) {
+      String other = username.equals(m.from()) ? m.to() : m.from();
+      // history-end grąžina gavėją lauke 'to'
+      return historyPeer.equals(other) || (m.type() == MessageKind.HISTORY_END && historyPeer.equals(m.to()));
+    }
+    return historyRoom != null && historyRoom.equals(m.roomId()) && (m.to() == null || m.to().isBlank());
   }
 
   private void appendLocal(String text) {
-    Platform.runLater(() -> chatArea.appendText("[local] " + text + "\n"));
+    inbox.add(new Message(MessageKind.LOCAL, null, null, null, text));
   }
 }
@@ -0,0 +1,35 @@
+package lt.kostas.chatapp.dto;
+
+/**
+ * Pokalbio identifikatorius: kambarys arba privatus dviejų vartotojų pokalbis.
+ * Privataus pokalbio vartotojai surikiuojami, todėl A-B ir B-A yra tas pats raktas.
+ */
+public record ConversationKey(String roomId, String userA, String userB) {
+
+  public static ConversationKey room(String roomId) {
+    return new ConversationKey(roomId, null, null);
+  }
+
+  public static ConversationKey direct(String a, String b) {
+    return a.compareTo(b) <= 0 ? new ConversationKey(null, a, b) : new ConversationKey(null, b, a);
+  }
+
+  /**
+   * Raktas pokalbio, kuriam priklauso žinutė, arba null, jei žinutė nepriklauso jokiam pokalbiui.
+   */
+  public static ConversationKey of(Message m) {
+    if (m.to() != null && !m.to().isBlank()) {
+      return m.from() == null ? null : direct(m.from(), m.to());
+    }
+    if (m.roomId() != null && !m.roomId().isBlank()) return room(m.roomId());
+    return null;
+  }
+
+  public boolean isDirect() {
+    return roomId == null;
+  }
+
+  public boolean matches(Message m) {
+    return equals(of(m));
+  }
+}
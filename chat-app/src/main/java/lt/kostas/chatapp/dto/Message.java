@@ -1,7 +1,7 @@
 package lt.kostas.chatapp.dto;
 
 public record Message(
-        String type,
+        MessageKind type,
         String from,
         String to,
         String roomId,
@@ -9,7 +9,7 @@ public record Message(
         long timestamp
 ) {
   // klasės konstruktorius, kuris automatiškai nustato timestamp
-  public Message(String type, String from, String to, String roomId, String text) {
+  public Message(MessageKind type, String from, String to, String roomId, String text) {
     this(type, from, to, roomId, text, System.currentTimeMillis());
   }
 }
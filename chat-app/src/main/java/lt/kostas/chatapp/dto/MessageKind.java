@@ -0,0 +1,88 @@
+package lt.kostas.chatapp.dto;
+
+import com.google.gson.annotations.SerializedName;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Žinutės tipas. Iškoduojamas vieną kartą ties kodeku (Gson per {@link SerializedName},
+ * {@code BinaryCodec} - pagal {@link #code()}), toliau lyginamas kaip enum, be eilučių.
+ * Nežinomas tipas iškoduojamas kaip null.
+ */
+public enum MessageKind {
+  @SerializedName("message") MESSAGE("message", 1),
+  @SerializedName("register") REGISTER("register", 2),
+  @SerializedName("create-room") CREATE_ROOM("create-room", 3),
+  @SerializedName("join-room") JOIN_ROOM("join-room", 4),
+  @SerializedName("system") SYSTEM("system", 5),
+  @SerializedName("user-joined") USER_JOINED("user-joined", 6),
+  @SerializedName("user-left") USER_LEFT("user-left", 7),
+  @SerializedName("room-created") ROOM_CREATED("room-created", 8),
+  @SerializedName("history") HISTORY("history", 9),
+  @SerializedName("history-end") HISTORY_END("history-end", 10),
+  @SerializedName("presence") PRESENCE("presence", 11),
+  @SerializedName("presence-snapshot") PRESENCE_SNAPSHOT("presence-snapshot", 12),
+  @SerializedName("search") SEARCH("search", 13),
+  @SerializedName("search-result") SEARCH_RESULT("search-result", 14),
+  @SerializedName("search-end") SEARCH_END("search-end", 15),
+  /** tik kliento viduje (vietiniai pranešimai vartotojui), tinkle nesiunčiama */
+  @SerializedName("local") LOCAL("local", 0);
+
+  private static final Map<String, MessageKind> BY_WIRE = new HashMap<>();
+  // indeksas - dvejetainis kodas
+  private static final MessageKind[] BY_CODE;
+
+  static {
+    int max = 0;
+    for (MessageKind k : values()) {
+      BY_WIRE.put(k.wire, k);
+      max = Math.max(max, k.code);
+    }
+    BY_CODE = new MessageKind[max + 1];
+    for (MessageKind k : values()) {
+      if (k.code > 0) BY_CODE[k.code] = k;
+    }
+  }
+
+  private final String wire;
+  private final int code;
+
+  MessageKind(String wire, int code) {
+    this.wire = wire;
+    this.code = code;
+  }
+
+  /**
+   * Pavadinimas protokole, pvz. {@code create-room}.
+   */
+  public String wire() {
+    return wire;
+  }
+
+  /**
+   * {@code BinaryCodec} tipo kodas; 0 - kodo nėra, tipas rašomas eilute. Kodai nekeičiami, nauji - tik didesni.
+   */
+  public int code() {
+    return code;
+  }
+
+  /**
+   * Tipas pagal pavadinimą protokole arba null, jei toks nežinomas.
+   */
+  public static MessageKind fromWire(String wire) {
+    return wire == null ? null : BY_WIRE.get(wire);
+  }
+
+  /**
+   * Tipas pagal dvejetainį kodą arba null, jei toks nežinomas.
+   */
+  public static MessageKind fromCode(int code) {
+    return code > 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+  }
+
+  @Override
+  public String toString() {
+    return wire;
+  }
+}
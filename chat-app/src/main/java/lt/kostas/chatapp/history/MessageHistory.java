@@ -0,0 +1,177 @@
+package lt.kostas.chatapp.history;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.persistence.Persistence;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Naujausių žinučių istorija atmintyje: po vieną {@link MessageRing} kiekvienam kambariui ir
+ * kiekvienai privataus pokalbio porai. Atmintis ribojama žinučių skaičiumi (buferio talpa) ir,
+ * jei nurodyta, amžiumi; senesnės žinutės skaitomos iš {@link Persistence}.
+ */
+public final class MessageHistory {
+  private final int roomCapacity;
+  private final int directCapacity;
+  private final long maxAgeMillis;
+  private final Persistence storage;
+  private final Map<ConversationKey, MessageRing> rings = new ConcurrentHashMap<>();
+  // true, jei istorija po paleidimo užpildyta tik paskutiniu langu - senesnės žinutės yra tik saugykloje
+  private volatile boolean restored;
+  // pokalbis → paskutinis skaitymas, grąžinęs mažiau nei prašyta, t.y. visas senesnes saugyklos žinutes;
+  // laikoma tik pokalbiams, turintiems buferį, todėl įrašų ne daugiau nei buferių, kad ir ko klientai prašytų
+  private final Map<ConversationKey, StoredTail> storedTails = new ConcurrentHashMap<>();
+
+  /**
+   * Visos pokalbio žinutės, kurios skaitymo metu ({@code readAt}) buvo saugykloje ir senesnės nei {@code below}.
+   * Vėliau ateinančių laikas ne mažesnis nei {@code readAt}, ir jos yra buferyje, kol šis neišmeta daugiau
+   * žinučių ({@code evicted}).
+   */
+  private record StoredTail(List<Message> messages, long below, long readAt, long evicted) {
+
+    /**
+     * Ar iš šio skaitymo ir buferio galima surinkti visas senesnes nei {@code olderThan} žinutes.
+     */
+    boolean covers(long olderThan) {
+      // jei below > readAt, senų žinučių tarp below ir olderThan nebuvo - visos naujesnės yra buferyje
+      return olderThan <= below || below > readAt;
+    }
+  }
+
+  /**
+   * @param roomCapacity   kiek žinučių laikoma vienam kambariui
+   * @param directCapacity kiek žinučių laikoma vienai privataus pokalbio porai
+   * @param maxAgeMillis   senesnės žinutės laikomos pasenusiomis ir skaitomos iš saugyklos (0 - be ribos)
+   * @param storage        iš kur skaityti tai, ko atmintyje nebėra
+   */
+  public MessageHistory(int roomCapacity, int directCapacity, long maxAgeMillis, Persistence storage) {
+    if (maxAgeMillis < 0) throw new IllegalArgumentException("maxAgeMillis negali būti neigiamas");
+    this.roomCapacity = roomCapacity;
+    this.directCapacity = directCapacity;
+    this.maxAgeMillis = maxAgeMillis;
+    this.storage = storage;
+  }
+
+  public void append(Message m) {
+    ConversationKey key = ConversationKey.of(m);
+    if (key == null) return;
+    rings.computeIfAbsent(key, k -> new MessageRing(k.isDirect() ? directCapacity : roomCapacity)).append(m);
+  }
+
+  public List<Message> latest(ConversationKey key, int limit) {
+    return before(key, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   * Iki {@code limit} naujausių pokalbio žinučių, senesnių nei {@code beforeTimestamp},
+   * chronologine tvarka. Jei atmintyje jų nepakanka, trūkstamos skaitomos iš saugyklos - nebent ankstesnis
+   * to pokalbio skaitymas jau grąžino visas senesnes.
+   */
+  public List<Message> before(ConversationKey key, long beforeTimestamp, int limit) {
+    if (key == null || limit <= 0) return List.of();
+    List<Message> result = new ArrayList<>(limit);
+    long minTimestamp = maxAgeMillis == 0 ? Long.MIN_VALUE : System.currentTimeMillis() - maxAgeMillis;
+    MessageRing ring = rings.get(key);
+    boolean complete = false;
+    if (ring != null) {
+      ring.collectNewestFirst(result, limit, beforeTimestamp, minTimestamp);
+      // buferis nieko neišmetė ir nebuvo apkarpytas amžiumi - saugykloje senesnių nebus
+      complete = !ring.hasEvicted() && maxAgeMillis == 0 && !restored;
+    }
+    Collections.reverse(result);
+    if (result.size() < limit && !complete) {
+      long olderThan = beforeTimestamp;
+      int from = 0;
+      if (!result.isEmpty()) {
+        // saugykla skaito griežtai senesnes (< timestamp), todėl tos pačios milisekundės žinutes
+        // imame iš saugyklos, kad dalis jų nepražūtų tarp buferio ir saugyklos
+        olderThan = result.get(0).timestamp();
+        while (from < result.size() && result.get(from).timestamp() == olderThan) from++;
+        if (from < result.size()) {
+          olderThan = result.get(from).timestamp();
+        } else {
+          // visos - vienos milisekundės: ji imama iš saugyklos visa, o iš buferio - tik dar neįrašytos
+          olderThan++;
+        }
+      }
+      List<Message> newer = result.subList(from, result.size());
+      List<Message> older = readOlder(key, ring, olderThan, limit - newer.size());
+      if (from == result.size() && !result.isEmpty()) {
+        List<Message> merged = new ArrayList<>(older);
+        for (Message m : result) {
+          if (!older.contains(m)) merged.add(m);
+        }
+        return merged.size() > limit ? merged.subList(merged.size() - limit, merged.size()) : merged;
+      }
+      List<Message> merged = new ArrayList<>(older.size() + newer.size());
+      merged.addAll(older);
+      merged.addAll(newer);
+      return merged;
+    }
+    return result;
+  }
+
+  /**
+   * Senesnės nei {@code olderThan} žinutės iš saugyklos. Jei ankstesnis skaitymas jau grąžino visas tokias
+   * (mažiau nei prašyta), jos imamos iš {@link StoredTail} ir buferio - nedideliam pokalbiui saugykla skaitoma
+   * vieną kartą.
+   */
+  private List<Message> readOlder(ConversationKey key, MessageRing ring, long olderThan, int wanted) {
+    long evicted = ring == null ? 0 : ring.evicted();
+    StoredTail tail = storedTails.get(key);
+    if (tail == null || tail.evicted() != evicted || !tail.covers(olderThan)) {
+      long readAt = System.currentTimeMillis();
+      List<Message> older = storage.readHistory(key, olderThan, wanted);
+      if (older.size() < wanted && ring != null) {
+        storedTails.put(key, new StoredTail(List.copyOf(older), olderThan, readAt, evicted));
+      }
+      return older;
+    }
+    List<Message> merged = new ArrayList<>();
+    for (Message m : tail.messages()) {
+      if (m.timestamp() < olderThan) merged.add(m);
+    }
+    if (ring != null && olderThan > tail.readAt()) {
+      // po skaitymo atėjusios žinutės; tos pačios milisekundės kaip readAt gali jau būti tail
+      List<Message> recent = new ArrayList<>();
+      ring.collectNewestFirst(recent, Integer.MAX_VALUE, olderThan, tail.readAt());
+      Collections.reverse(recent);
+      Set<Message> seen = new HashSet<>(merged);
+      for (Message m : recent) {
+        if (!seen.contains(m)) merged.add(m);
+      }
+      merged.sort(Comparator.comparingLong(Message::timestamp));
+    }
+    return merged.size() > wanted ? merged.subList(merged.size() - wanted, merged.size()) : merged;
+  }
+
+  /**
+   * Vartotojo privatūs pokalbiai, kurių žinučių yra atmintyje. Peržiūrimi visi buferiai, todėl kviesti
+   * tik retai (pvz. pratęsiant sesiją), ne kiekvienai žinutei.
+   */
+  public List<ConversationKey> directConversationsOf(String username) {
+    List<ConversationKey> keys = new ArrayList<>();
+    for (ConversationKey key : rings.keySet()) {
+      if (key.isDirect() && (username.equals(key.userA()) || username.equals(key.userB()))) keys.add(key);
+    }
+    return keys;
+  }
+
+  /**
+   * Užpildo buferius atkurtu paskutinių žinučių langu.
+   */
+  public void restore(List<Message> recent) {
+    for (Message m : recent) {
+      append(m);
+    }
+    restored = true;
+  }
+}
@@ -0,0 +1,68 @@
+package lt.kostas.chatapp.history;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fiksuoto dydžio žiedinis buferis vieno pokalbio žinutėms. Rašymas be užraktų:
+ * rašytojas atomiškai pasiima eilės numerį ir įrašo į jo vietą, todėl keli rašytojai
+ * netrukdo vienas kitam. Kiekvienas įrašas saugo savo numerį - skaitytojas praleidžia
+ * vietas, kurios jau perrašytos arba dar neužpildytos.
+ */
+final class MessageRing {
+  private record Entry(long seq, Message message) {
+  }
+
+  private final AtomicReferenceArray<Entry> slots;
+  private final int capacity;
+  private final AtomicLong next = new AtomicLong();
+
+  MessageRing(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("Buferio talpa turi būti teigiama");
+    this.capacity = capacity;
+    this.slots = new AtomicReferenceArray<>(capacity);
+  }
+
+  void append(Message m) {
+    long seq = next.getAndIncrement();
+    slots.set((int) (seq % capacity), new Entry(seq, m));
+  }
+
+  /**
+   * Ar buferis jau išmetė senesnių žinučių.
+   */
+  boolean hasEvicted() {
+    return next.get() > capacity;
+  }
+
+  /**
+   * Kiek žinučių buferis iš viso išmetė.
+   */
+  long evicted() {
+    return Math.max(0, next.get() - capacity);
+  }
+
+  /**
+   * Renka naujausias žinutes, senesnes nei {@code beforeTimestamp} ir ne senesnes nei {@code minTimestamp},
+   * nuo naujausios link seniausios.
+   *
+   * @return true, jei buferyje gali būti dar senesnių tinkamų žinučių, kurių nebesutalpinome
+   */
+  boolean collectNewestFirst(List<Message> into, int limit, long beforeTimestamp, long minTimestamp) {
+    long head = next.get();
+    long oldest = Math.max(0, head - capacity);
+    for (long seq = head - 1; seq >= oldest; seq--) {
+      Entry e = slots.get((int) (seq % capacity));
+      if (e == null || e.seq() != seq) continue;
+      long ts = e.message().timestamp();
+      if (ts < minTimestamp) return false;
+      if (ts >= beforeTimestamp) continue;
+      if (into.size() >= limit) return true;
+      into.add(e.message());
+    }
+    return false;
+  }
+}
@@ -0,0 +1,22 @@
+package lt.kostas.chatapp.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tik didėjantis skaitiklis. {@link LongAdder}, todėl daug gijų gali didinti be ginčo dėl vienos ląstelės.
+ */
+public final class Counter {
+  private final LongAdder value = new LongAdder();
+
+  public void increment() {
+    value.increment();
+  }
+
+  public void add(long n) {
+    value.add(n);
+  }
+
+  public long get() {
+    return value.sum();
+  }
+}
@@ -0,0 +1,62 @@
+package lt.kostas.chatapp.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reikšmių pasiskirstymas dvejeto laipsnių kibiruose: kibiras 0 - nulis, kibiras {@code i} apima [2^(i-1), 2^i).
+ * Įrašymas be užraktų ir be alokacijų; procentilis grąžinamas kaip kibiro viršutinė riba,
+ * t. y. ne daugiau nei dvigubai didesnis už tikrąjį.
+ */
+public final class Histogram {
+  private static final int BUCKETS = 64;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    if (value < 0) value = 0;
+    buckets.incrementAndGet(value == 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value));
+    count.increment();
+    sum.add(value);
+    long m = max.get();
+    while (value > m && !max.compareAndSet(m, value)) {
+      m = max.get();
+    }
+  }
+
+  public long count() {
+    return count.sum();
+  }
+
+  public long sum() {
+    return sum.sum();
+  }
+
+  public long max() {
+    return max.get();
+  }
+
+  /**
+   * Apytikslis {@code q} procentilis (0..1) arba 0, jei įrašų nėra.
+   */
+  public long percentile(double q) {
+    long total = 0;
+    long[] snapshot = new long[BUCKETS];
+    for (int i = 0; i < BUCKETS; i++) {
+      snapshot[i] = buckets.get(i);
+      total += snapshot[i];
+    }
+    if (total == 0) return 0;
+    long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += snapshot[i];
+      if (seen >= rank) return i == 0 ? 0 : Math.min(max(), (1L << i) - 1);
+    }
+    return max();
+  }
+}
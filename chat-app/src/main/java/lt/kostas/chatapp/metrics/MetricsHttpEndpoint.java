@@ -0,0 +1,56 @@
+package lt.kostas.chatapp.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Vietinis (tik loopback) {@code GET /metrics} su metrikomis Prometheus tekstiniu formatu.
+ */
+public final class MetricsHttpEndpoint {
+  private final MetricsRegistry registry;
+  private HttpServer server;
+
+  public MetricsHttpEndpoint(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  public void start(int port) throws IOException {
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    server.createContext("/metrics", this::handle);
+    server.start();
+  }
+
+  /**
+   * Faktinis portas (naudinga, kai paleista su 0).
+   */
+  public int port() {
+    return server.getAddress().getPort();
+  }
+
+  public void stop() {
+    if (server != null) server.stop(0);
+  }
+
+  private void handle(HttpExchange exchange) throws IOException {
+    try (exchange) {
+      if (!"GET".equals(exchange.getRequestMethod())) {
+        exchange.sendResponseHeaders(405, -1);
+        return;
+      }
+      StringBuilder text = new StringBuilder(4096);
+      registry.writeText(text);
+      byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+      exchange.sendResponseHeaders(200, body.length);
+      try (OutputStream os = exchange.getResponseBody()) {
+        os.write(body);
+      }
+    }
+  }
+}
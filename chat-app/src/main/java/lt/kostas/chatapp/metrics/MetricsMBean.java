@@ -0,0 +1,91 @@
+package lt.kostas.chatapp.metrics;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Visos {@link MetricsRegistry} metrikos kaip tik skaitomi JMX atributai (pvz. JConsole ar VisualVM).
+ * Atributų sąrašas sudaromas kiekvieną kartą iš naujo, nes skaitikliai pagal tipą atsiranda eigoje.
+ */
+public final class MetricsMBean implements DynamicMBean {
+  private static final Logger logger = Logger.getLogger(MetricsMBean.class.getName());
+
+  private final MetricsRegistry registry;
+  private ObjectName name;
+
+  public MetricsMBean(MetricsRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * Užregistruoja platformos MBean serveryje; klaida tik užrašoma į žurnalą - be JMX serveris veikia.
+   */
+  public void register(String objectName) {
+    try {
+      name = new ObjectName(objectName);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name)) server.unregisterMBean(name);
+      server.registerMBean(this, name);
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Nepavyko užregistruoti metrikų JMX: " + objectName, e);
+      name = null;
+    }
+  }
+
+  public void unregister() {
+    if (name == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      logger.log(Level.FINE, "Nepavyko išregistruoti metrikų JMX", e);
+    }
+    name = null;
+  }
+
+  @Override
+  public Object getAttribute(String attribute) throws AttributeNotFoundException {
+    Long value = registry.values().get(attribute);
+    if (value == null) throw new AttributeNotFoundException(attribute);
+    return value;
+  }
+
+  @Override
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Long> values = registry.values();
+    AttributeList list = new AttributeList();
+    for (String a : attributes) {
+      Long v = values.get(a);
+      if (v != null) list.add(new Attribute(a, v));
+    }
+    return list;
+  }
+
+  @Override
+  public MBeanInfo getMBeanInfo() {
+    Map<String, Long> values = registry.values();
+    MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[values.size()];
+    int i = 0;
+    for (String key : values.keySet()) {
+      attributes[i++] = new MBeanAttributeInfo(key, "long", key, true, false, false);
+    }
+    return new MBeanInfo(getClass().getName(), "Pokalbių serverio metrikos", attributes, null, null, null);
+  }
+
+  @Override
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Metrikos tik skaitomos: " + attribute.getName());
+  }
+
+  @Override
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  @Override
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+}
@@ -0,0 +1,112 @@
+package lt.kostas.chatapp.metrics;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Pavadintų metrikų rinkinys. Metrikos užregistruojamos vieną kartą ir laikomos kaip nuorodos,
+ * todėl karštame kelyje nėra paieškos pagal vardą - ji vyksta tik nuskaitant.
+ */
+public final class MetricsRegistry {
+
+  private record Entry(String name, String label, String help, Object metric) {
+  }
+
+  // raktas "vardas žymė" - tarpas už visus vardo simbolius mažesnis, todėl to paties vardo metrikos eina greta
+  private final Map<String, Entry> entries = new ConcurrentSkipListMap<>();
+
+  public Counter counter(String name, String help) {
+    return counter(name, help, null);
+  }
+
+  /**
+   * Skaitiklis su {@code type} žyme, pvz. {@code chat_messages_in_total{type="message"}}.
+   * Tas pats vardas ir žymė grąžina tą patį skaitiklį.
+   */
+  public Counter counter(String name, String help, String type) {
+    return (Counter) register(name, type, help, new Counter());
+  }
+
+  public Histogram histogram(String name, String help) {
+    return (Histogram) register(name, null, help, new Histogram());
+  }
+
+  public void gauge(String name, String help, LongSupplier value) {
+    register(name, null, help, value);
+  }
+
+  private Object register(String name, String label, String help, Object metric) {
+    String key = label == null ? name : name + " " + label;
+    return entries.computeIfAbsent(key, k -> new Entry(name, label, help, metric)).metric();
+  }
+
+  /**
+   * Visos metrikos Prometheus tekstiniu formatu; histogramos - kaip summary su p50/p99/p999.
+   */
+  public void writeText(Appendable out) throws IOException {
+    String lastName = null;
+    for (Entry e : entries.values()) {
+      if (!e.name().equals(lastName)) {
+        out.append("# HELP ").append(e.name()).append(' ').append(e.help()).append('\n');
+        out.append("# TYPE ").append(e.name()).append(' ').append(typeOf(e.metric())).append('\n');
+        lastName = e.name();
+      }
+      String labels = e.label() == null ? "" : "{type=\"" + escape(e.label()) + "\"}";
+      switch (e.metric()) {
+        case Counter c -> line(out, e.name(), labels, c.get());
+        case Histogram h -> {
+          line(out, e.name(), "{quantile=\"0.5\"}", h.percentile(0.5));
+          line(out, e.name(), "{quantile=\"0.99\"}", h.percentile(0.99));
+          line(out, e.name(), "{quantile=\"0.999\"}", h.percentile(0.999));
+          line(out, e.name() + "_count", "", h.count());
+          line(out, e.name() + "_sum", "", h.sum());
+          line(out, e.name() + "_max", "", h.max());
+        }
+        case LongSupplier g -> line(out, e.name(), labels, g.getAsLong());
+        default -> throw new IllegalStateException("Nežinomas metrikos tipas: " + e.metric());
+      }
+    }
+  }
+
+  /**
+   * Plokščias vaizdas vardas → reikšmė (pvz. JMX atributams); žymė prijungiama per tašką.
+   */
+  public Map<String, Long> values() {
+    Map<String, Long> result = new LinkedHashMap<>();
+    for (Entry e : entries.values()) {
+      String base = e.label() == null ? e.name() : e.name() + "." + e.label();
+      switch (e.metric()) {
+        case Counter c -> result.put(base, c.get());
+        case Histogram h -> {
+          result.put(base + ".count", h.count());
+          result.put(base + ".p50", h.percentile(0.5));
+          result.put(base + ".p99", h.percentile(0.99));
+          result.put(base + ".p999", h.percentile(0.999));
+          result.put(base + ".max", h.max());
+        }
+        case LongSupplier g -> result.put(base, g.getAsLong());
+        default -> throw new IllegalStateException("Nežinomas metrikos tipas: " + e.metric());
+      }
+    }
+    return result;
+  }
+
+  private static String typeOf(Object metric) {
+    return switch (metric) {
+      case Counter c -> "counter";
+      case Histogram h -> "summary";
+      default -> "gauge";
+    };
+  }
+
+  private static String escape(String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  private static void line(Appendable out, String name, String labels, long value) throws IOException {
+    out.append(name).append(labels).append(' ').append(Long.toString(value)).append('\n');
+  }
+}
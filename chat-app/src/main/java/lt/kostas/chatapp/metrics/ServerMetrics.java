@@ -0,0 +1,67 @@
+package lt.kostas.chatapp.metrics;
+
+import lt.kostas.chatapp.dto.MessageKind;
+
+/**
+ * Serverio metrikos vienoje vietoje. Laukai - tiesioginės nuorodos, todėl matavimo taškai
+ * nieko neieško ir neišskiria; skaitikliai pagal žinutės tipą sukuriami iš anksto ir laikomi
+ * masyve pagal {@link MessageKind#ordinal()}, paskutinė vieta - nežinomiems tipams ("other").
+ */
+public final class ServerMetrics {
+  private final MetricsRegistry registry;
+  private final Counter[] inByType;
+  private final Counter[] outByType;
+
+  public final Counter bytesOut;
+  public final Histogram fanOut;
+  public final Histogram serializeNanos;
+  public final Histogram socketWriteNanos;
+  public final Histogram persistenceCommitMicros;
+  public final Counter rateLimited;
+  public final Counter limitDisconnects;
+  public final Counter stateLockContended;
+
+  public ServerMetrics(MetricsRegistry registry) {
+    this.registry = registry;
+    this.bytesOut = registry.counter("chat_bytes_out_total", "Išsiųsta baitų");
+    this.fanOut = registry.histogram("chat_fanout_recipients", "Gavėjų skaičius vienai kambario žinutei");
+    this.serializeNanos = registry.histogram("chat_serialize_nanos", "Vieno kadro kodavimo trukmė (ns)");
+    this.socketWriteNanos = registry.histogram("chat_socket_write_nanos", "Vieno paketo rašymo į socket'ą trukmė (ns)");
+    this.persistenceCommitMicros = registry.histogram("chat_persistence_commit_micros",
+            "Vieno saugyklos paketo įrašymo trukmė (us)");
+    this.inByType = byType("chat_messages_in_total", "Gauta žinučių pagal tipą");
+    this.outByType = byType("chat_messages_out_total", "Išsiųsta kadrų pagal tipą");
+    this.rateLimited = registry.counter("chat_rate_limited_total", "Atmesta užklausų dėl srauto ribų");
+    this.limitDisconnects = registry.counter("chat_limit_disconnects_total",
+            "Atjungta klientų dėl srauto ribų ar per ilgų eilučių");
+    this.stateLockContended = registry.counter("chat_state_lock_contended_total",
+            "Kiek kartų kambario ar vartotojo pakeitimas laukė užimtos užraktų juostos");
+  }
+
+  public MetricsRegistry registry() {
+    return registry;
+  }
+
+  public void messageIn(MessageKind type) {
+    inByType[index(type)].increment();
+  }
+
+  public void messageOut(MessageKind type, int bytes) {
+    outByType[index(type)].increment();
+    bytesOut.add(bytes);
+  }
+
+  private Counter[] byType(String name, String help) {
+    MessageKind[] kinds = MessageKind.values();
+    Counter[] counters = new Counter[kinds.length + 1];
+    for (MessageKind k : kinds) {
+      counters[k.ordinal()] = registry.counter(name, help, k.wire());
+    }
+    counters[kinds.length] = registry.counter(name, help, "other");
+    return counters;
+  }
+
+  private int index(MessageKind type) {
+    return type == null ? inByType.length - 1 : type.ordinal();
+  }
+}
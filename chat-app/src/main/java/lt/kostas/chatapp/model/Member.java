@@ -0,0 +1,12 @@
+package lt.kostas.chatapp.model;
+
+import lt.kostas.chatapp.protocol.Frame;
+
+/**
+ * Prisijungęs kambario narys, kuriam galima tiesiogiai išsiųsti kadrą - be paieškos pagal vardą.
+ */
+public interface Member {
+  String getUsername();
+
+  void send(Frame frame);
+}
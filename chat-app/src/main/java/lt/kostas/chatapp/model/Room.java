@@ -1,13 +1,21 @@
 package lt.kostas.chatapp.model;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Room {
+  private static final Member[] NO_MEMBERS = new Member[0];
+
   private final String id;
   private final String displayName;
+  // narystė (vardai) - saugoma saugykloje
   private final Set<String> members = ConcurrentHashMap.newKeySet();
+  // prisijungusių narių ryšiai; masyvas niekada nekeičiamas - prijungimas/atjungimas sukuria naują
+  // (copy-on-write), todėl siuntimas kambariui perbėga jį be kopijų ir užraktų.
+  // transient - Gson jo neserializuoja
+  private transient volatile Member[] online = NO_MEMBERS;
 
   public Room(String id, String displayName) {
     if (id == null || id.isBlank())
@@ -16,9 +24,24 @@ public class Room {
     this.displayName = displayName == null ? id : displayName;
   }
 
-  public void addMember(String username) {
-    if (username == null || username.isBlank()) return;
-    members.add(username);
+  public String getId() {
+    return id;
+  }
+
+  public String getDisplayName() {
+    return displayName;
+  }
+
+  /**
+   * @return true, jei vartotojas dar nebuvo narys
+   */
+  public boolean addMember(String username) {
+    if (username == null || username.isBlank()) return false;
+    return members.add(username);
+  }
+
+  public boolean isMember(String username) {
+    return username != null && members.contains(username);
   }
 
   public void removeMember(String username) {
@@ -26,6 +49,38 @@ public class Room {
     members.remove(username);
   }
 
+  /**
+   * Prideda prisijungusio nario ryšį (jei jo dar nėra).
+   */
+  public synchronized void attach(Member member) {
+    Member[] current = online;
+    for (Member m : current) {
+      if (m == member) return;
+    }
+    Member[] next = Arrays.copyOf(current, current.length + 1);
+    next[current.length] = member;
+    online = next;
+  }
+
+  public synchronized void detach(Member member) {
+    Member[] current = online;
+    for (int i = 0; i < current.length; i++) {
+      if (current[i] != member) continue;
+      Member[] next = new Member[current.length - 1];
+      System.arraycopy(current, 0, next, 0, i);
+      System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+      online = next.length == 0 ? NO_MEMBERS : next;
+      return;
+    }
+  }
+
+  /**
+   * Prisijungusių narių ryšiai. Grąžinamas vidinis nekintamas masyvas - jo keisti negalima.
+   */
+  public Member[] onlineMembers() {
+    return online;
+  }
+
   /**
    * Grąžina saugią kopiją iteracijoms.
    */
@@ -0,0 +1,44 @@
+package lt.kostas.chatapp.network;
+
+/**
+ * {@link NetworkClient} nustatymai.
+ *
+ * @param flushWindowMillis  kiek palaukti, kol susikaups daugiau kadrų, prieš juos išsiunčiant vienu įrašymu (0 - nelaukti)
+ * @param maxPendingFrames   kiek neišsiųstų kadrų laikoma, kol ryšys atkuriamas; perteklius atmetamas
+ * @param reconnect          nutrūkus ryšiui jungtis iš naujo ir pratęsti sesiją
+ * @param reconnectMinMillis pirmo bandymo prisijungti iš naujo delsa
+ * @param reconnectMaxMillis didžiausia delsa tarp bandymų (kiekvieną kartą delsa dvigubinama)
+ */
+public record ClientOptions(
+        long flushWindowMillis,
+        int maxPendingFrames,
+        boolean reconnect,
+        long reconnectMinMillis,
+        long reconnectMaxMillis
+) {
+  public ClientOptions {
+    if (flushWindowMillis < 0) throw new IllegalArgumentException("flushWindowMillis negali būti neigiamas");
+    if (maxPendingFrames <= 0) throw new IllegalArgumentException("maxPendingFrames turi būti teigiamas");
+    if (reconnectMinMillis <= 0 || reconnectMaxMillis < reconnectMinMillis) {
+      throw new IllegalArgumentException("Netinkamos delsos: " + reconnectMinMillis + ".." + reconnectMaxMillis);
+    }
+  }
+
+  public static ClientOptions defaults() {
+    return new ClientOptions(1, 10_000, true, 250, 30_000);
+  }
+
+  /**
+   * Nustatymai iš {@code -Dchat.client.*} sistemos savybių; nenurodytos reikšmės - numatytosios.
+   */
+  public static ClientOptions fromSystemProperties() {
+    ClientOptions d = defaults();
+    String reconnect = System.getProperty("chat.client.reconnect");
+    return new ClientOptions(
+            Long.getLong("chat.client.flushWindowMillis", d.flushWindowMillis()),
+            Integer.getInteger("chat.client.maxPending", d.maxPendingFrames()),
+            reconnect == null ? d.reconnect() : Boolean.parseBoolean(reconnect),
+            Long.getLong("chat.client.reconnectMinMillis", d.reconnectMinMillis()),
+            Long.getLong("chat.client.reconnectMaxMillis", d.reconnectMaxMillis()));
+  }
+}
@@ -2,85 +2,636 @@ package lt.kostas.chatapp.network;
 
 import com.google.gson.Gson;
 import com.google.gson.JsonSyntaxException;
-import javafx.application.Platform;
 import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+import lt.kostas.chatapp.protocol.FrameReader;
+import lt.kostas.chatapp.protocol.WireFormat;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
+/**
+ * Kliento ryšio branduolys be UI priklausomybių: kur vykdyti gautų žinučių apdorojimą
+ * (pvz. {@code Platform::runLater} arba tiesiai skaitymo gijoje) nurodo kviečiantysis.
+ * <p>
+ * {@link #send} tik įdeda žinutę į eilę; rašymo gija per {@link ClientOptions#flushWindowMillis()}
+ * susikaupusias žinutes užkoduoja serverio patvirtintu formatu ir išsiunčia vienu įrašymu. Registracija
+ * siunčiama pirma ir viena (JSON), o kitos žinutės laukia, kol serveris ją patvirtins.
+ * <p>
+ * Nutrūkus ryšiui jungiamasi iš naujo su atsitiktinai išsklaidyta, vis ilgėjančia delsa, o registracijoje
+ * nurodomas serverio išduotas sesijos raktas ir paskutinės matytos žinutės laikas - serveris atsiunčia tik tai,
+ * kas buvo praleista. Jei serveris prieš sustodamas atsiuntė {@code server-restarting;reconnectAfterMs=N},
+ * pirmas bandymas daromas po jo parinktos delsos N.
+ * <p>
+ * Išsiųsta pokalbio žinutė laikoma nepatvirtinta, kol serveris neatsiunčia jos aido (kambario transliacija ir
+ * privačios žinutės kopija grįžta ir siuntėjui). Po prisijungimo iš naujo pakartojamos tik nepatvirtintos
+ * žinutės, ir tik po praleistų žinučių atkartojimo ({@code resumed}) - jame esantys aidai patvirtina tas,
+ * kurias serveris spėjo gauti, todėl jos antrą kartą nesiunčiamos.
+ */
 public class NetworkClient {
-  private Socket socket;
-  private PrintWriter out;
-  private BufferedReader in;
-  private Thread readerThread;
+  private static final Logger logger = Logger.getLogger(NetworkClient.class.getName());
+  private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+  private static final long CLOSE_FLUSH_MILLIS = 1000;
+  // kiek paskutinių žinučių prisimenama, kad po prisijungimo iš naujo atkartotos nebūtų perduotos du kartus
+  private static final int RECENT_MESSAGES = 512;
+
   private final Gson gson = new Gson();
+  // kokio formato prašoma registruojantis; serveris patvirtina atsakyme "registered;codec=binary"
+  private final WireFormat preferredFormat;
+  private final Executor callbackExecutor;
+  private final ThreadFactory threads;
+  private final ClientOptions options;
+
+  // ryšio būsena keičiama tik laikant lock; changed - pasikeitė eilė, ryšys ar uždarymas.
+  // ReentrantLock vietoj synchronized - laukianti rašymo gija nepririša virtualios gijos prie nešančiosios gijos
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition changed = lock.newCondition();
+  private String host;
+  private int port;
+  private Consumer<Message> onMessage;
+  private Socket socket;
+  // null - ryšio nėra (dar neprisijungta arba jungiamasi iš naujo)
+  private OutputStream out;
+  // kelintas ryšys: seno ryšio gijos naujojo nebeliečia
+  private int generation;
+  private final ArrayDeque<Message> pending = new ArrayDeque<>();
+  // išsiųstos pokalbio žinutės, kurių aido iš serverio dar negavome (seniausia pirma)
+  private final ArrayDeque<Message> unacked = new ArrayDeque<>();
+  // registracija, kurią rašymo gija turi išsiųsti prieš visa kita; null - nėra
+  private Message handshake;
+  // serveris patvirtino registraciją (ir atkartojo praleistas žinutes) - eilę galima siųsti
+  private boolean ready;
+  private boolean writing;
+  // serverio patvirtintas rašymo formatas
+  private WireFormat outFormat = WireFormat.JSON;
+  private Thread writerThread;
+  private Thread reconnectThread;
+  private boolean closed;
+  private String username;
+  private String token;
+  // su kokiu raktu bandyta pratęsti sesiją paskutinėje registracijoje
+  private String resumeToken;
+  // serveris mus atjungė pats (ribos, užimtas vardas) - iš naujo nesijungiame
+  private boolean refused;
+  // serverio perkrovimo pranešime nurodyta pirmo bandymo delsa; -1 - įprasta
+  private long restartDelay = -1;
+
+  private final Set<Message> recent = new LinkedHashSet<>();
+  private volatile long lastSeen;
+
+  public NetworkClient() {
+    this(WireFormat.JSON);
+  }
+
+  /**
+   * Žinutės perduodamos tiesiai skaitymo gijoje.
+   */
+  public NetworkClient(WireFormat preferredFormat) {
+    this(preferredFormat, Runnable::run);
+  }
+
+  public NetworkClient(WireFormat preferredFormat, Executor callbackExecutor) {
+    this(preferredFormat, callbackExecutor, Thread.ofPlatform().name("NetworkClient-", 0).factory());
+  }
+
+  public NetworkClient(WireFormat preferredFormat, Executor callbackExecutor, ThreadFactory threads) {
+    this(preferredFormat, callbackExecutor, threads, ClientOptions.fromSystemProperties());
+  }
+
+  /**
+   * @param preferredFormat  kokio formato prašyti registruojantis
+   * @param callbackExecutor kur kviesti {@code onMessage}
+   * @param threads          skaitymo, rašymo ir jungimosi iš naujo gijų gamykla (pvz. virtualios gijos
+   *                         tūkstančiams klientų)
+   * @param options          siuntimo ir jungimosi iš naujo nustatymai
+   */
+  public NetworkClient(WireFormat preferredFormat, Executor callbackExecutor, ThreadFactory threads,
+                       ClientOptions options) {
+    this.preferredFormat = preferredFormat;
+    this.callbackExecutor = callbackExecutor;
+    this.threads = threads;
+    this.options = options;
+  }
 
   public void connect(String host, int port, Consumer<Message> onMessage) throws IOException {
-    this.socket = new Socket(host, port);
-
-    out = new PrintWriter(
-            new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8),
-            true
-    );
-    in = new BufferedReader(
-            new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8)
-    );
-
-    readerThread = new Thread(() -> {
-      String line;
-      try {
-        while ((line = in.readLine()) != null) {
+    Socket s = dial(host, port);
+    lock.lock();
+    try {
+      this.host = host;
+      this.port = port;
+      this.onMessage = onMessage;
+      closed = false;
+      // be registracijos nieko nelaukiame
+      ready = true;
+      attach(s);
+      if (writerThread == null) {
+        writerThread = threads.newThread(this::writeLoop);
+        writerThread.setDaemon(true);
+        writerThread.start();
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Užsiregistruoja ir, jei pageidaujama, suderina {@link WireFormat#BINARY}. Kitos žinutės laukia eilėje,
+   * kol serveris atsakys {@code registered}, ir rašomos jo patvirtintu formatu.
+   */
+  public void register(String username) {
+    lock.lock();
+    try {
+      this.username = username;
+      handshake();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Įdeda žinutę į siuntimo eilę. Kol ryšys atkuriamas, žinutės laukia eilėje ir išsiunčiamos
+   * po pakartotinės registracijos.
+   */
+  public void send(Message m) {
+    lock.lock();
+    try {
+      if (closed || writerThread == null) return;
+      enqueue(m);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Išsiunčia, kas dar eilėje (laukia ne ilgiau nei sekundę), ir uždaro ryšį. Iš naujo nebesijungiama.
+   */
+  public void close() {
+    Thread reconnect;
+    lock.lock();
+    try {
+      long deadline = System.currentTimeMillis() + CLOSE_FLUSH_MILLIS;
+      while (out != null && (writing || handshake != null || !pending.isEmpty())) {
+        long left = deadline - System.currentTimeMillis();
+        if (left <= 0) break;
+        try {
+          changed.await(left, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          break;
+        }
+      }
+      closed = true;
+      pending.clear();
+      unacked.clear();
+      closeSocket();
+      reconnect = reconnectThread;
+      reconnectThread = null;
+      writerThread = null;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
+    }
+    if (reconnect != null) reconnect.interrupt();
+  }
+
+  /**
+   * Paruošia registraciją: ji išsiunčiama pirma (JSON), o eilė laukia patvirtinimo. Kviečiama laikant užraktą.
+   */
+  private void handshake() {
+    // text - parinktys "raktas=reikšmė;...": formatas ir, jei jau buvome prisijungę, sesijos pratęsimas
+    StringJoiner text = new StringJoiner(";");
+    if (preferredFormat == WireFormat.BINARY) text.add("codec=binary");
+    if (token != null) text.add("resume=" + token).add("since=" + lastSeen);
+    resumeToken = token;
+    handshake = new Message(MessageKind.REGISTER, username, null, null, text.length() == 0 ? null : text.toString());
+    ready = false;
+    outFormat = WireFormat.JSON;
+    if (out != null) changed.signalAll();
+  }
+
+  private void enqueue(Message m) {
+    if (pending.size() >= options.maxPendingFrames()) {
+      logger.warning(() -> "Siuntimo eilė pilna (" + pending.size() + "), žinutė atmesta: " + m.type());
+      return;
+    }
+    pending.add(m);
+    if (out != null && ready) changed.signalAll();
+  }
+
+  private byte[] encode(Message m, WireFormat format) {
+    if (format == WireFormat.BINARY) return BinaryCodec.encode(m);
+    return (gson.toJson(m) + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static Socket dial(String host, int port) throws IOException {
+    Socket s = new Socket();
+    try {
+      s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+      // kadrus kaupiame patys, todėl Nagle algoritmas tik pridėtų delsos
+      s.setTcpNoDelay(true);
+      return s;
+    } catch (IOException e) {
+      s.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Pradeda naudoti naują ryšį. Kviečiama laikant užraktą.
+   */
+  private void attach(Socket s) throws IOException {
+    OutputStream o = new BufferedOutputStream(s.getOutputStream(), 16 * 1024);
+    FrameReader in = new FrameReader(s.getInputStream());
+    socket = s;
+    out = o;
+    int gen = ++generation;
+    Thread reader = threads.newThread(() -> readLoop(in, gen));
+    reader.setDaemon(true);
+    reader.start();
+    changed.signalAll();
+  }
+
+  private void readLoop(FrameReader in, int gen) {
+    // skaitymo formatas keičiamas tik šioje gijoje, gavus registracijos patvirtinimą
+    WireFormat inFormat = WireFormat.JSON;
+    try {
+      while (true) {
+        Message m;
+        if (inFormat == WireFormat.BINARY) {
+          m = in.readBinary();
+          if (m == null) break;
+        } else {
+          String line = in.readLine();
+          if (line == null) break;
           try {
-            Message m = gson.fromJson(line, Message.class);
-            if (m != null) {
-              Platform.runLater(() -> onMessage.accept(m));
-            }
+            m = gson.fromJson(line, Message.class);
           } catch (JsonSyntaxException jse) {
-            System.err.println("Netinkamas JSON iš serverio: " + jse.getMessage());
+            logger.warning("Netinkamas JSON iš serverio: " + jse.getMessage());
+            continue;
           }
+          if (m == null) continue;
         }
-      } catch (IOException e) {
-        System.out.println("Reader thread baigė darbą (ryšys uždarytas): " + e.getMessage());
-      } finally {
-        close(); // uždarom resursus, jei readLine() baigiasi
+        if (m.type() == MessageKind.SYSTEM && m.text() != null) {
+          if (m.text().startsWith("registered")) {
+            Map<String, String> reply = parseOptions(m.text());
+            WireFormat confirmed = WireFormat.fromOption(reply.get("codec")) == WireFormat.BINARY ? WireFormat.BINARY : WireFormat.JSON;
+            inFormat = confirmed;
+            registered(reply.get("token"), m.timestamp(), confirmed);
+            // sesijos raktas lieka tik klientui - onMessage jo nemato
+            m = new Message(m.type(), m.from(), m.to(), m.roomId(), withoutToken(m.text()), m.timestamp());
+          } else if (m.text().startsWith("disconnected;") || m.text().equals("register-failed")) {
+            refuse();
+          } else if (m.text().startsWith("server-restarting")) {
+            restarting(parseOptions(m.text()).get("reconnectAfterMs"));
+          } else if (m.text().startsWith("resumed")) {
+            // atkartotų žinučių aidai jau patvirtino, ką serveris gavo - likusias siunčiame iš naujo
+            resend();
+          }
+        } else if (m.type() == MessageKind.MESSAGE) {
+          if (!firstDelivery(m)) continue;
+          acknowledge(m);
+        }
+        Message received = m;
+        callbackExecutor.execute(() -> onMessage.accept(received));
       }
-    }, "NetworkClient-Reader");
-    readerThread.setDaemon(true);
-    readerThread.start();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Reader thread baigė darbą (ryšys uždarytas): " + e.getMessage());
+    } finally {
+      connectionLost(gen);
+    }
   }
 
-  public synchronized void send(Message m) {
-    if (out == null) return;
-    out.println(gson.toJson(m));
-    if (out.checkError()) {
-      System.err.println("Klaida siunčiant žinutę į serverį");
+  private void registered(String issued, long serverTime, WireFormat format) {
+    lock.lock();
+    try {
+      boolean resumed = issued != null && issued.equals(resumeToken);
+      if (issued != null) token = issued;
+      // dar nieko negavus, praleistos žinutės skaičiuojamos nuo registracijos (serverio laikrodžiu)
+      if (lastSeen == 0) lastSeen = serverTime;
+      outFormat = format;
+      // pratęstai sesijai serveris dar atkartos praleistas žinutes ir atsiųs "resumed" - tada ir siųsime
+      if (!resumed) resend();
+    } finally {
+      lock.unlock();
     }
   }
 
-  public synchronized void close() {
+  /**
+   * Nepatvirtintas žinutes grąžina į eilės priekį ir leidžia rašyti eilę.
+   */
+  private void resend() {
+    lock.lock();
     try {
-      if (socket != null && !socket.isClosed()) socket.close();
-    } catch (IOException ignored) {
+      while (!unacked.isEmpty()) {
+        pending.addFirst(unacked.pollLast());
+      }
+      ready = true;
+      changed.signalAll();
+    } finally {
+      lock.unlock();
     }
+  }
 
+  /**
+   * Savos žinutės aidas: pažymi seniausią tokią pačią nepatvirtintą žinutę kaip serverio gautą.
+   */
+  private void acknowledge(Message echo) {
+    lock.lock();
     try {
-      if (in != null) in.close();
-    } catch (IOException ignored) {
+      if (unacked.isEmpty() || username == null || !username.equals(echo.from())) return;
+      Iterator<Message> it = unacked.iterator();
+      while (it.hasNext()) {
+        Message m = it.next();
+        if (Objects.equals(m.roomId(), echo.roomId()) && Objects.equals(m.to(), echo.to())
+                && Objects.equals(m.text(), echo.text())) {
+          it.remove();
+          return;
+        }
+      }
+    } finally {
+      lock.unlock();
     }
+  }
 
-    if (out != null) {
-      out.close();
+  private void refuse() {
+    lock.lock();
+    try {
+      refused = true;
+    } finally {
+      lock.unlock();
     }
+  }
 
-    if (readerThread != null && !readerThread.isInterrupted()) {
-      readerThread.interrupt();
+  private void restarting(String reconnectAfterMs) {
+    lock.lock();
+    try {
+      restartDelay = reconnectAfterMs == null ? -1 : Math.max(0, Long.parseLong(reconnectAfterMs));
+    } catch (NumberFormatException e) {
+      restartDelay = -1;
+    } finally {
+      lock.unlock();
     }
+  }
 
+  /**
+   * Pirmo bandymo delsa: serverio nurodyta (vieną kartą) arba įprasta {@link #backoffMillis}.
+   */
+  private long firstDelayMillis() {
+    lock.lock();
+    try {
+      long delay = restartDelay;
+      restartDelay = -1;
+      return delay >= 0 ? delay : backoffMillis(0);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * false, jei ši žinutė jau buvo perduota - serveris po prisijungimo iš naujo atkartoja visas žinutes nuo
+   * paskutinės matytos milisekundės, o dalis jų gali ateiti ir įprastu keliu.
+   */
+  private boolean firstDelivery(Message m) {
+    synchronized (recent) {
+      if (!recent.add(m)) return false;
+      if (recent.size() > RECENT_MESSAGES) {
+        Iterator<Message> oldest = recent.iterator();
+        oldest.next();
+        oldest.remove();
+      }
+    }
+    if (m.timestamp() > lastSeen) lastSeen = m.timestamp();
+    return true;
+  }
+
+  private void writeLoop() {
+    List<Message> batch = new ArrayList<>();
+    while (true) {
+      try {
+        lock.lock();
+        try {
+          while (!closed && !writable()) changed.await();
+          if (closed) return;
+        } finally {
+          lock.unlock();
+        }
+        // palaukiame, kol susikaups kartu siunčiami kadrai (pvz. create-room ir join-room)
+        if (options.flushWindowMillis() > 0) Thread.sleep(options.flushWindowMillis());
+      } catch (InterruptedException e) {
+        return;
+      }
+      OutputStream o;
+      int gen;
+      WireFormat format;
+      lock.lock();
+      try {
+        if (closed) return;
+        if (!writable()) continue;
+        o = out;
+        gen = generation;
+        if (handshake != null) {
+          // registracija visada JSON ir viena - kitos žinutės laukia serverio patvirtinto formato
+          batch.add(handshake);
+          handshake = null;
+          format = WireFormat.JSON;
+        } else {
+          batch.addAll(pending);
+          pending.clear();
+          format = outFormat;
+          for (Message m : batch) {
+            if (m.type() == MessageKind.MESSAGE) awaitEcho(m);
+          }
+        }
+        writing = true;
+      } finally {
+        lock.unlock();
+      }
+      try {
+        for (Message m : batch) {
+          o.write(encode(m, format));
+        }
+        o.flush();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Klaida siunčiant į serverį: " + e.getMessage());
+        lock.lock();
+        try {
+          // nežinia, kiek serveris spėjo gauti: pokalbio žinutės jau laukia aido ir bus pakartotos tik negavus jo,
+          // kitos užklausos (kambariai, istorija, paieška) grąžinamos į eilę - jų kartojimas nieko nekeičia;
+          // registracija paruošiama iš naujo prisijungiant
+          for (int i = batch.size() - 1; i >= 0; i--) {
+            MessageKind type = batch.get(i).type();
+            if (type != MessageKind.MESSAGE && type != MessageKind.REGISTER) pending.addFirst(batch.get(i));
+          }
+        } finally {
+          lock.unlock();
+        }
+        connectionLost(gen);
+      } finally {
+        lock.lock();
+        try {
+          writing = false;
+          changed.signalAll();
+        } finally {
+          lock.unlock();
+        }
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Ar rašymo gijai yra ką siųsti. Kviečiama laikant užraktą.
+   */
+  private boolean writable() {
+    return out != null && (handshake != null || (ready && !pending.isEmpty()));
+  }
+
+  /**
+   * Kviečiama laikant užraktą.
+   */
+  private void awaitEcho(Message m) {
+    // aido negaunančios žinutės (pvz. į kambarį, kurio nariai nesame) neturi kauptis be galo
+    if (unacked.size() >= options.maxPendingFrames()) unacked.pollFirst();
+    unacked.add(m);
+  }
+
+  /**
+   * Ryšys nutrūko (pastebėjo skaitymo arba rašymo gija). Jei sesiją galima pratęsti - jungiamasi iš naujo,
+   * kitaip klientas uždaromas.
+   */
+  private void connectionLost(int gen) {
+    lock.lock();
+    try {
+      if (gen != generation || out == null) return;
+      closeSocket();
+      if (closed) return;
+      if (!options.reconnect() || refused || username == null) {
+        closed = true;
+        pending.clear();
+        unacked.clear();
+        writerThread = null;
+        changed.signalAll();
+        return;
+      }
+      reconnectThread = threads.newThread(this::reconnectLoop);
+      reconnectThread.setDaemon(true);
+      reconnectThread.start();
+    } finally {
+      lock.unlock();
+    }
+    local("Ryšys su serveriu nutrūko - jungiamasi iš naujo...");
+  }
+
+  private void reconnectLoop() {
+    for (int attempt = 0; ; attempt++) {
+      try {
+        Thread.sleep(attempt == 0 ? firstDelayMillis() : backoffMillis(attempt));
+      } catch (InterruptedException e) {
+        return;
+      }
+      String h;
+      int p;
+      lock.lock();
+      try {
+        if (closed) return;
+        h = host;
+        p = port;
+      } finally {
+        lock.unlock();
+      }
+      Socket s;
+      try {
+        s = dial(h, p);
+      } catch (IOException e) {
+        int n = attempt + 1;
+        logger.log(Level.FINE, () -> "Prisijungti iš naujo nepavyko (" + n + "): " + e.getMessage());
+        continue;
+      }
+      lock.lock();
+      try {
+        if (closed) {
+          s.close();
+          return;
+        }
+        // registracija eina pirma, o eilėje laukę kadrai - po jos patvirtinimo, jau suderintu formatu
+        handshake();
+        attach(s);
+        reconnectThread = null;
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Prisijungti iš naujo nepavyko: " + e.getMessage());
+        closeQuietly(s);
+        continue;
+      } finally {
+        lock.unlock();
+      }
+      local("Ryšys atkurtas.");
+      return;
+    }
+  }
+
+  /**
+   * Delsa prieš bandymą: riba dvigubėja nuo {@code reconnectMinMillis} iki {@code reconnectMaxMillis}, o pati
+   * delsa atsitiktinė tarp pusės ribos ir ribos - kad po serverio perkrovimo klientai nesijungtų visi kartu.
+   */
+  private long backoffMillis(int attempt) {
+    long cap = Math.min(options.reconnectMaxMillis(), options.reconnectMinMillis() << Math.min(attempt, 20));
+    return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+  }
+
+  private void local(String text) {
+    Consumer<Message> target;
+    lock.lock();
+    try {
+      target = onMessage;
+    } finally {
+      lock.unlock();
+    }
+    if (target != null) callbackExecutor.execute(() -> target.accept(new Message(MessageKind.LOCAL, null, null, null, text)));
+  }
+
+  /**
+   * Kviečiama laikant užraktą.
+   */
+  private void closeSocket() {
+    if (socket != null) closeQuietly(socket);
     socket = null;
-    in = null;
     out = null;
-    readerThread = null;
+  }
+
+  private static void closeQuietly(Socket s) {
+    try {
+      s.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  private static String withoutToken(String text) {
+    StringJoiner kept = new StringJoiner(";");
+    for (String part : text.split(";")) {
+      if (!part.trim().startsWith("token=")) kept.add(part);
+    }
+    return kept.toString();
+  }
+
+  private static Map<String, String> parseOptions(String text) {
+    Map<String, String> options = new HashMap<>();
+    for (String part : text.split(";")) {
+      int eq = part.indexOf('=');
+      if (eq > 0) options.put(part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+    }
+    return options;
   }
 }
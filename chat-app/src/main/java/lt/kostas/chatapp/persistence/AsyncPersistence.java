@@ -0,0 +1,352 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Room;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Saugyklos dekoratorius, atskiriantis disko rašymą nuo žinučių siuntimo.
+ * <p>
+ * {@link #append} tik įdeda įvykį į ribotą eilę; atskira rašymo gija paima viską, kas susikaupė
+ * per ankstesnį rašymą, ir perduoda vienu {@link Persistence#appendBatch} (group commit).
+ * Kai eilė pilna, kviečianti gija laukia (backpressure) - tokie atvejai skaičiuojami {@link Stats}.
+ * <p>
+ * Eilė suskaidyta į {@code shards} dalių pagal kambarį, privatų pokalbį ar vartotoją, kad daug siuntėjų
+ * nesivaržytų dėl vieno eilės užrakto. Vieno rakto įvykių tvarka išlaikoma (kambario sukūrimas - prieš
+ * narystes ir žinutes), o skirtingų raktų įvykiai pakete gali būti sumaišyti - atkūrimui tai nesvarbu.
+ * <p>
+ * Jei paketo įrašyti nepavyksta, jo įvykiai neskaičiuojami kaip įrašyti, o klaida vieną kartą išmetama
+ * iš artimiausio {@link #flush} arba {@link #close}.
+ */
+public class AsyncPersistence implements Persistence {
+  private static final Logger logger = Logger.getLogger(AsyncPersistence.class.getName());
+
+  public static final int DEFAULT_CAPACITY = 8192;
+  private static final int MAX_BATCH = 1024;
+
+  private final Persistence delegate;
+  private final List<BlockingQueue<StoreEvent>> queues;
+  private final int mask;
+  // rašymo gija miega, kai visos eilės tuščios; siuntėjai ją pažadina
+  private volatile boolean idle;
+  private final Thread writer;
+  // commitLock užtikrina, kad saveState nepersidengtų su rašymo gijos paketu
+  private final ReentrantLock commitLock = new ReentrantLock();
+  private final Condition committedCondition = commitLock.newCondition();
+
+  private final AtomicLong enqueued = new AtomicLong();
+  private final AtomicLong committed = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  // pirma klaida, apie kurią dar nepranešta per flush() ar close()
+  private final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong producerStalls = new AtomicLong();
+  private volatile long lastCommitMicros;
+  private volatile long maxCommitMicros;
+  private volatile LongConsumer commitObserver = micros -> {
+  };
+  // running - ar priimami nauji įvykiai; stopped - rašymo gijai: išsemti eiles ir baigti
+  private volatile boolean running = true;
+  private volatile boolean stopped;
+  // siuntėjai, praėję running patikrinimą, bet dar neįdėję įvykio; close jų sulaukia prieš stabdydamas rašymo giją
+  private final AtomicInteger producers = new AtomicInteger();
+
+  /**
+   * Momentinė eilės ir rašymo statistika.
+   *
+   * @param queueDepth       įvykių eilėje dabar
+   * @param capacity         eilės talpa
+   * @param enqueued         iš viso priimta įvykių
+   * @param committed        iš viso įrašyta įvykių
+   * @param failed           iš viso įvykių, kurių paketo įrašyti nepavyko
+   * @param batches          kiek atlikta group commit'ų
+   * @param producerStalls   kiek kartų siuntėjas laukė, nes eilė buvo pilna
+   * @param lastCommitMicros paskutinio paketo įrašymo trukmė
+   * @param maxCommitMicros  ilgiausio paketo įrašymo trukmė
+   */
+  public record Stats(int queueDepth, int capacity, long enqueued, long committed, long failed, long batches,
+                      long producerStalls, long lastCommitMicros, long maxCommitMicros) {
+  }
+
+  public AsyncPersistence(Persistence delegate) {
+    this(delegate, DEFAULT_CAPACITY);
+  }
+
+  public AsyncPersistence(Persistence delegate, int capacity) {
+    this(delegate, capacity, 1);
+  }
+
+  /**
+   * @param capacity bendra visų eilės dalių talpa, padalinta po lygiai; jei ji mažesnė už dalių skaičių,
+   *                 dalių mažinama, kad kiekvienai liktų bent viena vieta
+   * @param shards   į kiek dalių skaidyti eilę (apvalinama aukštyn iki dvejeto laipsnio)
+   */
+  public AsyncPersistence(Persistence delegate, int capacity, int shards) {
+    if (capacity <= 0) throw new IllegalArgumentException("Eilės talpa turi būti teigiama");
+    if (shards <= 0) throw new IllegalArgumentException("Eilės dalių skaičius turi būti teigiamas");
+    this.delegate = delegate;
+    int n = Integer.highestOneBit(shards) == shards ? shards : Integer.highestOneBit(shards) << 1;
+    n = Math.min(n, Integer.highestOneBit(capacity));
+    List<BlockingQueue<StoreEvent>> qs = new ArrayList<>(n);
+    for (int i = 0; i < n; i++) {
+      // likutis atitenka pirmosioms dalims, kad bendra talpa būtų lygiai capacity
+      qs.add(new ArrayBlockingQueue<>(capacity / n + (i < capacity % n ? 1 : 0)));
+    }
+    this.queues = List.copyOf(qs);
+    this.mask = n - 1;
+    this.writer = new Thread(this::writeLoop, "Persistence-Writer");
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  @Override
+  public RecoveredState load(int maxMessages) {
+    return delegate.load(maxMessages);
+  }
+
+  /**
+   * Skaito tiesiai iš saugyklos; dar eilėje esantys įvykiai nematomi, bet juos turi atminties istorija.
+   */
+  @Override
+  public List<Message> readHistory(ConversationKey key, long beforeTimestamp, int limit) {
+    return delegate.readHistory(key, beforeTimestamp, limit);
+  }
+
+  /**
+   * Kaip ir {@link #readHistory}, mato tik jau įrašytas žinutes.
+   */
+  @Override
+  public void scanMessages(Consumer<Message> consumer) {
+    delegate.scanMessages(consumer);
+  }
+
+  @Override
+  public long bytesWritten() {
+    return delegate.bytesWritten();
+  }
+
+  @Override
+  public long diskBytes() {
+    return delegate.diskBytes();
+  }
+
+  @Override
+  public void append(StoreEvent event) {
+    if (event == null) return;
+    producers.incrementAndGet();
+    try {
+      if (!running) {
+        logger.warning("Saugykla uždaryta, įvykis atmestas: " + event.kind());
+        return;
+      }
+      BlockingQueue<StoreEvent> queue = queues.get(shardOf(event));
+      if (!queue.offer(event)) {
+        producerStalls.incrementAndGet();
+        if (idle) LockSupport.unpark(writer);
+        try {
+          queue.put(event);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          logger.warning("Nutrauktas laukimas eilėje, įvykis atmestas: " + event.kind());
+          return;
+        }
+      }
+      enqueued.incrementAndGet();
+      if (idle) LockSupport.unpark(writer);
+    } finally {
+      producers.decrementAndGet();
+    }
+  }
+
+  /**
+   * Eilės dalis pagal raktą, nuo kurio priklauso įvykių tvarka: kambarys, privatus pokalbis arba vartotojas.
+   */
+  private int shardOf(StoreEvent event) {
+    if (mask == 0) return 0;
+    Object key;
+    if (event.message() != null) {
+      key = ConversationKey.of(event.message());
+    } else if (event.roomId() != null) {
+      key = ConversationKey.room(event.roomId());
+    } else {
+      key = event.username();
+    }
+    int h = key == null ? 0 : key.hashCode();
+    return (h ^ (h >>> 16)) & mask;
+  }
+
+  @Override
+  public void appendBatch(List<StoreEvent> events) {
+    for (StoreEvent e : events) {
+      append(e);
+    }
+  }
+
+  /**
+   * Pilnas snapshot'as įrašomas sinchroniškai, prieš tai įrašius viską, kas jau eilėje.
+   */
+  @Override
+  public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    commitLock.lock();
+    try {
+      commitPending(new ArrayList<>());
+      delegate.saveState(rooms, users, messages);
+    } finally {
+      commitLock.unlock();
+    }
+  }
+
+  /**
+   * @throws IllegalStateException jei nuo paskutinio pranešimo kurio nors paketo įrašyti nepavyko
+   */
+  @Override
+  public void flush() {
+    long target = enqueued.get();
+    commitLock.lock();
+    try {
+      // nepavykę paketai irgi apdoroti - jų nelaukiame
+      while (committed.get() + failed.get() < target && writer.isAlive()) {
+        committedCondition.await(100, TimeUnit.MILLISECONDS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      commitLock.unlock();
+    }
+    delegate.flush();
+    throwIfFailed();
+  }
+
+  /**
+   * Nebepriima naujų įvykių, sulaukia jau pradėtų {@link #append} ir kol rašymo gija įrašys likusius,
+   * tada uždaro saugyklą.
+   *
+   * @throws IllegalStateException jei nuo paskutinio pranešimo kurio nors paketo įrašyti nepavyko
+   */
+  @Override
+  public void close() {
+    running = false;
+    // siuntėjas, kuris pamatė running == true, jau padidino producers, todėl čia jis matomas;
+    // rašymo gija tuo metu dar veikia ir atlaisvina vietą užstrigusiam put
+    while (producers.get() != 0 && writer.isAlive()) {
+      LockSupport.unpark(writer);
+      LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+    }
+    stopped = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    delegate.close();
+    throwIfFailed();
+  }
+
+  private void throwIfFailed() {
+    RuntimeException e = failure.getAndSet(null);
+    if (e != null) throw new IllegalStateException("Dalies įvykių įrašyti nepavyko (iš viso " + failed.get() + ")", e);
+  }
+
+  /**
+   * Kam pranešti kiekvieno paketo įrašymo trukmę mikrosekundėmis (kviečiama rašymo gijoje).
+   */
+  public void setCommitObserver(LongConsumer observer) {
+    commitObserver = observer == null ? micros -> {
+    } : observer;
+  }
+
+  public Stats stats() {
+    int depth = 0;
+    int capacity = 0;
+    for (BlockingQueue<StoreEvent> queue : queues) {
+      int size = queue.size();
+      depth += size;
+      capacity += size + queue.remainingCapacity();
+    }
+    return new Stats(depth, capacity, enqueued.get(), committed.get(), failed.get(),
+            batches.get(), producerStalls.get(), lastCommitMicros, maxCommitMicros);
+  }
+
+  private boolean queuesEmpty() {
+    for (BlockingQueue<StoreEvent> queue : queues) {
+      if (!queue.isEmpty()) return false;
+    }
+    return true;
+  }
+
+  private void writeLoop() {
+    List<StoreEvent> batch = new ArrayList<>(MAX_BATCH);
+    while (!stopped || !queuesEmpty()) {
+      try {
+        if (queuesEmpty()) {
+          // vėliavėlė prieš pakartotinį patikrinimą - tada siuntėjas arba pamatys idle, arba mes jo įvykį
+          idle = true;
+          if (queuesEmpty()) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100));
+          idle = false;
+          if (Thread.interrupted()) {
+            running = false;
+            stopped = true;
+          }
+          continue;
+        }
+        commitLock.lock();
+        try {
+          commitPending(batch);
+        } finally {
+          commitLock.unlock();
+        }
+      } catch (RuntimeException e) {
+        logger.log(Level.SEVERE, "Nepavyko įrašyti įvykių paketo", e);
+      }
+    }
+  }
+
+  /**
+   * Paima viską, kas susikaupė eilėje, ir įrašo paketais. Kviečiama laikant {@link #commitLock}.
+   */
+  private void commitPending(List<StoreEvent> batch) {
+    do {
+      // kiekviena dalis išsemiama iš eilės, kad užimta dalis neužgožtų kitų
+      for (BlockingQueue<StoreEvent> queue : queues) {
+        if (batch.size() >= MAX_BATCH) break;
+        queue.drainTo(batch, MAX_BATCH - batch.size());
+      }
+      if (batch.isEmpty()) return;
+      long start = System.nanoTime();
+      try {
+        delegate.appendBatch(batch);
+        committed.addAndGet(batch.size());
+      } catch (RuntimeException e) {
+        failed.addAndGet(batch.size());
+        failure.compareAndSet(null, e);
+        throw e;
+      } finally {
+        long micros = (System.nanoTime() - start) / 1000;
+        lastCommitMicros = micros;
+        if (micros > maxCommitMicros) maxCommitMicros = micros;
+        commitObserver.accept(micros);
+        batches.incrementAndGet();
+        batch.clear();
+        committedCondition.signalAll();
+      }
+    } while (!queuesEmpty());
+  }
+}
@@ -0,0 +1,329 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Nekintamas vienos dienos (UTC) žinučių archyvas {@code YYYY-MM-DD.arc}, skaitomas per {@code mmap}.
+ * <p>
+ * Žinutės {@link BinaryCodec} formatu sudedamos į maždaug {@value #BLOCK_RAW_BYTES} B blokus, kiekvienas
+ * blokas suspaudžiamas atskirai ({@link Deflater}), todėl skaitant išskleidžiami tik reikalingi blokai.
+ * Failo gale - blokų rodyklė (po {@value #INDEX_BYTES} B: mažiausias ir didžiausias timestamp, pokalbių
+ * kaukė, poslinkis, suspaustas ir pradinis ilgis, žinučių skaičius) ir archyve esančių pokalbių sąrašas,
+ * pagal kurį taikomas {@link RetentionPolicy}.
+ * <p>
+ * Archyvas niekada nekeičiamas vietoje: papildytas ar apkarpytas jis įrašomas iš naujo per laikiną failą.
+ */
+final class DailyArchive {
+  private static final int MAGIC = 0x43415243; // "CARC"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 64;
+  private static final int INDEX_BYTES = 48;
+  static final int BLOCK_RAW_BYTES = 64 * 1024;
+  static final String SUFFIX = ".arc";
+
+  private final Path file;
+  private final MappedByteBuffer map;
+  private final long day;
+  private final long lastSegment;
+  private final int count;
+  private final int blockCount;
+  private final long minTs;
+  private final long maxTs;
+  private final int indexOffset;
+  private final Set<String> conversations;
+
+  private DailyArchive(Path file, MappedByteBuffer map) throws IOException {
+    this.file = file;
+    this.map = map;
+    if (map.capacity() < HEADER_BYTES || map.getInt(0) != MAGIC || map.getInt(4) != VERSION) {
+      throw new IOException("Ne žinučių archyvas: " + file);
+    }
+    day = map.getLong(8);
+    lastSegment = map.getLong(16);
+    count = map.getInt(24);
+    blockCount = map.getInt(28);
+    minTs = map.getLong(32);
+    maxTs = map.getLong(40);
+    indexOffset = (int) map.getLong(48);
+    int conversationCount = map.getInt(56);
+
+    ByteBuffer in = map.duplicate();
+    in.position(indexOffset + blockCount * INDEX_BYTES);
+    Set<String> names = new HashSet<>();
+    for (int i = 0; i < conversationCount; i++) {
+      byte[] b = new byte[in.getInt()];
+      in.get(b);
+      names.add(new String(b, StandardCharsets.UTF_8));
+    }
+    conversations = Set.copyOf(names);
+  }
+
+  static DailyArchive open(Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      if (ch.size() > Integer.MAX_VALUE) throw new IOException("Per didelis archyvas: " + file);
+      return new DailyArchive(file, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+    }
+  }
+
+  static String fileName(long day) {
+    return LocalDate.ofEpochDay(day) + SUFFIX;
+  }
+
+  Path file() {
+    return file;
+  }
+
+  long day() {
+    return day;
+  }
+
+  /**
+   * Didžiausias segmento numeris, kurio žinutės jau sudėtos į šį archyvą.
+   */
+  long lastSegment() {
+    return lastSegment;
+  }
+
+  int size() {
+    return count;
+  }
+
+  long fileBytes() {
+    return map.capacity();
+  }
+
+  /**
+   * Bent vieno archyve esančio pokalbio visa diena jau pasenusi - archyvą verta perrašyti be jo.
+   */
+  boolean hasExpired(RetentionPolicy retention, long now) {
+    long dayEnd = (day + 1) * RetentionPolicy.DAY_MILLIS;
+    for (String c : conversations) {
+      int days = retention.daysFor(c);
+      if (days > 0 && dayEnd <= now - days * RetentionPolicy.DAY_MILLIS) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Kaip {@link MessageSegment#collectNewestFirst}, tik blokai išskleidžiami; {@code visible} atmeta pasenusias.
+   */
+  boolean collectNewestFirst(ConversationKey key, long beforeTimestamp, int limit, Predicate<Message> visible,
+                             List<Message> out) {
+    if (count == 0 || minTs >= beforeTimestamp) return out.size() >= limit;
+    if (key != null && !conversations.contains(key.isDirect() ? RetentionPolicy.DIRECT : key.roomId())) {
+      return out.size() >= limit;
+    }
+    long convBit = key == null ? 0 : MessageSegment.maskBit(MessageSegment.conversationHash(key));
+    for (int b = blockCount - 1; b >= 0 && out.size() < limit; b--) {
+      int at = indexOffset + b * INDEX_BYTES;
+      if (map.getLong(at) >= beforeTimestamp) continue;
+      if (key != null && (map.getLong(at + 16) & convBit) == 0) continue;
+      List<Message> messages = block(b);
+      for (int i = messages.size() - 1; i >= 0 && out.size() < limit; i--) {
+        Message m = messages.get(i);
+        if (m.timestamp() >= beforeTimestamp) continue;
+        if (key != null && !key.matches(m)) continue;
+        if (visible.test(m)) out.add(m);
+      }
+    }
+    return out.size() >= limit;
+  }
+
+  void scan(long fromTimestamp, long toTimestamp, Predicate<Message> visible, Consumer<Message> consumer) {
+    if (count == 0 || maxTs < fromTimestamp || minTs >= toTimestamp) return;
+    for (int b = 0; b < blockCount; b++) {
+      int at = indexOffset + b * INDEX_BYTES;
+      if (map.getLong(at + 8) < fromTimestamp || map.getLong(at) >= toTimestamp) continue;
+      for (Message m : block(b)) {
+        if (m.timestamp() >= fromTimestamp && m.timestamp() < toTimestamp && visible.test(m)) consumer.accept(m);
+      }
+    }
+  }
+
+  private List<Message> block(int b) {
+    int at = indexOffset + b * INDEX_BYTES;
+    int offset = (int) map.getLong(at + 24);
+    int compressed = map.getInt(at + 32);
+    int raw = map.getInt(at + 36);
+    int n = map.getInt(at + 40);
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(map.slice(offset, compressed));
+      byte[] out = new byte[raw];
+      int done = 0;
+      while (done < raw) {
+        int k = inflater.inflate(out, done, raw - done);
+        if (k == 0 && (inflater.finished() || inflater.needsInput())) break;
+        done += k;
+      }
+      if (done != raw) throw new IllegalStateException("Sugadintas archyvo blokas " + b + ": " + file);
+      ByteBuffer in = ByteBuffer.wrap(out);
+      List<Message> messages = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        messages.add(BinaryCodec.tryDecode(in));
+      }
+      return messages;
+    } catch (DataFormatException | ProtocolException e) {
+      throw new IllegalStateException("Sugadintas archyvas: " + file, e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Rašo naują archyvo versiją į laikiną failą; {@link #finish()} ją atomiškai įdiegia.
+   */
+  static final class Writer {
+    private final Path file;
+    private final Path tmp;
+    private final FileChannel ch;
+    private final long day;
+    private final long lastSegment;
+    private final Deflater deflater = new Deflater();
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_RAW_BYTES + 4096);
+    private final ByteBuffer index = ByteBuffer.allocate(INDEX_BYTES);
+    private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+    private final byte[] chunk = new byte[16 * 1024];
+    private final Set<String> conversations = new TreeSet<>();
+    private long position = HEADER_BYTES;
+    private int count;
+    private int blockCount;
+    private long minTs = Long.MAX_VALUE;
+    private long maxTs = Long.MIN_VALUE;
+    private int blockMessages;
+    private long blockMin;
+    private long blockMax;
+    private long blockMask;
+
+    Writer(Path dir, long day, long lastSegment) throws IOException {
+      this.file = dir.resolve(fileName(day));
+      this.tmp = dir.resolve(fileName(day) + ".tmp");
+      this.day = day;
+      this.lastSegment = lastSegment;
+      this.ch = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+              StandardOpenOption.WRITE);
+    }
+
+    void add(Message m) throws IOException {
+      if (blockMessages == 0) {
+        blockMin = Long.MAX_VALUE;
+        blockMax = Long.MIN_VALUE;
+        blockMask = 0;
+      }
+      block.write(BinaryCodec.encode(m));
+      blockMessages++;
+      count++;
+      blockMin = Math.min(blockMin, m.timestamp());
+      blockMax = Math.max(blockMax, m.timestamp());
+      blockMask |= MessageSegment.maskBit(MessageSegment.conversationHash(ConversationKey.of(m)));
+      minTs = Math.min(minTs, m.timestamp());
+      maxTs = Math.max(maxTs, m.timestamp());
+      conversations.add(RetentionPolicy.conversationOf(m));
+      if (block.size() >= BLOCK_RAW_BYTES) flushBlock();
+    }
+
+    int count() {
+      return count;
+    }
+
+    /**
+     * Baitų, įrašytų į failą (po {@link #finish()} - viso failo dydis).
+     */
+    long bytes() {
+      return position;
+    }
+
+    DailyArchive finish() throws IOException {
+      try {
+        flushBlock();
+        long indexOffset = position;
+        ByteArrayOutputStream tail = new ByteArrayOutputStream();
+        indexBytes.writeTo(tail);
+        for (String c : conversations) {
+          byte[] b = c.getBytes(StandardCharsets.UTF_8);
+          tail.write(ByteBuffer.allocate(4).putInt(b.length).array());
+          tail.write(b);
+        }
+        write(ByteBuffer.wrap(tail.toByteArray()));
+        if (position > Integer.MAX_VALUE) throw new IOException("Per didelis dienos archyvas: " + file);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putInt(MAGIC).putInt(VERSION).putLong(day).putLong(lastSegment).putInt(count).putInt(blockCount)
+                .putLong(count == 0 ? 0 : minTs).putLong(count == 0 ? 0 : maxTs).putLong(indexOffset)
+                .putInt(conversations.size()).flip();
+        while (header.hasRemaining()) {
+          ch.write(header, header.position());
+        }
+        ch.force(true);
+        ch.close();
+        try {
+          Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+          Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return open(file);
+      } catch (IOException | RuntimeException e) {
+        abort();
+        throw e;
+      } finally {
+        deflater.end();
+      }
+    }
+
+    /**
+     * Atsisako rašymo; esamas archyvas (jei buvo) lieka nepakeistas.
+     */
+    void abort() {
+      try {
+        ch.close();
+        Files.deleteIfExists(tmp);
+      } catch (IOException ignored) {
+      }
+      deflater.end();
+    }
+
+    private void flushBlock() throws IOException {
+      if (blockMessages == 0) return;
+      byte[] raw = block.toByteArray();
+      deflater.reset();
+      deflater.setInput(raw);
+      deflater.finish();
+      long offset = position;
+      while (!deflater.finished()) {
+        int k = deflater.deflate(chunk);
+        write(ByteBuffer.wrap(chunk, 0, k));
+      }
+      index.clear();
+      index.putLong(blockMin).putLong(blockMax).putLong(blockMask).putLong(offset)
+              .putInt((int) (position - offset)).putInt(raw.length).putInt(blockMessages).putInt(0);
+      indexBytes.write(index.array());
+      blockCount++;
+      blockMessages = 0;
+      block.reset();
+    }
+
+    private void write(ByteBuffer buf) throws IOException {
+      while (buf.hasRemaining()) {
+        position += ch.write(buf, position);
+      }
+    }
+  }
+}
@@ -0,0 +1,13 @@
+package lt.kostas.chatapp.persistence;
+
+/**
+ * Kada žurnalo įrašai priverstinai nurašomi į diską ({@code FileChannel.force}).
+ */
+public enum FsyncPolicy {
+  /** po kiekvieno įrašo - saugiausia, bet lėčiausia */
+  EVERY_RECORD,
+  /** fone kas {@link WalOptions#fsyncIntervalMillis()} ms */
+  INTERVAL,
+  /** po kiekvienų {@link WalOptions#fsyncBatchSize()} įrašų */
+  BATCH
+}
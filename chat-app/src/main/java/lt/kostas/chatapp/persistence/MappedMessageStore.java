@@ -0,0 +1,547 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Žinučių saugykla su dviem pakopomis. Greitoji - atvaizduoti ({@code mmap}) segmentų failai
+ * {@code msg-NNNNNN.seg} (sandara - {@link MessageSegment}); senesni nei {@link RetentionPolicy#hotDays()}
+ * uždaryti segmentai perkeliami į suspaustus, nekintamus dienų archyvus {@code archive/YYYY-MM-DD.arc}
+ * ({@link DailyArchive}). Perkeliant ir vėliau archyvuose pagal {@link RetentionPolicy} išmetamos pasenusios
+ * žinutės; kol jos dar diske, skaitant jos praleidžiamos.
+ * <p>
+ * Istorija ieškoma nuo naujausio segmento, o jų neužtekus - archyvuose: segmentai ir blokai, kurių laiko rėžiai
+ * ar pokalbių filtras netinka, praleidžiami, o tinkamame bloke iškoduojamos tik tos žinutės, kurių pokalbio
+ * hash sutampa. Žinutės heap'e atsiranda tik grąžinamos, todėl atminties sąnaudos nepriklauso nuo saugyklos
+ * dydžio - failų puslapius laiko ir atlaisvina OS.
+ * <p>
+ * Rašo viena gija vienu metu (užraktas); skaitymai užrakto neima ir mato jau paskelbtus įrašus.
+ */
+public class MappedMessageStore {
+  private static final Logger logger = Logger.getLogger(MappedMessageStore.class.getName());
+
+  private static final String SEGMENT_PREFIX = "msg-";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  // paskutinis segmentas, kurio žinutės visos perkeltos į archyvus; po netikėto sustojimo toks segmentas ištrinamas
+  private static final String ARCHIVED_MARKER = "archived-through";
+
+  /**
+   * Abi pakopos kartu: segmentas iš greitosios pakopos išimamas tuo pačiu pakeitimu, kuriuo jo žinutės
+   * atsiranda archyvuose, todėl skaitytojas nemato jų nei dvigubai, nei išvis be jų.
+   */
+  private record Tiers(List<MessageSegment> segments, List<DailyArchive> archives) {
+  }
+
+  private final Path dir;
+  private final Path archiveDir;
+  private final MessageStoreOptions options;
+  private final RetentionPolicy retention;
+  // ReentrantLock vietoj synchronized - nepririša virtualių gijų prie nešančiosios gijos per disko I/O
+  private final ReentrantLock lock = new ReentrantLock();
+  // archyvavimas vyksta be rašymo užrakto - naujos žinutės rašomos į aktyvų segmentą, kurio jis neliečia
+  private final ReentrantLock maintenanceLock = new ReentrantLock();
+  private final ScheduledExecutorService scheduler;
+  private final AtomicLong bytesWritten = new AtomicLong();
+  // nekintamas, pakeičiamas visas - skaitytojai jį ima be užrakto
+  private volatile Tiers tiers = new Tiers(List.of(), List.of());
+  private MessageSegment active;
+  private boolean dirty;
+  private volatile boolean closed;
+
+  public MappedMessageStore(Path directory) {
+    this(directory, MessageStoreOptions.defaults());
+  }
+
+  public MappedMessageStore(Path directory, MessageStoreOptions options) {
+    this.dir = directory.toAbsolutePath();
+    this.archiveDir = dir.resolve("archive");
+    this.options = options;
+    this.retention = options.retention();
+    try {
+      Files.createDirectories(archiveDir);
+      List<DailyArchive> archives = new ArrayList<>();
+      for (Path file : list(archiveDir, "", DailyArchive.SUFFIX, name -> name).values()) {
+        archives.add(DailyArchive.open(file));
+      }
+      long archivedThrough = readMarker();
+      List<MessageSegment> opened = new ArrayList<>();
+      for (Map.Entry<Long, Path> e : list(dir, SEGMENT_PREFIX, SEGMENT_SUFFIX, Long::parseLong).entrySet()) {
+        if (e.getKey() <= archivedThrough) {
+          Files.deleteIfExists(e.getValue());
+          continue;
+        }
+        opened.add(MessageSegment.open(e.getValue()));
+      }
+      tiers = new Tiers(List.copyOf(opened), List.copyOf(archives));
+      MessageSegment last = opened.isEmpty() ? null : opened.get(opened.size() - 1);
+      if (last == null || last.sealed()) {
+        openSegment(Math.max(last == null ? 0 : last.index(), archivedThrough) + 1);
+      } else {
+        active = last;
+      }
+      long archivedSegment = archives.stream().mapToLong(DailyArchive::lastSegment).max().orElse(0);
+      if (archivedSegment > archivedThrough) {
+        // perkėlimas nutrūko po archyvų įrašymo - baigiame jį iš karto, kad skaitymai nematytų dublikatų
+        logger.info("Baigiamas nutrūkęs archyvavimas: " + dir);
+        maintainNow(System.currentTimeMillis());
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Nepavyko atidaryti žinučių saugyklos: " + dir, e);
+    }
+    logger.fine("Žinučių saugykla atidaryta: " + dir + ", segmentų=" + tiers.segments().size()
+            + ", archyvų=" + tiers.archives().size());
+
+    boolean interval = options.fsyncPolicy() == FsyncPolicy.INTERVAL;
+    if (interval || retention.tiered()) {
+      // dvi gijos - ilgas archyvavimas neturi vėlinti fsync
+      scheduler = Executors.newScheduledThreadPool(2, r -> {
+        Thread t = new Thread(r, "MessageStore-background");
+        t.setDaemon(true);
+        return t;
+      });
+      if (interval) {
+        scheduler.scheduleWithFixedDelay(this::syncQuietly,
+                options.fsyncIntervalMillis(), options.fsyncIntervalMillis(), TimeUnit.MILLISECONDS);
+      }
+      if (retention.tiered()) {
+        long period = retention.maintenanceIntervalMillis();
+        scheduler.scheduleWithFixedDelay(this::maintainQuietly,
+                Math.min(period, 60_000), period, TimeUnit.MILLISECONDS);
+      }
+    } else {
+      scheduler = null;
+    }
+  }
+
+  public void append(Message message) {
+    appendBatch(List.of(message));
+  }
+
+  /**
+   * Prideda žinutes įrašymo tvarka. Politikos {@link FsyncPolicy#EVERY_RECORD} ir {@link FsyncPolicy#BATCH}
+   * čia reiškia tą patį - nurašoma po kiekvieno paketo.
+   */
+  public void appendBatch(List<Message> messages) {
+    if (messages.isEmpty()) return;
+    lock.lock();
+    try {
+      if (closed) return;
+      long written = 0;
+      for (Message m : messages) {
+        if (m == null) continue;
+        byte[] body = BinaryCodec.encode(m);
+        long before = active.usedBytes();
+        if (!active.append(m, body)) {
+          roll();
+          before = active.usedBytes();
+          if (!active.append(m, body)) {
+            logger.warning("Žinutė netelpa į segmentą, praleidžiama: " + body.length + " B");
+            continue;
+          }
+        }
+        written += active.usedBytes() - before;
+      }
+      bytesWritten.addAndGet(written);
+      dirty = true;
+      if (options.fsyncPolicy() != FsyncPolicy.INTERVAL) force();
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Nepavyko įrašyti žinučių: " + dir, e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Iki {@code limit} naujausių pokalbio žinučių, senesnių nei {@code beforeTimestamp}, chronologine tvarka.
+   */
+  public List<Message> history(ConversationKey key, long beforeTimestamp, int limit) {
+    if (key == null) return List.of();
+    return newest(key, beforeTimestamp, limit);
+  }
+
+  /**
+   * Paskutinės {@code limit} žinučių (bet kurio pokalbio) chronologine tvarka - greitam atkūrimui.
+   */
+  public List<Message> recent(int limit) {
+    return newest(null, Long.MAX_VALUE, limit);
+  }
+
+  /**
+   * Perduoda žinutes, kurių {@code fromTimestamp <= timestamp < toTimestamp}: pirma archyvai, paskui segmentai.
+   */
+  public void scan(long fromTimestamp, long toTimestamp, Consumer<Message> consumer) {
+    Tiers t = tiers;
+    Predicate<Message> visible = visible();
+    for (DailyArchive a : t.archives()) {
+      a.scan(fromTimestamp, toTimestamp, visible, consumer);
+    }
+    for (MessageSegment s : t.segments()) {
+      s.scan(fromTimestamp, toTimestamp, visible, consumer);
+    }
+  }
+
+  /**
+   * Žinučių skaičius abiejose pakopose (įskaitant dar neišmestas pasenusias).
+   */
+  public long size() {
+    Tiers t = tiers;
+    long n = 0;
+    for (MessageSegment s : t.segments()) n += s.size();
+    for (DailyArchive a : t.archives()) n += a.size();
+    return n;
+  }
+
+  public int segmentCount() {
+    return tiers.segments().size();
+  }
+
+  public int archiveCount() {
+    return tiers.archives().size();
+  }
+
+  /**
+   * Kiek baitų įrašyta nuo atidarymo: segmentų įrašai ir (per)rašyti archyvai.
+   */
+  public long bytesWritten() {
+    return bytesWritten.get();
+  }
+
+  /**
+   * Užimta vieta diske: užpildyta segmentų dalis ir archyvų failai.
+   */
+  public long diskBytes() {
+    Tiers t = tiers;
+    long n = 0;
+    for (MessageSegment s : t.segments()) n += s.usedBytes();
+    for (DailyArchive a : t.archives()) n += a.fileBytes();
+    return n;
+  }
+
+  /**
+   * Uždaro aktyvų segmentą, pradėtą ankstesnę UTC dieną, perkelia uždarytus segmentus, senesnius nei
+   * {@link RetentionPolicy#hotDays()}, į dienų archyvus ir perrašo archyvus, kuriuose atsirado visiškai
+   * pasenusių pokalbių. Kviečiama periodiškai fone.
+   */
+  public void maintain(long now) {
+    maintainNow(now);
+  }
+
+  private void maintainNow(long now) {
+    if (!retention.tiered()) return;
+    maintenanceLock.lock();
+    try {
+      long cutoff = now - retention.hotDays() * RetentionPolicy.DAY_MILLIS;
+      rollStale(now);
+      for (MessageSegment s : tiers.segments()) {
+        if (closed) return;
+        if (s.sealed() && s.maxTimestamp() < cutoff) archive(s, now);
+      }
+      for (DailyArchive a : tiers.archives()) {
+        if (closed) return;
+        if (a.hasExpired(retention, now)) expire(a, now);
+      }
+    } catch (IOException | UncheckedIOException e) {
+      logger.log(Level.SEVERE, "Nepavyko perkelti žinučių į archyvus: " + dir, e);
+    } finally {
+      maintenanceLock.unlock();
+    }
+  }
+
+  /**
+   * Mažai naudojamame serveryje aktyvus segmentas gali niekada neprisipildyti - tada jis nebūtų nei perkeltas
+   * į archyvus, nei apkarpytas pagal saugojimo politiką. Todėl segmentas uždaromas prasidėjus naujai UTC
+   * dienai: taip jis ne senesnis nei para ir vėliau archyvuojamas kaip ir pilni segmentai.
+   */
+  private void rollStale(long now) throws IOException {
+    lock.lock();
+    try {
+      if (closed || active.size() == 0) return;
+      long day = Math.floorDiv(now, RetentionPolicy.DAY_MILLIS);
+      if (Math.floorDiv(active.minTimestamp(), RetentionPolicy.DAY_MILLIS) < day) roll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Ištrina visas žinutes (naudojama {@code saveState}, kuris pakeičia visą būseną).
+   * Jau pradėti skaitymai baigiami su senais failais - atvaizdavimas galioja ir juos ištrynus.
+   */
+  public void clear() {
+    maintenanceLock.lock();
+    lock.lock();
+    try {
+      if (closed) return;
+      long next = active.index() + 1;
+      Tiers old = tiers;
+      tiers = new Tiers(List.of(), List.of());
+      for (MessageSegment s : old.segments()) {
+        Files.deleteIfExists(s.file());
+      }
+      for (DailyArchive a : old.archives()) {
+        Files.deleteIfExists(a.file());
+      }
+      openSegment(next);
+    } catch (IOException e) {
+      logger.log(Level.SEVERE, "Nepavyko išvalyti žinučių saugyklos: " + dir, e);
+    } finally {
+      lock.unlock();
+      maintenanceLock.unlock();
+    }
+  }
+
+  /**
+   * Nurašo aktyvų segmentą į diską.
+   */
+  public void flush() {
+    syncQuietly();
+  }
+
+  public void close() {
+    if (scheduler != null) scheduler.shutdown();
+    // pradėtas archyvavimas tikrina closed tarp segmentų - palaukiame, kol jis sustos
+    closed = true;
+    maintenanceLock.lock();
+    maintenanceLock.unlock();
+    lock.lock();
+    try {
+      active.force();
+      dirty = false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private List<Message> newest(ConversationKey key, long beforeTimestamp, int limit) {
+    if (limit <= 0) return List.of();
+    List<Message> result = new ArrayList<>(Math.min(limit, 256));
+    Tiers t = tiers;
+    Predicate<Message> visible = visible();
+    boolean full = false;
+    for (int i = t.segments().size() - 1; i >= 0 && !full; i--) {
+      full = t.segments().get(i).collectNewestFirst(key, beforeTimestamp, limit, visible, result);
+    }
+    for (int i = t.archives().size() - 1; i >= 0 && !full; i--) {
+      full = t.archives().get(i).collectNewestFirst(key, beforeTimestamp, limit, visible, result);
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  private Predicate<Message> visible() {
+    if (retention.defaultDays() == 0 && retention.roomDays().isEmpty()) return m -> true;
+    long now = System.currentTimeMillis();
+    return m -> !retention.expired(m, now);
+  }
+
+  /**
+   * Sudeda segmento žinutes į jų dienų archyvus (esamus papildo) ir pašalina segmentą. Dienos, kurių
+   * archyvas jau apima šį segmentą (perkėlimas nutrūko pusiaukelėje), praleidžiamos.
+   */
+  private void archive(MessageSegment segment, long now) throws IOException {
+    Map<Long, DailyArchive> existing = new HashMap<>();
+    for (DailyArchive a : tiers.archives()) existing.put(a.day(), a);
+    Map<Long, DailyArchive.Writer> writers = new TreeMap<>();
+    try {
+      segment.scan(Long.MIN_VALUE, Long.MAX_VALUE, m -> true, m -> {
+        if (retention.expired(m, now)) return;
+        long day = Math.floorDiv(m.timestamp(), RetentionPolicy.DAY_MILLIS);
+        DailyArchive old = existing.get(day);
+        if (old != null && old.lastSegment() >= segment.index()) return;
+        try {
+          DailyArchive.Writer w = writers.get(day);
+          if (w == null) {
+            w = new DailyArchive.Writer(archiveDir, day, segment.index());
+            writers.put(day, w);
+            if (old != null) copy(old, w, now);
+          }
+          w.add(m);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      writers.values().forEach(DailyArchive.Writer::abort);
+      throw e.getCause();
+    }
+
+    List<DailyArchive> done = new ArrayList<>(writers.size());
+    try {
+      for (DailyArchive.Writer w : writers.values()) {
+        done.add(w.finish());
+        bytesWritten.addAndGet(w.bytes());
+      }
+    } catch (IOException e) {
+      writers.values().forEach(DailyArchive.Writer::abort);
+      throw e;
+    }
+    writeMarker(segment.index());
+    replace(segment, done, List.of());
+    Files.deleteIfExists(segment.file());
+    logger.fine("Segmentas " + segment.file().getFileName() + " perkeltas į archyvus: " + done.size());
+  }
+
+  /**
+   * Perrašo archyvą be pasenusių žinučių; tuščias archyvas ištrinamas.
+   */
+  private void expire(DailyArchive archive, long now) throws IOException {
+    DailyArchive.Writer w = new DailyArchive.Writer(archiveDir, archive.day(), archive.lastSegment());
+    try {
+      copy(archive, w, now);
+    } catch (IOException e) {
+      w.abort();
+      throw e;
+    }
+    if (w.count() == 0) {
+      w.abort();
+      replace(null, List.of(), List.of(archive));
+      Files.deleteIfExists(archive.file());
+    } else {
+      DailyArchive rewritten = w.finish();
+      bytesWritten.addAndGet(w.bytes());
+      replace(null, List.of(rewritten), List.of());
+    }
+    logger.fine("Archyvas " + archive.file().getFileName() + " apkarpytas pagal saugojimo politiką");
+  }
+
+  private void copy(DailyArchive from, DailyArchive.Writer to, long now) throws IOException {
+    try {
+      from.scan(Long.MIN_VALUE, Long.MAX_VALUE, m -> !retention.expired(m, now), m -> {
+        try {
+          to.add(m);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Vienu pakeitimu išima segmentą ir įdeda (pakeičia tos pačios dienos) arba išima archyvus.
+   */
+  private void replace(MessageSegment removed, List<DailyArchive> added, List<DailyArchive> dropped) {
+    lock.lock();
+    try {
+      Tiers t = tiers;
+      List<MessageSegment> segments = new ArrayList<>(t.segments());
+      segments.remove(removed);
+      TreeMap<Long, DailyArchive> archives = new TreeMap<>();
+      for (DailyArchive a : t.archives()) archives.put(a.day(), a);
+      for (DailyArchive a : dropped) archives.remove(a.day());
+      for (DailyArchive a : added) archives.put(a.day(), a);
+      tiers = new Tiers(List.copyOf(segments), List.copyOf(archives.values()));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void maintainQuietly() {
+    try {
+      maintainNow(System.currentTimeMillis());
+    } catch (RuntimeException e) {
+      logger.log(Level.SEVERE, "Archyvavimas nepavyko: " + dir, e);
+    }
+  }
+
+  private void syncQuietly() {
+    lock.lock();
+    try {
+      if (!closed) force();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void force() {
+    if (!dirty) return;
+    active.force();
+    dirty = false;
+  }
+
+  private void roll() throws IOException {
+    active.seal();
+    dirty = false;
+    openSegment(active.index() + 1);
+  }
+
+  private void openSegment(long index) throws IOException {
+    active = MessageSegment.create(dir.resolve(segmentName(index)), index, options.segmentBytes());
+    Tiers t = tiers;
+    List<MessageSegment> next = new ArrayList<>(t.segments().size() + 1);
+    next.addAll(t.segments());
+    next.add(active);
+    tiers = new Tiers(List.copyOf(next), t.archives());
+  }
+
+  private long readMarker() throws IOException {
+    Path marker = archiveDir.resolve(ARCHIVED_MARKER);
+    if (!Files.exists(marker)) return 0;
+    try {
+      return Long.parseLong(Files.readString(marker, StandardCharsets.UTF_8).trim());
+    } catch (NumberFormatException e) {
+      logger.warning("Sugadintas archyvavimo žymeklis, ignoruojamas: " + marker);
+      return 0;
+    }
+  }
+
+  private void writeMarker(long segmentIndex) throws IOException {
+    Path marker = archiveDir.resolve(ARCHIVED_MARKER);
+    Path tmp = archiveDir.resolve(ARCHIVED_MARKER + ".tmp");
+    Files.writeString(tmp, Long.toString(segmentIndex), StandardCharsets.UTF_8);
+    try {
+      Files.move(tmp, marker, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, marker, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Katalogo failai {@code prefix + raktas + suffix}, surikiuoti pagal raktą; nebaigti {@code .tmp} failai ištrinami.
+   */
+  private static <K extends Comparable<K>> TreeMap<K, Path> list(Path dir, String prefix, String suffix,
+                                                                 Function<String, K> key) throws IOException {
+    TreeMap<K, Path> result = new TreeMap<>();
+    List<Path> leftovers = new ArrayList<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      files.forEach(p -> {
+        String name = p.getFileName().toString();
+        if (name.endsWith(".tmp")) {
+          leftovers.add(p);
+        } else if (name.startsWith(prefix) && name.endsWith(suffix)) {
+          try {
+            result.put(key.apply(name.substring(prefix.length(), name.length() - suffix.length())), p);
+          } catch (NumberFormatException ignored) {
+          }
+        }
+      });
+    }
+    for (Path p : leftovers) {
+      Files.deleteIfExists(p);
+    }
+    return result;
+  }
+
+  private static String segmentName(long index) {
+    return String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+  }
+}
@@ -0,0 +1,141 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Room;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Saugykla, kurioje žinutės laikomos {@link MappedMessageStore} ({@code messages/}), o kambariai, narystės
+ * ir vartotojai - mažame {@link WriteAheadLogPersistence} žurnale ({@code state/}) be žinučių lango.
+ * Atkūrimas ir istorijos užklausos skaito žinutes tiesiai iš atvaizduotų failų, todėl nei paleidimo laikas,
+ * nei heap'as neauga kartu su istorija.
+ */
+public class MappedPersistence implements Persistence {
+  private static final int IMPORT_BATCH = 1024;
+
+  private final MappedMessageStore messages;
+  private final WriteAheadLogPersistence structure;
+
+  public MappedPersistence(String directory) {
+    this(directory, MessageStoreOptions.defaults());
+  }
+
+  public MappedPersistence(String directory, MessageStoreOptions options) {
+    Path dir = Paths.get(directory).toAbsolutePath();
+    messages = new MappedMessageStore(dir.resolve("messages"), options);
+    WalOptions d = WalOptions.defaults();
+    structure = new WriteAheadLogPersistence(dir.resolve("state").toString(), new WalOptions(options.fsyncPolicy(),
+            options.fsyncIntervalMillis(), d.fsyncBatchSize(), d.segmentBytes(), d.compactAfterSegments(), 0));
+  }
+
+  /**
+   * Saugykla dar nieko neturi - galima perkelti duomenis iš senos ({@link #importFrom}).
+   */
+  public boolean isEmpty() {
+    return messages.size() == 0 && structure.load(0).rooms().isEmpty();
+  }
+
+  /**
+   * Perkelia kambarius, narystes ir visas žinutes iš kitos saugyklos. Vartotojų sąrašas neperkeliamas -
+   * atkuriant serveriui jo nereikia, o prisijungę vartotojai užsiregistruos iš naujo.
+   */
+  public void importFrom(Persistence source) {
+    RecoveredState state = source.load(0);
+    structure.saveState(state.rooms(), List.of(), List.of());
+    List<Message> batch = new ArrayList<>(IMPORT_BATCH);
+    source.scanMessages(m -> {
+      batch.add(m);
+      if (batch.size() == IMPORT_BATCH) {
+        messages.appendBatch(batch);
+        batch.clear();
+      }
+    });
+    messages.appendBatch(batch);
+    flush();
+  }
+
+  public MappedMessageStore messages() {
+    return messages;
+  }
+
+  @Override
+  public RecoveredState load(int maxMessages) {
+    return new RecoveredState(structure.load(0).rooms(), messages.recent(maxMessages));
+  }
+
+  @Override
+  public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    structure.saveState(rooms, users, List.of());
+    this.messages.clear();
+    this.messages.appendBatch(new ArrayList<>(messages));
+  }
+
+  @Override
+  public void append(StoreEvent event) {
+    if (event == null) return;
+    if (event.kind() == StoreEvent.Kind.MESSAGE) {
+      if (event.message() != null) messages.append(event.message());
+    } else {
+      structure.append(event);
+    }
+  }
+
+  /**
+   * Paketas padalijamas į dvi dalis; kiekviena dalis išlaiko savo tvarką, o tarpusavio tvarka
+   * tarp žinučių ir struktūros įvykių atkūrimui nesvarbi.
+   */
+  @Override
+  public void appendBatch(List<StoreEvent> events) {
+    List<Message> batch = new ArrayList<>(events.size());
+    List<StoreEvent> rest = new ArrayList<>();
+    for (StoreEvent e : events) {
+      if (e == null) continue;
+      if (e.kind() == StoreEvent.Kind.MESSAGE) {
+        if (e.message() != null) batch.add(e.message());
+      } else {
+        rest.add(e);
+      }
+    }
+    messages.appendBatch(batch);
+    if (!rest.isEmpty()) structure.appendBatch(rest);
+  }
+
+  @Override
+  public List<Message> readHistory(ConversationKey key, long beforeTimestamp, int limit) {
+    return messages.history(key, beforeTimestamp, limit);
+  }
+
+  @Override
+  public void scanMessages(Consumer<Message> consumer) {
+    messages.scan(Long.MIN_VALUE, Long.MAX_VALUE, consumer);
+  }
+
+  @Override
+  public long bytesWritten() {
+    return messages.bytesWritten() + structure.bytesWritten();
+  }
+
+  @Override
+  public long diskBytes() {
+    return messages.diskBytes() + structure.diskBytes();
+  }
+
+  @Override
+  public void flush() {
+    messages.flush();
+    structure.flush();
+  }
+
+  @Override
+  public void close() {
+    messages.close();
+    structure.close();
+  }
+}
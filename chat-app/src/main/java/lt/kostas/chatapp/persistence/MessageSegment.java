@@ -0,0 +1,329 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Vienas {@link MappedMessageStore} segmentas - fiksuoto dydžio failas, visas atvaizduotas per {@code mmap}.
+ * <p>
+ * Failo sandara: antraštė ({@value #HEADER_BYTES} B), pokalbių filtras ({@value #BLOOM_BYTES} B), toliau
+ * žinučių kūnai {@link BinaryCodec} formatu auga nuo pradžios, o fiksuoto ilgio ({@value #ENTRY_BYTES} B)
+ * įrašų antraštės - nuo failo galo atgal: timestamp, pokalbio hash, siuntėjo hash, kūno poslinkis ir ilgis.
+ * Po kiekvienų {@value #BLOCK} antraščių įterpiama bloko santrauka (mažiausias ir didžiausias timestamp,
+ * pokalbių kaukė) - tai retasis indeksas, pagal kurį ištisi blokai praleidžiami neskaitant jų įrašų.
+ * Segmentas pilnas, kai abi sritys susitinka.
+ * <p>
+ * Rašo viena gija; skaitytojai mato tik {@link #count} paskelbtus įrašus ir žinutes iškoduoja tiesiai
+ * iš atvaizduoto failo, todėl heap'e laikomi tik keli segmento laukai.
+ */
+final class MessageSegment {
+  private static final int MAGIC = 0x434D5347; // "CMSG"
+  private static final int VERSION = 1;
+  static final int HEADER_BYTES = 64;
+  static final int BLOOM_BYTES = 512;
+  static final int ENTRY_BYTES = 24;
+  static final int BLOCK = 64;
+  private static final int DATA_START = HEADER_BYTES + BLOOM_BYTES;
+  private static final int BLOOM_BITS = BLOOM_BYTES * 8;
+
+  // antraštės laukų poslinkiai
+  private static final int H_INDEX = 8;
+  static final int H_COUNT = 16;
+  static final int H_DATA_END = 20;
+  private static final int H_MIN_TS = 24;
+  private static final int H_MAX_TS = 32;
+  private static final int H_SEALED = 40;
+
+  private final Path file;
+  private final long index;
+  private final MappedByteBuffer map;
+  private final int capacity;
+  // rašančiosios gijos būsena; skaitytojams paskelbiama per count
+  private int dataEnd;
+  private long minTs = Long.MAX_VALUE;
+  private long maxTs = Long.MIN_VALUE;
+  private boolean sealed;
+  private volatile int count;
+
+  private MessageSegment(Path file, long index, MappedByteBuffer map) {
+    this.file = file;
+    this.index = index;
+    this.map = map;
+    this.capacity = map.capacity();
+  }
+
+  /**
+   * Sukuria naują tuščią segmentą; failas iš karto išplečiamas iki {@code capacity}.
+   */
+  static MessageSegment create(Path file, long index, int capacity) throws IOException {
+    MappedByteBuffer map;
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      map = ch.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+    }
+    MessageSegment s = new MessageSegment(file, index, map);
+    map.putInt(0, MAGIC).putInt(4, VERSION).putLong(H_INDEX, index);
+    s.dataEnd = DATA_START;
+    s.writeHeader();
+    return s;
+  }
+
+  /**
+   * Atidaro esamą segmentą. Paskutinis blokas patikrinamas: po netikėto sustojimo antraštė gali būti
+   * nurašyta anksčiau nei įrašų puslapiai, todėl neiškoduojami įrašai nukerpami.
+   */
+  static MessageSegment open(Path file) throws IOException {
+    MappedByteBuffer map;
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      if (ch.size() < MessageStoreOptions.MIN_SEGMENT_BYTES || ch.size() > Integer.MAX_VALUE) {
+        throw new IOException("Netinkamas segmento dydis: " + file);
+      }
+      map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+    }
+    if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("Ne žinučių segmentas: " + file);
+    MessageSegment s = new MessageSegment(file, map.getLong(H_INDEX), map);
+    int n = Math.max(0, map.getInt(H_COUNT));
+    s.dataEnd = map.getInt(H_DATA_END);
+    s.minTs = map.getLong(H_MIN_TS);
+    s.maxTs = map.getLong(H_MAX_TS);
+    s.sealed = map.getInt(H_SEALED) != 0;
+    if (s.dataEnd < DATA_START || s.dataEnd > s.capacity) throw new IOException("Sugadinta segmento antraštė: " + file);
+
+    int valid = Math.min(n, s.maxRecords());
+    for (int i = Math.max(0, valid - BLOCK); i < valid; i++) {
+      if (!s.readable(i)) {
+        valid = i;
+        break;
+      }
+    }
+    s.count = valid;
+    if (valid != n) {
+      s.dataEnd = DATA_START;
+      if (valid > 0) {
+        int last = s.entryAt(valid - 1);
+        s.dataEnd = s.map.getInt(last + 16) + s.map.getInt(last + 20);
+      }
+      s.sealed = false;
+      s.writeHeader();
+    }
+    return s;
+  }
+
+  /**
+   * Prideda žinutę. Grąžina false, jei segmente nebeliko vietos (segmentas nekeičiamas).
+   */
+  boolean append(Message m, byte[] body) {
+    int n = count;
+    int after = n + 1;
+    int slots = after + after / BLOCK;
+    if (sealed || (long) dataEnd + body.length > (long) capacity - (long) slots * ENTRY_BYTES) return false;
+
+    map.put(dataEnd, body);
+    int convHash = conversationHash(ConversationKey.of(m));
+    int at = entryAt(n);
+    map.putLong(at, m.timestamp()).putInt(at + 8, convHash).putInt(at + 12, senderHash(m.from()))
+            .putInt(at + 16, dataEnd).putInt(at + 20, body.length);
+    dataEnd += body.length;
+    if (after % BLOCK == 0) writeSummary(n / BLOCK);
+
+    int bit = bloomBit(convHash);
+    int bloomAt = HEADER_BYTES + (bit >>> 3);
+    map.put(bloomAt, (byte) (map.get(bloomAt) | (1 << (bit & 7))));
+    minTs = Math.min(minTs, m.timestamp());
+    maxTs = Math.max(maxTs, m.timestamp());
+    map.putInt(H_COUNT, after).putInt(H_DATA_END, dataEnd).putLong(H_MIN_TS, minTs).putLong(H_MAX_TS, maxTs);
+    // paskelbimas skaitytojams - visi aukščiau esantys įrašai matomi kartu su nauju count
+    count = after;
+    return true;
+  }
+
+  void seal() {
+    sealed = true;
+    map.putInt(H_SEALED, 1);
+    map.force();
+  }
+
+  void force() {
+    map.force();
+  }
+
+  /**
+   * Iki {@code limit - out.size()} naujausių pokalbio {@code key} (null - bet kurio) žinučių, senesnių nei
+   * {@code beforeTimestamp}, nuo naujausios; {@code visible} atmeta pasenusias.
+   * Grąžina true, kai {@code out} jau pilnas.
+   */
+  boolean collectNewestFirst(ConversationKey key, long beforeTimestamp, int limit, Predicate<Message> visible,
+                             List<Message> out) {
+    int n = count;
+    if (n == 0 || minTs >= beforeTimestamp) return out.size() >= limit;
+    int convHash = key == null ? 0 : conversationHash(key);
+    if (key != null && !mayContain(convHash)) return out.size() >= limit;
+    long convBit = key == null ? 0 : maskBit(convHash);
+
+    for (int block = (n - 1) / BLOCK; block >= 0 && out.size() < limit; block--) {
+      int from = block * BLOCK;
+      int to = Math.min(n, from + BLOCK);
+      if (to - from == BLOCK) {
+        int s = summaryAt(block);
+        if (map.getLong(s) >= beforeTimestamp) continue;
+        if (key != null && (map.getLong(s + 16) & convBit) == 0) continue;
+      }
+      for (int i = to - 1; i >= from && out.size() < limit; i--) {
+        int at = entryAt(i);
+        if (map.getLong(at) >= beforeTimestamp) continue;
+        if (key != null && map.getInt(at + 8) != convHash) continue;
+        Message m = message(at);
+        // hash'ai gali sutapti - galutinai tikrinama iškodavus
+        if ((key == null || key.matches(m)) && visible.test(m)) out.add(m);
+      }
+    }
+    return out.size() >= limit;
+  }
+
+  /**
+   * Perduoda žinutes, kurių {@code fromTimestamp <= timestamp < toTimestamp}, įrašymo tvarka.
+   */
+  void scan(long fromTimestamp, long toTimestamp, Predicate<Message> visible, Consumer<Message> consumer) {
+    int n = count;
+    if (n == 0 || maxTs < fromTimestamp || minTs >= toTimestamp) return;
+    for (int block = 0; block * BLOCK < n; block++) {
+      int from = block * BLOCK;
+      int to = Math.min(n, from + BLOCK);
+      if (to - from == BLOCK) {
+        int s = summaryAt(block);
+        if (map.getLong(s + 8) < fromTimestamp || map.getLong(s) >= toTimestamp) continue;
+      }
+      for (int i = from; i < to; i++) {
+        int at = entryAt(i);
+        long ts = map.getLong(at);
+        if (ts < fromTimestamp || ts >= toTimestamp) continue;
+        Message m = message(at);
+        if (visible.test(m)) consumer.accept(m);
+      }
+    }
+  }
+
+  boolean mayContain(int convHash) {
+    int bit = bloomBit(convHash);
+    return (map.get(HEADER_BYTES + (bit >>> 3)) & (1 << (bit & 7))) != 0;
+  }
+
+  Path file() {
+    return file;
+  }
+
+  long index() {
+    return index;
+  }
+
+  int size() {
+    return count;
+  }
+
+  /**
+   * Kiek failo baitų jau užimta: antraštė, kūnai ir įrašų antraštės (likusi failo dalis dar neįrašyta).
+   */
+  long usedBytes() {
+    int n = count;
+    return dataEnd + (long) (n + n / BLOCK) * ENTRY_BYTES;
+  }
+
+  boolean sealed() {
+    return sealed;
+  }
+
+  long minTimestamp() {
+    return minTs;
+  }
+
+  long maxTimestamp() {
+    return maxTs;
+  }
+
+  /**
+   * Stabilus pokalbio hash'as (record'o {@code hashCode} tarp JVM versijų negarantuotas).
+   */
+  static int conversationHash(ConversationKey key) {
+    if (key == null) return 0;
+    return key.isDirect() ? (key.userA() + '\u0000' + key.userB()).hashCode() : key.roomId().hashCode();
+  }
+
+  private static int senderHash(String from) {
+    return from == null ? 0 : from.hashCode();
+  }
+
+  private Message message(int entryAt) {
+    int offset = map.getInt(entryAt + 16);
+    int length = map.getInt(entryAt + 20);
+    try {
+      return BinaryCodec.tryDecode(map.slice(offset, length));
+    } catch (ProtocolException e) {
+      throw new IllegalStateException("Sugadintas žinučių segmentas: " + file, e);
+    }
+  }
+
+  private boolean readable(int i) {
+    int at = entryAt(i);
+    int offset = map.getInt(at + 16);
+    int length = map.getInt(at + 20);
+    if (offset < DATA_START || length <= 0 || (long) offset + length > dataEnd) return false;
+    try {
+      return BinaryCodec.tryDecode(map.slice(offset, length)) != null;
+    } catch (ProtocolException e) {
+      return false;
+    }
+  }
+
+  private void writeSummary(int block) {
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    long mask = 0;
+    for (int i = block * BLOCK; i < (block + 1) * BLOCK; i++) {
+      int at = entryAt(i);
+      long ts = map.getLong(at);
+      min = Math.min(min, ts);
+      max = Math.max(max, ts);
+      mask |= maskBit(map.getInt(at + 8));
+    }
+    int s = summaryAt(block);
+    map.putLong(s, min).putLong(s + 8, max).putLong(s + 16, mask);
+  }
+
+  private void writeHeader() {
+    map.putInt(H_COUNT, count).putInt(H_DATA_END, dataEnd).putLong(H_MIN_TS, minTs).putLong(H_MAX_TS, maxTs)
+            .putInt(H_SEALED, sealed ? 1 : 0);
+  }
+
+  private int maxRecords() {
+    // grubus viršutinis rėžis sugadintai antraštei atmesti
+    return (capacity - DATA_START) / ENTRY_BYTES;
+  }
+
+  // i-tasis įrašas užima lizdą i + i / BLOCK: po kiekvieno bloko eina jo santrauka
+  private int entryAt(int i) {
+    return capacity - (i + i / BLOCK + 1) * ENTRY_BYTES;
+  }
+
+  private int summaryAt(int block) {
+    return capacity - ((block + 1) * (BLOCK + 1)) * ENTRY_BYTES;
+  }
+
+  private static int bloomBit(int hash) {
+    return (hash * 0x9E3779B9) >>> (32 - Integer.numberOfTrailingZeros(BLOOM_BITS));
+  }
+
+  static long maskBit(int hash) {
+    return 1L << ((hash * 0x9E3779B9) >>> 26);
+  }
+}
@@ -0,0 +1,44 @@
+package lt.kostas.chatapp.persistence;
+
+/**
+ * {@link MappedMessageStore} nustatymai.
+ *
+ * @param segmentBytes        segmento failo dydis baitais; failas sukuriamas iš karto tokio dydžio ir atvaizduojamas
+ * @param fsyncPolicy         kada nurašyti atvaizduotus puslapius į diską ({@code MappedByteBuffer.force})
+ * @param fsyncIntervalMillis nurašymo periodas, kai politika {@link FsyncPolicy#INTERVAL}
+ * @param retention           kada perkelti į dienų archyvus ir kiek laikyti
+ */
+public record MessageStoreOptions(
+        int segmentBytes,
+        FsyncPolicy fsyncPolicy,
+        long fsyncIntervalMillis,
+        RetentionPolicy retention
+) {
+  // didžiausias kadras ir dar vietos indeksui - kitaip į tuščią segmentą galėtų netilpti viena žinutė
+  static final int MIN_SEGMENT_BYTES = 2 * 1024 * 1024;
+
+  public MessageStoreOptions {
+    if (segmentBytes < MIN_SEGMENT_BYTES) {
+      throw new IllegalArgumentException("segmentBytes turi būti ne mažesnis nei " + MIN_SEGMENT_BYTES);
+    }
+    if (fsyncPolicy == null) throw new IllegalArgumentException("fsyncPolicy negali būti null");
+    if (fsyncIntervalMillis <= 0) throw new IllegalArgumentException("fsyncIntervalMillis turi būti teigiamas");
+    if (retention == null) throw new IllegalArgumentException("retention negali būti null");
+  }
+
+  public static MessageStoreOptions defaults() {
+    return new MessageStoreOptions(64 * 1024 * 1024, FsyncPolicy.INTERVAL, 200, RetentionPolicy.defaults());
+  }
+
+  public MessageStoreOptions withSegmentBytes(int bytes) {
+    return new MessageStoreOptions(bytes, fsyncPolicy, fsyncIntervalMillis, retention);
+  }
+
+  public MessageStoreOptions withFsyncPolicy(FsyncPolicy policy) {
+    return new MessageStoreOptions(segmentBytes, policy, fsyncIntervalMillis, retention);
+  }
+
+  public MessageStoreOptions withRetention(RetentionPolicy policy) {
+    return new MessageStoreOptions(segmentBytes, fsyncPolicy, fsyncIntervalMillis, policy);
+  }
+}
@@ -1,10 +1,77 @@
 package lt.kostas.chatapp.persistence;
 
+import lt.kostas.chatapp.dto.ConversationKey;
 import lt.kostas.chatapp.dto.Message;
 import lt.kostas.chatapp.model.Room;
 
 import java.util.Collection;
+import java.util.List;
+import java.util.function.Consumer;
 
 public interface Persistence {
   void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages);
+
+  /**
+   * Atkuria paskutinę išsaugotą būseną. Kviečiama vieną kartą, prieš pirmą įrašymą.
+   *
+   * @param maxMessages kiek paskutinių žinučių grąžinti
+   */
+  default RecoveredState load(int maxMessages) {
+    return RecoveredState.empty();
+  }
+
+  /**
+   * Įrašo vieną būsenos pakeitimą.
+   */
+  void append(StoreEvent event);
+
+  /**
+   * Įrašo kelis pakeitimus vienu kartu (group commit). Numatytai - po vieną.
+   */
+  default void appendBatch(List<StoreEvent> events) {
+    for (StoreEvent e : events) {
+      append(e);
+    }
+  }
+
+  /**
+   * Iki {@code limit} naujausių pokalbio žinučių, senesnių nei {@code beforeTimestamp}, chronologine tvarka.
+   * Skirta istorijai, kurios nebėra atmintyje.
+   */
+  default List<Message> readHistory(ConversationKey key, long beforeTimestamp, int limit) {
+    return List.of();
+  }
+
+  /**
+   * Perduoda visas išsaugotas žinutes nuo seniausios. Skirta išvestiniams duomenims (pvz. paieškos
+   * indeksui) atkurti; numatytai saugykla žinučių neturi.
+   */
+  default void scanMessages(Consumer<Message> consumer) {
+  }
+
+  /**
+   * Kiek baitų saugykla įrašė į diską nuo atidarymo; -1 - nežinoma.
+   */
+  default long bytesWritten() {
+    return -1;
+  }
+
+  /**
+   * Kiek vietos saugyklos failai dabar užima diske; -1 - nežinoma.
+   */
+  default long diskBytes() {
+    return -1;
+  }
+
+  /**
+   * Blokuoja, kol visi iki šiol perduoti pakeitimai bus įrašyti.
+   */
+  default void flush() {
+  }
+
+  /**
+   * Nurašo neišsaugotus duomenis ir atlaisvina resursus.
+   */
+  default void close() {
+  }
 }
@@ -1,56 +1,232 @@
 package lt.kostas.chatapp.persistence;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import lt.kostas.chatapp.dto.ConversationKey;
 import lt.kostas.chatapp.dto.Message;
 import lt.kostas.chatapp.model.Room;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class PersistenceImpl implements Persistence {
   private final Path path;
-  private final Gson gson = new GsonBuilder().setPrettyPrinting().create();
+  // be setPrettyPrinting - tarpai ir lygiavimas padvigubindavo failą ir jo rašymo laiką
+  private final Gson gson = new Gson();
   private static final Logger logger = Logger.getLogger(PersistenceImpl.class.getName());
+  // pilna būsena atmintyje, nes kiekvienas įrašymas perrašo visą failą
+  private final StoreState state = new StoreState(Integer.MAX_VALUE);
+  // ReentrantLock vietoj synchronized - nepririša virtualių gijų prie nešančiosios gijos per disko I/O
+  private final ReentrantLock lock = new ReentrantLock();
+  private volatile long bytesWritten;
 
   public PersistenceImpl(String filePath) {
     this.path = Paths.get(filePath).toAbsolutePath();
   }
 
-  private synchronized void write(Map<String, Object> model) throws IOException {
-    Path dir = path.getParent() == null ? Paths.get(".").toAbsolutePath() : path.getParent();
-    Files.createDirectories(dir);
-    Path tmp = dir.resolve(path.getFileName().toString() + ".tmp");
-
+  /**
+   * Skaito failą srautu ({@link JsonReader}), nekurdamas viso dokumento medžio atmintyje.
+   * Visos žinutės vis tiek atsiduria {@link #state}, nes šis formatas kaskart perrašomas pilnai.
+   */
+  @Override
+  public RecoveredState load(int maxMessages) {
+    lock.lock();
     try {
-      Files.writeString(tmp, gson.toJson(model), StandardCharsets.UTF_8,
-              StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
-      try {
-        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
-      } catch (AtomicMoveNotSupportedException ex) {
-        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+      state.clear();
+      if (!Files.exists(path)) return RecoveredState.empty();
+
+      try (Reader fileReader = Files.newBufferedReader(path, StandardCharsets.UTF_8);
+           JsonReader reader = new JsonReader(fileReader)) {
+        reader.beginObject();
+        while (reader.hasNext()) {
+          switch (reader.nextName()) {
+            case "rooms" -> readRooms(reader);
+            case "users" -> {
+              reader.beginArray();
+              while (reader.hasNext()) {
+                state.apply(StoreEvent.userRegistered(reader.nextString()));
+              }
+              reader.endArray();
+            }
+            case "messages" -> {
+              reader.beginArray();
+              while (reader.hasNext()) {
+                Message m = gson.fromJson(reader, Message.class);
+                state.apply(StoreEvent.message(m));
+              }
+              reader.endArray();
+            }
+            default -> reader.skipValue();
+          }
+        }
+        reader.endObject();
+      } catch (IOException | JsonParseException | IllegalStateException e) {
+        logger.log(Level.SEVERE, "Nepavyko nuskaityti duomenų failo: " + path, e);
       }
-      logger.fine("Duomenys išsaugoti šiame faile: " + path);
+      return state.toRecovered(maxMessages);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public List<Message> readHistory(ConversationKey key, long beforeTimestamp, int limit) {
+    lock.lock();
+    try {
+      return state.history(key, beforeTimestamp, limit);
     } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void scanMessages(Consumer<Message> consumer) {
+    List<Message> copy;
+    lock.lock();
+    try {
+      copy = new ArrayList<>(state.messages());
+    } finally {
+      lock.unlock();
+    }
+    copy.forEach(consumer);
+  }
+
+  private void readRooms(JsonReader reader) throws IOException {
+    reader.beginArray();
+    while (reader.hasNext()) {
+      String id = null;
+      String displayName = null;
+      List<String> members = new ArrayList<>();
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (reader.peek() == JsonToken.NULL) {
+          reader.nextNull();
+          continue;
+        }
+        switch (name) {
+          case "id" -> id = reader.nextString();
+          case "displayName" -> displayName = reader.nextString();
+          case "members" -> {
+            reader.beginArray();
+            while (reader.hasNext()) members.add(reader.nextString());
+            reader.endArray();
+          }
+          default -> reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (id == null || id.isBlank()) continue;
+      state.apply(StoreEvent.roomCreated(id, displayName));
+      for (String member : members) {
+        state.apply(StoreEvent.roomJoined(id, member));
+      }
+    }
+    reader.endArray();
+  }
+
+  private void write(Map<String, Object> model) throws IOException {
+    lock.lock();
+    try {
+      Path dir = path.getParent() == null ? Paths.get(".").toAbsolutePath() : path.getParent();
+      Files.createDirectories(dir);
+      Path tmp = dir.resolve(path.getFileName().toString() + ".tmp");
+
       try {
-        Files.deleteIfExists(tmp);
-      } catch (Exception ignored) {
+        Files.writeString(tmp, gson.toJson(model), StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+        bytesWritten += Files.size(tmp);
+        try {
+          Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+        logger.fine("Duomenys išsaugoti šiame faile: " + path);
+      } finally {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (Exception ignored) {
+        }
       }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
-  public synchronized void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  @Override
+  public long diskBytes() {
+    try {
+      return Files.exists(path) ? Files.size(path) : 0;
+    } catch (IOException e) {
+      return -1;
+    }
+  }
+
+  @Override
+  public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    lock.lock();
+    try {
+      state.reset(rooms, users, messages);
+      writeState();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Pritaiko įvykį būsenai ir perrašo visą failą - kaina auga kartu su istorija.
+   * Dideliam srautui naudokite {@link WriteAheadLogPersistence}.
+   */
+  @Override
+  public void append(StoreEvent event) {
+    lock.lock();
+    try {
+      state.apply(event);
+      writeState();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Visą paketą pritaiko atmintyje ir failą perrašo tik vieną kartą.
+   */
+  @Override
+  public void appendBatch(List<StoreEvent> events) {
+    lock.lock();
+    try {
+      for (StoreEvent e : events) {
+        state.apply(e);
+      }
+      writeState();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void writeState() {
     Map<String, Object> model = new HashMap<>();
-    model.put("rooms", rooms);
-    model.put("users", users);
-    model.put("messages", messages);
+    model.put("rooms", state.rooms());
+    model.put("users", state.users());
+    model.put("messages", state.messages());
 
     try {
       write(model);
@@ -0,0 +1,18 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Room;
+
+import java.util.List;
+
+/**
+ * Iš saugyklos atkurta būsena, reikalinga serveriui paleisti.
+ *
+ * @param rooms          kambariai su narystėmis (nepriklausomos kopijos, serveris gali jas keisti)
+ * @param recentMessages paskutinės žinutės chronologine tvarka
+ */
+public record RecoveredState(List<Room> rooms, List<Message> recentMessages) {
+  public static RecoveredState empty() {
+    return new RecoveredState(List.of(), List.of());
+  }
+}
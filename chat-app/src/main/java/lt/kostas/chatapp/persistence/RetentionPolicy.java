@@ -0,0 +1,103 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Kiek laiko žinutės laikomos greitoje (atvaizduotų segmentų) pakopoje ir kiek apskritai.
+ *
+ * @param hotDays                   po kiek dienų uždaryti segmentai perkeliami į suspaustus dienų archyvus
+ *                                  (0 - niekada, viskas lieka segmentuose)
+ * @param defaultDays               kiek dienų laikomos žinutės, kai kambariui nenurodyta kitaip (0 - visada)
+ * @param roomDays                  kambario saugojimo trukmė dienomis; raktas {@value #DIRECT} - privatūs pokalbiai
+ * @param maintenanceIntervalMillis kas kiek laiko perkeliama į archyvus ir trinama, kas pasenę
+ */
+public record RetentionPolicy(
+        int hotDays,
+        int defaultDays,
+        Map<String, Integer> roomDays,
+        long maintenanceIntervalMillis
+) {
+  public static final String DIRECT = "@direct";
+  static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+  public RetentionPolicy {
+    if (hotDays < 0) throw new IllegalArgumentException("hotDays negali būti neigiamas");
+    if (defaultDays < 0) throw new IllegalArgumentException("defaultDays negali būti neigiamas");
+    if (maintenanceIntervalMillis <= 0) throw new IllegalArgumentException("maintenanceIntervalMillis turi būti teigiamas");
+    roomDays = Map.copyOf(roomDays);
+    for (Map.Entry<String, Integer> e : roomDays.entrySet()) {
+      if (e.getValue() < 0) throw new IllegalArgumentException("Neigiama saugojimo trukmė: " + e.getKey());
+    }
+  }
+
+  public static RetentionPolicy defaults() {
+    return new RetentionPolicy(7, 0, Map.of(), 60 * 60 * 1000);
+  }
+
+  /**
+   * Nustatymai iš {@code -Dchat.retention.*}: {@code hotDays}, {@code days}, {@code intervalMillis} ir
+   * {@code rooms} - sąrašas {@code kambarys:dienos,...}, pvz. {@code general:30,@direct:365}.
+   */
+  public static RetentionPolicy fromSystemProperties() {
+    RetentionPolicy d = defaults();
+    Map<String, Integer> rooms = new HashMap<>();
+    String spec = System.getProperty("chat.retention.rooms", "");
+    for (String part : spec.split(",")) {
+      if (part.isBlank()) continue;
+      int colon = part.lastIndexOf(':');
+      if (colon <= 0) throw new IllegalArgumentException("Netinkamas chat.retention.rooms įrašas: " + part);
+      rooms.put(part.substring(0, colon).trim(), Integer.parseInt(part.substring(colon + 1).trim()));
+    }
+    return new RetentionPolicy(
+            Integer.getInteger("chat.retention.hotDays", d.hotDays()),
+            Integer.getInteger("chat.retention.days", d.defaultDays()),
+            rooms,
+            Long.getLong("chat.retention.intervalMillis", d.maintenanceIntervalMillis()));
+  }
+
+  /**
+   * Saugojimo trukmė dienomis pokalbiui, kurio archyvo raktas {@code conversation} (0 - visada).
+   */
+  public int daysFor(String conversation) {
+    return roomDays.getOrDefault(conversation, defaultDays);
+  }
+
+  /**
+   * Žinutė senesnė nei jos pokalbio saugojimo trukmė.
+   */
+  public boolean expired(Message m, long now) {
+    int days = daysFor(conversationOf(m));
+    return days > 0 && m.timestamp() < now - days * DAY_MILLIS;
+  }
+
+  /**
+   * Laikas, iki kurio visų pokalbių žinutės jau pasenusios, arba {@link Long#MIN_VALUE}, jei bent vienas
+   * pokalbis saugomas visada. Pagal jį ištisai ištrinami išvestinių duomenų (paieškos indekso) failai.
+   */
+  public long expiredBefore(long now) {
+    if (defaultDays == 0) return Long.MIN_VALUE;
+    int longest = defaultDays;
+    for (int days : roomDays.values()) {
+      if (days == 0) return Long.MIN_VALUE;
+      longest = Math.max(longest, days);
+    }
+    return now - longest * DAY_MILLIS;
+  }
+
+  boolean tiered() {
+    return hotDays > 0;
+  }
+
+  /**
+   * Archyvo raktas: kambario id arba {@value #DIRECT} visiems privatiems pokalbiams.
+   */
+  static String conversationOf(Message m) {
+    ConversationKey key = ConversationKey.of(m);
+    if (key == null) return "";
+    return key.isDirect() ? DIRECT : key.roomId();
+  }
+}
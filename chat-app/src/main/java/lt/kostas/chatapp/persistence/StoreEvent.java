@@ -0,0 +1,43 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.Message;
+
+/**
+ * Vienas būsenos pakeitimas, kurį serveris perduoda saugyklai.
+ * Iš tokių įvykių sekos galima atkurti kambarius, narystes, vartotojus ir žinučių istoriją.
+ */
+public record StoreEvent(
+        Kind kind,
+        String roomId,
+        String displayName,
+        String username,
+        Message message
+) {
+  public enum Kind {
+    ROOM_CREATED,
+    ROOM_JOINED,
+    USER_REGISTERED,
+    USER_UNREGISTERED,
+    MESSAGE
+  }
+
+  public static StoreEvent roomCreated(String roomId, String displayName) {
+    return new StoreEvent(Kind.ROOM_CREATED, roomId, displayName, null, null);
+  }
+
+  public static StoreEvent roomJoined(String roomId, String username) {
+    return new StoreEvent(Kind.ROOM_JOINED, roomId, null, username, null);
+  }
+
+  public static StoreEvent userRegistered(String username) {
+    return new StoreEvent(Kind.USER_REGISTERED, null, null, username, null);
+  }
+
+  public static StoreEvent userUnregistered(String username) {
+    return new StoreEvent(Kind.USER_UNREGISTERED, null, null, username, null);
+  }
+
+  public static StoreEvent message(Message message) {
+    return new StoreEvent(Kind.MESSAGE, null, null, null, message);
+  }
+}
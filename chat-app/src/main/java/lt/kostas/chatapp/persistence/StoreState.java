@@ -0,0 +1,145 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Room;
+
+import java.util.*;
+
+/**
+ * Iš {@link StoreEvent} sekos sudaryta saugyklos būsena.
+ * Nėra thread-safe - ją valdanti implementacija pati rūpinasi sinchronizacija.
+ */
+public class StoreState {
+  private final Map<String, Room> rooms = new LinkedHashMap<>();
+  private final Set<String> users = new LinkedHashSet<>();
+  private final Deque<Message> messages = new ArrayDeque<>();
+  private final int messageLimit;
+
+  /**
+   * @param messageLimit kiek paskutinių žinučių laikyti atmintyje (0 - nelaikyti visai)
+   */
+  public StoreState(int messageLimit) {
+    if (messageLimit < 0) throw new IllegalArgumentException("messageLimit negali būti neigiamas");
+    this.messageLimit = messageLimit;
+  }
+
+  public void apply(StoreEvent event) {
+    if (event == null || event.kind() == null) return;
+    switch (event.kind()) {
+      case ROOM_CREATED -> {
+        if (event.roomId() != null && !event.roomId().isBlank()) {
+          rooms.putIfAbsent(event.roomId(), new Room(event.roomId(), event.displayName()));
+        }
+      }
+      case ROOM_JOINED -> {
+        Room r = event.roomId() == null ? null : rooms.get(event.roomId());
+        if (r != null) r.addMember(event.username());
+      }
+      case USER_REGISTERED -> {
+        if (event.username() != null) users.add(event.username());
+      }
+      case USER_UNREGISTERED -> {
+        users.remove(event.username());
+        for (Room r : rooms.values()) {
+          r.removeMember(event.username());
+        }
+      }
+      case MESSAGE -> {
+        if (event.message() == null || messageLimit == 0) return;
+        if (messages.size() == messageLimit) messages.removeFirst();
+        messages.addLast(event.message());
+      }
+    }
+  }
+
+  /**
+   * Pakeičia visą būseną pateiktais duomenimis (naudojama {@code saveState}).
+   */
+  public void reset(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    clear();
+    for (Room r : rooms) {
+      apply(StoreEvent.roomCreated(r.getId(), r.getDisplayName()));
+      for (String member : r.getMembersSnapshot()) {
+        apply(StoreEvent.roomJoined(r.getId(), member));
+      }
+    }
+    for (String u : users) {
+      apply(StoreEvent.userRegistered(u));
+    }
+    for (Message m : messages) {
+      apply(StoreEvent.message(m));
+    }
+  }
+
+  public void clear() {
+    rooms.clear();
+    users.clear();
+    messages.clear();
+  }
+
+  /**
+   * Įvykiai, iš kurių atkuriami kambariai, narystės ir vartotojai (be žinučių).
+   */
+  public List<StoreEvent> structuralEvents() {
+    List<StoreEvent> events = new ArrayList<>();
+    for (Room r : rooms.values()) {
+      events.add(StoreEvent.roomCreated(r.getId(), r.getDisplayName()));
+      for (String member : r.getMembersSnapshot()) {
+        events.add(StoreEvent.roomJoined(r.getId(), member));
+      }
+    }
+    for (String u : users) {
+      events.add(StoreEvent.userRegistered(u));
+    }
+    return events;
+  }
+
+  /**
+   * Atkūrimui skirta kopija: kambariai kopijuojami, kad serveris galėtų juos laisvai keisti.
+   */
+  public RecoveredState toRecovered(int maxMessages) {
+    List<Room> copies = new ArrayList<>(rooms.size());
+    for (Room r : rooms.values()) {
+      Room copy = new Room(r.getId(), r.getDisplayName());
+      for (String member : r.getMembersSnapshot()) {
+        copy.addMember(member);
+      }
+      copies.add(copy);
+    }
+    int n = Math.min(Math.max(maxMessages, 0), messages.size());
+    List<Message> recent = new ArrayList<>(n);
+    Iterator<Message> it = messages.descendingIterator();
+    while (recent.size() < n && it.hasNext()) {
+      recent.add(it.next());
+    }
+    Collections.reverse(recent);
+    return new RecoveredState(copies, recent);
+  }
+
+  /**
+   * Žinučių, kurios dar laikomos šioje būsenoje, paieška nuo naujausių.
+   */
+  public List<Message> history(ConversationKey key, long beforeTimestamp, int limit) {
+    List<Message> result = new ArrayList<>();
+    Iterator<Message> it = messages.descendingIterator();
+    while (result.size() < limit && it.hasNext()) {
+      Message m = it.next();
+      if (m.timestamp() < beforeTimestamp && key.matches(m)) result.add(m);
+    }
+    Collections.reverse(result);
+    return result;
+  }
+
+  public Collection<Room> rooms() {
+    return rooms.values();
+  }
+
+  public Collection<String> users() {
+    return users;
+  }
+
+  public Collection<Message> messages() {
+    return messages;
+  }
+}
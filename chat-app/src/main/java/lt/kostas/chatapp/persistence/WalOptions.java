@@ -0,0 +1,37 @@
+package lt.kostas.chatapp.persistence;
+
+/**
+ * {@link WriteAheadLogPersistence} nustatymai.
+ *
+ * @param fsyncPolicy          kada daryti fsync
+ * @param fsyncIntervalMillis  fsync periodas, kai politika {@link FsyncPolicy#INTERVAL}
+ * @param fsyncBatchSize       įrašų skaičius tarp fsync, kai politika {@link FsyncPolicy#BATCH}
+ * @param segmentBytes         segmento dydis baitais, kurį pasiekus pradedamas naujas segmentas
+ * @param compactAfterSegments kiek uždarytų segmentų sukaupus jie suspaudžiami į snapshot'ą
+ * @param recentMessages       kiek paskutinių žinučių laikyti atmintyje greitam atkūrimui
+ */
+public record WalOptions(
+        FsyncPolicy fsyncPolicy,
+        long fsyncIntervalMillis,
+        int fsyncBatchSize,
+        long segmentBytes,
+        int compactAfterSegments,
+        int recentMessages
+) {
+  public WalOptions {
+    if (fsyncPolicy == null) throw new IllegalArgumentException("fsyncPolicy negali būti null");
+    if (fsyncIntervalMillis <= 0) throw new IllegalArgumentException("fsyncIntervalMillis turi būti teigiamas");
+    if (fsyncBatchSize <= 0) throw new IllegalArgumentException("fsyncBatchSize turi būti teigiamas");
+    if (segmentBytes <= 0) throw new IllegalArgumentException("segmentBytes turi būti teigiamas");
+    if (compactAfterSegments <= 0) throw new IllegalArgumentException("compactAfterSegments turi būti teigiamas");
+    if (recentMessages < 0) throw new IllegalArgumentException("recentMessages negali būti neigiamas");
+  }
+
+  public static WalOptions defaults() {
+    return new WalOptions(FsyncPolicy.INTERVAL, 200, 64, 8L * 1024 * 1024, 4, 1000);
+  }
+
+  public WalOptions withFsyncPolicy(FsyncPolicy policy) {
+    return new WalOptions(policy, fsyncIntervalMillis, fsyncBatchSize, segmentBytes, compactAfterSegments, recentMessages);
+  }
+}
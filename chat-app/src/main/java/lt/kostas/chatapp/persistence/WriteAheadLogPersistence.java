@@ -0,0 +1,520 @@
+package lt.kostas.chatapp.persistence;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Room;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Saugykla, kuri kiekvieną įvykį prideda kaip vieną JSON eilutę į segmentuotą žurnalą
+ * ({@code wal-000001.log}, {@code wal-000002.log}, ...), užuot perrašiusi visą failą.
+ * <p>
+ * Sukaupus {@link WalOptions#compactAfterSegments()} uždarytų segmentų, jie suspaudžiami į
+ * snapshot'ą {@code snapshot-NNNNNN.jsonl}, kuris apima visus segmentus iki NNNNNN imtinai.
+ * Paleidžiant atkuriama: naujausias snapshot'as + likę segmentai po jo.
+ */
+public class WriteAheadLogPersistence implements Persistence {
+  private static final Logger logger = Logger.getLogger(WriteAheadLogPersistence.class.getName());
+
+  private static final String SEGMENT_PREFIX = "wal-";
+  private static final String SEGMENT_SUFFIX = ".log";
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".jsonl";
+
+  private final Path dir;
+  private final WalOptions options;
+  private final Gson gson = new Gson();
+  // atmintyje laikomas tik paskutinių žinučių langas - likusios kopijuojamos iš failų kompaktavimo metu
+  private final StoreState state;
+  private final List<Long> sealedSegments = new ArrayList<>();
+  private final ScheduledExecutorService syncer;
+  // ReentrantLock vietoj synchronized - nepririša virtualių gijų prie nešančiosios gijos per disko I/O
+  private final ReentrantLock lock = new ReentrantLock();
+
+  private FileChannel active;
+  private long activeIndex;
+  private long activeSize;
+  private long snapshotIndex;
+  private int unsyncedRecords;
+  private boolean closed;
+  // rašo tik užraktą laikanti gija, metrikos skaito be jo
+  private volatile long bytesWritten;
+
+  public WriteAheadLogPersistence(String directory) {
+    this(directory, WalOptions.defaults());
+  }
+
+  public WriteAheadLogPersistence(String directory, WalOptions options) {
+    this.dir = Paths.get(directory).toAbsolutePath();
+    this.options = options;
+    this.state = new StoreState(options.recentMessages());
+    try {
+      Files.createDirectories(dir);
+      recover();
+      openSegment(nextSegmentIndex());
+    } catch (IOException e) {
+      throw new UncheckedIOException("Nepavyko atidaryti žurnalo kataloge: " + dir, e);
+    }
+
+    if (options.fsyncPolicy() == FsyncPolicy.INTERVAL) {
+      syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "WAL-fsync");
+        t.setDaemon(true);
+        return t;
+      });
+      syncer.scheduleWithFixedDelay(this::syncQuietly,
+              options.fsyncIntervalMillis(), options.fsyncIntervalMillis(), TimeUnit.MILLISECONDS);
+    } else {
+      syncer = null;
+    }
+  }
+
+  /**
+   * Būsena atkuriama jau konstruktoriuje, čia tik grąžinama jos kopija.
+   */
+  @Override
+  public RecoveredState load(int maxMessages) {
+    lock.lock();
+    try {
+      return state.toRecovered(maxMessages);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Perskaito snapshot'ą ir segmentus nuo seniausio, laikydamas tik paskutines {@code limit} tinkamas žinutes.
+   * Lėtas kelias - kviečiamas tik tada, kai istorijos nebėra atmintyje.
+   */
+  @Override
+  public List<Message> readHistory(ConversationKey key, long beforeTimestamp, int limit) {
+    if (limit <= 0) return List.of();
+    for (int attempt = 0; ; attempt++) {
+      List<Path> files = files();
+      if (files.isEmpty()) return List.of();
+
+      ArrayDeque<Message> window = new ArrayDeque<>(limit);
+      try {
+        for (Path file : files) {
+          forEachRecord(file, e -> {
+            Message m = e.message();
+            if (e.kind() != StoreEvent.Kind.MESSAGE || m == null) return;
+            if (m.timestamp() >= beforeTimestamp || !key.matches(m)) return;
+            if (window.size() == limit) window.removeFirst();
+            window.addLast(m);
+          });
+        }
+        return new ArrayList<>(window);
+      } catch (NoSuchFileException e) {
+        // kompaktavimas ištrynė failą skaitymo metu - bandome dar kartą su nauju sąrašu
+        if (attempt >= 2) return new ArrayList<>(window);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Nepavyko perskaityti istorijos: " + dir, e);
+        return List.of();
+      }
+    }
+  }
+
+  @Override
+  public void scanMessages(Consumer<Message> consumer) {
+    // kompaktavimas perkelia žinutes į snapshot'ą ta pačia tvarka, todėl kartojant praleidžiamos jau perduotos
+    long[] passed = {0};
+    for (int attempt = 0; ; attempt++) {
+      long skip = passed[0];
+      long[] seen = {0};
+      try {
+        for (Path file : files()) {
+          forEachRecord(file, e -> {
+            Message m = e.message();
+            if (e.kind() != StoreEvent.Kind.MESSAGE || m == null) return;
+            if (seen[0]++ < skip) return;
+            consumer.accept(m);
+            passed[0]++;
+          });
+        }
+        return;
+      } catch (NoSuchFileException e) {
+        if (attempt >= 2) return;
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Nepavyko perskaityti žinučių: " + dir, e);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Failai, kuriuose yra visa būsena, nuo seniausio. Tuščias sąrašas - saugykla uždaryta.
+   */
+  private List<Path> files() {
+    List<Path> files = new ArrayList<>();
+    lock.lock();
+    try {
+      if (closed) return files;
+      if (snapshotIndex > 0) files.add(dir.resolve(snapshotName(snapshotIndex)));
+      for (long seg : sealedSegments) files.add(dir.resolve(segmentName(seg)));
+      files.add(dir.resolve(segmentName(activeIndex)));
+    } finally {
+      lock.unlock();
+    }
+    return files;
+  }
+
+  @Override
+  public void append(StoreEvent event) {
+    lock.lock();
+    try {
+      if (closed || event == null) return;
+      try {
+        writeRecord(event);
+        state.apply(event);
+        afterWrite(1);
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Nepavyko įrašyti įvykio į žurnalą: " + dir, e);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Visi paketo įrašai rašomi vienu {@code write} ir nurašomi vienu fsync.
+   */
+  @Override
+  public void appendBatch(List<StoreEvent> events) {
+    lock.lock();
+    try {
+      if (closed || events.isEmpty()) return;
+      try {
+        StringBuilder sb = new StringBuilder(events.size() * 128);
+        for (StoreEvent e : events) {
+          sb.append(gson.toJson(e)).append('\n');
+        }
+        writeBytes(sb.toString().getBytes(StandardCharsets.UTF_8));
+        for (StoreEvent e : events) {
+          state.apply(e);
+        }
+        afterWrite(events.size());
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Nepavyko įrašyti " + events.size() + " įvykių į žurnalą: " + dir, e);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Įrašo pilną būseną kaip naują snapshot'ą ir išmeta visus ankstesnius segmentus.
+   */
+  @Override
+  public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    lock.lock();
+    try {
+      if (closed) return;
+      try {
+        sealActive();
+        long index = activeIndex;
+        try {
+          state.reset(rooms, users, List.of());
+          Path tmp = dir.resolve(snapshotName(index) + ".tmp");
+          try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+            for (StoreEvent e : state.structuralEvents()) {
+              writeLine(w, e);
+            }
+            for (Message m : messages) {
+              writeLine(w, StoreEvent.message(m));
+            }
+          }
+          installSnapshot(tmp, index);
+        } finally {
+          openSegment(index + 1);
+        }
+      } catch (IOException e) {
+        logger.log(Level.SEVERE, "Nepavyko išsaugoti snapshot'o: " + dir, e);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public long bytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Snapshot'o ir segmentų dydžių suma; kompaktavimo metu ištrintas failas praleidžiamas.
+   */
+  @Override
+  public long diskBytes() {
+    long total = 0;
+    for (Path file : files()) {
+      try {
+        total += Files.size(file);
+      } catch (IOException ignored) {
+      }
+    }
+    return total;
+  }
+
+  @Override
+  public void flush() {
+    lock.lock();
+    try {
+      if (closed) return;
+      try {
+        sync();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Nepavyko atlikti fsync žurnalui", e);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  @Override
+  public void close() {
+    if (syncer != null) syncer.shutdownNow();
+    lock.lock();
+    try {
+      if (closed) return;
+      closed = true;
+      active.force(false);
+      active.close();
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Nepavyko uždaryti žurnalo segmento", e);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void writeRecord(StoreEvent event) throws IOException {
+    writeBytes((gson.toJson(event) + "\n").getBytes(StandardCharsets.UTF_8));
+  }
+
+  private void writeBytes(byte[] bytes) throws IOException {
+    ByteBuffer buf = ByteBuffer.wrap(bytes);
+    while (buf.hasRemaining()) {
+      int n = active.write(buf);
+      activeSize += n;
+      bytesWritten += n;
+    }
+  }
+
+  private void afterWrite(int records) throws IOException {
+    unsyncedRecords += records;
+    switch (options.fsyncPolicy()) {
+      case EVERY_RECORD -> sync();
+      case BATCH -> {
+        if (unsyncedRecords >= options.fsyncBatchSize()) sync();
+      }
+      case INTERVAL -> {
+        // nurašo fono gija
+      }
+    }
+    if (activeSize >= options.segmentBytes()) {
+      roll();
+    }
+  }
+
+  private void sync() throws IOException {
+    if (unsyncedRecords == 0) return;
+    active.force(false);
+    unsyncedRecords = 0;
+  }
+
+  private void syncQuietly() {
+    lock.lock();
+    try {
+      if (closed) return;
+      try {
+        sync();
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Nepavyko atlikti fsync žurnalui", e);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void roll() throws IOException {
+    sealActive();
+    try {
+      if (sealedSegments.size() >= options.compactAfterSegments()) {
+        compact();
+      }
+    } finally {
+      openSegment(activeIndex + 1);
+    }
+  }
+
+  /**
+   * Nurašo ir uždaro aktyvų segmentą; jis tampa nekintamas.
+   */
+  private void sealActive() throws IOException {
+    active.force(false);
+    active.close();
+    unsyncedRecords = 0;
+    sealedSegments.add(activeIndex);
+  }
+
+  /**
+   * Sujungia senąjį snapshot'ą ir uždarytus segmentus į naują snapshot'ą.
+   * Kviečiama tik tada, kai aktyvus segmentas uždarytas, todėl {@link #state}
+   * tiksliai atitinka paskutinio uždaryto segmento pabaigą.
+   */
+  private void compact() throws IOException {
+    long index = sealedSegments.get(sealedSegments.size() - 1);
+    Path tmp = dir.resolve(snapshotName(index) + ".tmp");
+    try (BufferedWriter w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      for (StoreEvent e : state.structuralEvents()) {
+        writeLine(w, e);
+      }
+      // žinutės kopijuojamos srautu - visa istorija atmintyje niekada nelaikoma
+      List<Path> sources = new ArrayList<>();
+      if (snapshotIndex > 0) sources.add(dir.resolve(snapshotName(snapshotIndex)));
+      for (long seg : sealedSegments) sources.add(dir.resolve(segmentName(seg)));
+      for (Path src : sources) {
+        forEachRecord(src, e -> {
+          if (e.kind() == StoreEvent.Kind.MESSAGE) writeLine(w, e);
+        });
+      }
+    }
+    installSnapshot(tmp, index);
+    logger.fine("Žurnalas suspaustas į snapshot'ą: " + snapshotName(index));
+  }
+
+  /**
+   * Atomiškai įdiegia naują snapshot'ą ir pašalina tai, ką jis apima.
+   */
+  private void installSnapshot(Path tmp, long index) throws IOException {
+    try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+      ch.force(true);
+    }
+    Path target = dir.resolve(snapshotName(index));
+    bytesWritten += Files.size(tmp);
+    try {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException ex) {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+    if (snapshotIndex > 0 && snapshotIndex != index) {
+      Files.deleteIfExists(dir.resolve(snapshotName(snapshotIndex)));
+    }
+    for (long seg : sealedSegments) {
+      Files.deleteIfExists(dir.resolve(segmentName(seg)));
+    }
+    sealedSegments.clear();
+    snapshotIndex = index;
+  }
+
+  private void openSegment(long index) throws IOException {
+    active = FileChannel.open(dir.resolve(segmentName(index)),
+            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    activeIndex = index;
+    activeSize = active.size();
+  }
+
+  private long nextSegmentIndex() {
+    long last = snapshotIndex;
+    for (long seg : sealedSegments) last = Math.max(last, seg);
+    return last + 1;
+  }
+
+  /**
+   * Atkuria būseną: naujausias snapshot'as + vėlesni segmentai.
+   * Segmentai, kuriuos jau apima snapshot'as (likę po nutraukto kompaktavimo), ištrinami.
+   */
+  private void recover() throws IOException {
+    TreeMap<Long, Path> snapshots = list(SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    TreeMap<Long, Path> segments = list(SEGMENT_PREFIX, SEGMENT_SUFFIX);
+
+    if (!snapshots.isEmpty()) {
+      Map.Entry<Long, Path> latest = snapshots.lastEntry();
+      snapshotIndex = latest.getKey();
+      forEachRecord(latest.getValue(), state::apply);
+      for (Path older : snapshots.headMap(snapshotIndex).values()) {
+        Files.deleteIfExists(older);
+      }
+    }
+    for (Map.Entry<Long, Path> seg : segments.entrySet()) {
+      if (seg.getKey() <= snapshotIndex) {
+        Files.deleteIfExists(seg.getValue());
+        continue;
+      }
+      forEachRecord(seg.getValue(), state::apply);
+      sealedSegments.add(seg.getKey());
+    }
+    logger.fine("Žurnalas atkurtas: snapshot=" + snapshotIndex + ", segmentų=" + sealedSegments.size());
+  }
+
+  private TreeMap<Long, Path> list(String prefix, String suffix) throws IOException {
+    TreeMap<Long, Path> result = new TreeMap<>();
+    try (Stream<Path> files = Files.list(dir)) {
+      files.forEach(p -> {
+        String name = p.getFileName().toString();
+        if (name.startsWith(prefix) && name.endsWith(suffix)) {
+          try {
+            result.put(Long.parseLong(name.substring(prefix.length(), name.length() - suffix.length())), p);
+          } catch (NumberFormatException ignored) {
+          }
+        }
+      });
+    }
+    return result;
+  }
+
+  private void forEachRecord(Path file, RecordConsumer consumer) throws IOException {
+    try (BufferedReader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+      String line;
+      while ((line = r.readLine()) != null) {
+        if (line.isBlank()) continue;
+        StoreEvent e;
+        try {
+          e = gson.fromJson(line, StoreEvent.class);
+        } catch (JsonParseException ex) {
+          // dažniausiai - nebaigtas paskutinis įrašas po netikėto sustojimo
+          logger.warning("Praleidžiamas sugadintas įrašas faile " + file.getFileName() + ": " + ex.getMessage());
+          continue;
+        }
+        if (e != null) consumer.accept(e);
+      }
+    }
+  }
+
+  private void writeLine(BufferedWriter w, StoreEvent e) throws IOException {
+    w.write(gson.toJson(e));
+    w.write('\n');
+  }
+
+  private static String segmentName(long index) {
+    return String.format("%s%06d%s", SEGMENT_PREFIX, index, SEGMENT_SUFFIX);
+  }
+
+  private static String snapshotName(long index) {
+    return String.format("%s%06d%s", SNAPSHOT_PREFIX, index, SNAPSHOT_SUFFIX);
+  }
+
+  @FunctionalInterface
+  private interface RecordConsumer {
+    void accept(StoreEvent e) throws IOException;
+  }
+}
@@ -0,0 +1,34 @@
+package lt.kostas.chatapp.presence;
+
+import lt.kostas.chatapp.model.Room;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Atvirkštinis narystės indeksas vartotojas → kambariai, kad prisijungiant ir atsijungiant
+ * reikėtų peržiūrėti tik vartotojo kambarius, o ne visus serverio kambarius.
+ */
+public final class MembershipIndex {
+  private final Map<String, Set<Room>> roomsByUser = new ConcurrentHashMap<>();
+
+  public void add(String username, Room room) {
+    if (username == null || room == null) return;
+    roomsByUser.computeIfAbsent(username, u -> ConcurrentHashMap.newKeySet()).add(room);
+  }
+
+  public void remove(String username, Room room) {
+    Set<Room> rooms = roomsByUser.get(username);
+    if (rooms != null) rooms.remove(room);
+  }
+
+  /**
+   * Vartotojo kambariai (gyvas, tik skaitymui skirtas vaizdas).
+   */
+  public Set<Room> roomsOf(String username) {
+    Set<Room> rooms = username == null ? null : roomsByUser.get(username);
+    return rooms == null ? Set.of() : Collections.unmodifiableSet(rooms);
+  }
+}
@@ -0,0 +1,113 @@
+package lt.kostas.chatapp.presence;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.model.Member;
+import lt.kostas.chatapp.protocol.Frame;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kas šiuo metu prisijungęs. Būsena tik atmintyje - į saugyklą nerašoma.
+ * <p>
+ * Naujas klientas gauna vieną {@code presence-snapshot} kadrą su visais prisijungusiais, o
+ * pasikeitimai kaupiami ir kas {@code windowMillis} išsiunčiami visiems vienu {@code presence}
+ * kadru. Abiejų kadrų {@code text} - vardai, atskirti '\n'; {@code presence} varduose pirmas
+ * simbolis '+' (prisijungė) arba '-' (atsijungė). Jei per langą vartotojas prisijungė ir atsijungė,
+ * siunčiama tik paskutinė būsena.
+ * <p>
+ * {@code presence-snapshot} kadras kuriamas iš naujo tik po pasikeitimo, o tarp pasikeitimų tas pats
+ * kadras siunčiamas visiems naujiems klientams. Jis visada atitinka dabartinį sąrašą; dar neišsiųsti
+ * pasikeitimai naujam klientui vėliau ateis ir {@code presence} kadru, bet jų pritaikymas kelis kartus
+ * nieko nekeičia.
+ */
+public final class PresenceTracker {
+  private final Collection<? extends Member> recipients;
+  private final ScheduledExecutorService flusher;
+  // saugoma 'this' monitoriumi
+  private final Set<String> online = new TreeSet<>();
+  private final Map<String, Boolean> pending = new LinkedHashMap<>();
+  // paskutinis sukurtas snapshot'as; null - reikia sukurti iš naujo (po kiekvieno pasikeitimo)
+  private Frame snapshot;
+
+  /**
+   * @param recipients   kam siųsti pasikeitimus (gyvas prisijungusių ryšių vaizdas)
+   * @param windowMillis kiek kaupti pasikeitimus prieš siunčiant (0 - siųsti iškart)
+   */
+  public PresenceTracker(Collection<? extends Member> recipients, long windowMillis) {
+    if (windowMillis < 0) throw new IllegalArgumentException("windowMillis negali būti neigiamas");
+    this.recipients = recipients;
+    if (windowMillis > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "Presence-Flush");
+        t.setDaemon(true);
+        return t;
+      });
+      flusher.scheduleWithFixedDelay(this::flush, windowMillis, windowMillis, TimeUnit.MILLISECONDS);
+    } else {
+      flusher = null;
+    }
+  }
+
+  /**
+   * Visų šiuo metu prisijungusių sąrašas vienu kadru.
+   */
+  public synchronized Frame snapshot() {
+    if (snapshot == null) {
+      snapshot = Frame.of(new Message(MessageKind.PRESENCE_SNAPSHOT, "server", null, null, String.join("\n", online)));
+    }
+    return snapshot;
+  }
+
+  public void online(String username) {
+    change(username, true);
+  }
+
+  public void offline(String username) {
+    change(username, false);
+  }
+
+  private void change(String username, boolean isOnline) {
+    synchronized (this) {
+      if (isOnline) {
+        online.add(username);
+      } else {
+        online.remove(username);
+      }
+      pending.put(username, isOnline);
+      snapshot = null;
+    }
+    if (flusher == null) flush();
+  }
+
+  /**
+   * Išsiunčia sukauptus pasikeitimus vienu kadru visiems prisijungusiems.
+   */
+  public void flush() {
+    StringBuilder text = new StringBuilder();
+    synchronized (this) {
+      if (pending.isEmpty()) return;
+      for (Map.Entry<String, Boolean> e : pending.entrySet()) {
+        if (!text.isEmpty()) text.append('\n');
+        text.append(e.getValue() ? '+' : '-').append(e.getKey());
+      }
+      pending.clear();
+    }
+    Frame frame = Frame.of(new Message(MessageKind.PRESENCE, "server", null, null, text.toString()));
+    for (Member m : recipients) {
+      m.send(frame);
+    }
+  }
+
+  public void close() {
+    if (flusher != null) flusher.shutdownNow();
+    flush();
+  }
+}
@@ -0,0 +1,181 @@
+package lt.kostas.chatapp.protocol;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Kompaktiškas dvejetainis {@link Message} kodavimas.
+ * <pre>
+ * kadras  = varint(kūno ilgis) kūnas
+ * kūnas   = tipas vėliavos [from] [to] [roomId] [text] zigzag-varint(timestamp)
+ * tipas   = 1 baitas: {@link MessageKind#code()} arba 0, po kurio eina tipas eilute
+ * vėliavos = 1 baitas: kurie iš from/to/roomId/text yra (ne null)
+ * eilutė  = varint(baitų skaičius) UTF-8 baitai
+ * </pre>
+ * Tipas iškoduojamas tiesiai į {@link MessageKind} - jam nieko neišskiriama.
+ */
+public final class BinaryCodec {
+  /** didžiausias priimamas kadro kūnas - apsauga nuo sugadinto ilgio */
+  public static final int MAX_FRAME_BYTES = 1024 * 1024;
+
+  private static final int HAS_FROM = 1;
+  private static final int HAS_TO = 1 << 1;
+  private static final int HAS_ROOM = 1 << 2;
+  private static final int HAS_TEXT = 1 << 3;
+
+  private BinaryCodec() {
+  }
+
+  /**
+   * Visas kadras (su ilgio prefiksu) vienu masyvu.
+   */
+  public static byte[] encode(Message m) {
+    int code = m.type() == null ? 0 : m.type().code();
+    // tipas be kodo rašomas eilute; nežinomas (null) - tuščia eilute
+    byte[] type = code == 0 ? utf8(m.type() == null ? "" : m.type().wire()) : null;
+    byte[] from = utf8(m.from());
+    byte[] to = utf8(m.to());
+    byte[] room = utf8(m.roomId());
+    byte[] text = utf8(m.text());
+    long ts = zigzag(m.timestamp());
+
+    int body = 2 + sizeOf(type) + sizeOf(from) + sizeOf(to) + sizeOf(room) + sizeOf(text) + varintSize(ts);
+    byte[] out = new byte[varintSize(body) + body];
+    int p = writeVarint(out, 0, body);
+    out[p++] = (byte) code;
+    out[p++] = (byte) ((from != null ? HAS_FROM : 0) | (to != null ? HAS_TO : 0)
+            | (room != null ? HAS_ROOM : 0) | (text != null ? HAS_TEXT : 0));
+    p = writeString(out, p, type);
+    p = writeString(out, p, from);
+    p = writeString(out, p, to);
+    p = writeString(out, p, room);
+    p = writeString(out, p, text);
+    writeVarint(out, p, ts);
+    return out;
+  }
+
+  /**
+   * Bando iškoduoti vieną kadrą nuo buferio pozicijos. Jei kadras dar neatėjo visas,
+   * grąžina null ir pozicijos nekeičia; kitaip pozicija perkeliama už kadro.
+   */
+  public static Message tryDecode(ByteBuffer buf) throws ProtocolException {
+    int start = buf.position();
+    long len = 0;
+    int shift = 0;
+    while (true) {
+      if (!buf.hasRemaining()) {
+        buf.position(start);
+        return null;
+      }
+      byte b = buf.get();
+      len |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) break;
+      shift += 7;
+      if (shift > 28) throw new ProtocolException("Per ilgas kadro ilgio laukas");
+    }
+    if (len > MAX_FRAME_BYTES) throw new ProtocolException("Per didelis kadras: " + len);
+    if (buf.remaining() < len) {
+      buf.position(start);
+      return null;
+    }
+    int end = buf.position() + (int) len;
+    Message m = decodeBody(buf, end);
+    if (buf.position() != end) throw new ProtocolException("Netinkamas kadro ilgis");
+    return m;
+  }
+
+  private static Message decodeBody(ByteBuffer buf, int end) throws ProtocolException {
+    try {
+      int code = buf.get() & 0xFF;
+      int flags = buf.get() & 0xFF;
+      MessageKind type;
+      if (code == 0) {
+        type = MessageKind.fromWire(readString(buf, end));
+      } else {
+        type = MessageKind.fromCode(code);
+        if (type == null) throw new ProtocolException("Nežinomas tipo kodas: " + code);
+      }
+      String from = (flags & HAS_FROM) != 0 ? readString(buf, end) : null;
+      String to = (flags & HAS_TO) != 0 ? readString(buf, end) : null;
+      String room = (flags & HAS_ROOM) != 0 ? readString(buf, end) : null;
+      String text = (flags & HAS_TEXT) != 0 ? readString(buf, end) : null;
+      long ts = unzigzag(readVarint(buf));
+      return new Message(type, from, to, room, text, ts);
+    } catch (BufferUnderflowException e) {
+      throw new ProtocolException("Kadras per trumpas");
+    }
+  }
+
+  private static byte[] utf8(String s) {
+    return s == null ? null : s.getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static int sizeOf(byte[] s) {
+    return s == null ? 0 : varintSize(s.length) + s.length;
+  }
+
+  private static int writeString(byte[] out, int p, byte[] s) {
+    if (s == null) return p;
+    p = writeVarint(out, p, s.length);
+    System.arraycopy(s, 0, out, p, s.length);
+    return p + s.length;
+  }
+
+  private static String readString(ByteBuffer buf, int end) throws ProtocolException {
+    long len = readVarint(buf);
+    // varint yra 64 bitų - neigiamas ar per didelis ilgis reiškia sugadintą kadrą, ne int perpildymą
+    if (len < 0 || len > Integer.MAX_VALUE) throw new ProtocolException("Netinkamas eilutės ilgis: " + len);
+    if (len > end - buf.position()) throw new ProtocolException("Eilutė išeina už kadro ribų");
+    String s;
+    if (buf.hasArray()) {
+      s = new String(buf.array(), buf.arrayOffset() + buf.position(), (int) len, StandardCharsets.UTF_8);
+      buf.position(buf.position() + (int) len);
+    } else {
+      byte[] b = new byte[(int) len];
+      buf.get(b);
+      s = new String(b, StandardCharsets.UTF_8);
+    }
+    return s;
+  }
+
+  static int varintSize(long v) {
+    int n = 1;
+    while ((v & ~0x7FL) != 0) {
+      v >>>= 7;
+      n++;
+    }
+    return n;
+  }
+
+  private static int writeVarint(byte[] out, int p, long v) {
+    while ((v & ~0x7FL) != 0) {
+      out[p++] = (byte) ((v & 0x7F) | 0x80);
+      v >>>= 7;
+    }
+    out[p++] = (byte) v;
+    return p;
+  }
+
+  private static long readVarint(ByteBuffer buf) throws ProtocolException {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = buf.get();
+      v |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return v;
+    }
+    throw new ProtocolException("Per ilgas varint");
+  }
+
+  private static long zigzag(long v) {
+    return (v << 1) ^ (v >> 63);
+  }
+
+  private static long unzigzag(long v) {
+    return (v >>> 1) ^ -(v & 1);
+  }
+}
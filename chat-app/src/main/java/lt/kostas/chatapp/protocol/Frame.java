@@ -0,0 +1,102 @@
+package lt.kostas.chatapp.protocol;
+
+import com.google.gson.Gson;
+import lt.kostas.chatapp.dto.Message;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.LongConsumer;
+
+/**
+ * Žinutė, paruošta siųsti. Kiekvienu {@link WireFormat} ji užkoduojama tik vieną kartą
+ * (kai to formato prireikia pirmam gavėjui), todėl tas pats kadras siunčiamas visiems gavėjams
+ * be pakartotinio serializavimo.
+ * <p>
+ * Ypatingas kadras {@link #switchTo} nieko nesiunčia - jis eilėje pažymi vietą, nuo kurios
+ * rašytojas turi koduoti kitu formatu.
+ */
+public final class Frame {
+  private static final Gson gson = new Gson();
+  private static final LongConsumer NO_OBSERVER = nanos -> {
+  };
+
+  private final Message message;
+  private final WireFormat switchTo;
+  // užkoduojama tingiai; lenktynių atveju blogiausiu atveju užkoduojama du kartus tuo pačiu rezultatu
+  private volatile byte[] json;
+  private volatile byte[] binary;
+
+  private Frame(Message message, WireFormat switchTo) {
+    this.message = message;
+    this.switchTo = switchTo;
+  }
+
+  public static Frame of(Message message) {
+    return new Frame(message, null);
+  }
+
+  /**
+   * Formato perjungimo žymė: po jos einantys kadrai rašomi {@code format} formatu.
+   */
+  public static Frame switchTo(WireFormat format) {
+    return new Frame(null, format);
+  }
+
+  public Message message() {
+    return message;
+  }
+
+  /**
+   * Formatas, į kurį perjungia ši žymė, arba null, jei tai įprastas kadras.
+   */
+  public WireFormat switchFormat() {
+    return switchTo;
+  }
+
+  public int length(WireFormat format) {
+    return length(format, NO_OBSERVER);
+  }
+
+  /**
+   * Kaip {@link #length(WireFormat)}, bet jei kadras šiuo kvietimu užkoduojamas, kodavimo trukmė
+   * nanosekundėmis pranešama {@code encodeObserver} - to ryšio, kuris koduoja, serverio metrikoms.
+   */
+  public int length(WireFormat format, LongConsumer encodeObserver) {
+    return bytes(format, encodeObserver).length;
+  }
+
+  /**
+   * Nauja tik skaitymui skirta baitų peržiūra - kiekvienas gavėjas gauna savo poziciją.
+   */
+  public ByteBuffer buffer(WireFormat format) {
+    return buffer(format, NO_OBSERVER);
+  }
+
+  public ByteBuffer buffer(WireFormat format, LongConsumer encodeObserver) {
+    return ByteBuffer.wrap(bytes(format, encodeObserver)).asReadOnlyBuffer();
+  }
+
+  public void writeTo(OutputStream out, WireFormat format) throws IOException {
+    writeTo(out, format, NO_OBSERVER);
+  }
+
+  public void writeTo(OutputStream out, WireFormat format, LongConsumer encodeObserver) throws IOException {
+    out.write(bytes(format, encodeObserver));
+  }
+
+  private byte[] bytes(WireFormat format, LongConsumer encodeObserver) {
+    if (switchTo != null) return new byte[0];
+    byte[] b = format == WireFormat.BINARY ? binary : json;
+    if (b != null) return b;
+    long start = System.nanoTime();
+    if (format == WireFormat.BINARY) {
+      binary = b = BinaryCodec.encode(message);
+    } else {
+      json = b = (gson.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+    encodeObserver.accept(System.nanoTime() - start);
+    return b;
+  }
+}
@@ -0,0 +1,104 @@
+package lt.kostas.chatapp.protocol;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Skaito iš blokuojančio srauto tiek JSON eilutes, tiek {@link BinaryCodec} kadrus per tą patį buferį,
+ * todėl formatą galima perjungti ryšio viduryje (po {@code register}) neprarandant jau nuskaitytų baitų.
+ */
+public final class FrameReader {
+  private static final int INITIAL_BUFFER = 16 * 1024;
+
+  private final InputStream in;
+  private final int maxLineBytes;
+  private byte[] buf = new byte[INITIAL_BUFFER];
+  private int pos;
+  private int limit;
+
+  public FrameReader(InputStream in) {
+    this(in, BinaryCodec.MAX_FRAME_BYTES);
+  }
+
+  /**
+   * @param maxLineBytes ilgesnė eilutė nutraukia skaitymą {@link LineTooLongException} - nelaukiama jos pabaigos
+   */
+  public FrameReader(InputStream in, int maxLineBytes) {
+    this.in = in;
+    this.maxLineBytes = maxLineBytes;
+  }
+
+  /**
+   * Kita eilutė be '\n' (ir '\r'), arba null, jei srautas baigėsi.
+   */
+  public String readLine() throws IOException {
+    int scanned = pos;
+    while (true) {
+      for (int i = scanned; i < limit; i++) {
+        if (buf[i] == '\n') {
+          if (i - pos > maxLineBytes) throw new LineTooLongException(maxLineBytes);
+          int end = i > pos && buf[i - 1] == '\r' ? i - 1 : i;
+          String line = new String(buf, pos, end - pos, StandardCharsets.UTF_8);
+          pos = i + 1;
+          return line;
+        }
+      }
+      scanned = limit - pos;
+      if (scanned > maxLineBytes) throw new LineTooLongException(maxLineBytes);
+      if (!fill()) {
+        if (pos == limit) return null;
+        String rest = new String(buf, pos, limit - pos, StandardCharsets.UTF_8);
+        pos = limit;
+        return rest;
+      }
+      scanned += pos;
+    }
+  }
+
+  /**
+   * Kitas dvejetainis kadras, arba null, jei srautas baigėsi tarp kadrų.
+   */
+  public Message readBinary() throws IOException {
+    while (true) {
+      ByteBuffer view = ByteBuffer.wrap(buf, pos, limit - pos);
+      Message m = BinaryCodec.tryDecode(view);
+      if (m != null) {
+        pos = view.position();
+        return m;
+      }
+      if (!fill()) {
+        if (pos == limit) return null;
+        throw new EOFException("Kadras nutrūko");
+      }
+    }
+  }
+
+  /**
+   * Perkelia neperskaitytus baitus į buferio pradžią (jei reikia - padidina buferį) ir skaito daugiau.
+   *
+   * @return false, jei srautas baigėsi
+   */
+  private boolean fill() throws IOException {
+    if (pos > 0) {
+      System.arraycopy(buf, pos, buf, 0, limit - pos);
+      limit -= pos;
+      pos = 0;
+    }
+    if (limit == buf.length) {
+      if (buf.length > BinaryCodec.MAX_FRAME_BYTES) throw new ProtocolException("Per ilgas kadras");
+      byte[] bigger = new byte[buf.length * 2];
+      System.arraycopy(buf, 0, bigger, 0, limit);
+      buf = bigger;
+    }
+    int n = in.read(buf, limit, buf.length - limit);
+    if (n < 0) return false;
+    limit += n;
+    return true;
+  }
+}
@@ -0,0 +1,14 @@
+package lt.kostas.chatapp.protocol;
+
+import java.net.ProtocolException;
+
+/**
+ * JSON eilutė ilgesnė nei leidžiama - toliau skaityti to ryšio nebeverta.
+ */
+public class LineTooLongException extends ProtocolException {
+  private static final long serialVersionUID = 1L;
+
+  public LineTooLongException(int maxBytes) {
+    super("Eilutė ilgesnė nei " + maxBytes + " baitų");
+  }
+}
@@ -0,0 +1,19 @@
+package lt.kostas.chatapp.protocol;
+
+/**
+ * Kaip kadrai koduojami ryšyje. Kiekvienas ryšys pradeda {@link #JSON} formatu;
+ * {@link #BINARY} suderinamas {@code register} metu ({@code text} = {@code codec=binary}).
+ */
+public enum WireFormat {
+  /** viena Gson JSON žinutė vienoje eilutėje */
+  JSON,
+  /** ilgiu prefiksuotas kompaktiškas kadras - žr. {@link BinaryCodec} */
+  BINARY;
+
+  /**
+   * Formatas pagal {@code codec} parinkties reikšmę; nežinoma ar tuščia reikšmė - {@link #JSON}.
+   */
+  public static WireFormat fromOption(String value) {
+    return "binary".equalsIgnoreCase(value) ? BINARY : JSON;
+  }
+}
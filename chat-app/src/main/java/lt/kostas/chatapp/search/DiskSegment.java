@@ -0,0 +1,296 @@
+package lt.kostas.chatapp.search;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Nekintamas indekso segmentas faile, skaitomas per {@code mmap}. Atmintyje laikomi tik eilučių lentelė
+ * (kambariai, vartotojai) ir kas {@link #SAMPLE}-asis žodyno terminas - visa kita skaitoma iš failo,
+ * todėl atminties sąnaudos beveik nepriklauso nuo žinučių skaičiaus.
+ * <p>
+ * Failo sandara: antraštė, eilutės, dokumentų metaduomenys (po {@link #DOC_BYTES} baitų: timestamp,
+ * kambarys, siuntėjas, gavėjas, žinutės poslinkis), žodynas (terminai abėcėlės tvarka su sąrašo poslinkiu
+ * ir ilgiu), dokumentų sąrašai (skirtumai varint'ais) ir pačios žinutės {@link BinaryCodec} formatu.
+ */
+final class DiskSegment extends Segment {
+  private static final int MAGIC = 0x43534958; // "CSIX"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 84;
+  private static final int DOC_BYTES = 24;
+  static final int SAMPLE = 32;
+
+  private final Path file;
+  private final MappedByteBuffer map;
+  private final long base;
+  private final int docCount;
+  private final long minTs;
+  private final long maxTs;
+  private final int docsOff;
+  private final int postingsOff;
+  private final int storedOff;
+  private final String[] strings;
+  private final Map<String, Integer> stringIds = new HashMap<>();
+  private final String[] sampleTerms;
+  private final int[] sampleOffsets;
+  private final int dictEnd;
+
+  private DiskSegment(Path file, MappedByteBuffer map) throws IOException {
+    this.file = file;
+    this.map = map;
+    if (map.getInt(0) != MAGIC || map.getInt(4) != VERSION) throw new IOException("Ne indekso segmentas: " + file);
+    base = map.getLong(8);
+    docCount = map.getInt(16);
+    minTs = map.getLong(20);
+    maxTs = map.getLong(28);
+    int stringCount = map.getInt(36);
+    int termCount = map.getInt(40);
+    int stringsOff = (int) map.getLong(44);
+    docsOff = (int) map.getLong(52);
+    int dictOff = (int) map.getLong(60);
+    postingsOff = (int) map.getLong(68);
+    storedOff = (int) map.getLong(76);
+    dictEnd = postingsOff;
+
+    ByteBuffer in = map.duplicate();
+    in.position(stringsOff);
+    strings = new String[stringCount];
+    for (int i = 0; i < stringCount; i++) {
+      strings[i] = readString(in);
+      stringIds.put(strings[i], i);
+    }
+
+    in.position(dictOff);
+    int samples = (termCount + SAMPLE - 1) / SAMPLE;
+    sampleTerms = new String[samples];
+    sampleOffsets = new int[samples];
+    for (int i = 0; i < termCount; i++) {
+      int at = in.position();
+      String term = readString(in);
+      readVarint(in);
+      readVarint(in);
+      if (i % SAMPLE == 0) {
+        sampleTerms[i / SAMPLE] = term;
+        sampleOffsets[i / SAMPLE] = at;
+      }
+    }
+  }
+
+  static DiskSegment open(Path file) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new DiskSegment(file, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+    }
+  }
+
+  /**
+   * Įrašo užšaldytą segmentą į failą (per laikiną failą, kad nebaigtas įrašas nebūtų atidarytas).
+   */
+  static DiskSegment write(MemorySegment segment, Path file) throws IOException {
+    int n = segment.size();
+    ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+    List<String> strings = segment.strings();
+    for (String s : strings) {
+      writeString(stringBytes, s);
+    }
+
+    ByteArrayOutputStream dict = new ByteArrayOutputStream();
+    ByteArrayOutputStream postings = new ByteArrayOutputStream();
+    SortedMap<String, Postings> terms = segment.sortedPostings();
+    for (Map.Entry<String, Postings> e : terms.entrySet()) {
+      Postings p = e.getValue();
+      writeString(dict, e.getKey());
+      writeVarint(dict, postings.size());
+      writeVarint(dict, p.size);
+      int prev = 0;
+      for (int i = 0; i < p.size; i++) {
+        writeVarint(postings, p.docs[i] - prev);
+        prev = p.docs[i];
+      }
+    }
+
+    ByteArrayOutputStream stored = new ByteArrayOutputStream();
+    ByteBuffer docs = ByteBuffer.allocate(n * DOC_BYTES);
+    for (int doc = 0; doc < n; doc++) {
+      docs.putLong(segment.timestamp(doc)).putInt(segment.room(doc)).putInt(segment.from(doc))
+              .putInt(segment.to(doc)).putInt(stored.size());
+      stored.write(BinaryCodec.encode(segment.message(doc)));
+    }
+
+    long stringsOff = HEADER_BYTES;
+    long docsOff = stringsOff + stringBytes.size();
+    long dictOff = docsOff + docs.capacity();
+    long postingsOff = dictOff + dict.size();
+    long storedOff = postingsOff + postings.size();
+    if (storedOff + stored.size() > Integer.MAX_VALUE) throw new IOException("Per didelis indekso segmentas");
+
+    Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+    try (FileOutputStream fos = new FileOutputStream(tmp.toFile());
+         DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 64 * 1024))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeLong(segment.base());
+      out.writeInt(n);
+      out.writeLong(n == 0 ? 0 : segment.minTimestamp());
+      out.writeLong(n == 0 ? 0 : segment.maxTimestamp());
+      out.writeInt(strings.size());
+      out.writeInt(terms.size());
+      out.writeLong(stringsOff);
+      out.writeLong(docsOff);
+      out.writeLong(dictOff);
+      out.writeLong(postingsOff);
+      out.writeLong(storedOff);
+      stringBytes.writeTo(out);
+      out.write(docs.array());
+      dict.writeTo(out);
+      postings.writeTo(out);
+      stored.writeTo(out);
+      out.flush();
+      fos.getFD().sync();
+    }
+    try {
+      Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+    }
+    return open(file);
+  }
+
+  Path file() {
+    return file;
+  }
+
+  @Override
+  long base() {
+    return base;
+  }
+
+  @Override
+  int size() {
+    return docCount;
+  }
+
+  @Override
+  long minTimestamp() {
+    return minTs;
+  }
+
+  @Override
+  long maxTimestamp() {
+    return maxTs;
+  }
+
+  @Override
+  Postings postings(String term) {
+    if (sampleTerms.length == 0) return null;
+    int i = Arrays.binarySearch(sampleTerms, term);
+    if (i < 0) i = -i - 2; // paskutinis pavyzdys, mažesnis už terminą
+    if (i < 0) return null;
+    ByteBuffer in = map.duplicate();
+    in.position(sampleOffsets[i]);
+    for (int k = 0; k < SAMPLE && in.position() < dictEnd; k++) {
+      String candidate = readString(in);
+      int offset = (int) readVarint(in);
+      int count = (int) readVarint(in);
+      int cmp = candidate.compareTo(term);
+      if (cmp == 0) return decodePostings(offset, count);
+      if (cmp > 0) return null;
+    }
+    return null;
+  }
+
+  private Postings decodePostings(int offset, int count) {
+    ByteBuffer in = map.duplicate();
+    in.position(postingsOff + offset);
+    int[] docs = new int[count];
+    int doc = 0;
+    for (int i = 0; i < count; i++) {
+      doc += (int) readVarint(in);
+      docs[i] = doc;
+    }
+    return new Postings(docs, count);
+  }
+
+  @Override
+  int stringId(String s) {
+    Integer id = stringIds.get(s);
+    return id == null ? NONE : id;
+  }
+
+  @Override
+  String string(int id) {
+    return strings[id];
+  }
+
+  @Override
+  long timestamp(int doc) {
+    return map.getLong(docsOff + doc * DOC_BYTES);
+  }
+
+  @Override
+  int room(int doc) {
+    return map.getInt(docsOff + doc * DOC_BYTES + 8);
+  }
+
+  @Override
+  int from(int doc) {
+    return map.getInt(docsOff + doc * DOC_BYTES + 12);
+  }
+
+  @Override
+  int to(int doc) {
+    return map.getInt(docsOff + doc * DOC_BYTES + 16);
+  }
+
+  @Override
+  Message message(int doc) {
+    ByteBuffer in = map.duplicate();
+    in.position(storedOff + map.getInt(docsOff + doc * DOC_BYTES + 20));
+    try {
+      return BinaryCodec.tryDecode(in);
+    } catch (ProtocolException e) {
+      throw new UncheckedIOException("Sugadintas indekso segmentas: " + file, e);
+    }
+  }
+
+  private static void writeString(OutputStream out, String s) throws IOException {
+    byte[] b = s.getBytes(StandardCharsets.UTF_8);
+    writeVarint(out, b.length);
+    out.write(b);
+  }
+
+  private static String readString(ByteBuffer in) {
+    int len = (int) readVarint(in);
+    byte[] b = new byte[len];
+    in.get(b);
+    return new String(b, StandardCharsets.UTF_8);
+  }
+
+  private static void writeVarint(OutputStream out, long v) throws IOException {
+    while ((v & ~0x7FL) != 0) {
+      out.write((int) ((v & 0x7F) | 0x80));
+      v >>>= 7;
+    }
+    out.write((int) v);
+  }
+
+  private static long readVarint(ByteBuffer in) {
+    long result = 0;
+    for (int shift = 0; ; shift += 7) {
+      byte b = in.get();
+      result |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return result;
+    }
+  }
+}
@@ -0,0 +1,155 @@
+package lt.kostas.chatapp.search;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+/**
+ * Naujausių žinučių segmentas atmintyje. Pildo tik indeksavimo gija; pasiekus ribą jis užšaldomas
+ * ir įrašomas į diską kaip {@link DiskSegment}.
+ */
+final class MemorySegment extends Segment {
+  private final long base;
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private final Map<String, Postings> postings = new HashMap<>();
+  private final Map<String, Integer> stringIds = new HashMap<>();
+  private final List<String> strings = new ArrayList<>();
+  private final List<Message> messages;
+  private long[] timestamps;
+  private int[] rooms;
+  private int[] senders;
+  private int[] recipients;
+  private long minTs = Long.MAX_VALUE;
+  private long maxTs = Long.MIN_VALUE;
+
+  MemorySegment(long base, int capacity) {
+    this.base = base;
+    this.messages = new ArrayList<>(capacity);
+    this.timestamps = new long[capacity];
+    this.rooms = new int[capacity];
+    this.senders = new int[capacity];
+    this.recipients = new int[capacity];
+  }
+
+  void add(Message m) {
+    lock.writeLock().lock();
+    try {
+      int doc = messages.size();
+      if (doc == timestamps.length) grow();
+      messages.add(m);
+      timestamps[doc] = m.timestamp();
+      rooms[doc] = intern(m.to() == null || m.to().isBlank() ? m.roomId() : null);
+      senders[doc] = intern(m.from());
+      recipients[doc] = intern(m.to() == null || m.to().isBlank() ? null : m.to());
+      minTs = Math.min(minTs, m.timestamp());
+      maxTs = Math.max(maxTs, m.timestamp());
+      for (String term : Tokenizer.terms(m.text())) {
+        postings.computeIfAbsent(term, t -> new Postings(new int[2], 0)).add(doc);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  long collect(SearchQuery q, Collection<String> terms, Predicate<Message> visible, long cursor, int want,
+               List<Message> out) {
+    lock.readLock().lock();
+    try {
+      return super.collect(q, terms, visible, cursor, want, out);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Terminai abėcėlės tvarka - rašant į diską. Kviečiama tik užšaldytam segmentui.
+   */
+  SortedMap<String, Postings> sortedPostings() {
+    return new TreeMap<>(postings);
+  }
+
+  List<String> strings() {
+    return strings;
+  }
+
+  private int intern(String s) {
+    if (s == null) return NONE;
+    Integer id = stringIds.get(s);
+    if (id != null) return id;
+    strings.add(s);
+    stringIds.put(s, strings.size() - 1);
+    return strings.size() - 1;
+  }
+
+  private void grow() {
+    int n = Math.max(16, timestamps.length * 2);
+    timestamps = Arrays.copyOf(timestamps, n);
+    rooms = Arrays.copyOf(rooms, n);
+    senders = Arrays.copyOf(senders, n);
+    recipients = Arrays.copyOf(recipients, n);
+  }
+
+  @Override
+  long base() {
+    return base;
+  }
+
+  @Override
+  int size() {
+    return messages.size();
+  }
+
+  @Override
+  long minTimestamp() {
+    return minTs;
+  }
+
+  @Override
+  long maxTimestamp() {
+    return maxTs;
+  }
+
+  @Override
+  Postings postings(String term) {
+    return postings.get(term);
+  }
+
+  @Override
+  int stringId(String s) {
+    Integer id = stringIds.get(s);
+    return id == null ? NONE : id;
+  }
+
+  @Override
+  String string(int id) {
+    return strings.get(id);
+  }
+
+  @Override
+  long timestamp(int doc) {
+    return timestamps[doc];
+  }
+
+  @Override
+  int room(int doc) {
+    return rooms[doc];
+  }
+
+  @Override
+  int from(int doc) {
+    return senders[doc];
+  }
+
+  @Override
+  int to(int doc) {
+    return recipients[doc];
+  }
+
+  @Override
+  Message message(int doc) {
+    return messages.get(doc);
+  }
+}
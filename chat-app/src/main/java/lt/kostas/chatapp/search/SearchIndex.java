@@ -0,0 +1,339 @@
+package lt.kostas.chatapp.search;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.persistence.RetentionPolicy;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+
+import java.io.*;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * Žinučių teksto atvirkštinis indeksas (terminas → žinutės), laikomas savo kataloge šalia saugyklos.
+ * <p>
+ * Naujos žinutės indeksuojamos atskiroje gijoje į {@link MemorySegment}; kai jame susikaupia
+ * {@code segmentDocs} žinučių, jis įrašomas į nekintamą {@link DiskSegment} failą ({@code seg-NNNNNN.idx}).
+ * Kol segmentas atmintyje, jo žinutės dar rašomos į {@code pending.log}, kad po perkrovimo nebūtų prarastos.
+ * Atmintyje visada tik vienas (ribotas) segmentas ir diskinių segmentų žodyno pavyzdžiai.
+ * <p>
+ * Taikoma ta pati {@link RetentionPolicy} kaip saugyklai: pasenusios žinutės nerodomos rezultatuose, o diskiniai
+ * segmentai, kuriuose visos žinutės senesnės nei ilgiausia saugojimo trukmė, ištrinami.
+ * <p>
+ * Rezultatai grąžinami nuo naujausių; žymeklis - globalus žinutės numeris indekse.
+ */
+public final class SearchIndex implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(SearchIndex.class.getName());
+
+  public static final int DEFAULT_SEGMENT_DOCS = 65_536;
+  private static final int QUEUE_CAPACITY = 16 * 1024;
+  private static final int MAX_BATCH = 1024;
+  private static final String SEGMENT_PREFIX = "seg-";
+  private static final String SEGMENT_SUFFIX = ".idx";
+  private static final String PENDING = "pending.log";
+  private static final long PRUNE_INTERVAL_MILLIS = 60 * 60 * 1000;
+
+  private final Path dir;
+  private final int segmentDocs;
+  private final RetentionPolicy retention;
+  private final BlockingQueue<Message> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+  private final Thread indexer;
+  // visa paieškai matoma būsena keičiama vienu įrašu, kad užklausa nematytų žinutės du kartus
+  private volatile View view;
+  private DataOutputStream pending;
+  private long enqueued;
+  private long indexed;
+  // kada indeksavimo gija kitą kartą trins pasenusius segmentus (pirmą kartą - iš karto)
+  private long nextPrune;
+  private volatile boolean running = true;
+
+  /**
+   * @param disk      įrašyti segmentai, seniausias pirmas
+   * @param freezing  užšaldytas segmentas, kuris dabar rašomas į diską (arba null)
+   * @param active    pildomas segmentas
+   */
+  private record View(List<DiskSegment> disk, MemorySegment freezing, MemorySegment active) {
+    long docs() {
+      return active.base() + active.size();
+    }
+  }
+
+  public SearchIndex(Path dir) throws IOException {
+    this(dir, DEFAULT_SEGMENT_DOCS);
+  }
+
+  public SearchIndex(Path dir, int segmentDocs) throws IOException {
+    this(dir, segmentDocs, RetentionPolicy.defaults());
+  }
+
+  public SearchIndex(Path dir, RetentionPolicy retention) throws IOException {
+    this(dir, DEFAULT_SEGMENT_DOCS, retention);
+  }
+
+  /**
+   * @param retention kurias žinutes laikyti pasenusiomis - ta pati politika, kaip ir saugyklos
+   */
+  public SearchIndex(Path dir, int segmentDocs, RetentionPolicy retention) throws IOException {
+    if (segmentDocs <= 0) throw new IllegalArgumentException("segmentDocs turi būti teigiamas");
+    this.dir = dir;
+    this.segmentDocs = segmentDocs;
+    this.retention = retention;
+    Files.createDirectories(dir);
+    List<DiskSegment> disk = openSegments();
+    long next = disk.isEmpty() ? 0 : disk.getLast().base() + disk.getLast().size();
+    // visi diskiniai segmentai galėjo būti ištrinti kaip pasenę - numeracija tęsiama nuo pending.log
+    next = Math.max(next, pendingBase());
+    MemorySegment active = new MemorySegment(next, Math.min(segmentDocs, 1024));
+    replayPending(active);
+    view = new View(List.copyOf(disk), null, active);
+    openPending(active);
+    indexer = new Thread(this::indexLoop, "Search-Indexer");
+    indexer.setDaemon(true);
+    indexer.start();
+  }
+
+  /**
+   * Įdeda žinutę indeksavimui; kai eilė pilna, kviečianti gija palaukia.
+   */
+  public void add(Message m) {
+    if (m == null || m.text() == null || !running) return;
+    try {
+      queue.put(m);
+      synchronized (this) {
+        enqueued++;
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Laukia, kol visos iki šiol pridėtos žinutės bus suindeksuotos.
+   */
+  public synchronized void flush() throws InterruptedException {
+    long target = enqueued;
+    while (indexed < target && indexer.isAlive()) {
+      wait(100);
+    }
+  }
+
+  public long size() {
+    return view.docs();
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public SearchPage search(SearchQuery q) {
+    Set<String> terms = Tokenizer.terms(q.text());
+    View v = view;
+    Predicate<Message> visible = visible();
+    List<Message> hits = new ArrayList<>(q.limit());
+    long last = gather(v, q, terms, visible, q.cursor() > 0 ? q.cursor() : Long.MAX_VALUE, q.limit(), hits);
+    if (last < 0) return new SearchPage(List.of(), 0, false);
+    // dar vienas rezultatas už puslapio ribos - taip sužinome, ar verta prašyti kito puslapio
+    boolean more = hits.size() == q.limit() && gather(v, q, terms, visible, last, 1, new ArrayList<>(1)) >= 0;
+    return new SearchPage(List.copyOf(hits), last, more);
+  }
+
+  private Predicate<Message> visible() {
+    if (retention.defaultDays() == 0 && retention.roomDays().isEmpty()) return m -> true;
+    long now = System.currentTimeMillis();
+    return m -> !retention.expired(m, now);
+  }
+
+  /**
+   * Renka rezultatus segmentuose nuo naujausio. Grąžina paskutinio rasto globalų numerį arba -1.
+   */
+  private static long gather(View v, SearchQuery q, Set<String> terms, Predicate<Message> visible, long cursor,
+                             int want, List<Message> out) {
+    List<Segment> segments = new ArrayList<>(v.disk().size() + 2);
+    segments.add(v.active());
+    if (v.freezing() != null) segments.add(v.freezing());
+    segments.addAll(v.disk().reversed());
+    long last = -1;
+    for (Segment s : segments) {
+      if (out.size() >= want) break;
+      long found = s.collect(q, terms, visible, cursor, want, out);
+      if (found >= 0) {
+        last = found;
+        cursor = found;
+      }
+    }
+    return last;
+  }
+
+  @Override
+  public void close() {
+    running = false;
+    indexer.interrupt();
+    try {
+      indexer.join(5000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void indexLoop() {
+    List<Message> batch = new ArrayList<>(MAX_BATCH);
+    try {
+      while (running || !queue.isEmpty()) {
+        pruneIfDue();
+        Message first;
+        try {
+          first = queue.poll(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          running = false;
+          continue;
+        }
+        if (first == null) continue;
+        batch.add(first);
+        queue.drainTo(batch, MAX_BATCH - 1);
+        try {
+          for (Message m : batch) {
+            index(m);
+          }
+          pending.flush();
+        } catch (IOException | RuntimeException e) {
+          logger.log(Level.SEVERE, "Nepavyko suindeksuoti žinučių", e);
+        }
+        synchronized (this) {
+          indexed += batch.size();
+          notifyAll();
+        }
+        batch.clear();
+      }
+    } finally {
+      try {
+        pending.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Nepavyko uždaryti " + PENDING, e);
+      }
+    }
+  }
+
+  private void index(Message m) throws IOException {
+    View v = view;
+    v.active().add(m);
+    byte[] frame = BinaryCodec.encode(m);
+    pending.write(frame);
+    if (v.active().size() >= segmentDocs) freeze(v);
+  }
+
+  /**
+   * Užšaldo pilną segmentą, įrašo jį į diską ir pradeda naują {@code pending.log}.
+   * Kol rašoma, užšaldytas segmentas matomas paieškai iš atminties.
+   */
+  private void freeze(View v) throws IOException {
+    MemorySegment frozen = v.active();
+    MemorySegment next = new MemorySegment(frozen.base() + frozen.size(), Math.min(segmentDocs, 1024));
+    view = new View(v.disk(), frozen, next);
+    pending.close();
+    DiskSegment written = DiskSegment.write(frozen, dir.resolve(segmentName(frozen.base())));
+    List<DiskSegment> disk = new ArrayList<>(v.disk());
+    disk.add(written);
+    view = new View(List.copyOf(disk), null, next);
+    openPending(next);
+    logger.fine(() -> "Paieškos segmentas įrašytas: " + written.file().getFileName() + " (" + written.size() + " žinučių)");
+  }
+
+  /**
+   * Kartą per {@value #PRUNE_INTERVAL_MILLIS} ms ištrina diskinius segmentus, kurių visos žinutės pasenusios.
+   * Vaizdą keičia tik indeksavimo gija, todėl kviečiama tik joje; jau pradėtos paieškos baigiamos su senu
+   * vaizdu - atvaizdavimas galioja ir ištrynus failą.
+   */
+  private void pruneIfDue() {
+    long now = System.currentTimeMillis();
+    if (now < nextPrune) return;
+    nextPrune = now + PRUNE_INTERVAL_MILLIS;
+    long cutoff = retention.expiredBefore(now);
+    if (cutoff == Long.MIN_VALUE) return;
+    View v = view;
+    List<DiskSegment> kept = new ArrayList<>(v.disk().size());
+    List<DiskSegment> expired = new ArrayList<>();
+    for (DiskSegment s : v.disk()) {
+      (s.maxTimestamp() < cutoff ? expired : kept).add(s);
+    }
+    if (expired.isEmpty()) return;
+    view = new View(List.copyOf(kept), v.freezing(), v.active());
+    for (DiskSegment s : expired) {
+      try {
+        Files.deleteIfExists(s.file());
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Nepavyko ištrinti pasenusio paieškos segmento: " + s.file(), e);
+      }
+    }
+    logger.fine(() -> "Ištrinta pasenusių paieškos segmentų: " + expired.size());
+  }
+
+  /**
+   * {@code pending.log} prasideda segmento bazės numeriu - taip po perkrovimo žinoma, kurios žinutės
+   * jau įrašytos į segmentą (jei programa sustojo tarp segmento įrašymo ir žurnalo išvalymo).
+   */
+  private void openPending(MemorySegment active) throws IOException {
+    Path file = dir.resolve(PENDING);
+    pending = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file,
+            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), 64 * 1024));
+    pending.writeLong(active.base());
+    for (int doc = 0; doc < active.size(); doc++) {
+      pending.write(BinaryCodec.encode(active.message(doc)));
+    }
+    pending.flush();
+  }
+
+  private long pendingBase() throws IOException {
+    Path file = dir.resolve(PENDING);
+    if (!Files.exists(file) || Files.size(file) < Long.BYTES) return 0;
+    try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+      return in.readLong();
+    }
+  }
+
+  private void replayPending(MemorySegment active) throws IOException {
+    Path file = dir.resolve(PENDING);
+    if (!Files.exists(file)) return;
+    ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(file));
+    if (buf.remaining() < Long.BYTES) return;
+    long id = buf.getLong();
+    try {
+      Message m;
+      while ((m = BinaryCodec.tryDecode(buf)) != null) {
+        // jau esančios segmente praleidžiamos
+        if (id++ >= active.base()) active.add(m);
+      }
+    } catch (ProtocolException e) {
+      logger.warning("Sugadinta " + PENDING + " pabaiga praleidžiama: " + e.getMessage());
+    }
+  }
+
+  private List<DiskSegment> openSegments() throws IOException {
+    List<Path> files;
+    try (Stream<Path> list = Files.list(dir)) {
+      files = list.filter(p -> {
+        String name = p.getFileName().toString();
+        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+      }).sorted().toList();
+    }
+    List<DiskSegment> segments = new ArrayList<>(files.size());
+    for (Path file : files) {
+      segments.add(DiskSegment.open(file));
+    }
+    segments.sort(Comparator.comparingLong(Segment::base));
+    return segments;
+  }
+
+  private static String segmentName(long base) {
+    return String.format("%s%012d%s", SEGMENT_PREFIX, base, SEGMENT_SUFFIX);
+  }
+}
@@ -0,0 +1,15 @@
+package lt.kostas.chatapp.search;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.List;
+
+/**
+ * Vienas paieškos rezultatų puslapis - nuo naujausių.
+ *
+ * @param hits       rastos žinutės
+ * @param nextCursor kito (senesnio) puslapio žymeklis
+ * @param more       ar yra daugiau rezultatų
+ */
+public record SearchPage(List<Message> hits, long nextCursor, boolean more) {
+}
@@ -0,0 +1,24 @@
+package lt.kostas.chatapp.search;
+
+import java.util.function.Predicate;
+
+/**
+ * Paieškos užklausa. Visi terminai turi būti žinutėje (AND); likę laukai - papildomi filtrai.
+ *
+ * @param text        ieškomi žodžiai
+ * @param roomId      tik šio kambario žinutės (null - visi)
+ * @param from        tik šio siuntėjo žinutės (null - visi)
+ * @param after       tik žinutės, kurių timestamp &gt;= after (0 - be ribos)
+ * @param before      tik žinutės, kurių timestamp &lt; before (0 - be ribos)
+ * @param cursor      ankstesnio puslapio žymeklis (0 - nuo naujausių)
+ * @param limit       puslapio dydis
+ * @param viewer      kas ieško: privačios žinutės grąžinamos tik jų dalyviams
+ * @param roomVisible kurių kambarių žinutes {@code viewer} gali matyti
+ */
+public record SearchQuery(String text, String roomId, String from, long after, long before, long cursor, int limit,
+                          String viewer, Predicate<String> roomVisible) {
+  public SearchQuery {
+    if (limit <= 0) throw new IllegalArgumentException("limit turi būti teigiamas");
+    if (roomVisible == null) roomVisible = room -> true;
+  }
+}
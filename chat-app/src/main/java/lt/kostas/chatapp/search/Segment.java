@@ -0,0 +1,137 @@
+package lt.kostas.chatapp.search;
+
+import lt.kostas.chatapp.dto.Message;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Indekso dalis: dokumentai (žinutės) su vietiniais numeriais 0..size-1, globalus numeris - {@code base + vietinis}.
+ * Paieška bendra abiem įgyvendinimams - atmintyje pildomai ir nekintamai diske.
+ */
+abstract class Segment {
+  static final int NONE = -1;
+
+  abstract long base();
+
+  abstract int size();
+
+  abstract long minTimestamp();
+
+  abstract long maxTimestamp();
+
+  /**
+   * Termino dokumentų sąrašas didėjimo tvarka arba null, jei termino nėra.
+   */
+  abstract Postings postings(String term);
+
+  /**
+   * Eilutės (kambario ar vartotojo vardo) numeris šiame segmente arba {@link #NONE}.
+   */
+  abstract int stringId(String s);
+
+  abstract String string(int id);
+
+  abstract long timestamp(int doc);
+
+  abstract int room(int doc);
+
+  abstract int from(int doc);
+
+  abstract int to(int doc);
+
+  abstract Message message(int doc);
+
+  /**
+   * Prideda į {@code out} iki {@code want} tinkamų dokumentų nuo naujausio, kurių globalus numeris mažesnis
+   * nei {@code cursor}; {@code visible} atmeta pasenusias. Grąžina paskutinio pridėto globalų numerį arba -1,
+   * jei nieko nepridėta.
+   */
+  long collect(SearchQuery q, Collection<String> terms, Predicate<Message> visible, long cursor, int want,
+               List<Message> out) {
+    if (want <= 0 || size() == 0 || base() >= cursor || terms.isEmpty()) return -1;
+    if (q.after() > 0 && maxTimestamp() < q.after()) return -1;
+    if (q.before() > 0 && minTimestamp() >= q.before()) return -1;
+    int roomFilter = NONE;
+    if (q.roomId() != null && (roomFilter = stringId(q.roomId())) == NONE) return -1;
+    int fromFilter = NONE;
+    if (q.from() != null && (fromFilter = stringId(q.from())) == NONE) return -1;
+    int viewer = q.viewer() == null ? NONE : stringId(q.viewer());
+
+    // trumpiausias sąrašas eina pirmas - kitų tikrinama tik tai, kas jame liko
+    Postings[] lists = new Postings[terms.size()];
+    int i = 0;
+    for (String term : terms) {
+      Postings p = postings(term);
+      if (p == null) return -1;
+      lists[i++] = p;
+    }
+    Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+
+    Map<Integer, Boolean> roomVisible = new HashMap<>();
+    long last = -1;
+    long end = Math.min(cursor - base(), size());
+    Postings shortest = lists[0];
+    int start = upperBound(shortest, end) - 1;
+    for (int k = start; k >= 0 && out.size() < want; k--) {
+      int doc = shortest.docs[k];
+      if (!inAll(lists, doc)) continue;
+      if (roomFilter != NONE && room(doc) != roomFilter) continue;
+      if (fromFilter != NONE && from(doc) != fromFilter) continue;
+      long ts = timestamp(doc);
+      if (q.after() > 0 && ts < q.after()) continue;
+      if (q.before() > 0 && ts >= q.before()) continue;
+      int to = to(doc);
+      if (to != NONE) {
+        // privati žinutė - tik jos dalyviams
+        if (viewer == NONE || (viewer != from(doc) && viewer != to)) continue;
+      } else {
+        int room = room(doc);
+        if (!roomVisible.computeIfAbsent(room, r -> r != NONE && q.roomVisible().test(string(r)))) continue;
+      }
+      Message m = message(doc);
+      if (!visible.test(m)) continue;
+      out.add(m);
+      last = base() + doc;
+    }
+    return last;
+  }
+
+  private static boolean inAll(Postings[] lists, int doc) {
+    for (int i = 1; i < lists.length; i++) {
+      if (Arrays.binarySearch(lists[i].docs, 0, lists[i].size, doc) < 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Kiek sąrašo elementų mažesni už {@code limit}.
+   */
+  private static int upperBound(Postings p, long limit) {
+    if (limit > Integer.MAX_VALUE) return p.size;
+    int i = Arrays.binarySearch(p.docs, 0, p.size, (int) limit);
+    return i >= 0 ? i : -i - 1;
+  }
+
+  /**
+   * Didėjantis dokumentų numerių sąrašas; masyvas gali būti ilgesnis nei {@code size}.
+   */
+  static final class Postings {
+    int[] docs;
+    int size;
+
+    Postings(int[] docs, int size) {
+      this.docs = docs;
+      this.size = size;
+    }
+
+    void add(int doc) {
+      if (size == docs.length) docs = Arrays.copyOf(docs, Math.max(4, size * 2));
+      docs[size++] = doc;
+    }
+  }
+}
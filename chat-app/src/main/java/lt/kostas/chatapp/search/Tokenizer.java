@@ -0,0 +1,37 @@
+package lt.kostas.chatapp.search;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Teksto skaidymas į paieškos terminus: raidžių ir skaitmenų sekos mažosiomis raidėmis
+ * (lietuviškos raidės išlaikomos). Tas pats skaidymas naudojamas ir indeksuojant, ir ieškant.
+ */
+final class Tokenizer {
+  // ilgesni terminai (pvz. nuorodos ar base64) indekso neišpučia - jie nukerpami
+  static final int MAX_TERM_LENGTH = 32;
+
+  private Tokenizer() {
+  }
+
+  /**
+   * Skirtingi tekste esantys terminai pirmo pasirodymo tvarka.
+   */
+  static Set<String> terms(String text) {
+    Set<String> terms = new LinkedHashSet<>();
+    if (text == null) return terms;
+    int n = text.length();
+    int i = 0;
+    while (i < n) {
+      while (i < n && !Character.isLetterOrDigit(text.charAt(i))) i++;
+      int start = i;
+      while (i < n && Character.isLetterOrDigit(text.charAt(i))) i++;
+      if (i > start) {
+        String term = text.substring(start, Math.min(i, start + MAX_TERM_LENGTH)).toLowerCase(Locale.ROOT);
+        terms.add(term);
+      }
+    }
+    return terms;
+  }
+}
@@ -1,165 +1,912 @@
 package lt.kostas.chatapp.server;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import lt.kostas.chatapp.cluster.ClusterHost;
+import lt.kostas.chatapp.cluster.ClusterNode;
+import lt.kostas.chatapp.dto.ConversationKey;
 import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.history.MessageHistory;
+import lt.kostas.chatapp.metrics.MetricsHttpEndpoint;
+import lt.kostas.chatapp.metrics.MetricsMBean;
+import lt.kostas.chatapp.metrics.MetricsRegistry;
+import lt.kostas.chatapp.metrics.ServerMetrics;
+import lt.kostas.chatapp.model.Member;
 import lt.kostas.chatapp.model.Room;
+import lt.kostas.chatapp.persistence.AsyncPersistence;
+import lt.kostas.chatapp.persistence.MappedPersistence;
+import lt.kostas.chatapp.persistence.MessageStoreOptions;
+import lt.kostas.chatapp.persistence.Persistence;
 import lt.kostas.chatapp.persistence.PersistenceImpl;
+import lt.kostas.chatapp.persistence.RecoveredState;
+import lt.kostas.chatapp.persistence.RetentionPolicy;
+import lt.kostas.chatapp.persistence.StoreEvent;
+import lt.kostas.chatapp.persistence.WriteAheadLogPersistence;
+import lt.kostas.chatapp.presence.MembershipIndex;
+import lt.kostas.chatapp.presence.PresenceTracker;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.search.SearchIndex;
+import lt.kostas.chatapp.search.SearchPage;
+import lt.kostas.chatapp.search.SearchQuery;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public final class ChatServer {
+  private static final Logger logger = Logger.getLogger(ChatServer.class.getName());
+  // kiek paskutinių žinučių atkuriama į atmintį paleidžiant serverį
+  private static final int RECOVERY_MESSAGES = 1000;
+  // kiek stop() laukia, kol start() baigs darbą po ryšių uždarymo
+  private static final long TERMINATION_MILLIS = 10_000;
 
-public class ChatServer {
   private final int port;
-  private final Map<String, ClientHandler> clients = new ConcurrentHashMap<>();
+  private final Map<String, ClientConnection> clients = new ConcurrentHashMap<>();
   private final Map<String, Room> rooms = new ConcurrentHashMap<>();
-  private final List<Message> messages = Collections.synchronizedList(new ArrayList<>());
-  private final PersistenceImpl persistence;
+  private final Persistence persistence;
+  private final ServerOptions options;
+  // naujausios kiekvieno pokalbio žinutės; senesnės skaitomos iš saugyklos
+  private final MessageHistory history;
+  // vartotojas → kambariai ir kas prisijungęs (tik atmintyje)
+  private final MembershipIndex membership = new MembershipIndex();
+  // kambario ir vartotojo pakeitimai (patikrinimas + pakeitimas + įvykis saugyklai) - po vieną jo juostoje
+  private final Stripes stripes;
+  private final PresenceTracker presence;
+  private final MessageDispatcher dispatcher;
+  private final ThreadFactory connectionThreads;
+  private final ServerMetrics metrics = new ServerMetrics(new MetricsRegistry());
+  // null, kai serveris veikia vienas
+  private final ClusterNode cluster;
+  // null, kai paieška išjungta
+  private final SearchIndex search;
+  private final long createdAt = System.nanoTime();
+  // keičiamas visas įrašas; ryšiai jį skaito kiekvienai užklausai
+  private volatile RateLimits rateLimits;
+  // atjungtų už ribų viršijimą vartotojų draudimo pabaiga (System.nanoTime)
+  private final Map<String, Long> cooldowns = new ConcurrentHashMap<>();
+  // vartotojas → paskutinės sesijos raktas; per perkrovimą perduodamas per saveSessions()/loadSessions()
+  private final Map<String, String> sessions = new ConcurrentHashMap<>();
+  private final SecureRandom tokens = new SecureRandom();
+  private volatile long readyMillis = -1;
+  // visi atviri ryšiai, ir dar neužsiregistravę - stabdant juos reikia ištuštinti ir uždaryti
+  private final Set<ClientConnection> connections = ConcurrentHashMap.newKeySet();
+  // priėmimo lizdas; jį uždarius start() nebepriima naujų ryšių
+  private volatile Closeable listener;
+  private volatile boolean started;
+  private volatile boolean stopping;
+  private volatile boolean draining;
+  private final AtomicBoolean stopRequested = new AtomicBoolean();
+  private final CountDownLatch drained = new CountDownLatch(1);
+  private final CountDownLatch terminated = new CountDownLatch(1);
 
   public ChatServer(int port, String storageFile) {
+    this(port, new PersistenceImpl(storageFile));
+  }
+
+  public ChatServer(int port, Persistence persistence) {
+    this(port, persistence, ServerOptions.defaults());
+  }
+
+  public ChatServer(int port, Persistence persistence, ServerOptions options) {
+    this(port, persistence, options, null);
+  }
+
+  public ChatServer(int port, Persistence persistence, ServerOptions options, SearchIndex search) {
     this.port = port;
-    this.persistence = new PersistenceImpl(storageFile);
+    this.persistence = persistence;
+    this.options = options;
+    this.search = search;
+    this.rateLimits = options.rateLimits();
+    this.stripes = new Stripes(options.stateShards(), metrics.stateLockContended);
+    this.history = new MessageHistory(options.roomHistory(), options.directHistory(),
+            options.historyMaxAgeMillis(), persistence);
+    this.presence = new PresenceTracker(clients.values(), options.presenceWindowMillis());
+    this.connectionThreads = options.threadMode() == ServerOptions.ThreadMode.VIRTUAL
+            ? Thread.ofVirtual().name("client-v-", 0).factory()
+            : Thread.ofPlatform().name("client-", 0).factory();
+    this.cluster = options.cluster() == null ? null : new ClusterNode(options.cluster(), new ClusterCallbacks());
+    this.dispatcher = new MessageDispatcher(this);
+    registerGauges();
+    recover();
+    indexExistingMessages();
     // numatytasis kambarys
-    Room general = new Room("general", "General");
-    rooms.put("general", general);
+    if (!rooms.containsKey("general")) {
+      Room general = new Room("general", "General");
+      rooms.put("general", general);
+      persist(StoreEvent.roomCreated(general.getId(), general.getDisplayName()));
+    }
+  }
+
+  /**
+   * Atkuria kambarius, narystes ir paskutinių žinučių langą iš saugyklos.
+   */
+  private void recover() {
+    long t0 = System.nanoTime();
+    RecoveredState state = persistence.load(RECOVERY_MESSAGES);
+    for (Room r : state.rooms()) {
+      rooms.put(r.getId(), r);
+      for (String member : r.getMembersSnapshot()) {
+        membership.add(member, r);
+      }
+    }
+    history.restore(state.recentMessages());
+    logger.info(String.format("Atkurta %d kambarių ir %d žinučių per %d ms",
+            state.rooms().size(), state.recentMessages().size(), (System.nanoTime() - t0) / 1_000_000));
+  }
+
+  /**
+   * Naujas (tuščias) paieškos indeksas vieną kartą užpildomas visomis saugykloje esančiomis žinutėmis.
+   */
+  private void indexExistingMessages() {
+    if (search == null || !search.isEmpty()) return;
+    long t0 = System.nanoTime();
+    persistence.scanMessages(search::add);
+    try {
+      search.flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    logger.info(String.format("Paieškos indeksas sukurtas: %d žinučių per %d ms",
+            search.size(), (System.nanoTime() - t0) / 1_000_000));
+  }
+
+  /**
+   * Būsenos dydžiai skaitomi tik nuskaitymo (scrape) metu, todėl karštame kelyje nieko nekainuoja.
+   */
+  private void registerGauges() {
+    MetricsRegistry registry = metrics.registry();
+    registry.gauge("chat_connected_clients", "Prisijungusių klientų skaičius", clients::size);
+    registry.gauge("chat_rooms", "Kambarių skaičius", rooms::size);
+    registry.gauge("chat_ready_millis", "Laikas nuo serverio sukūrimo iki pirmo galimo accept() (ms)", () -> readyMillis);
+    if (cluster != null) registry.gauge("chat_cluster_nodes", "Gyvų klasterio mazgų skaičius", cluster::size);
+    if (search != null) registry.gauge("chat_search_indexed_messages", "Suindeksuotų žinučių skaičius", search::size);
+    if (persistence instanceof AsyncPersistence async) {
+      registry.gauge("chat_persistence_queue_depth", "Įvykių saugyklos eilėje", () -> async.stats().queueDepth());
+      registry.gauge("chat_persistence_producer_stalls", "Kiek kartų siuntėjas laukė pilnos saugyklos eilės",
+              () -> async.stats().producerStalls());
+      registry.gauge("chat_persistence_failed_events", "Įvykių, kurių saugykla neįrašė", () -> async.stats().failed());
+      async.setCommitObserver(metrics.persistenceCommitMicros::record);
+    }
+    if (persistence.bytesWritten() >= 0) {
+      // baitai per sekundę - rate(chat_storage_bytes_written[1m])
+      registry.gauge("chat_storage_bytes_written", "Saugyklos į diską įrašyti baitai nuo paleidimo",
+              persistence::bytesWritten);
+      registry.gauge("chat_storage_disk_bytes", "Saugyklos failų dydis diske", persistence::diskBytes);
+    }
   }
 
+  /**
+   * Paleidžia serverį ir blokuoja, kol jis bus sustabdytas ({@link #stop}). Grįžta tik tada, kai visi
+   * ryšiai uždaryti, o saugykla įrašė visus jai perduotus pakeitimus.
+   */
   public void start() throws IOException {
-    try (ServerSocket serverSocket = new ServerSocket(port)) {
-      System.out.println("Server'is dirba šiame port'e: " + port);
+    started = true;
+    MetricsMBean mbean = new MetricsMBean(metrics.registry());
+    mbean.register("lt.kostas.chatapp:type=ChatServer,port=" + port);
+    RateLimitControl limitControl = new RateLimitControl(this);
+    limitControl.register("lt.kostas.chatapp:type=RateLimits,port=" + port);
+    MetricsHttpEndpoint endpoint = startMetricsEndpoint();
+    if (cluster != null) cluster.start();
+    try {
+      if (options.transport() == TransportMode.NIO) {
+        startNio();
+      } else {
+        startBlocking();
+      }
+    } finally {
+      if (stopping) flush();
+      presence.close();
+      if (cluster != null) cluster.close();
+      if (endpoint != null) endpoint.stop();
+      limitControl.unregister();
+      mbean.unregister();
+      terminated.countDown();
+    }
+  }
+
+  private MetricsHttpEndpoint startMetricsEndpoint() {
+    if (options.metricsPort() < 0) return null;
+    MetricsHttpEndpoint endpoint = new MetricsHttpEndpoint(metrics.registry());
+    try {
+      endpoint.start(options.metricsPort());
+      logger.info("Metrikos: http://localhost:" + endpoint.port() + "/metrics");
+      return endpoint;
+    } catch (IOException e) {
+      logger.log(Level.WARNING, "Nepavyko paleisti metrikų HTTP portu " + options.metricsPort(), e);
+      return null;
+    }
+  }
+
+  /**
+   * Executor'ius uždaromas paskutinis: jo close() laukia visų ryšių gijų, kurias baigia {@link #drain}.
+   */
+  private void startBlocking() throws IOException {
+    try (ExecutorService executor = newConnectionExecutor();
+         ServerSocket serverSocket = new ServerSocket(port)) {
+      listen(serverSocket);
+      markReady();
       while (!serverSocket.isClosed()) {
-        Socket socket = serverSocket.accept(); // jei serverSocket uždaromas kitur, accept() mesti SocketException ir loop baigiasi
+        Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (SocketException e) {
+          // stopAccepting() uždarė serverSocket
+          if (stopping) break;
+          throw e;
+        }
         ClientHandler handler = new ClientHandler(socket, this);
-        new Thread(handler).start();
+        executor.execute(handler);
       }
     }
   }
 
-  public boolean registerClient(String username, ClientHandler handler) {
-    if (username == null || username.isBlank()) return false;
+  /**
+   * Po vieną giją kiekvienam ryšiui - platformos arba virtualią, pagal {@link ServerOptions#threadMode()}.
+   */
+  private ExecutorService newConnectionExecutor() {
+    return Executors.newThreadPerTaskExecutor(connectionThreads);
+  }
 
-    ClientHandler existing = clients.putIfAbsent(username, handler);
-    if (existing == null) {
-      // sėkminga registracija
-      Room general = rooms.get("general");
-      if (general != null) general.addMember(username);
-      persist();
-
-      // naujam klientui - atsiųsti visus jau prisijungusius vartotojus (kaip user-joined)
-      for (String user : clients.keySet()) {
-        if (!user.equals(username)) {
-          Message already = new Message("user-joined", "server", null, null, user);
-          handler.sendMessage(already);
-        }
+  private void startNio() throws IOException {
+    NioTransport transport = new NioTransport(this, dispatcher, options.nioThreads());
+    try {
+      transport.bind(port);
+      listen(transport::stopAccepting);
+      markReady();
+      transport.acceptLoop();
+      // priėmimą sustabdė stopAccepting(); ciklai stabdomi tik drain() išsiuntus ir uždarius ryšius
+      if (stopping) drained.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      transport.close();
+    }
+  }
+
+  private void listen(Closeable socket) throws IOException {
+    listener = socket;
+    // stop() galėjo būti iškviestas dar nepradėjus klausytis
+    if (stopping) socket.close();
+  }
+
+  private void markReady() {
+    readyMillis = (System.nanoTime() - createdAt) / 1_000_000;
+    String mode = options.transport() == TransportMode.NIO
+            ? "NIO x" + options.nioThreads() : "BLOCKING/" + options.threadMode();
+    logger.info("Server'is dirba šiame port'e: " + port + " (" + mode
+            + ", pasiruošė per " + readyMillis + " ms)");
+  }
+
+  /**
+   * Nebepriima naujų ryšių; jau prisijungę klientai aptarnaujami toliau.
+   */
+  public void stopAccepting() {
+    stopping = true;
+    Closeable l = listener;
+    if (l == null) return;
+    try {
+      l.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Nepavyko uždaryti priėmimo lizdo", e);
+    }
+  }
+
+  /**
+   * Praneša kiekvienam klientui apie perkrovimą ({@code server-restarting;reconnectAfterMs=N}, kur N -
+   * atsitiktinė delsa iki {@link ServerOptions#reconnectSpreadMillis()}, kad klientai nesijungtų visi kartu),
+   * išsiunčia, kas liko jų eilėse, ir uždaro ryšius. Per {@code timeoutMillis} neišsiuntę uždaromi priverstinai.
+   *
+   * @return kiek ryšių uždaryta priverstinai
+   */
+  public int drain(long timeoutMillis) {
+    draining = true;
+    long spread = options.reconnectSpreadMillis();
+    for (ClientConnection conn : connections) {
+      long delay = spread == 0 ? 0 : ThreadLocalRandom.current().nextLong(spread + 1);
+      conn.sendMessage(new Message(MessageKind.SYSTEM, "server", conn.getUsername(), null,
+              "server-restarting;reconnectAfterMs=" + delay));
+      conn.drain();
+    }
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    while (!connections.isEmpty() && deadline - System.nanoTime() > 0) {
+      try {
+        Thread.sleep(10);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
       }
-      // visiems kitiems pranešti, kad prisijungė naujas vartotojas
-      Message joined = new Message("user-joined", "server", null, null, username);
-      for (ClientHandler ch : clients.values()) {
-        if (ch != handler) {
-          ch.sendMessage(joined);
+    }
+    int forced = 0;
+    for (ClientConnection conn : connections) {
+      conn.close();
+      forced++;
+    }
+    drained.countDown();
+    return forced;
+  }
+
+  /**
+   * Palaukia, kol saugykla ir paieškos indeksas įrašys visus jau perduotus pakeitimus.
+   */
+  public void flush() {
+    persistence.flush();
+    if (search == null) return;
+    try {
+      search.flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Tvarkingas sustabdymas: {@link #stopAccepting}, {@link #drain} per {@link ServerOptions#drainMillis()}
+   * ir laukimas, kol {@link #start} baigs darbą (jis dar iškviečia {@link #flush} ir sustabdo būsenų siuntimą).
+   * Saugyklos neuždaro - ją uždaro tas, kas ją sukūrė. Pakartotinis kvietimas nieko nedaro.
+   *
+   * @return sustabdymo trukmė (ms)
+   */
+  public long stop() {
+    if (!stopRequested.compareAndSet(false, true)) return 0;
+    long t0 = System.nanoTime();
+    stopAccepting();
+    int clientCount = connections.size();
+    int forced = drain(options.drainMillis());
+    long drainMillis = (System.nanoTime() - t0) / 1_000_000;
+    if (started) {
+      try {
+        if (!terminated.await(TERMINATION_MILLIS, TimeUnit.MILLISECONDS)) {
+          logger.warning("Serveris nesustojo per " + TERMINATION_MILLIS + " ms");
         }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
       }
-      // System.out.println("Priregistruotas vartotojas: " + username);
-      return true;
-    } else if (existing == handler) {
-      return true;
     } else {
-      System.out.println("Registracija nepavyko: '" + username + "' - toks vartotojas jau egzistuoja.");
+      flush();
+      presence.close();
+    }
+    long millis = (System.nanoTime() - t0) / 1_000_000;
+    logger.info(String.format("Serveris sustabdytas per %d ms: %d ryšių uždaryta per %d ms (priverstinai - %d)",
+            millis, clientCount, drainMillis, forced));
+    return millis;
+  }
+
+  /**
+   * @return false, jei serveris jau stabdomas - tada ryšį reikia iš karto uždaryti
+   */
+  boolean connectionOpened(ClientConnection conn) {
+    connections.add(conn);
+    // drain() pirma nustato draining, o tik tada peržiūri ryšius - šis ryšys bus arba ten, arba atmestas čia
+    return !draining;
+  }
+
+  void connectionClosed(ClientConnection conn) {
+    connections.remove(conn);
+  }
+
+  MessageDispatcher dispatcher() {
+    return dispatcher;
+  }
+
+  /**
+   * Serverio metrikos (tos pačios, kurias rodo JMX ir {@code /metrics}).
+   */
+  public ServerMetrics metrics() {
+    return metrics;
+  }
+
+  ThreadFactory connectionThreads() {
+    return connectionThreads;
+  }
+
+  OutboundQueue newOutboundQueue() {
+    return new OutboundQueue(options.outboundCapacity(), options.overflowPolicy());
+  }
+
+  RateLimiter newRateLimiter() {
+    return new RateLimiter(this::rateLimits);
+  }
+
+  public RateLimits rateLimits() {
+    return rateLimits;
+  }
+
+  /**
+   * Pakeičia srauto ribas veikiant: dažniai galioja nuo kitos užklausos, eilutės ilgis - naujiems ryšiams.
+   */
+  public void setRateLimits(RateLimits limits) {
+    if (limits == null) throw new IllegalArgumentException("limits negali būti null");
+    rateLimits = limits;
+    logger.info("Srauto ribos pakeistos: " + limits.toSpec());
+  }
+
+  /**
+   * Uždraudžia vartotojui kurį laiką vėl prisiregistruoti.
+   *
+   * @return draudimo trukmė (ms); 0 - jei vartotojas nežinomas arba draudimai išjungti
+   */
+  long coolDown(String username) {
+    long millis = rateLimits.cooldownMillis();
+    if (username == null || millis <= 0) return 0;
+    long now = System.nanoTime();
+    // pasibaigę draudimai išvalomi čia - atjungimai reti, todėl sąrašas nedidelis
+    cooldowns.values().removeIf(until -> until - now <= 0);
+    cooldowns.put(username, now + TimeUnit.MILLISECONDS.toNanos(millis));
+    return millis;
+  }
+
+  long cooldownRemainingMillis(String username) {
+    Long until = username == null ? null : cooldowns.get(username);
+    if (until == null) return 0;
+    long left = until - System.nanoTime();
+    if (left <= 0) {
+      cooldowns.remove(username, until);
+      return 0;
+    }
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(left));
+  }
+
+  /**
+   * Išduoda naują sesijos raktą; ankstesnis to vartotojo raktas nebegalioja.
+   */
+  String newSession(String username) {
+    byte[] bytes = new byte[16];
+    tokens.nextBytes(bytes);
+    String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    sessions.put(username, token);
+    return token;
+  }
+
+  /**
+   * Įrašo sesijų raktus, kad po perkrovimo klientai galėtų pratęsti sesijas ir gauti per tą laiką praleistas
+   * žinutes ({@link #loadSessions}).
+   */
+  public void saveSessions(Path file) throws IOException {
+    Path target = file.toAbsolutePath();
+    Files.createDirectories(target.getParent());
+    Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+    Files.writeString(tmp, new Gson().toJson(sessions), StandardCharsets.UTF_8);
+    try {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  /**
+   * Atkuria {@link #saveSessions} įrašytus raktus ir ištrina failą - raktai galioja vienam perkrovimui.
+   */
+  public void loadSessions(Path file) throws IOException {
+    if (!Files.exists(file)) return;
+    try {
+      Map<String, String> saved = new Gson().fromJson(Files.readString(file, StandardCharsets.UTF_8),
+              new TypeToken<Map<String, String>>() { }.getType());
+      if (saved != null) sessions.putAll(saved);
+      logger.info("Atkurta sesijų: " + sessions.size());
+    } catch (JsonParseException e) {
+      logger.log(Level.WARNING, "Sugadintas sesijų failas, ignoruojamas: " + file, e);
+    }
+    Files.delete(file);
+  }
+
+  /**
+   * Pratęsia sesiją, jei raktas galioja. Jei serveris dar laiko seną to vartotojo ryšį (klientas jo nutrūkimo
+   * nepastebėjo, o mes - dar ne), senas ryšys uždaromas, kad naujasis galėtų užimti vardą.
+   *
+   * @return false, jei raktas nežinomas ar pasenęs
+   */
+  boolean resumeSession(String username, String token, ClientConnection conn) {
+    String current = username == null ? null : sessions.get(username);
+    if (current == null || token == null || !MessageDigest.isEqual(
+            current.getBytes(StandardCharsets.US_ASCII), token.getBytes(StandardCharsets.US_ASCII))) {
+      return false;
+    }
+    ClientConnection stale = clients.get(username);
+    if (stale != null && stale != conn) {
+      logger.fine(() -> "Sesija pratęsiama naujame ryšyje, senas uždaromas: " + username);
+      stale.close();
+      // seno ryšio darbo gija gali dar vykdyti užklausą ir atregistruotų jį vėliau - vardą atlaisviname iškart
+      unregisterClient(username, stale);
+    }
+    return true;
+  }
+
+  /**
+   * Vartotojo kambariai ir privatūs pokalbiai, kurių istorija yra atmintyje.
+   */
+  List<ConversationKey> conversationsOf(String username) {
+    List<ConversationKey> keys = new ArrayList<>();
+    for (Room r : List.copyOf(membership.roomsOf(username))) {
+      keys.add(ConversationKey.room(r.getId()));
+    }
+    keys.addAll(history.directConversationsOf(username));
+    return keys;
+  }
+
+  /**
+   * Kiekvieno prisijungusio kliento siuntimo eilės būsena - leidžia pastebėti lėtus skaitytojus.
+   */
+  public Map<String, OutboundQueue.Stats> outboundStats() {
+    Map<String, OutboundQueue.Stats> result = new TreeMap<>();
+    clients.forEach((user, ch) -> result.put(user, ch.outboundStats()));
+    return result;
+  }
+
+  /**
+   * Laikas nuo serverio sukūrimo iki pirmo galimo {@code accept()} (ms), arba -1, jei dar nepaleistas.
+   */
+  public long getReadyMillis() {
+    return readyMillis;
+  }
+
+  public boolean registerClient(String username, ClientConnection handler) {
+    if (username == null || username.isBlank()) return false;
+    // klasteryje vardas negali būti užimtas ir kitame mazge
+    if (cluster != null && cluster.isOnlineElsewhere(username)) {
+      logger.fine(() -> "Registracija nepavyko: '" + username + "' prisijungęs kitame mazge.");
       return false;
     }
+
+    ReentrantLock lock = stripes.lock(username);
+    try {
+      ClientConnection existing = clients.putIfAbsent(username, handler);
+      if (existing == handler) return true;
+      if (existing != null) {
+        logger.fine(() -> "Registracija nepavyko: '" + username + "' - toks vartotojas jau egzistuoja.");
+        return false;
+      }
+      // naujam klientui - visi jau prisijungę vienu kadru, kitiems - sukauptas pasikeitimas;
+      // juostoje, kad vėluojantis seno ryšio atsijungimas neperrašytų šio prisijungimo
+      handler.send(presence.snapshot());
+      presence.online(username);
+      if (cluster != null) cluster.userOnline(username);
+    } finally {
+      lock.unlock();
+    }
+    // sėkminga registracija; į saugyklą rašoma tik pirmą kartą - pakartotinis prisijungimas narystės nekeičia
+    Room general = rooms.get("general");
+    if (general != null) joinRoom(general, username, true, true);
+    // vartotojo kambariuose siuntimas eis tiesiai į šį ryšį
+    for (Room r : membership.roomsOf(username)) {
+      if (r != general) attachOnline(r, username);
+    }
+    return true;
   }
 
-  public void unregisterClient(String username) {
-    clients.remove(username);
-    // pašalina narius iš kambarių:
-    for (Room r : rooms.values()) {
-      r.removeMember(username);
+  /**
+   * Atsijungimas keičia tik buvimą prisijungus: narystė kambariuose išlieka, į saugyklą nerašoma.
+   * Atregistruojamas tik tas ryšys, kuriam vardas priklauso dabar - pavėlavęs seno ryšio uždarymas
+   * nenuima jau užregistruoto naujo.
+   */
+  public void unregisterClient(String username, ClientConnection conn) {
+    ReentrantLock lock = stripes.lock(username);
+    try {
+      if (!clients.remove(username, conn)) return;
+      presence.offline(username);
+      if (cluster != null) cluster.userOffline(username);
+    } finally {
+      lock.unlock();
     }
-    // pranešti kitiems klientams, kad vartotojas išėjo
-    Message left = new Message("user-left", "server", null, null, username);
-    for (ClientHandler ch : clients.values()) {
-      ch.sendMessage(left);
+    for (Room r : membership.roomsOf(username)) {
+      r.detach(conn);
+      refreshInterest(r);
     }
-    persist();
   }
 
   public void createRoom(String roomId, String displayName, String creator) {
-    // Bandome atomiškai įdėti naują kambarį
-    Room existing = rooms.putIfAbsent(roomId, new Room(roomId, displayName));
-    if (existing == null) {
-      // kambarį sukūrėme
-      Room r = rooms.get(roomId);
-      if (creator != null) r.addMember(creator);
-      persist();
-      // pranešame visiems klientams, kad sukurtas naujas kambarys
-      Message roomMsg = new Message("room-created", "server", null, roomId, displayName);
-      for (ClientHandler ch : clients.values()) {
-        ch.sendMessage(roomMsg);
+    createRoom(roomId, displayName, creator, true);
+  }
+
+  /**
+   * @param local false, jei kambarys sukurtas kitame klasterio mazge - tada jis kitiems nebeperduodamas
+   */
+  private void createRoom(String roomId, String displayName, String creator, boolean local) {
+    ReentrantLock lock = stripes.lock(roomId);
+    try {
+      if (rooms.containsKey(roomId)) {
+        // jeigu toks kambarys jau egzistuoja, tuomet nieko nedarome
+        logger.fine(() -> "Kambarys jau egzistuoja: " + roomId);
+        return;
       }
-      System.out.println("Kambarys sukurtas ir pranešta klientams: " + roomId);
-    } else {
-      // jeigu toks kambarys jau egzistuoja, tuomet nieko nedarome
-      System.out.println("Kambarys jau egzistuoja: " + roomId);
+      // sukūrimas ir kūrėjo narystė saugyklai perduodami prieš bet kurį kitą šio kambario pakeitimą
+      Room r = new Room(roomId, displayName);
+      rooms.put(roomId, r);
+      persist(StoreEvent.roomCreated(roomId, r.getDisplayName()));
+      if (local && cluster != null) cluster.roomCreated(roomId, r.getDisplayName());
+      if (creator != null) joinRoom(r, creator, local, false);
+    } finally {
+      lock.unlock();
+    }
+    // pranešame visiems klientams, kad sukurtas naujas kambarys
+    Frame roomMsg = Frame.of(new Message(MessageKind.ROOM_CREATED, "server", null, roomId, displayName));
+    for (ClientConnection ch : clients.values()) {
+      ch.send(roomMsg);
     }
+    logger.fine(() -> "Kambarys sukurtas ir pranešta klientams: " + roomId);
   }
 
   public void broadcastToRoom(Message msg) {
-    System.out.println("broadcastToRoom called. msg=" + msg);
-    messages.add(msg);
+    // kiekvienai žinutei - tik jei įjungtas FINEST, kad išjungtas žurnalas nekurtų eilučių
+    if (logger.isLoggable(Level.FINEST)) logger.finest("broadcastToRoom: " + msg);
     Room r = rooms.get(msg.roomId());
     if (r == null) {
-      System.out.println("  kambario '" + msg.roomId() + "' nėra");
+      if (logger.isLoggable(Level.FINE)) logger.fine("Kambario '" + msg.roomId() + "' nėra");
       return;
     }
+    // klasteryje kambario žinutes tvarko jo savininkas; jei jis nepasiekiamas - tvarkome patys
+    if (cluster != null && !cluster.ownsRoom(r.getId()) && cluster.forwardToOwner(msg)) return;
+    deliverAsOwner(r, msg);
+  }
 
-    System.out.println("  room members = " + r.getMembersSnapshot());
-    for (String user : r.getMembersSnapshot()) {
-      ClientHandler ch = clients.get(user);
-      System.out.println("    trying to send to '" + user + "' -> handler=" + ch);
-      if (ch != null) ch.sendMessage(msg);
+  /**
+   * Išsaugo žinutę, išsiunčia vietiniams nariams ir (klasteryje) perduoda kitiems mazgams.
+   */
+  private void deliverAsOwner(Room r, Message msg) {
+    deliverLocally(r, msg);
+    persist(StoreEvent.message(msg));
+    if (search != null) search.add(msg);
+    if (cluster != null) cluster.relayRoom(msg);
+  }
+
+  private void deliverLocally(Room r, Message msg) {
+    history.append(msg);
+
+    // nekintamas prisijungusių narių masyvas - be kopijų ir paieškų pagal vardą
+    Frame frame = Frame.of(msg);
+    Member[] online = r.onlineMembers();
+    for (Member member : online) {
+      member.send(frame);
     }
-    persist();
+    metrics.fanOut.record(online.length);
   }
 
   public void sendPrivate(Message msg) {
-    messages.add(msg);
     if (msg.to() == null || msg.to().isBlank()) return;
-    ClientHandler ch = clients.get(msg.to());
-    if (ch != null) ch.sendMessage(msg);
+    history.append(msg);
+    Frame frame = Frame.of(msg);
+    ClientConnection ch = clients.get(msg.to());
+    if (ch != null) {
+      ch.send(frame);
+    } else if (cluster != null) {
+      cluster.sendDirect(msg);
+    }
     // also send copy to sender if present
-    ClientHandler sender = clients.get(msg.from());
-    if (sender != null && sender != ch) sender.sendMessage(msg);
-    persist();
+    ClientConnection sender = clients.get(msg.from());
+    if (sender != null && sender != ch) sender.send(frame);
+    persist(StoreEvent.message(msg));
+    if (search != null) search.add(msg);
   }
 
-  private void persist() {
-    // Sukuriame nekintamas 'snapshot' kolekcijas, kad persistence.saveState
-    // negautų dalinai pakeistų concurrent kolekcijų.
-    Collection<Room> roomsSnapshot = new ArrayList<>(rooms.values());
-    Set<String> usersSnapshot = new HashSet<>(clients.keySet());
+  /**
+   * Perduoda pakeitimą saugyklai - tik patį įvykį, ne visos būsenos kopiją.
+   */
+  private void persist(StoreEvent event) {
+    persistence.append(event);
+  }
 
-    List<Message> messagesSnapshot;
-    // 'messages' yra Collections.synchronizedList - sinchronizuotai nukopijuojame
-    synchronized (messages) {
-      messagesSnapshot = new ArrayList<>(messages);
-    }
-    // Iškviečiame persistence su saugiais snapshot'ais
-    persistence.saveState(roomsSnapshot, usersSnapshot, messagesSnapshot);
+  /**
+   * Iki {@code limit} pokalbio žinučių, senesnių nei {@code beforeTimestamp}, chronologine tvarka.
+   */
+  public List<Message> history(ConversationKey key, long beforeTimestamp, int limit) {
+    return history.before(key, beforeTimestamp, limit);
   }
 
-  public void joinRoom(String roomId, String username) {
+  /**
+   * Paieška išsaugotose žinutėse; null, jei paieškos indeksas išjungtas.
+   */
+  public SearchPage search(SearchQuery query) {
+    return search == null ? null : search.search(query);
+  }
+
+  /**
+   * Ar vartotojas kada nors registravosi (kiekvienas tampa "general" nariu) arba dabar prisijungęs.
+   */
+  public boolean isKnownUser(String username) {
+    return username != null && (clients.containsKey(username) || !membership.roomsOf(username).isEmpty());
+  }
+
+  public boolean isRoomMember(String roomId, String username) {
     Room r = rooms.get(roomId);
-    if (r != null) {
-      r.addMember(username);
-      persist();
+    return r != null && r.isMember(username);
+  }
+
+  public void joinRoom(String roomId, String username) {
+    joinRoom(roomId, username, true);
+  }
+
+  private void joinRoom(String roomId, String username, boolean local) {
+    Room r = roomId == null ? null : rooms.get(roomId);
+    if (r != null && username != null) joinRoom(r, username, local, false);
+  }
+
+  /**
+   * Narystė keičiama kambario juostoje, kad saugykla ją gautų po kambario sukūrimo ir ta pačia tvarka,
+   * kaip ji pritaikyta atmintyje.
+   *
+   * @param firstUser ar prieš narystę įrašyti ir naujo vartotojo įvykį (registruojantis į "general")
+   */
+  private void joinRoom(Room r, String username, boolean local, boolean firstUser) {
+    ReentrantLock lock = stripes.lock(r.getId());
+    try {
+      attachOnline(r, username);
+      // pakartotinis prisijungimas prie to paties kambario į saugyklą nerašomas
+      if (r.addMember(username)) {
+        membership.add(username, r);
+        if (firstUser) persist(StoreEvent.userRegistered(username));
+        persist(StoreEvent.roomJoined(r.getId(), username));
+        if (local && cluster != null) cluster.roomJoined(r.getId(), username);
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Prijungia vartotojo ryšį prie kambario. Jei tuo metu vartotojas atsijungė, ryšys atjungiamas
+   * atgal, kad kambaryje neliktų uždaryto ryšio.
+   */
+  private void attachOnline(Room r, String username) {
+    ClientConnection conn = username == null ? null : clients.get(username);
+    if (conn == null) return;
+    r.attach(conn);
+    if (clients.get(username) != conn) r.detach(conn);
+    refreshInterest(r);
+  }
+
+  /**
+   * Praneša klasteriui, ar šiame mazge kambaryje dar yra prisijungusių narių.
+   */
+  private void refreshInterest(Room r) {
+    if (cluster != null) cluster.refreshInterest(r.getId(), () -> r.onlineMembers().length > 0);
+  }
+
+  /**
+   * Kitų klasterio mazgų įvykiai. Į klasterį nieko nebeperduoda - tik vietiniams klientams ir saugyklai.
+   */
+  private final class ClusterCallbacks implements ClusterHost {
+    @Override
+    public void ownerMessage(Message message) {
+      Room r = message.roomId() == null ? null : rooms.get(message.roomId());
+      if (r != null) deliverAsOwner(r, message);
+    }
+
+    @Override
+    public void deliverRoom(Message message) {
+      Room r = message.roomId() == null ? null : rooms.get(message.roomId());
+      if (r != null) deliverLocally(r, message);
+    }
+
+    @Override
+    public void deliverDirect(Message message) {
+      ClientConnection ch = message.to() == null ? null : clients.get(message.to());
+      if (ch == null) return;
+      history.append(message);
+      ch.send(Frame.of(message));
+    }
+
+    @Override
+    public void roomCreated(String roomId, String displayName) {
+      if (roomId != null && !rooms.containsKey(roomId)) createRoom(roomId, displayName, null, false);
+    }
+
+    @Override
+    public void roomJoined(String roomId, String username) {
+      joinRoom(roomId, username, false);
     }
+
+    @Override
+    public void remoteUserOnline(String username) {
+      presence.online(username);
+    }
+
+    @Override
+    public void remoteUserOffline(String username) {
+      // vartotojas galėjo jau persijungti į šį mazgą
+      if (!clients.containsKey(username)) presence.offline(username);
+    }
+
+    @Override
+    public Map<String, String> roomCatalog() {
+      Map<String, String> catalog = new HashMap<>();
+      rooms.forEach((id, r) -> catalog.put(id, r.getDisplayName()));
+      return catalog;
+    }
+  }
+
+  /**
+   * Atvaizduotų failų saugykla; pirmą kartą paleidus, duomenys perkeliami iš ankstesnio žurnalo
+   * (senas katalogas paliekamas nepakeistas).
+   */
+  private static Persistence openMappedStorage(String dataDir, RetentionPolicy retention) {
+    MappedPersistence storage = new MappedPersistence(dataDir + "/store",
+            MessageStoreOptions.defaults().withRetention(retention));
+    Path wal = Path.of(dataDir, "wal");
+    if (storage.isEmpty() && Files.isDirectory(wal)) {
+      long t0 = System.nanoTime();
+      WriteAheadLogPersistence old = new WriteAheadLogPersistence(wal.toString());
+      try {
+        storage.importFrom(old);
+      } finally {
+        old.close();
+      }
+      logger.info(String.format("Duomenys perkelti iš %s: %d žinučių per %d ms", wal,
+              storage.messages().size(), (System.nanoTime() - t0) / 1_000_000));
+    }
+    return storage;
   }
 
   public static void main(String[] args) throws IOException {
-    int port = 55555;
-    String file = "data/chat-data.json";
-    ChatServer server = new ChatServer(port, file);
-    server.start();
+    int port = Integer.getInteger("chat.port", 55555);
+    ServerOptions options = ServerOptions.fromSystemProperties();
+    // keli mazgai viename kompiuteryje turi naudoti skirtingus katalogus
+    String dataDir = System.getProperty("chat.data", "data");
+    RetentionPolicy retention = RetentionPolicy.fromSystemProperties();
+    // -Dchat.storage=wal arba json grąžina ankstesnes saugyklas
+    Persistence storage = switch (System.getProperty("chat.storage", "mapped")) {
+      case "json" -> new PersistenceImpl(dataDir + "/chat-data.json");
+      case "wal" -> new WriteAheadLogPersistence(dataDir + "/wal");
+      default -> openMappedStorage(dataDir, retention);
+    };
+    // rašymas į diską vyksta atskiroje gijoje, kad nestabdytų žinučių siuntimo; eilė skaidoma kaip serverio būsena
+    Persistence persistence = new AsyncPersistence(storage,
+            Integer.getInteger("chat.storage.queue", AsyncPersistence.DEFAULT_CAPACITY), options.stateShards());
+    // indeksas - išvestiniai duomenys: ištrynus katalogą, jis sukuriamas iš saugyklos iš naujo;
+    // saugojimo politiką taiko tik atvaizduota saugykla, todėl ir paieška ją taiko tik tada
+    SearchIndex search = Boolean.parseBoolean(System.getProperty("chat.search", "true"))
+            ? new SearchIndex(Path.of(dataDir, "search"),
+            storage instanceof MappedPersistence ? retention : RetentionPolicy.defaults())
+            : null;
+    ChatServer server = new ChatServer(port, persistence, options, search);
+    Path sessions = Path.of(dataDir, "sessions.json");
+    server.loadSessions(sessions);
+    // SIGTERM/Ctrl+C: JVM baigia darbą, kai baigiasi ši gija, todėl ji dar palaukia, kol main uždarys saugyklą
+    CountDownLatch released = new CountDownLatch(1);
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      server.stop();
+      try {
+        released.await(TERMINATION_MILLIS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }, "chat-shutdown"));
+    try {
+      server.start();
+    } finally {
+      try {
+        server.saveSessions(sessions);
+      } catch (IOException e) {
+        logger.log(Level.WARNING, "Nepavyko įrašyti sesijų: " + sessions, e);
+      }
+      if (search != null) search.close();
+      try {
+        persistence.close();
+      } catch (RuntimeException e) {
+        // neįrašyti įvykiai jau prarasti - pranešame, bet sustojimo nestabdome
+        logger.log(Level.SEVERE, "Saugykla uždaryta su klaida", e);
+      }
+      released.countDown();
+    }
   }
 }
@@ -0,0 +1,63 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Member;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.WireFormat;
+
+/**
+ * Vieno prisijungusio kliento ryšys, nepriklausomai nuo transporto
+ * (blokuojantis {@link ClientHandler} ar {@link NioTransport}).
+ */
+public interface ClientConnection extends Member {
+  /**
+   * Užregistruoto vartotojo vardas arba null, jei registracija dar neįvyko.
+   */
+  @Override
+  String getUsername();
+
+  void setUsername(String username);
+
+  /**
+   * Išsiunčia jau užkoduotą kadrą. Gali būti kviečiama iš bet kurios gijos.
+   */
+  @Override
+  void send(Frame frame);
+
+  /**
+   * Užkoduoja ir išsiunčia žinutę vienam gavėjui. Kai tą pačią žinutę gauna keli klientai,
+   * naudokite {@link #send(Frame)} su vienu bendru kadru.
+   */
+  default void sendMessage(Message m) {
+    send(Frame.of(m));
+  }
+
+  /**
+   * Perjungia ryšio formatą: po šiuo metu apdorojamo kadro gaunami baitai skaitomi nauju formatu,
+   * o kadrai, išsiųsti po šio kvietimo, koduojami nauju formatu. Kviečiama tik skaitymo gijoje.
+   */
+  void switchFormat(WireFormat format);
+
+  /**
+   * Šio ryšio užklausų ribotuvas arba null, jei užklausos neribojamos. Kviečiama tik skaitymo gijoje.
+   */
+  default RateLimiter rateLimiter() {
+    return null;
+  }
+
+  /**
+   * Šio kliento siuntimo eilės būsena.
+   */
+  OutboundQueue.Stats outboundStats();
+
+  /**
+   * Nebepriima naujų kadrų, išsiunčia jau esančius eilėje ir tada uždaro ryšį (serverį stabdant).
+   * Gali būti kviečiama iš bet kurios gijos.
+   */
+  void drain();
+
+  /**
+   * Uždaro ryšį ir atregistruoja vartotoją (idempotentiškas).
+   */
+  void close();
+}
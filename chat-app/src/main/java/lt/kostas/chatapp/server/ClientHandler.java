@@ -1,89 +1,100 @@
 package lt.kostas.chatapp.server;
 
-import com.google.gson.Gson;
 import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.metrics.ServerMetrics;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.FrameReader;
+import lt.kostas.chatapp.protocol.LineTooLongException;
+import lt.kostas.chatapp.protocol.WireFormat;
 
 import java.io.*;
 import java.net.Socket;
-import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.LongConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class ClientHandler implements Runnable {
+public class ClientHandler implements Runnable, ClientConnection {
   private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
+  // kiek kadrų daugiausiai išsiunčiama vienu flush'u
+  private static final int MAX_BATCH = 256;
 
   private final Socket socket;
   private final ChatServer server;
-  private final Gson gson = new Gson();
+  private final MessageDispatcher dispatcher;
+  // siuntėjai tik įdeda kadrą; į socket'ą rašo atskira šio kliento rašymo gija
+  private final OutboundQueue outbound;
+  private final RateLimiter limiter;
+  private final AtomicBoolean closed = new AtomicBoolean();
   // volatile, nes prieinami iš kelių thread'ų (run() ir server.broadcast())
-  private volatile PrintWriter out;
   private volatile String username;
+  // gaunamų kadrų formatas; keičiamas ir skaitomas tik run() gijoje
+  private WireFormat inFormat = WireFormat.JSON;
 
   public ClientHandler(Socket socket, ChatServer server) {
     this.socket = socket;
     this.server = server;
+    this.dispatcher = server.dispatcher();
+    this.outbound = server.newOutboundQueue();
+    this.limiter = server.newRateLimiter();
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    this.username = username;
   }
 
   @Override
   public void run() {
+    // serveris jau stabdomas - ryšys, priimtas paskutinę akimirką, uždaromas iš karto
+    if (!server.connectionOpened(this)) {
+      closeQuietly();
+      return;
+    }
     // try-with-resources užtikrina, kad reader/writer užsidarys, kai išeisime iš bloko
-    try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
-         PrintWriter writer = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
-
-      this.out = writer;
-
-      String line;
-      while ((line = in.readLine()) != null) {
-        Message m;
-        try {
-          m = gson.fromJson(line, Message.class);
-        } catch (Exception ex) {
-          logger.log(Level.WARNING, "Negalima deserializuoti žinutės: " + line, ex);
-          continue;
+    try (InputStream is = socket.getInputStream();
+         OutputStream os = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024)) {
+
+      Thread writer = server.connectionThreads().newThread(() -> writeLoop(os));
+      writer.start();
+
+      FrameReader in = new FrameReader(is, server.rateLimits().maxLineBytes());
+      while (true) {
+        boolean keepOpen;
+        if (inFormat == WireFormat.BINARY) {
+          Message m = in.readBinary();
+          if (m == null) break;
+          keepOpen = dispatcher.handle(this, m);
+        } else {
+          try {
+            String line = in.readLine();
+            if (line == null) break;
+            keepOpen = dispatcher.handleLine(this, line);
+          } catch (LineTooLongException e) {
+            keepOpen = dispatcher.lineTooLong(this);
+          }
         }
-        if (m == null || m.type() == null) continue;
-
-        switch (m.type()) {
-          case "register":
-            this.username = m.from();
-            boolean ok = server.registerClient(username, this);
-            if (!ok) {
-              // grąžiname klaidą klientui ir uždarome ryšį
-              sendMessage(new Message("system", "server", username, null, "register-failed"));
-              closeQuietly();
-              return; // baigiame run() (finally bloko nereikia papildomai)
-            } else {
-              sendMessage(new Message("system", "server", username, null, "registered"));
-            }
-            break;
-
-          case "create-room":
-            String rid = m.roomId();
-            if (rid == null || rid.isEmpty()) {
-              rid = m.text() != null ? m.text().trim().toLowerCase().replaceAll("\\s+", "-")
-                      : "room-" + System.currentTimeMillis();
-            }
-            server.createRoom(rid, m.text() == null ? rid : m.text(), username);
-            break;
-
-          case "message":
-            if (m.to() != null && !m.to().isEmpty()) {
-              server.sendPrivate(m);
-            } else if (m.roomId() != null && !m.roomId().isEmpty()) {
-              server.broadcastToRoom(m);
-            }
-            break;
-
-          case "join-room":
-            server.joinRoom(m.roomId(), username);
-            break;
-
-          default:
-            // ignoruojame nežinomus tipus
+        if (!keepOpen) {
+          // leidžiame rašymo gijai išsiųsti, kas liko eilėje (pvz. register-failed), ir tada uždarome
+          outbound.close();
+          writer.join(1000);
+          return;
         }
       }
     } catch (IOException e) {
-      logger.log(Level.INFO, "IO problemos su klientu " + socket.getRemoteSocketAddress() + ": " + e.getMessage(), e);
+      // socket'ą uždarėme patys (drain, close) - tai ne kliento problema
+      Level level = socket.isClosed() ? Level.FINE : Level.INFO;
+      logger.log(level, "IO problemos su klientu " + socket.getRemoteSocketAddress() + ": " + e.getMessage(), e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } catch (Exception ex) {
       logger.log(Level.SEVERE, "Netikėta klaida ClientHandler'e", ex);
     } finally {
@@ -92,39 +103,112 @@ public class ClientHandler implements Runnable {
     }
   }
 
-  public synchronized void sendMessage(Message m) {
+  /**
+   * Rašymo gija: paima viską, kas susikaupė eilėje, įrašo ir daro vieną flush visam paketui.
+   */
+  private void writeLoop(OutputStream os) {
+    List<Frame> batch = new ArrayList<>(MAX_BATCH);
+    WireFormat format = WireFormat.JSON;
+    ServerMetrics metrics = server.metrics();
+    LongConsumer encodeObserver = metrics.serializeNanos::record;
     try {
-      if (out == null) return;
-      String json = gson.toJson(m);
-      out.println(json); // autoFlush = true -> println flush'ins
-      if (out.checkError()) {
+      while (true) {
+        int skipped = outbound.awaitBatch(batch, MAX_BATCH);
+        if (skipped < 0) {
+          // eilė uždaryta ir viskas išsiųsta - skaitymo gija pabus nuo uždaryto socket'o
+          closeQuietly();
+          return;
+        }
+        if (skipped > 0) Frame.of(lagNotice(skipped)).writeTo(os, format, encodeObserver);
+        // rašymo laikas matuojamas be kodavimo: length() užkoduoja kadrą prieš pradedant matuoti
+        long writeNanos = 0;
+        for (Frame frame : batch) {
+          if (frame.switchFormat() != null) {
+            format = frame.switchFormat();
+            continue;
+          }
+          metrics.messageOut(frame.message().type(), frame.length(format, encodeObserver));
+          long start = System.nanoTime();
+          frame.writeTo(os, format);
+          writeNanos += System.nanoTime() - start;
+        }
+        long start = System.nanoTime();
+        os.flush();
+        metrics.socketWriteNanos.record(writeNanos + System.nanoTime() - start);
+        batch.clear();
+      }
+    } catch (IOException e) {
+      if (!socket.isClosed()) {
         logger.info("Klaida rašant klientui, atšaukiama registracija: " + username);
         closeQuietly();
       }
-    } catch (Exception e) {
-      logger.log(Level.WARNING, "Klaida siunčiant pranešimą klientui " + username, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void send(Frame frame) {
+    // uždaryta eilė (drain) - ryšys baigiamas, naujų kadrų nebesiunčiame
+    if (!outbound.offer(frame) && !outbound.isClosed() && !socket.isClosed()) {
+      logger.info("Klientas nespėja skaityti, atjungiamas: " + username);
       closeQuietly();
     }
   }
 
+  @Override
+  public void switchFormat(WireFormat format) {
+    inFormat = format;
+    send(Frame.switchTo(format));
+  }
+
+  @Override
+  public void drain() {
+    // rašymo gija išsiųs, kas liko, ir uždarys socket'ą
+    outbound.close();
+  }
+
+  @Override
+  public RateLimiter rateLimiter() {
+    return limiter;
+  }
+
+  @Override
+  public OutboundQueue.Stats outboundStats() {
+    return outbound.stats();
+  }
+
+  private Message lagNotice(int skipped) {
+    return new Message(MessageKind.SYSTEM, "server", username, null, "lagging:" + skipped);
+  }
+
+  @Override
+  public void close() {
+    closeQuietly();
+  }
+
   /**
    * Saugu uždaro socket'ą ir atregistruoja vartotoją (idempotentiškas).
    */
   private void closeQuietly() {
+    // kviečia ir skaitymo, ir rašymo gija - atregistruojama tik kartą
+    if (!closed.compareAndSet(false, true)) return;
+    server.connectionClosed(this);
+    outbound.close();
     try {
       if (!socket.isClosed()) socket.close();
     } catch (IOException e) {
       logger.log(Level.FINE, "Negalima uždaryti socket'o", e);
     }
 
-    if (username != null) {
+    String name = username;
+    username = null;
+    if (name != null) {
       try {
-        server.unregisterClient(username);
+        server.unregisterClient(name, this);
       } catch (Exception e) {
-        logger.log(Level.WARNING, "Nepavyko atregistruoti kliento " + username, e);
+        logger.log(Level.WARNING, "Nepavyko atregistruoti kliento " + name, e);
       }
-      username = null;
     }
-    out = null;
   }
 }
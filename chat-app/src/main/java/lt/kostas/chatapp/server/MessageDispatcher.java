@@ -0,0 +1,331 @@
+package lt.kostas.chatapp.server;
+
+import com.google.gson.Gson;
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.WireFormat;
+import lt.kostas.chatapp.search.SearchPage;
+import lt.kostas.chatapp.search.SearchQuery;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Protokolo logika, bendra visiems transportams: iškoduoja gautą eilutę ir
+ * perduoda ją atitinkamam {@link ChatServer} metodui.
+ */
+final class MessageDispatcher {
+  private static final Logger logger = Logger.getLogger(MessageDispatcher.class.getName());
+  // istorijos puslapio dydis, kai klientas jo nenurodo, ir didžiausias leidžiamas
+  static final int DEFAULT_HISTORY_PAGE = 50;
+  static final int MAX_HISTORY_PAGE = 200;
+  static final int DEFAULT_SEARCH_PAGE = 20;
+  static final int MAX_SEARCH_PAGE = 100;
+  // kiek daugiausiai praleistų žinučių iš vieno pokalbio atkartojama pratęsiant sesiją
+  static final int MAX_REPLAY = 200;
+  // iki kiek žinučių didinamas istorijos puslapis, kai visas jis - tos pačios milisekundės
+  static final int MAX_SAME_MILLIS_PAGE = 10_000;
+
+  private final ChatServer server;
+  private final Gson gson = new Gson();
+  // tipas → apdorojimas; EnumMap - tai masyvas pagal ordinal(), be eilučių lyginimo
+  private final Map<MessageKind, Handler> handlers = new EnumMap<>(MessageKind.class);
+
+  /**
+   * Vieno tipo užklausos apdorojimas.
+   */
+  @FunctionalInterface
+  private interface Handler {
+    /**
+     * @param username užregistruoto vartotojo vardas arba null
+     * @return false, jei ryšys turi būti uždarytas
+     */
+    boolean handle(ClientConnection conn, String username, Message m);
+  }
+
+  MessageDispatcher(ChatServer server) {
+    this.server = server;
+    handlers.put(MessageKind.REGISTER, this::register);
+    handlers.put(MessageKind.CREATE_ROOM, this::createRoom);
+    handlers.put(MessageKind.MESSAGE, this::message);
+    handlers.put(MessageKind.JOIN_ROOM, this::joinRoom);
+    handlers.put(MessageKind.HISTORY, this::history);
+    handlers.put(MessageKind.SEARCH, this::search);
+  }
+
+  /**
+   * Apdoroja vieną JSON eilutę.
+   *
+   * @return false, jei ryšys turi būti uždarytas (išsiuntus, kas jau eilėje)
+   */
+  boolean handleLine(ClientConnection conn, String line) {
+    Message m = parseLine(line);
+    return m == null || handle(conn, m);
+  }
+
+  /**
+   * @return iškoduota žinutė arba null, jei eilutė nėra žinutė (klaida užrašoma į žurnalą)
+   */
+  Message parseLine(String line) {
+    try {
+      return gson.fromJson(line, Message.class);
+    } catch (Exception ex) {
+      logger.log(Level.WARNING, "Negalima deserializuoti žinutės: " + line, ex);
+      return null;
+    }
+  }
+
+  boolean handle(ClientConnection conn, Message m) {
+    server.metrics().messageIn(m.type());
+    RateLimiter limiter = conn.rateLimiter();
+    if (limiter != null) {
+      RateLimiter.Verdict verdict = limiter.check(m.type());
+      if (verdict != RateLimiter.Verdict.ALLOW) return rejected(conn, m, limiter, verdict);
+    }
+    // nežinomi tipai (null) ir tie, kurių klientas siųsti neturėtų, ignoruojami
+    Handler handler = handlers.get(m.type());
+    return handler == null || handler.handle(conn, conn.getUsername(), m);
+  }
+
+  private boolean register(ClientConnection conn, String username, Message m) {
+    long cooldown = server.cooldownRemainingMillis(m.from());
+    if (cooldown > 0) {
+      conn.sendMessage(new Message(MessageKind.SYSTEM, "server", m.from(), null, "cooldown;retryAfterMs=" + cooldown));
+      conn.sendMessage(new Message(MessageKind.SYSTEM, "server", m.from(), null, "register-failed"));
+      return false;
+    }
+    // text - parinktys "raktas=reikšmė;...", pvz. codec=binary arba resume=<raktas>;since=<timestamp>
+    Map<String, String> options = parseOptions(m.text());
+    String resume = options.get("resume");
+    boolean resumed = resume != null && server.resumeSession(m.from(), resume, conn);
+    conn.setUsername(m.from());
+    boolean ok = server.registerClient(m.from(), conn);
+    if (!ok) {
+      // vardas priklauso kitam klientui - jo neatregistruojame uždarydami šį ryšį
+      conn.setUsername(null);
+      conn.sendMessage(new Message(MessageKind.SYSTEM, "server", m.from(), null, "register-failed"));
+      return false;
+    }
+    String token = resumed ? resume : server.newSession(m.from());
+    WireFormat format = WireFormat.fromOption(options.get("codec"));
+    if (format == WireFormat.BINARY) {
+      // patvirtinimas dar JSON, visa kita - jau dvejetainiu formatu
+      conn.sendMessage(new Message(MessageKind.SYSTEM, "server", m.from(), null, "registered;codec=binary;token=" + token));
+      conn.switchFormat(format);
+    } else {
+      conn.sendMessage(new Message(MessageKind.SYSTEM, "server", m.from(), null, "registered;token=" + token));
+    }
+    if (resumed) replayMissed(conn, m.from(), parseLong(options.get("since")));
+    return true;
+  }
+
+  private boolean createRoom(ClientConnection conn, String username, Message m) {
+    String rid = m.roomId();
+    if (rid == null || rid.isEmpty()) {
+      rid = m.text() != null ? m.text().trim().toLowerCase().replaceAll("\\s+", "-")
+              : "room-" + System.currentTimeMillis();
+    }
+    server.createRoom(rid, m.text() == null ? rid : m.text(), username);
+    return true;
+  }
+
+  private boolean message(ClientConnection conn, String username, Message m) {
+    // laiką nustato serveris: juo remiasi istorijos žymekliai ir praleistų žinučių atkartojimas,
+    // o klientų laikrodžiai gali skirtis
+    m = new Message(m.type(), m.from(), m.to(), m.roomId(), m.text(), System.currentTimeMillis());
+    if (m.to() != null && !m.to().isEmpty()) {
+      server.sendPrivate(m);
+    } else if (m.roomId() != null && !m.roomId().isEmpty()) {
+      server.broadcastToRoom(m);
+    }
+    return true;
+  }
+
+  private boolean joinRoom(ClientConnection conn, String username, Message m) {
+    server.joinRoom(m.roomId(), username);
+    return true;
+  }
+
+  private boolean history(ClientConnection conn, String username, Message m) {
+    if (username != null) sendHistoryPage(conn, username, m);
+    return true;
+  }
+
+  private boolean search(ClientConnection conn, String username, Message m) {
+    if (username != null) sendSearchPage(conn, username, m);
+    return true;
+  }
+
+  /**
+   * Atmestos užklausos atsakymas: {@code rate-limited;type=...;retryAfterMs=...}. Jei pažeidimų per daug,
+   * klientas atjungiamas ir kurį laiką negali vėl prisiregistruoti.
+   *
+   * @return false, jei ryšį reikia uždaryti
+   */
+  private boolean rejected(ClientConnection conn, Message m, RateLimiter limiter, RateLimiter.Verdict verdict) {
+    server.metrics().rateLimited.increment();
+    String username = conn.getUsername();
+    conn.sendMessage(new Message(MessageKind.SYSTEM, "server", username, null,
+            "rate-limited;type=" + m.type() + ";retryAfterMs=" + limiter.retryAfterMillis()));
+    if (verdict != RateLimiter.Verdict.DISCONNECT) return true;
+    return disconnect(conn, "rate-limit");
+  }
+
+  /**
+   * Klientas atsiuntė per ilgą eilutę - atjungiamas kaip ir viršijęs ribas.
+   */
+  boolean lineTooLong(ClientConnection conn) {
+    return disconnect(conn, "line-too-long");
+  }
+
+  private boolean disconnect(ClientConnection conn, String reason) {
+    server.metrics().limitDisconnects.increment();
+    String username = conn.getUsername();
+    long cooldown = server.coolDown(username);
+    conn.sendMessage(new Message(MessageKind.SYSTEM, "server", username, null,
+            "disconnected;reason=" + reason + ";cooldownMs=" + cooldown));
+    logger.info(() -> "Klientas atjungiamas (" + reason + "): " + username);
+    return false;
+  }
+
+  /**
+   * Pratęstai sesijai atsiunčia žinutes iš vartotojo kambarių ir privačių pokalbių, kurių {@code timestamp}
+   * ne mažesnis nei {@code since} (klientas pats atmeta jau matytas tos pačios milisekundės žinutes).
+   * Žinutės siunčiamos kaip įprasti {@code message} kadrai chronologine tvarka, po jų -
+   * {@code resumed;replayed=N;complete=true|false}; false reiškia, kad bent viename pokalbyje praleista daugiau
+   * nei {@link #MAX_REPLAY} žinučių ir senesnes reikia gauti per {@code history}.
+   */
+  private void replayMissed(ClientConnection conn, String username, long since) {
+    List<Message> missed = new ArrayList<>();
+    boolean complete = true;
+    if (since > 0) {
+      for (ConversationKey key : server.conversationsOf(username)) {
+        List<Message> page = server.history(key, Long.MAX_VALUE, MAX_REPLAY);
+        int from = page.size();
+        while (from > 0 && page.get(from - 1).timestamp() >= since) from--;
+        if (from == 0 && page.size() >= MAX_REPLAY) complete = false;
+        missed.addAll(page.subList(from, page.size()));
+      }
+      missed.sort(Comparator.comparingLong(Message::timestamp));
+    }
+    for (Message h : missed) {
+      conn.send(Frame.of(h));
+    }
+    conn.sendMessage(new Message(MessageKind.SYSTEM, "server", username, null,
+            "resumed;replayed=" + missed.size() + ";complete=" + complete));
+  }
+
+  /**
+   * Atsako į {@code history} užklausą: {@code roomId} arba {@code to} (privatus pokalbis su tuo vartotoju),
+   * {@code timestamp} - žymeklis (0 - naujausios žinutės), {@code text} - puslapio dydis.
+   * <p>
+   * Klientui išsiunčiamos žinutės chronologine tvarka kaip {@code history} kadrai, o po jų -
+   * {@code history-end}, kurio {@code timestamp} yra kito (senesnio) puslapio žymeklis,
+   * o {@code text} - "more" arba "done". Kambario, kurio narys vartotojas nėra, istorija tuščia (kaip ir paieškoje).
+   */
+  private void sendHistoryPage(ClientConnection conn, String username, Message m) {
+    ConversationKey key;
+    if (m.to() != null && !m.to().isBlank()) {
+      key = ConversationKey.direct(username, m.to());
+    } else if (m.roomId() != null && !m.roomId().isBlank()) {
+      key = ConversationKey.room(m.roomId());
+    } else {
+      return;
+    }
+    long before = m.timestamp() > 0 ? m.timestamp() : Long.MAX_VALUE;
+    // svetimo kambario ar neegzistuojančio vartotojo pokalbio istorija - tuščia, saugykla neskaitoma
+    boolean allowed = key.isDirect() ? server.isKnownUser(m.to()) : server.isRoomMember(m.roomId(), username);
+    if (!allowed) {
+      conn.send(Frame.of(new Message(MessageKind.HISTORY_END, "server", m.to(), m.roomId(), "done", before)));
+      return;
+    }
+    int limit = parsePageSize(m.text(), DEFAULT_HISTORY_PAGE, MAX_HISTORY_PAGE);
+    List<Message> page = server.history(key, before, limit);
+    boolean more = page.size() >= limit;
+    // žymeklis yra griežtas (< timestamp), todėl puslapio riba negali dalinti milisekundės: jei visas puslapis -
+    // vienos milisekundės, jis didinamas, kol apims ją visą
+    while (more && limit < MAX_SAME_MILLIS_PAGE && page.get(0).timestamp() == page.get(page.size() - 1).timestamp()) {
+      limit = Math.min(limit * 2, MAX_SAME_MILLIS_PAGE);
+      page = server.history(key, before, limit);
+      more = page.size() >= limit;
+    }
+    int from = 0;
+    if (more) {
+      // seniausios milisekundės žinutės gali būti ne visos - paliekame jas kitam puslapiui
+      long oldest = page.get(0).timestamp();
+      while (from < page.size() && page.get(from).timestamp() == oldest) from++;
+      if (from == page.size()) from = 0;
+    }
+
+    for (Message h : page.subList(from, page.size())) {
+      conn.send(Frame.of(new Message(MessageKind.HISTORY, h.from(), h.to(), h.roomId(), h.text(), h.timestamp())));
+    }
+    long cursor = page.isEmpty() ? before : page.get(from).timestamp();
+    conn.send(Frame.of(new Message(MessageKind.HISTORY_END, "server", m.to(), m.roomId(), more ? "more" : "done", cursor)));
+  }
+
+  /**
+   * Atsako į {@code search} užklausą. {@code text} - parinktys "q=...;from=...;after=...;before=...;limit=...",
+   * {@code roomId} - tik to kambario žinutės, {@code timestamp} - žymeklis (0 - nuo naujausių).
+   * <p>
+   * Rezultatai siunčiami nuo naujausio kaip {@code search-result} kadrai, po jų - {@code search-end},
+   * kurio {@code timestamp} yra kito puslapio žymeklis, o {@code text} - "more" arba "done".
+   * Randamos tik kambarių, kurių narys yra vartotojas, ir jo paties privačios žinutės.
+   */
+  private void sendSearchPage(ClientConnection conn, String username, Message m) {
+    Map<String, String> options = parseOptions(m.text());
+    String roomId = m.roomId() == null || m.roomId().isBlank() ? null : m.roomId();
+    String from = options.get("from");
+    SearchQuery query = new SearchQuery(options.getOrDefault("q", ""), roomId,
+            from == null || from.isEmpty() ? null : from,
+            parseLong(options.get("after")), parseLong(options.get("before")), m.timestamp(),
+            parsePageSize(options.get("limit"), DEFAULT_SEARCH_PAGE, MAX_SEARCH_PAGE),
+            username, r -> server.isRoomMember(r, username));
+    SearchPage page = server.search(query);
+    if (page != null) {
+      for (Message h : page.hits()) {
+        conn.send(Frame.of(new Message(MessageKind.SEARCH_RESULT, h.from(), h.to(), h.roomId(), h.text(), h.timestamp())));
+      }
+    }
+    boolean more = page != null && page.more();
+    long cursor = page == null ? 0 : page.nextCursor();
+    conn.send(Frame.of(new Message(MessageKind.SEARCH_END, "server", null, m.roomId(), more ? "more" : "done", cursor)));
+  }
+
+  static Map<String, String> parseOptions(String text) {
+    Map<String, String> options = new HashMap<>();
+    if (text == null || text.isBlank()) return options;
+    for (String part : text.split(";")) {
+      int eq = part.indexOf('=');
+      if (eq > 0) options.put(part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+    }
+    return options;
+  }
+
+  private static int parsePageSize(String text, int defaultSize, int maxSize) {
+    if (text == null || text.isBlank()) return defaultSize;
+    try {
+      int n = Integer.parseInt(text.trim());
+      return n <= 0 ? defaultSize : Math.min(n, maxSize);
+    } catch (NumberFormatException e) {
+      return defaultSize;
+    }
+  }
+
+  private static long parseLong(String text) {
+    if (text == null || text.isBlank()) return 0;
+    try {
+      return Math.max(0, Long.parseLong(text.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+}
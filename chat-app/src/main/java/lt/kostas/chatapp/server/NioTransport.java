@@ -0,0 +1,572 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.LineTooLongException;
+import lt.kostas.chatapp.protocol.WireFormat;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Neblokuojantis transportas: vienas {@link ServerSocketChannel} priima ryšius, o juos aptarnauja
+ * nedidelis {@link Selector} ciklų (event loop) rinkinys. Protokolas tas pats kaip blokuojančio
+ * transporto (JSON eilutės arba suderintas {@link WireFormat#BINARY}), todėl {@code NetworkClient} veikia be pakeitimų.
+ * <p>
+ * Event loop gija tik skaito, iškoduoja ir rašo. Užklausos apdorojamos virtualiose darbo gijose, po vieną
+ * ryšio užklausą iš eilės: registracija, istorija ir paieška gali skaityti diską, o saugyklos ir paieškos
+ * eilės, kai pilnos, blokuoja siuntėją - tai turi stabdyti tik tą ryšį, o ne visus ciklo ryšius.
+ */
+public class NioTransport {
+  private static final Logger logger = Logger.getLogger(NioTransport.class.getName());
+  private static final int READ_BUFFER_SIZE = 16 * 1024;
+  // kiek kadrų daugiausiai siunčiama vienu write()
+  private static final int MAX_BATCH = 256;
+  // kiek iškoduotų, bet dar neapdorotų užklausų gali laukti vienas ryšys; pasiekus - nebeskaitoma iš kanalo
+  private static final int MAX_INBOUND = 64;
+
+  private final ChatServer server;
+  private final MessageDispatcher dispatcher;
+  // kadrų kodavimo trukmė - šio serverio metrikoms
+  private final LongConsumer encodeObserver;
+  private final EventLoop[] loops;
+  private final ExecutorService workers = Executors.newThreadPerTaskExecutor(
+          Thread.ofVirtual().name("NIO-Worker-", 0).factory());
+  private ServerSocketChannel acceptor;
+  private int next;
+
+  NioTransport(ChatServer server, MessageDispatcher dispatcher, int threads) {
+    this.server = server;
+    this.dispatcher = dispatcher;
+    this.encodeObserver = server.metrics().serializeNanos::record;
+    this.loops = new EventLoop[threads];
+  }
+
+  /**
+   * Užima portą ir paleidžia event loop gijas. Po šio metodo klientai jau gali jungtis.
+   */
+  void bind(int port) throws IOException {
+    acceptor = ServerSocketChannel.open();
+    acceptor.bind(new InetSocketAddress(port));
+    for (int i = 0; i < loops.length; i++) {
+      loops[i] = new EventLoop(Selector.open());
+      Thread t = new Thread(loops[i], "NIO-Loop-" + i);
+      t.setDaemon(true);
+      t.start();
+    }
+  }
+
+  /**
+   * Priima ryšius (blokuojančiai) ir paskirsto juos ciklams po vieną paeiliui, kol kanalas uždarytas.
+   */
+  void acceptLoop() {
+    while (acceptor.isOpen()) {
+      SocketChannel ch;
+      try {
+        ch = acceptor.accept();
+      } catch (ClosedChannelException e) {
+        break;
+      } catch (IOException e) {
+        // pvz. EMFILE - pritrūko failų deskriptorių; ciklas tęsiamas, kad mazgas vėl priimtų ryšius
+        logger.log(Level.WARNING, "Nepavyko priimti ryšio", e);
+        pauseAfterAcceptFailure();
+        continue;
+      }
+      try {
+        ch.configureBlocking(false);
+        ch.socket().setTcpNoDelay(true);
+      } catch (IOException e) {
+        // klientas spėjo nutraukti ryšį
+        logger.log(Level.FINE, "Nepavyko paruošti ryšio", e);
+        closeQuietly(ch);
+        continue;
+      }
+      EventLoop loop = loops[next];
+      next = (next + 1) % loops.length;
+      loop.register(ch);
+    }
+  }
+
+  /**
+   * Po nepavykusio accept() trumpai palaukiama, kad nuolatinė klaida (EMFILE) neišsuktų ciklo.
+   */
+  private static void pauseAfterAcceptFailure() {
+    try {
+      Thread.sleep(10);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static void closeQuietly(SocketChannel ch) {
+    try {
+      ch.close();
+    } catch (IOException ignored) {
+    }
+  }
+
+  /**
+   * Uždaro priėmimo kanalą: {@link #acceptLoop} baigiasi, o esami ryšiai aptarnaujami toliau.
+   */
+  void stopAccepting() {
+    try {
+      if (acceptor != null) acceptor.close();
+    } catch (IOException e) {
+      logger.log(Level.FINE, "Nepavyko uždaryti ServerSocketChannel", e);
+    }
+  }
+
+  void close() {
+    stopAccepting();
+    for (EventLoop loop : loops) {
+      if (loop != null) loop.shutdown();
+    }
+    // ryšiai jau uždaryti, todėl darbo gijos baigia greitai; close() jų sulaukia
+    workers.close();
+  }
+
+  private final class EventLoop implements Runnable {
+    private final Selector selector;
+    private final Queue<SocketChannel> pendingRegistrations = new ConcurrentLinkedQueue<>();
+    private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<>();
+    // darbo gijos ištuštino ryšio užklausų eilę - vėl skaitome iš to ryšio
+    private final Queue<NioConnection> pendingResumes = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    EventLoop(Selector selector) {
+      this.selector = selector;
+    }
+
+    void register(SocketChannel ch) {
+      pendingRegistrations.add(ch);
+      selector.wakeup();
+    }
+
+    void scheduleWrite(NioConnection conn) {
+      pendingWrites.add(conn);
+      selector.wakeup();
+    }
+
+    void scheduleResume(NioConnection conn) {
+      pendingResumes.add(conn);
+      selector.wakeup();
+    }
+
+    void shutdown() {
+      running = false;
+      selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+      while (running) {
+        try {
+          selector.select();
+          registerPending();
+          resumePending();
+          flushPending();
+
+          Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+          while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            NioConnection conn = (NioConnection) key.attachment();
+            if (!key.isValid()) {
+              conn.close();
+              continue;
+            }
+            try {
+              if (key.isReadable()) conn.onReadable();
+              if (key.isValid() && key.isWritable()) conn.flush();
+            } catch (IOException | CancelledKeyException e) {
+              logger.log(Level.FINE, "Ryšys nutrūko: " + conn.getUsername(), e);
+              conn.close();
+            }
+          }
+        } catch (IOException e) {
+          logger.log(Level.SEVERE, "Selector klaida", e);
+        } catch (Exception e) {
+          logger.log(Level.SEVERE, "Netikėta klaida event loop'e", e);
+        }
+      }
+      for (SelectionKey key : selector.keys()) {
+        if (key.attachment() instanceof NioConnection conn) conn.close();
+      }
+      try {
+        selector.close();
+      } catch (IOException ignored) {
+      }
+    }
+
+    private void registerPending() {
+      SocketChannel ch;
+      while ((ch = pendingRegistrations.poll()) != null) {
+        try {
+          SelectionKey key = ch.register(selector, SelectionKey.OP_READ);
+          NioConnection conn = new NioConnection(ch, key, this);
+          key.attach(conn);
+          // serveris jau stabdomas - ryšys, priimtas paskutinę akimirką, uždaromas iš karto
+          if (!server.connectionOpened(conn)) conn.close();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "Nepavyko užregistruoti ryšio", e);
+          closeQuietly(ch);
+        }
+      }
+    }
+
+    private void resumePending() {
+      NioConnection conn;
+      while ((conn = pendingResumes.poll()) != null) {
+        try {
+          conn.resumeReading();
+        } catch (CancelledKeyException e) {
+          conn.close();
+        }
+      }
+    }
+
+    private void flushPending() {
+      NioConnection conn;
+      while ((conn = pendingWrites.poll()) != null) {
+        try {
+          conn.flush();
+        } catch (IOException | CancelledKeyException e) {
+          logger.log(Level.FINE, "Nepavyko išsiųsti: " + conn.getUsername(), e);
+          conn.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * Vienas ryšys. Skaitymas ir rašymas į kanalą vyksta tik jo event loop gijoje;
+   * {@link #sendMessage} iš kitų gijų tik įdeda kadrą į ribotą eilę ir pažadina ciklą.
+   * Iškoduotos užklausos dedamos į {@link #inbound} ir apdorojamos darbo gijoje ta pačia tvarka.
+   */
+  private final class NioConnection implements ClientConnection {
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final EventLoop loop;
+    // gauti, bet dar neapdoroti baitai (rašymo režimu); nebaigtas kadras lieka čia iki kito read()
+    private ByteBuffer inbox = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // kiek inbox baitų nuo pozicijos jau peržiūrėta ieškant '\n'
+    private int lineScanned;
+    private final OutboundQueue outbound = server.newOutboundQueue();
+    private final RateLimiter limiter = server.newRateLimiter();
+    private final int maxLineBytes = server.rateLimits().maxLineBytes();
+    private final List<Frame> batch = new ArrayList<>(MAX_BATCH);
+    private final AtomicBoolean writeScheduled = new AtomicBoolean();
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private final AtomicBoolean released = new AtomicBoolean();
+    // dalinai išsiųstas paketas: siunčiama gathering write'u nuo pendingOffset
+    private ByteBuffer[] pending;
+    private int pendingOffset;
+    // inFormat keičia register darbo gijoje, kol skaitymas sustabdytas; outFormat - tik event loop gijoje
+    private volatile WireFormat inFormat = WireFormat.JSON;
+    private WireFormat outFormat = WireFormat.JSON;
+    // užklausos, laukiančios darbo gijos; tvarka ta pati, kaip atėjo
+    private final Queue<BooleanSupplier> inbound = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean workerScheduled = new AtomicBoolean();
+    private int inboundCount;
+    // nebeskaitoma, kol darbo gija neištuštins eilės (event loop gijos būsena)
+    private boolean readPaused;
+    // apdorojimas baigtas (ryšys bus uždarytas išsiuntus eilę) - naujos užklausos nebepriimamos
+    private volatile boolean finishing;
+    private volatile String username;
+
+    NioConnection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+      this.channel = channel;
+      this.key = key;
+      this.loop = loop;
+    }
+
+    @Override
+    public String getUsername() {
+      return username;
+    }
+
+    @Override
+    public void setUsername(String username) {
+      this.username = username;
+    }
+
+    @Override
+    public void send(Frame frame) {
+      if (closed.get()) return;
+      if (!outbound.offer(frame)) {
+        // eilė uždaryta (drain) - ryšys baigiamas, naujų kadrų nebesiunčiame
+        if (outbound.isClosed()) return;
+        logger.info("Klientas nespėja skaityti, atjungiamas: " + username);
+        close();
+        return;
+      }
+      scheduleFlush();
+    }
+
+    @Override
+    public void switchFormat(WireFormat format) {
+      inFormat = format;
+      send(Frame.switchTo(format));
+    }
+
+    @Override
+    public void drain() {
+      // flush() išsiųs, kas liko, ir pamatęs uždarytą tuščią eilę uždarys ryšį
+      outbound.close();
+      scheduleFlush();
+    }
+
+    @Override
+    public RateLimiter rateLimiter() {
+      return limiter;
+    }
+
+    @Override
+    public OutboundQueue.Stats outboundStats() {
+      return outbound.stats();
+    }
+
+    private void scheduleFlush() {
+      if (writeScheduled.compareAndSet(false, true)) {
+        loop.scheduleWrite(this);
+      }
+    }
+
+    void onReadable() throws IOException {
+      if (!inbox.hasRemaining()) growInbox();
+      int n = channel.read(inbox);
+      if (n < 0) {
+        close();
+        return;
+      }
+      decodeInbox();
+    }
+
+    /**
+     * Iškoduoja pilnus kadrus iš inbox ir perduoda juos darbo gijai. Po {@code register} skaitymas sustabdomas,
+     * kol jis bus apdorotas, nes formatas gali pasikeisti to paties buferio viduryje ({@code codec=binary}).
+     */
+    private void decodeInbox() throws ProtocolException {
+      inbox.flip();
+      try {
+        while (!closed.get() && !finishing && !readPaused) {
+          if (inFormat == WireFormat.BINARY) {
+            Message m = BinaryCodec.tryDecode(inbox);
+            if (m == null) break;
+            enqueue(m.type() == MessageKind.REGISTER, () -> dispatcher.handle(this, m));
+          } else {
+            try {
+              String line = nextLine();
+              if (line == null) break;
+              if (line.isBlank()) continue;
+              Message m = dispatcher.parseLine(line.strip());
+              if (m != null) enqueue(m.type() == MessageKind.REGISTER, () -> dispatcher.handle(this, m));
+            } catch (LineTooLongException e) {
+              // ryšys bus uždarytas - likusių baitų nebeskaitome
+              enqueue(true, () -> dispatcher.lineTooLong(this));
+            }
+          }
+        }
+      } finally {
+        inbox.compact();
+      }
+    }
+
+    /**
+     * @param pause sustabdyti skaitymą, kol ši užklausa bus apdorota
+     */
+    private void enqueue(boolean pause, BooleanSupplier request) {
+      inbound.add(request);
+      if (pause || ++inboundCount >= MAX_INBOUND) {
+        readPaused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+      }
+      if (workerScheduled.compareAndSet(false, true)) {
+        workers.execute(this::processInbound);
+      }
+    }
+
+    /**
+     * Darbo gijoje: apdoroja eilėje laukiančias užklausas, tada leidžia event loop'ui vėl skaityti.
+     */
+    private void processInbound() {
+      while (true) {
+        BooleanSupplier request;
+        while (!finishing && !closed.get() && (request = inbound.poll()) != null) {
+          boolean keepOpen;
+          try {
+            keepOpen = request.getAsBoolean();
+          } catch (Exception e) {
+            logger.log(Level.WARNING, "Klaida apdorojant užklausą: " + username, e);
+            close();
+            break;
+          }
+          if (!keepOpen) {
+            // išsiunčiame, kas liko eilėje (pvz. register-failed), tada flush() uždarys ryšį
+            finishing = true;
+            inbound.clear();
+            outbound.close();
+            scheduleFlush();
+          }
+        }
+        workerScheduled.set(false);
+        if (closed.get()) {
+          // close() iš kitos gijos galėjo įvykti vykdant register - vardą atlaisviname čia
+          releaseUsername();
+          return;
+        }
+        // užklausa galėjo atkeliauti tarp poll() ir set(false)
+        if (finishing || inbound.isEmpty() || !workerScheduled.compareAndSet(false, true)) break;
+      }
+      loop.scheduleResume(this);
+    }
+
+    /**
+     * Event loop gijoje, darbo gijai ištuštinus eilę: vėl skaitoma iš kanalo ir iškoduojama, kas liko inbox.
+     */
+    void resumeReading() {
+      if (closed.get()) return;
+      if (finishing) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        return;
+      }
+      inboundCount = inbound.size();
+      if (!readPaused || inboundCount > 0) return;
+      readPaused = false;
+      key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+      try {
+        decodeInbox();
+      } catch (ProtocolException e) {
+        logger.log(Level.FINE, "Ryšys nutrūko: " + username, e);
+        close();
+      }
+    }
+
+    /**
+     * Kita pilna eilutė iš inbox arba null, jei '\n' dar neatėjo.
+     */
+    private String nextLine() throws LineTooLongException {
+      int start = inbox.position();
+      for (int i = start + lineScanned; i < inbox.limit(); i++) {
+        if (inbox.get(i) != '\n') continue;
+        if (i - start > maxLineBytes) throw new LineTooLongException(maxLineBytes);
+        String line = new String(inbox.array(), start, i - start, StandardCharsets.UTF_8);
+        inbox.position(i + 1);
+        lineScanned = 0;
+        return line;
+      }
+      lineScanned = inbox.limit() - start;
+      if (lineScanned > maxLineBytes) throw new LineTooLongException(maxLineBytes);
+      return null;
+    }
+
+    private void growInbox() throws ProtocolException {
+      if (inbox.capacity() > BinaryCodec.MAX_FRAME_BYTES) throw new ProtocolException("Per ilgas kadras");
+      ByteBuffer bigger = ByteBuffer.allocate(inbox.capacity() * 2);
+      inbox.flip();
+      bigger.put(inbox);
+      inbox = bigger;
+    }
+
+    /**
+     * Paima iš eilės paketą kadrų ir siunčia vienu gathering write'u. Jei kanalas priėmė
+     * ne viską, laukiame OP_WRITE ir tęsiame nuo ten pat.
+     */
+    void flush() throws IOException {
+      if (closed.get()) return;
+      while (true) {
+        if (pending == null) {
+          int skipped = outbound.drainBatch(batch, MAX_BATCH);
+          if (skipped < 0) {
+            // eilė uždaryta ir išsiųsta
+            close();
+            return;
+          }
+          if (batch.isEmpty() && skipped == 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            writeScheduled.set(false);
+            // kadras galėjo atkeliauti tarp drainBatch() ir set(false)
+            if (outbound.isEmpty() || !writeScheduled.compareAndSet(false, true)) return;
+            continue;
+          }
+          ByteBuffer[] buffers = new ByteBuffer[batch.size() + 1];
+          int count = 0;
+          if (skipped > 0) {
+            buffers[count++] = Frame.of(new Message(MessageKind.SYSTEM, "server", username, null, "lagging:" + skipped)).buffer(outFormat, encodeObserver);
+          }
+          for (Frame frame : batch) {
+            if (frame.switchFormat() != null) {
+              outFormat = frame.switchFormat();
+            } else {
+              ByteBuffer buffer = frame.buffer(outFormat, encodeObserver);
+              server.metrics().messageOut(frame.message().type(), buffer.remaining());
+              buffers[count++] = buffer;
+            }
+          }
+          batch.clear();
+          if (count == 0) continue; // pakete buvo tik formato perjungimo žymės
+          pending = count == buffers.length ? buffers : Arrays.copyOf(buffers, count);
+          pendingOffset = 0;
+        }
+        long start = System.nanoTime();
+        channel.write(pending, pendingOffset, pending.length - pendingOffset);
+        server.metrics().socketWriteNanos.record(System.nanoTime() - start);
+        while (pendingOffset < pending.length && !pending[pendingOffset].hasRemaining()) {
+          pendingOffset++;
+        }
+        if (pendingOffset < pending.length) {
+          key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+          return;
+        }
+        pending = null;
+      }
+    }
+
+    @Override
+    public void close() {
+      if (!closed.compareAndSet(false, true)) return;
+      server.connectionClosed(this);
+      outbound.close();
+      key.cancel();
+      try {
+        channel.close();
+      } catch (IOException e) {
+        logger.log(Level.FINE, "Negalima uždaryti kanalo", e);
+      }
+      // kol darbo gija apdoroja užklausą, ji dar gali užregistruoti vardą - tada atregistruos pati
+      if (!workerScheduled.get()) releaseUsername();
+    }
+
+    private void releaseUsername() {
+      if (!released.compareAndSet(false, true)) return;
+      String name = username;
+      username = null;
+      if (name != null) {
+        try {
+          server.unregisterClient(name, this);
+        } catch (Exception e) {
+          logger.log(Level.WARNING, "Nepavyko atregistruoti kliento " + name, e);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,197 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.Frame;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ribota vieno kliento siuntimo eilė. Siuntėjas tik įdeda kadrą ir grįžta, o kadrus
+ * paketais išsiunčia to kliento rašymo gija (arba event loop), todėl lėtas skaitytojas
+ * nebestabdo kitų kambario narių.
+ */
+public final class OutboundQueue {
+
+  /**
+   * Ką daryti, kai eilė pilna. Išmetamos tik pokalbių žinutės ({@link MessageKind#MESSAGE}) -
+   * valdymo kadrai (registracijos atsakymas, istorijos ir paieškos puslapiai, būsenos, formato žymės)
+   * lieka, nes be jų klientas nebesusigaudytų. Jei eilėje nėra ką išmesti, klientas atjungiamas.
+   */
+  public enum OverflowPolicy {
+    /** išmesti seniausią pokalbio žinutę eilėje */
+    DROP_OLDEST,
+    /** atjungti klientą */
+    DISCONNECT,
+    /** išmesti visas susikaupusias pokalbio žinutes ir vietoj jų išsiųsti vieną pranešimą, kiek praleista */
+    COALESCE
+  }
+
+  /**
+   * @param depth     kadrų eilėje dabar
+   * @param maxDepth  didžiausias pasiektas gylis
+   * @param enqueued  iš viso įdėta kadrų
+   * @param dropped   iš viso išmesta kadrų
+   * @param overflows kiek kartų eilė persipildė
+   */
+  public record Stats(int depth, int maxDepth, long enqueued, long dropped, long overflows) {
+  }
+
+  private final int capacity;
+  private final OverflowPolicy policy;
+  private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+
+  private int maxDepth;
+  private long enqueued;
+  private long dropped;
+  private long overflows;
+  // kiek kadrų praleista (COALESCE) nuo paskutinio paėmimo
+  private int skipped;
+  private boolean closed;
+
+  public OutboundQueue(int capacity, OverflowPolicy policy) {
+    if (capacity <= 0) throw new IllegalArgumentException("Eilės talpa turi būti teigiama");
+    this.capacity = capacity;
+    this.policy = policy;
+  }
+
+  /**
+   * Įdeda kadrą į eilę.
+   *
+   * @return false, jei eilė uždaryta arba pagal {@link OverflowPolicy#DISCONNECT} klientą reikia atjungti
+   */
+  public boolean offer(Frame frame) {
+    lock.lock();
+    try {
+      if (closed) return false;
+      if (frames.size() >= capacity) {
+        overflows++;
+        switch (policy) {
+          case DISCONNECT -> {
+            return false;
+          }
+          case DROP_OLDEST -> {
+            Iterator<Frame> it = frames.iterator();
+            while (it.hasNext()) {
+              if (droppable(it.next())) {
+                it.remove();
+                dropped++;
+                break;
+              }
+            }
+          }
+          case COALESCE -> {
+            int before = frames.size();
+            frames.removeIf(OutboundQueue::droppable);
+            skipped += before - frames.size();
+            dropped += before - frames.size();
+          }
+        }
+        // eilė pilna vien valdymo kadrų - klientas visai nebeskaito
+        if (frames.size() >= capacity) return false;
+      }
+      frames.addLast(frame);
+      enqueued++;
+      if (frames.size() > maxDepth) maxDepth = frames.size();
+      notEmpty.signal();
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Ar kadrą galima išmesti perpildžius eilę: tik pokalbių žinutes, o formato žymes ir valdymo kadrus - ne.
+   */
+  private static boolean droppable(Frame f) {
+    return f.switchFormat() == null && f.message().type() == MessageKind.MESSAGE;
+  }
+
+  /**
+   * Laukia, kol eilėje atsiras kadrų, ir perkelia iki {@code max} jų į {@code into}.
+   *
+   * @return kiek kadrų praleista dėl {@link OverflowPolicy#COALESCE} (dažniausiai 0)
+   * arba -1, jei eilė uždaryta ir jau ištuštinta
+   */
+  public int awaitBatch(List<Frame> into, int max) throws InterruptedException {
+    lock.lock();
+    try {
+      while (frames.isEmpty() && skipped == 0 && !closed) {
+        notEmpty.await();
+      }
+      return drain(into, max);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Kaip {@link #awaitBatch}, bet nelaukia - skirta event loop'ui.
+   */
+  public int drainBatch(List<Frame> into, int max) {
+    lock.lock();
+    try {
+      return drain(into, max);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private int drain(List<Frame> into, int max) {
+    if (closed && frames.isEmpty()) return -1;
+    for (int i = 0; i < max && !frames.isEmpty(); i++) {
+      into.add(frames.pollFirst());
+    }
+    int s = skipped;
+    skipped = 0;
+    return s;
+  }
+
+  public boolean isEmpty() {
+    lock.lock();
+    try {
+      return frames.isEmpty() && skipped == 0;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Ar eilė uždaryta - tada {@link #offer} grąžina false ne dėl perpildymo.
+   */
+  public boolean isClosed() {
+    lock.lock();
+    try {
+      return closed;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Uždaro eilę: nauji kadrai atmetami, jau įdėtus rašytojas dar gali paimti.
+   */
+  public void close() {
+    lock.lock();
+    try {
+      closed = true;
+      notEmpty.signalAll();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public Stats stats() {
+    lock.lock();
+    try {
+      return new Stats(frames.size(), maxDepth, enqueued, dropped, overflows);
+    } finally {
+      lock.unlock();
+    }
+  }
+}
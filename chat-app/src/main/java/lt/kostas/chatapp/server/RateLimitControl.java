@@ -0,0 +1,57 @@
+package lt.kostas.chatapp.server;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * {@link RateLimitControlMBean} įgyvendinimas: skaito ir keičia {@link ChatServer#rateLimits()}.
+ */
+final class RateLimitControl implements RateLimitControlMBean {
+  private static final Logger logger = Logger.getLogger(RateLimitControl.class.getName());
+
+  private final ChatServer server;
+  private ObjectName name;
+
+  RateLimitControl(ChatServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public String getLimits() {
+    return server.rateLimits().toSpec();
+  }
+
+  @Override
+  public void setLimits(String spec) {
+    server.setRateLimits(server.rateLimits().withSpec(spec));
+  }
+
+  /**
+   * Užregistruoja platformos MBean serveryje; klaida tik užrašoma į žurnalą.
+   */
+  void register(String objectName) {
+    try {
+      name = new ObjectName(objectName);
+      MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+      if (mbeans.isRegistered(name)) mbeans.unregisterMBean(name);
+      mbeans.registerMBean(this, name);
+    } catch (JMException e) {
+      logger.log(Level.WARNING, "Nepavyko užregistruoti ribų valdymo JMX: " + objectName, e);
+      name = null;
+    }
+  }
+
+  void unregister() {
+    if (name == null) return;
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+    } catch (JMException e) {
+      logger.log(Level.FINE, "Nepavyko išregistruoti " + name, e);
+    }
+    name = null;
+  }
+}
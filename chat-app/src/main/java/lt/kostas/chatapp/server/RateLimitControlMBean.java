@@ -0,0 +1,16 @@
+package lt.kostas.chatapp.server;
+
+/**
+ * JMX valdymas srauto riboms keisti neperkraunant serverio.
+ */
+public interface RateLimitControlMBean {
+  /**
+   * Dabartinės ribos "raktas=reikšmė;..." forma.
+   */
+  String getLimits();
+
+  /**
+   * Pakeičia tik nurodytas reikšmes, pvz. {@code messages=50;messages.burst=100}.
+   */
+  void setLimits(String spec);
+}
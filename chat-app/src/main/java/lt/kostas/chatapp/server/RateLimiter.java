@@ -0,0 +1,73 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.MessageKind;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Vieno ryšio žetonų kibirai - po vieną kiekvienai {@link RateLimits.Category}.
+ * <p>
+ * Kibiras laikomas viena reikšme - laiku, kada jis vėl bus pilnas (GCRA forma): užklausa leidžiama, jei tas
+ * laikas ne toliau nei {@code (burst - 1)} intervalų ateityje. Jokių gijų, užraktų ar alokacijų, nes ryšio
+ * užklausas visada apdoroja viena skaitymo gija.
+ */
+public final class RateLimiter {
+  public enum Verdict {
+    ALLOW,
+    /** užklausa atmesta, klientas lieka prisijungęs */
+    REJECT,
+    /** per daug atmestų užklausų - klientą reikia atjungti */
+    DISCONNECT
+  }
+
+  private final Supplier<RateLimits> limits;
+  private final long[] fullAt = new long[RateLimits.Category.values().length];
+  // intervalai perskaičiuojami tik pasikeitus riboms
+  private RateLimits cached;
+  private final long[] interval = new long[fullAt.length];
+  private final long[] tolerance = new long[fullAt.length];
+  private long retryAfterNanos;
+  private int strikes;
+  private long lastStrike;
+
+  public RateLimiter(Supplier<RateLimits> limits) {
+    this.limits = limits;
+  }
+
+  public Verdict check(MessageKind type) {
+    return check(type, System.nanoTime());
+  }
+
+  Verdict check(MessageKind type, long now) {
+    RateLimits l = limits.get();
+    if (l != cached) recompute(l);
+    int i = RateLimits.Category.of(type).ordinal();
+    long t = Math.max(fullAt[i], now);
+    if (t - now <= tolerance[i]) {
+      fullAt[i] = t + interval[i];
+      return Verdict.ALLOW;
+    }
+    retryAfterNanos = t - tolerance[i] - now;
+    if (now - lastStrike > TimeUnit.MILLISECONDS.toNanos(l.strikeWindowMillis())) strikes = 0;
+    strikes++;
+    lastStrike = now;
+    return l.strikesToDisconnect() > 0 && strikes >= l.strikesToDisconnect() ? Verdict.DISCONNECT : Verdict.REJECT;
+  }
+
+  private void recompute(RateLimits l) {
+    for (RateLimits.Category c : RateLimits.Category.values()) {
+      int i = c.ordinal();
+      interval[i] = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / l.rate(c)));
+      tolerance[i] = interval[i] * (l.burst(c) - 1);
+    }
+    cached = l;
+  }
+
+  /**
+   * Po kiek laiko (ms) paskutinė atmesta užklausa būtų leista.
+   */
+  public long retryAfterMillis() {
+    return Math.max(1, TimeUnit.NANOSECONDS.toMillis(retryAfterNanos));
+  }
+}
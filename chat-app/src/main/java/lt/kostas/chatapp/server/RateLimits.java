@@ -0,0 +1,152 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.MessageKind;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Vieno ryšio srauto ribos. Kiekvienai užklausų grupei - atskiras kibiras: {@code rate} žetonų per sekundę,
+ * daugiausiai {@code burst} iš karto. Nekintamas; keičiant ribas veikiančiame serveryje pakeičiamas visas
+ * įrašas ({@link ChatServer#setRateLimits}), o ryšiai naujas reikšmes pamato kitai žinutei.
+ *
+ * @param messagesPerSecond  {@code message} užklausos
+ * @param messageBurst       kiek {@code message} galima išsiųsti iš karto
+ * @param roomOpsPerSecond   {@code create-room} ir {@code join-room}
+ * @param roomOpsBurst       kiek kambario operacijų galima iš karto
+ * @param queriesPerSecond   {@code history} ir {@code search}
+ * @param queriesBurst       kiek užklausų galima iš karto
+ * @param otherPerSecond     visi kiti tipai (pvz. {@code register})
+ * @param otherBurst         kiek kitų užklausų galima iš karto
+ * @param maxLineBytes       ilgiausia JSON eilutė; ilgesnė nutraukia ryšį (taikoma naujiems ryšiams)
+ * @param strikesToDisconnect kiek atmestų užklausų per {@code strikeWindowMillis} atjungia klientą (0 - neatjungti)
+ * @param strikeWindowMillis po tiek laiko be pažeidimų jų skaičius nunulinamas
+ * @param cooldownMillis     kiek laiko atjungtas vartotojas negali vėl prisiregistruoti
+ */
+public record RateLimits(
+        double messagesPerSecond,
+        int messageBurst,
+        double roomOpsPerSecond,
+        int roomOpsBurst,
+        double queriesPerSecond,
+        int queriesBurst,
+        double otherPerSecond,
+        int otherBurst,
+        int maxLineBytes,
+        int strikesToDisconnect,
+        long strikeWindowMillis,
+        long cooldownMillis
+) {
+  // raktai - kaip -Dchat.limit.<raktas>
+  private static final List<String> KEYS = List.of("messages", "messages.burst", "rooms", "rooms.burst",
+          "queries", "queries.burst", "other", "other.burst", "maxLineBytes", "strikes", "strikeWindowMillis",
+          "cooldownMillis");
+
+  public RateLimits {
+    if (messagesPerSecond <= 0 || roomOpsPerSecond <= 0 || queriesPerSecond <= 0 || otherPerSecond <= 0) {
+      throw new IllegalArgumentException("Dažnis turi būti teigiamas");
+    }
+    if (messageBurst <= 0 || roomOpsBurst <= 0 || queriesBurst <= 0 || otherBurst <= 0) {
+      throw new IllegalArgumentException("burst turi būti teigiamas");
+    }
+    if (maxLineBytes <= 0) throw new IllegalArgumentException("maxLineBytes turi būti teigiamas");
+    if (strikesToDisconnect < 0) throw new IllegalArgumentException("strikesToDisconnect negali būti neigiamas");
+    if (strikeWindowMillis < 0 || cooldownMillis < 0) throw new IllegalArgumentException("Laikas negali būti neigiamas");
+  }
+
+  /**
+   * Užklausų grupės, kurių kiekviena turi savo kibirą.
+   */
+  public enum Category {
+    MESSAGE, ROOM, QUERY, OTHER;
+
+    static Category of(MessageKind type) {
+      if (type == null) return OTHER;
+      return switch (type) {
+        case MESSAGE -> MESSAGE;
+        case CREATE_ROOM, JOIN_ROOM -> ROOM;
+        case HISTORY, SEARCH -> QUERY;
+        default -> OTHER;
+      };
+    }
+  }
+
+  public static RateLimits defaults() {
+    return new RateLimits(20, 40, 1, 5, 5, 10, 2, 5, 64 * 1024, 20, 10_000, 30_000);
+  }
+
+  /**
+   * Ribos iš {@code -Dchat.limit.*} sistemos savybių; nenurodytos reikšmės - numatytosios.
+   */
+  public static RateLimits fromSystemProperties() {
+    return defaults().with(key -> System.getProperty("chat.limit." + key));
+  }
+
+  /**
+   * Kopija su pakeistomis reikšmėmis iš "raktas=reikšmė;..." eilutės (raktai kaip {@link #toSpec()}).
+   */
+  public RateLimits withSpec(String spec) {
+    Map<String, String> values = new HashMap<>();
+    for (String part : spec.split(";")) {
+      int eq = part.indexOf('=');
+      if (eq <= 0) continue;
+      String key = part.substring(0, eq).trim();
+      if (!KEYS.contains(key)) throw new IllegalArgumentException("Nežinomas raktas: " + key);
+      values.put(key, part.substring(eq + 1).trim());
+    }
+    return with(values::get);
+  }
+
+  /**
+   * Visos reikšmės "raktas=reikšmė;..." forma - tie patys raktai kaip {@code -Dchat.limit.<raktas>}.
+   */
+  public String toSpec() {
+    return "messages=" + messagesPerSecond + ";messages.burst=" + messageBurst
+            + ";rooms=" + roomOpsPerSecond + ";rooms.burst=" + roomOpsBurst
+            + ";queries=" + queriesPerSecond + ";queries.burst=" + queriesBurst
+            + ";other=" + otherPerSecond + ";other.burst=" + otherBurst
+            + ";maxLineBytes=" + maxLineBytes + ";strikes=" + strikesToDisconnect
+            + ";strikeWindowMillis=" + strikeWindowMillis + ";cooldownMillis=" + cooldownMillis;
+  }
+
+  private RateLimits with(Function<String, String> values) {
+    return new RateLimits(
+            parse(values, "messages", messagesPerSecond, Double::parseDouble),
+            parse(values, "messages.burst", messageBurst, Integer::parseInt),
+            parse(values, "rooms", roomOpsPerSecond, Double::parseDouble),
+            parse(values, "rooms.burst", roomOpsBurst, Integer::parseInt),
+            parse(values, "queries", queriesPerSecond, Double::parseDouble),
+            parse(values, "queries.burst", queriesBurst, Integer::parseInt),
+            parse(values, "other", otherPerSecond, Double::parseDouble),
+            parse(values, "other.burst", otherBurst, Integer::parseInt),
+            parse(values, "maxLineBytes", maxLineBytes, Integer::parseInt),
+            parse(values, "strikes", strikesToDisconnect, Integer::parseInt),
+            parse(values, "strikeWindowMillis", strikeWindowMillis, Long::parseLong),
+            parse(values, "cooldownMillis", cooldownMillis, Long::parseLong));
+  }
+
+  private static <T> T parse(Function<String, String> values, String key, T current, Function<String, T> parser) {
+    String v = values.apply(key);
+    return v == null ? current : parser.apply(v.trim());
+  }
+
+  double rate(Category c) {
+    return switch (c) {
+      case MESSAGE -> messagesPerSecond;
+      case ROOM -> roomOpsPerSecond;
+      case QUERY -> queriesPerSecond;
+      case OTHER -> otherPerSecond;
+    };
+  }
+
+  int burst(Category c) {
+    return switch (c) {
+      case MESSAGE -> messageBurst;
+      case ROOM -> roomOpsBurst;
+      case QUERY -> queriesBurst;
+      case OTHER -> otherBurst;
+    };
+  }
+}
@@ -0,0 +1,96 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.cluster.ClusterConfig;
+
+/**
+ * {@link ChatServer} paleidimo nustatymai.
+ *
+ * @param transport             ryšių aptarnavimo būdas
+ * @param nioThreads            {@code Selector} ciklų skaičius, kai transportas {@link TransportMode#NIO}
+ * @param threadMode            kokiose gijose vykdomi {@link ClientHandler}, kai transportas {@link TransportMode#BLOCKING}
+ * @param outboundCapacity      kiek kadrų telpa vieno kliento siuntimo eilėje
+ * @param overflowPolicy        ką daryti, kai kliento siuntimo eilė pilna
+ * @param roomHistory           kiek naujausių žinučių atmintyje laikoma kiekvienam kambariui
+ * @param directHistory         kiek naujausių žinučių atmintyje laikoma kiekvienam privačiam pokalbiui
+ * @param historyMaxAgeMillis   senesnės žinutės skaitomos tik iš saugyklos (0 - be amžiaus ribos)
+ * @param presenceWindowMillis  kiek kaupti prisijungimų/atsijungimų pranešimus prieš siunčiant (0 - iškart)
+ * @param metricsPort           vietinis {@code /metrics} HTTP portas (-1 - išjungta, 0 - bet kuris laisvas)
+ * @param cluster               klasterio mazgo nustatymai (null - vienas serveris)
+ * @param rateLimits            pradinės vieno ryšio srauto ribos (vėliau keičiamos per {@link ChatServer#setRateLimits})
+ * @param stateShards           į kiek juostų skaidomi kambarių ir vartotojų pakeitimai (ir saugyklos eilės)
+ * @param drainMillis           kiek stabdant laukti, kol klientams bus išsiųsta, kas liko jų eilėse
+ * @param reconnectSpreadMillis per kiek laiko išsklaidyti klientų prisijungimus po perkrovimo
+ *                              (kiekvienas gauna atsitiktinę delsą iki šios ribos)
+ */
+public record ServerOptions(
+        TransportMode transport,
+        int nioThreads,
+        ThreadMode threadMode,
+        int outboundCapacity,
+        OutboundQueue.OverflowPolicy overflowPolicy,
+        int roomHistory,
+        int directHistory,
+        long historyMaxAgeMillis,
+        long presenceWindowMillis,
+        int metricsPort,
+        ClusterConfig cluster,
+        RateLimits rateLimits,
+        int stateShards,
+        long drainMillis,
+        long reconnectSpreadMillis
+) {
+  public enum ThreadMode {
+    /** po vieną platformos giją kiekvienam ryšiui */
+    PLATFORM,
+    /** po vieną virtualią giją kiekvienam ryšiui - tinka dešimtims tūkstančių neaktyvių ryšių */
+    VIRTUAL
+  }
+
+  public ServerOptions {
+    if (transport == null) throw new IllegalArgumentException("transport negali būti null");
+    if (nioThreads <= 0) throw new IllegalArgumentException("nioThreads turi būti teigiamas");
+    if (threadMode == null) throw new IllegalArgumentException("threadMode negali būti null");
+    if (outboundCapacity <= 0) throw new IllegalArgumentException("outboundCapacity turi būti teigiamas");
+    if (overflowPolicy == null) throw new IllegalArgumentException("overflowPolicy negali būti null");
+    if (roomHistory <= 0 || directHistory <= 0) throw new IllegalArgumentException("Istorijos talpa turi būti teigiama");
+    if (historyMaxAgeMillis < 0) throw new IllegalArgumentException("historyMaxAgeMillis negali būti neigiamas");
+    if (presenceWindowMillis < 0) throw new IllegalArgumentException("presenceWindowMillis negali būti neigiamas");
+    if (metricsPort < -1 || metricsPort > 65535) throw new IllegalArgumentException("Netinkamas metricsPort: " + metricsPort);
+    if (rateLimits == null) throw new IllegalArgumentException("rateLimits negali būti null");
+    if (stateShards <= 0) throw new IllegalArgumentException("stateShards turi būti teigiamas");
+    if (drainMillis < 0) throw new IllegalArgumentException("drainMillis negali būti neigiamas");
+    if (reconnectSpreadMillis < 0) throw new IllegalArgumentException("reconnectSpreadMillis negali būti neigiamas");
+  }
+
+  public static ServerOptions defaults() {
+    return new ServerOptions(TransportMode.BLOCKING, Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+            ThreadMode.PLATFORM, 1024, OutboundQueue.OverflowPolicy.COALESCE,
+            500, 100, 0, 200, -1, null, RateLimits.defaults(), Stripes.defaultCount(),
+            5000, 5000);
+  }
+
+  /**
+   * Nustatymai iš {@code -Dchat.*} sistemos savybių; nenurodytos reikšmės - numatytosios.
+   */
+  public static ServerOptions fromSystemProperties() {
+    ServerOptions d = defaults();
+    TransportMode transport = TransportMode.valueOf(
+            System.getProperty("chat.transport", d.transport().name()).toUpperCase());
+    ThreadMode threadMode = ThreadMode.valueOf(
+            System.getProperty("chat.threads", d.threadMode().name()).toUpperCase());
+    OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.valueOf(
+            System.getProperty("chat.outbound.policy", d.overflowPolicy().name()).toUpperCase());
+    return new ServerOptions(transport, Integer.getInteger("chat.nio.threads", d.nioThreads()), threadMode,
+            Integer.getInteger("chat.outbound.capacity", d.outboundCapacity()), overflowPolicy,
+            Integer.getInteger("chat.history.room", d.roomHistory()),
+            Integer.getInteger("chat.history.direct", d.directHistory()),
+            Long.getLong("chat.history.maxAgeMillis", d.historyMaxAgeMillis()),
+            Long.getLong("chat.presence.windowMillis", d.presenceWindowMillis()),
+            Integer.getInteger("chat.metrics.port", d.metricsPort()),
+            ClusterConfig.fromSystemProperties(),
+            RateLimits.fromSystemProperties(),
+            Integer.getInteger("chat.shards", d.stateShards()),
+            Long.getLong("chat.shutdown.drainMillis", d.drainMillis()),
+            Long.getLong("chat.shutdown.reconnectSpreadMillis", d.reconnectSpreadMillis()));
+  }
+}
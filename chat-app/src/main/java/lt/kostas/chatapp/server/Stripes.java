@@ -0,0 +1,61 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.metrics.Counter;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Užraktų juostos kambarių ir vartotojų būsenos pakeitimams. Tas pats raktas (kambario id arba vartotojo
+ * vardas) visada patenka į tą pačią juostą, todėl sudėtiniai vieno kambario ar vartotojo pakeitimai vyksta
+ * atomiškai ir saugyklai perduodami ta pačia tvarka, o skirtingų juostų pakeitimai vienas kito nelaukia.
+ * Skaitymai užraktų neima - pati būsena laikoma {@code ConcurrentHashMap}.
+ * <p>
+ * Vienu metu laikomas ne daugiau kaip vienas juostos užraktas, todėl aklavietės negalimos.
+ */
+final class Stripes {
+  private static final int MAX_STRIPES = 1 << 12;
+
+  private final ReentrantLock[] locks;
+  private final int mask;
+  private final Counter contended;
+
+  /**
+   * @param count     juostų skaičius; apvalinamas aukštyn iki dvejeto laipsnio
+   * @param contended kiek kartų teko laukti užimto užrakto
+   */
+  Stripes(int count, Counter contended) {
+    if (count <= 0) throw new IllegalArgumentException("Juostų skaičius turi būti teigiamas");
+    int n = Math.min(MAX_STRIPES, Integer.highestOneBit(count) == count ? count : Integer.highestOneBit(count) << 1);
+    // ReentrantLock vietoj synchronized - nepririša virtualių gijų prie nešančiosios gijos
+    locks = new ReentrantLock[n];
+    for (int i = 0; i < n; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    mask = n - 1;
+    this.contended = contended;
+  }
+
+  /**
+   * Numatytasis juostų skaičius - keturis kartus daugiau nei branduolių, kad dvi karštos juostos retai sutaptų.
+   */
+  static int defaultCount() {
+    return Runtime.getRuntime().availableProcessors() * 4;
+  }
+
+  /**
+   * Užrakina rakto juostą; atrakinti - {@link ReentrantLock#unlock()} {@code finally} bloke.
+   */
+  ReentrantLock lock(String key) {
+    int h = key.hashCode();
+    ReentrantLock lock = locks[(h ^ (h >>> 16)) & mask];
+    if (!lock.tryLock()) {
+      contended.increment();
+      lock.lock();
+    }
+    return lock;
+  }
+
+  int size() {
+    return locks.length;
+  }
+}
@@ -0,0 +1,11 @@
+package lt.kostas.chatapp.server;
+
+/**
+ * Kaip serveris aptarnauja klientų ryšius.
+ */
+public enum TransportMode {
+  /** po vieną giją kiekvienam ryšiui ({@link ClientHandler}) */
+  BLOCKING,
+  /** keli {@code Selector} ciklai visiems ryšiams ({@link NioTransport}) */
+  NIO
+}
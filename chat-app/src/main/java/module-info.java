@@ -5,6 +5,8 @@ module lt.kostas.chatapp {
   requires org.controlsfx.controls;
   requires com.google.gson;
   requires java.logging;
+  requires java.management;
+  requires jdk.httpserver;
 
   opens lt.kostas.chatapp to javafx.fxml;
   exports lt.kostas.chatapp;
@@ -12,6 +14,14 @@ module lt.kostas.chatapp {
   exports lt.kostas.chatapp.server;
   opens lt.kostas.chatapp.server to javafx.fxml;
 
+  exports lt.kostas.chatapp.protocol;
+  exports lt.kostas.chatapp.history;
+  exports lt.kostas.chatapp.presence;
+  exports lt.kostas.chatapp.metrics;
+  exports lt.kostas.chatapp.cluster;
+  opens lt.kostas.chatapp.cluster to com.google.gson;
+  exports lt.kostas.chatapp.search;
+
   exports lt.kostas.chatapp.network;
   opens lt.kostas.chatapp.network to javafx.fxml;
 
@@ -21,7 +31,7 @@ module lt.kostas.chatapp {
   exports lt.kostas.chatapp.controller;
   opens lt.kostas.chatapp.controller to javafx.fxml;
   exports lt.kostas.chatapp.persistence;
-  opens lt.kostas.chatapp.persistence to javafx.fxml;
+  opens lt.kostas.chatapp.persistence to javafx.fxml, com.google.gson;
   exports lt.kostas.chatapp.model;
   opens lt.kostas.chatapp.model to javafx.fxml, com.google.gson;
 
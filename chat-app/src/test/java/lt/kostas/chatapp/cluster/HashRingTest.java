@@ -0,0 +1,101 @@
+package lt.kostas.chatapp.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Žiedo perskirstymas: mazgui prisijungus ar nukritus persikelia tik jo kambariai.
+ */
+class HashRingTest {
+  private static final int KEYS = 10_000;
+
+  @Test
+  void emptyRingHasNoOwner() {
+    HashRing ring = HashRing.of(List.of(), HashRing.DEFAULT_VIRTUAL_NODES);
+    assertNull(ring.owner("general"));
+    assertTrue(ring.nodes().isEmpty());
+  }
+
+  @Test
+  void hashIsFixedAcrossProcesses() {
+    // visi mazgai turi skaičiuoti tą pačią maišą - pakeitus funkciją, skirtingų versijų mazgai nesutartų
+    assertEquals(2085840894934021922L, HashRing.hash("general"));
+    assertEquals(-1166397803181037274L, HashRing.hash(""));
+    assertEquals(682496835226191143L, HashRing.hash("ąž"));
+  }
+
+  @Test
+  void ownerDoesNotDependOnNodeOrder() {
+    HashRing a = HashRing.of(List.of("node-a", "node-b", "node-c"), HashRing.DEFAULT_VIRTUAL_NODES);
+    HashRing b = HashRing.of(List.of("node-c", "node-a", "node-b", "node-a"), HashRing.DEFAULT_VIRTUAL_NODES);
+    assertEquals(a.nodes(), b.nodes());
+    for (int i = 0; i < KEYS; i++) {
+      assertEquals(a.owner(key(i)), b.owner(key(i)));
+    }
+  }
+
+  @Test
+  void roomsSpreadEvenly() {
+    HashRing ring = HashRing.of(List.of("node-a", "node-b", "node-c", "node-d"), HashRing.DEFAULT_VIRTUAL_NODES);
+    Map<String, Integer> counts = owners(ring);
+    assertEquals(ring.nodes(), counts.keySet());
+    for (Map.Entry<String, Integer> e : counts.entrySet()) {
+      // lygiai po 25 %; 64 virtualūs taškai duoda nuokrypį gerokai mažesnį nei 10 punktų
+      double share = e.getValue() / (double) KEYS;
+      assertTrue(share > 0.15 && share < 0.35, e.getKey() + " share=" + share);
+    }
+  }
+
+  @Test
+  void addedNodeTakesOnlyItsShare() {
+    HashRing before = HashRing.of(List.of("node-a", "node-b", "node-c"), HashRing.DEFAULT_VIRTUAL_NODES);
+    HashRing after = HashRing.of(List.of("node-a", "node-b", "node-c", "node-d"), HashRing.DEFAULT_VIRTUAL_NODES);
+    int moved = 0;
+    for (int i = 0; i < KEYS; i++) {
+      String was = before.owner(key(i));
+      String now = after.owner(key(i));
+      if (!was.equals(now)) {
+        // kambarys persikelia tik į naująjį mazgą, ne tarp senųjų
+        assertEquals("node-d", now, key(i));
+        moved++;
+      }
+    }
+    double share = moved / (double) KEYS;
+    assertTrue(share > 0.15 && share < 0.35, "moved=" + share);
+  }
+
+  @Test
+  void removedNodeReleasesOnlyItsRooms() {
+    HashRing before = HashRing.of(List.of("node-a", "node-b", "node-c", "node-d"), HashRing.DEFAULT_VIRTUAL_NODES);
+    HashRing after = HashRing.of(List.of("node-a", "node-c", "node-d"), HashRing.DEFAULT_VIRTUAL_NODES);
+    Map<String, Integer> inherited = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      String was = before.owner(key(i));
+      String now = after.owner(key(i));
+      if (was.equals("node-b")) {
+        inherited.merge(now, 1, Integer::sum);
+      } else {
+        assertEquals(was, now, key(i));
+      }
+    }
+    // nukritusio mazgo kambariai pasidalija tarp visų likusių, o ne atitenka vienam kaimynui
+    assertEquals(after.nodes(), inherited.keySet());
+  }
+
+  private static Map<String, Integer> owners(HashRing ring) {
+    Map<String, Integer> counts = new HashMap<>();
+    for (int i = 0; i < KEYS; i++) {
+      counts.merge(ring.owner(key(i)), 1, Integer::sum);
+    }
+    return counts;
+  }
+
+  private static String key(int i) {
+    return "room-" + i;
+  }
+}
@@ -0,0 +1,154 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.model.Room;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link AsyncPersistence#close} sulaukia eilėje užstrigusių siuntėjų, o nepavykę paketai neskaičiuojami įrašytais.
+ */
+class AsyncPersistenceTest {
+
+  @Test
+  void closeWritesEventOfProducerBlockedOnFullQueue() throws Exception {
+    RecordingStore store = new RecordingStore();
+    store.gate = new CountDownLatch(1);
+    AsyncPersistence async = new AsyncPersistence(store, 1);
+
+    // pirmas įvykis užstringa saugykloje, antras užpildo eilę, trečio siuntėjas laukia vietos
+    async.append(event(0));
+    await(() -> store.entered.getCount() == 0);
+    async.append(event(1));
+    Thread producer = new Thread(() -> async.append(event(2)));
+    producer.start();
+    await(() -> async.stats().producerStalls() == 1);
+
+    Thread closer = new Thread(async::close);
+    closer.start();
+    closer.join(100);
+    assertTrue(closer.isAlive(), "close() neturi baigtis, kol saugykla neįrašė paketo");
+
+    store.gate.countDown();
+    closer.join(5000);
+    producer.join(5000);
+    assertFalse(closer.isAlive());
+    assertEquals(List.of("m0", "m1", "m2"), store.texts());
+    assertTrue(store.closed);
+    assertEquals(3, async.stats().committed());
+
+    // po uždarymo įvykiai atmetami
+    async.append(event(3));
+    assertEquals(3, store.texts().size());
+    assertEquals(3, async.stats().enqueued());
+  }
+
+  @Test
+  void failedBatchIsReportedOnceByFlush() {
+    RecordingStore store = new RecordingStore();
+    store.failing = true;
+    AsyncPersistence async = new AsyncPersistence(store, 16);
+    try {
+      async.append(event(0));
+      async.append(event(1));
+      IllegalStateException e = assertThrows(IllegalStateException.class, async::flush);
+      assertNotNull(e.getCause());
+
+      AsyncPersistence.Stats stats = async.stats();
+      assertEquals(0, stats.committed());
+      assertEquals(2, stats.failed());
+
+      // klaida pranešama vieną kartą, vėlesni paketai įrašomi
+      store.failing = false;
+      async.append(event(2));
+      async.flush();
+      assertEquals(List.of("m2"), store.texts());
+      assertEquals(1, async.stats().committed());
+    } finally {
+      store.failing = false;
+      async.close();
+    }
+  }
+
+  @Test
+  void closeReportsUnreportedFailure() {
+    RecordingStore store = new RecordingStore();
+    store.failing = true;
+    AsyncPersistence async = new AsyncPersistence(store, 16);
+    async.append(event(0));
+    assertThrows(IllegalStateException.class, async::close);
+    assertTrue(store.closed);
+    assertEquals(1, async.stats().failed());
+  }
+
+  private static StoreEvent event(int i) {
+    return StoreEvent.message(new Message(MessageKind.MESSAGE, "user", null, "general", "m" + i, 1_000L + i));
+  }
+
+  private static void await(BooleanSupplier condition) throws InterruptedException {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+    while (!condition.getAsBoolean()) {
+      assertTrue(System.nanoTime() < deadline, "nesulaukta");
+      Thread.sleep(1);
+    }
+  }
+
+  /**
+   * Įsimena įrašytas žinutes; gali sulaikyti pirmą paketą ({@code gate}) arba nepavykti, kol {@code failing}.
+   */
+  private static final class RecordingStore implements Persistence {
+    final List<StoreEvent> written = new ArrayList<>();
+    final CountDownLatch entered = new CountDownLatch(1);
+    volatile CountDownLatch gate;
+    volatile boolean failing;
+    volatile boolean closed;
+
+    @Override
+    public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    }
+
+    @Override
+    public void append(StoreEvent event) {
+      appendBatch(List.of(event));
+    }
+
+    @Override
+    public void appendBatch(List<StoreEvent> events) {
+      entered.countDown();
+      CountDownLatch g = gate;
+      if (g != null) {
+        try {
+          g.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      if (failing) {
+        throw new IllegalStateException("diskas pilnas");
+      }
+      synchronized (written) {
+        written.addAll(events);
+      }
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+
+    List<String> texts() {
+      synchronized (written) {
+        return written.stream().map(e -> e.message().text()).toList();
+      }
+    }
+  }
+}
@@ -0,0 +1,176 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Segmentų ir dienų archyvų pakopos: archyvavimo atkūrimas po netikėto sustojimo ir istorija per jų ribą.
+ */
+class MappedMessageStoreTest {
+  private static final long DAY = RetentionPolicy.DAY_MILLIS;
+  private static final long HOUR = 60 * 60 * 1000;
+  private static final ConversationKey GENERAL = ConversationKey.room("general");
+  private static final ConversationKey OTHER = ConversationKey.room("other");
+
+  @TempDir
+  Path dir;
+
+  // prieš dešimt dienų nuo 22:00 - žinutės persirita per vidurnaktį, todėl segmentas papuola į du archyvus
+  private final long day = Math.floorDiv(System.currentTimeMillis(), DAY) - 10;
+  private final long start = day * DAY + 22 * HOUR;
+
+  @Test
+  void reopenFinishesArchivingInterruptedBeforeMarker() throws IOException {
+    List<Message> written = writeOldSegment();
+    // archyvai įrašyti, bet žymeklis - ne, ir segmentas dar neištrintas
+    simulateCrashAfterArchives(false);
+
+    MappedMessageStore store = open();
+    try {
+      assertEquals(texts(written), texts(store.history(GENERAL, Long.MAX_VALUE, 1000)));
+      assertEquals(2, store.archiveCount());
+      assertEquals(1, store.segmentCount());
+    } finally {
+      store.close();
+    }
+    assertEquals(List.of(), oldSegments());
+  }
+
+  @Test
+  void reopenArchivesDaysMissingAfterPartialFinish() throws IOException {
+    List<Message> written = writeOldSegment();
+    // sustota tarp dviejų Writer.finish: antros dienos archyvo dar nėra
+    simulateCrashAfterArchives(true);
+
+    MappedMessageStore store = open();
+    try {
+      assertEquals(texts(written), texts(store.history(GENERAL, Long.MAX_VALUE, 1000)));
+      assertEquals(2, store.archiveCount());
+    } finally {
+      store.close();
+    }
+    assertEquals(List.of(), oldSegments());
+  }
+
+  @Test
+  void historyPagesAcrossSegmentAndArchive() throws IOException {
+    List<Message> expected = new ArrayList<>();
+    MappedMessageStore store = open();
+    try {
+      expected.addAll(append(store, start, 30));
+      // nauja diena: senas segmentas uždaromas ir perkeliamas į archyvus
+      store.maintain(System.currentTimeMillis());
+      assertTrue(store.archiveCount() > 0);
+      expected.addAll(append(store, System.currentTimeMillis() - HOUR, 30));
+      assertEquals(1, store.segmentCount());
+
+      // vienas puslapis apima segmento pradžią ir archyvo pabaigą
+      List<Message> page = store.history(GENERAL, Long.MAX_VALUE, 20);
+      assertEquals(texts(expected.subList(expected.size() - 20, expected.size())), texts(page));
+
+      List<Message> all = new ArrayList<>();
+      long before = Long.MAX_VALUE;
+      while (true) {
+        page = store.history(GENERAL, before, 7);
+        if (page.isEmpty()) break;
+        all.addAll(0, page);
+        before = page.get(0).timestamp();
+      }
+      assertEquals(texts(expected), texts(all));
+
+      // kito pokalbio žinutės į puslapius nepatenka
+      assertEquals(20, store.history(OTHER, Long.MAX_VALUE, 100).size());
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * Senas segmentas su dviejų parų žinutėmis, uždarytas, bet dar neperkeltas į archyvus.
+   */
+  private List<Message> writeOldSegment() throws IOException {
+    MappedMessageStore store = open();
+    try {
+      List<Message> written = append(store, start, 40);
+      // kitos paros pradžioje segmentas uždaromas, bet dar per naujas archyvams (hotDays = 1)
+      store.maintain(start + 5 * HOUR);
+      assertEquals(2, store.segmentCount());
+      assertEquals(0, store.archiveCount());
+      return written;
+    } finally {
+      store.close();
+    }
+  }
+
+  /**
+   * Atlieka archyvavimą, tada atkuria segmentą ir žymeklį, koks buvo prieš jį - lyg procesas būtų sustojęs
+   * po archyvų įrašymo. {@code dropLastArchive} - dar ir paskutinės dienos archyvas nespėtas įrašyti.
+   */
+  private void simulateCrashAfterArchives(boolean dropLastArchive) throws IOException {
+    Path segment = oldSegments().get(0);
+    Path saved = dir.resolve("segment.copy");
+    Files.copy(segment, saved);
+    MappedMessageStore store = open();
+    try {
+      store.maintain(System.currentTimeMillis());
+      assertEquals(2, store.archiveCount());
+    } finally {
+      store.close();
+    }
+    Files.move(saved, segment, StandardCopyOption.REPLACE_EXISTING);
+    Files.delete(dir.resolve("archive").resolve("archived-through"));
+    if (dropLastArchive) {
+      List<Path> archives = files(dir.resolve("archive"), DailyArchive.SUFFIX);
+      Files.delete(archives.get(archives.size() - 1));
+    }
+  }
+
+  private MappedMessageStore open() {
+    RetentionPolicy retention = new RetentionPolicy(1, 0, Map.of(), HOUR);
+    return new MappedMessageStore(dir, MessageStoreOptions.defaults()
+            .withSegmentBytes(MessageStoreOptions.MIN_SEGMENT_BYTES).withRetention(retention));
+  }
+
+  private static List<Message> append(MappedMessageStore store, long from, int count) {
+    List<Message> general = new ArrayList<>();
+    List<Message> batch = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      // kas trečia - kitame kambaryje; žinutės kas 5 min., kad apimtų dienos ribą
+      String room = i % 3 == 2 ? "other" : "general";
+      Message m = new Message(MessageKind.MESSAGE, "user", null, room, room + "-" + from + "-" + i, from + i * 5 * 60_000L);
+      batch.add(m);
+      if (room.equals("general")) general.add(m);
+    }
+    store.appendBatch(batch);
+    return general;
+  }
+
+  private List<Path> oldSegments() throws IOException {
+    List<Path> segments = files(dir, ".seg");
+    return segments.subList(0, Math.max(0, segments.size() - 1));
+  }
+
+  private static List<Path> files(Path dir, String suffix) throws IOException {
+    try (Stream<Path> list = Files.list(dir)) {
+      return list.filter(p -> p.getFileName().toString().endsWith(suffix)).sorted().toList();
+    }
+  }
+
+  private static List<String> texts(List<Message> messages) {
+    return messages.stream().map(Message::text).toList();
+  }
+}
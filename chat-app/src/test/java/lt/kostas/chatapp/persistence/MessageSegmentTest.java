@@ -0,0 +1,128 @@
+package lt.kostas.chatapp.persistence;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link MessageSegment#open} po netikėto sustojimo: nukerpami įrašai, kurių puslapiai nepasiekė disko.
+ */
+class MessageSegmentTest {
+  private static final ConversationKey GENERAL = ConversationKey.room("general");
+
+  @TempDir
+  Path dir;
+
+  @Test
+  void tornLastRecordIsDroppedOnOpen() throws IOException {
+    // paskutinis įrašas pirmame bloke, bloko santraukoje ir nepilname bloke
+    for (int n : new int[]{1, MessageSegment.BLOCK, MessageSegment.BLOCK + 6}) {
+      Path file = dir.resolve("torn-" + n + ".seg");
+      MessageSegment segment = MessageSegment.create(file, 1, MessageStoreOptions.MIN_SEGMENT_BYTES);
+      append(segment, 0, n);
+      segment.force();
+
+      // antraštė ir įrašo antraštė nurašytos, o paskutinės žinutės kūnas - ne
+      int dataEnd = readInt(file, MessageSegment.H_DATA_END);
+      int lastLength = BinaryCodec.encode(message(n - 1)).length;
+      write(file, dataEnd - lastLength, new byte[lastLength]);
+
+      MessageSegment reopened = MessageSegment.open(file);
+      assertEquals(n - 1, reopened.size(), "n=" + n);
+      assertFalse(reopened.sealed());
+      assertEquals(texts(0, n - 1), texts(newest(reopened, n)));
+    }
+  }
+
+  @Test
+  void headerFlushedAheadOfRecordsIsTruncated() throws IOException {
+    Path file = dir.resolve("ahead.seg");
+    MessageSegment segment = MessageSegment.create(file, 1, MessageStoreOptions.MIN_SEGMENT_BYTES);
+    append(segment, 0, 10);
+    segment.force();
+    long used = segment.usedBytes();
+
+    // antraštė jau skelbia dar tris žinutes, bet nei jų kūnų, nei įrašų antraščių diske nėra
+    int dataEnd = readInt(file, MessageSegment.H_DATA_END);
+    ByteBuffer header = ByteBuffer.allocate(8).putInt(13).putInt(dataEnd + 300).flip();
+    write(file, MessageSegment.H_COUNT, header.array());
+
+    MessageSegment reopened = MessageSegment.open(file);
+    assertEquals(10, reopened.size());
+    assertEquals(used, reopened.usedBytes());
+    assertEquals(texts(0, 10), texts(newest(reopened, 20)));
+  }
+
+  @Test
+  void appendsContinueAfterTruncation() throws IOException {
+    Path file = dir.resolve("continue.seg");
+    MessageSegment segment = MessageSegment.create(file, 1, MessageStoreOptions.MIN_SEGMENT_BYTES);
+    append(segment, 0, 5);
+    segment.force();
+    int dataEnd = readInt(file, MessageSegment.H_DATA_END);
+    int lastLength = BinaryCodec.encode(message(4)).length;
+    write(file, dataEnd - lastLength, new byte[lastLength]);
+
+    MessageSegment reopened = MessageSegment.open(file);
+    append(reopened, 4, 3);
+    reopened.force();
+
+    MessageSegment again = MessageSegment.open(file);
+    assertEquals(7, again.size());
+    assertEquals(texts(0, 7), texts(newest(again, 10)));
+  }
+
+  private static Message message(int i) {
+    return new Message(MessageKind.MESSAGE, "user" + (i % 3), null, "general", "m" + i, 1_000L + i);
+  }
+
+  private static void append(MessageSegment segment, int from, int count) {
+    for (int i = from; i < from + count; i++) {
+      Message m = message(i);
+      assertTrue(segment.append(m, BinaryCodec.encode(m)));
+    }
+  }
+
+  private static List<Message> newest(MessageSegment segment, int limit) {
+    List<Message> out = new ArrayList<>();
+    segment.collectNewestFirst(GENERAL, Long.MAX_VALUE, limit, m -> true, out);
+    return out.reversed();
+  }
+
+  private static List<String> texts(int from, int to) {
+    List<String> texts = new ArrayList<>();
+    for (int i = from; i < to; i++) texts.add("m" + i);
+    return texts;
+  }
+
+  private static List<String> texts(List<Message> messages) {
+    return messages.stream().map(Message::text).toList();
+  }
+
+  private static int readInt(Path file, long position) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+      ByteBuffer buf = ByteBuffer.allocate(4);
+      ch.read(buf, position);
+      return buf.flip().getInt();
+    }
+  }
+
+  private static void write(Path file, long position, byte[] bytes) throws IOException {
+    try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      ch.write(ByteBuffer.wrap(bytes), position);
+    }
+  }
+}
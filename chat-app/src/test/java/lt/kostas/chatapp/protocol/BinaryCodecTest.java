@@ -0,0 +1,99 @@
+package lt.kostas.chatapp.protocol;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import org.junit.jupiter.api.Test;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * {@link BinaryCodec}: kadrai iškoduojami tokie pat, nepilni laukia likusių baitų, o sugadinti atmetami.
+ */
+class BinaryCodecTest {
+  private static final List<Message> SAMPLES = List.of(
+          new Message(MessageKind.MESSAGE, "alice", null, "general", "labas", 1_700_000_000_000L),
+          new Message(MessageKind.MESSAGE, "alice", "bob", null, "ąčęėįšųūž ✓ 🙂", 1L),
+          new Message(MessageKind.HISTORY_END, "server", null, "general", "more", -42L),
+          new Message(MessageKind.REGISTER, "bob", null, null, null, 0L),
+          // be dvejetainio kodo - tipas rašomas eilute
+          new Message(MessageKind.LOCAL, null, null, null, "vietinis", Long.MAX_VALUE),
+          new Message(null, null, null, null, null, Long.MIN_VALUE),
+          new Message(MessageKind.SYSTEM, "server", "alice", null, "x".repeat(20_000), 5L));
+
+  @Test
+  void roundTripKeepsAllFields() throws ProtocolException {
+    for (Message m : SAMPLES) {
+      ByteBuffer buf = ByteBuffer.wrap(BinaryCodec.encode(m));
+      assertEquals(m, BinaryCodec.tryDecode(buf));
+      assertFalse(buf.hasRemaining());
+    }
+  }
+
+  @Test
+  void consecutiveFramesDecodeInOrder() throws ProtocolException {
+    ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+    for (Message m : SAMPLES) buf.put(BinaryCodec.encode(m));
+    buf.flip();
+    for (Message m : SAMPLES) assertEquals(m, BinaryCodec.tryDecode(buf));
+    assertNull(BinaryCodec.tryDecode(buf));
+  }
+
+  @Test
+  void truncatedFrameReturnsNullWithoutMovingPosition() throws ProtocolException {
+    for (Message m : SAMPLES) {
+      byte[] frame = BinaryCodec.encode(m);
+      for (int cut = 0; cut < frame.length; cut += Math.max(1, frame.length / 200)) {
+        ByteBuffer buf = ByteBuffer.wrap(Arrays.copyOf(frame, cut));
+        assertNull(BinaryCodec.tryDecode(buf), "cut=" + cut);
+        assertEquals(0, buf.position());
+      }
+    }
+  }
+
+  @Test
+  void partialFrameDecodesOnceCompleted() throws ProtocolException {
+    Message m = SAMPLES.get(1);
+    byte[] frame = BinaryCodec.encode(m);
+    ByteBuffer buf = ByteBuffer.allocate(frame.length);
+    buf.put(frame, 0, frame.length - 3).flip();
+    assertNull(BinaryCodec.tryDecode(buf));
+    // kaip skaitymo buferis: likę baitai prirašomi prie to paties buferio
+    buf.compact().put(frame, frame.length - 3, 3).flip();
+    assertEquals(m, BinaryCodec.tryDecode(buf));
+  }
+
+  @Test
+  void oversizedOrOverlongLengthIsRejected() {
+    // ilgis MAX_FRAME_BYTES + 1
+    int len = BinaryCodec.MAX_FRAME_BYTES + 1;
+    byte[] big = {(byte) (len & 0x7F | 0x80), (byte) (len >>> 7 & 0x7F | 0x80), (byte) (len >>> 14)};
+    assertThrows(ProtocolException.class, () -> BinaryCodec.tryDecode(ByteBuffer.wrap(big)));
+    // ilgio varint be pabaigos
+    byte[] overlong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+    assertThrows(ProtocolException.class, () -> BinaryCodec.tryDecode(ByteBuffer.wrap(overlong)));
+  }
+
+  @Test
+  void corruptedBodyIsRejected() {
+    // nežinomas tipo kodas
+    byte[] unknownType = {3, 99, 0, 0};
+    assertThrows(ProtocolException.class, () -> BinaryCodec.tryDecode(ByteBuffer.wrap(unknownType)));
+    // text eilutė skelbia 100 baitų, o kadre jų yra vienas
+    byte[] longString = {4, 1, 8, 100, 'a'};
+    assertThrows(ProtocolException.class, () -> BinaryCodec.tryDecode(ByteBuffer.wrap(longString)));
+    // kūnas trumpesnis už skelbiamą ilgį - trūksta timestamp
+    byte[] noTimestamp = {2, 1, 0};
+    assertThrows(ProtocolException.class, () -> BinaryCodec.tryDecode(ByteBuffer.wrap(noTimestamp)));
+
+    // po timestamp lieka nenuskaitytas baitas
+    byte[] frame = BinaryCodec.encode(SAMPLES.get(0));
+    byte[] padded = Arrays.copyOf(frame, frame.length + 1);
+    padded[0]++;
+    assertThrows(ProtocolException.class, () -> BinaryCodec.tryDecode(ByteBuffer.wrap(padded)));
+  }
+}
@@ -0,0 +1,123 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.WireFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Perpildymo politikos: kiek kadrų išmetama ir kad valdymo kadrai bei formato žymės išlieka.
+ */
+class OutboundQueueTest {
+
+  @Test
+  void dropOldestDropsOneChatMessagePerOverflow() {
+    OutboundQueue queue = new OutboundQueue(3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    for (int i = 0; i < 5; i++) assertTrue(queue.offer(chat(i)));
+
+    OutboundQueue.Stats stats = queue.stats();
+    assertEquals(5, stats.enqueued());
+    assertEquals(2, stats.dropped());
+    assertEquals(2, stats.overflows());
+    assertEquals(3, stats.maxDepth());
+
+    List<Frame> batch = new ArrayList<>();
+    assertEquals(0, queue.drainBatch(batch, 10));
+    assertEquals(List.of("m2", "m3", "m4"), texts(batch));
+  }
+
+  @Test
+  void dropOldestKeepsControlFrames() {
+    OutboundQueue queue = new OutboundQueue(3, OutboundQueue.OverflowPolicy.DROP_OLDEST);
+    queue.offer(control("registered"));
+    queue.offer(Frame.switchTo(WireFormat.BINARY));
+    queue.offer(chat(0));
+    queue.offer(chat(1));
+
+    List<Frame> batch = new ArrayList<>();
+    queue.drainBatch(batch, 10);
+    assertEquals(3, batch.size());
+    assertEquals("registered", batch.get(0).message().text());
+    assertEquals(WireFormat.BINARY, batch.get(1).switchFormat());
+    assertEquals("m1", batch.get(2).message().text());
+    assertEquals(1, queue.stats().dropped());
+  }
+
+  @Test
+  void coalesceDropsChatMessagesAndReportsSkipped() {
+    OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.COALESCE);
+    queue.offer(chat(0));
+    queue.offer(control("history-end"));
+    queue.offer(chat(1));
+    queue.offer(chat(2));
+    // persipildo: trys žinutės išmetamos, valdymo kadras lieka
+    assertTrue(queue.offer(chat(3)));
+
+    OutboundQueue.Stats stats = queue.stats();
+    assertEquals(3, stats.dropped());
+    assertEquals(1, stats.overflows());
+    assertEquals(2, stats.depth());
+
+    List<Frame> batch = new ArrayList<>();
+    assertEquals(3, queue.drainBatch(batch, 10));
+    assertEquals(List.of("history-end", "m3"), texts(batch));
+    // praleistų skaičius pranešamas tik vieną kartą
+    assertEquals(0, queue.drainBatch(new ArrayList<>(), 10));
+    assertTrue(queue.isEmpty());
+  }
+
+  @Test
+  void overflowOfControlFramesOnlyDisconnects() {
+    for (OutboundQueue.OverflowPolicy policy : OutboundQueue.OverflowPolicy.values()) {
+      OutboundQueue queue = new OutboundQueue(2, policy);
+      assertTrue(queue.offer(control("a")));
+      assertTrue(queue.offer(control("b")));
+      assertFalse(queue.offer(chat(0)), policy.name());
+      assertFalse(queue.isClosed());
+      assertEquals(0, queue.stats().dropped());
+      assertEquals(2, queue.stats().depth());
+    }
+  }
+
+  @Test
+  void disconnectPolicyRejectsWhenFull() {
+    OutboundQueue queue = new OutboundQueue(2, OutboundQueue.OverflowPolicy.DISCONNECT);
+    assertTrue(queue.offer(chat(0)));
+    assertTrue(queue.offer(chat(1)));
+    assertFalse(queue.offer(chat(2)));
+    assertEquals(0, queue.stats().dropped());
+    assertEquals(1, queue.stats().overflows());
+  }
+
+  @Test
+  void closedQueueRejectsButDrainsRemaining() {
+    OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.COALESCE);
+    queue.offer(chat(0));
+    queue.close();
+    assertFalse(queue.offer(chat(1)));
+    assertTrue(queue.isClosed());
+
+    List<Frame> batch = new ArrayList<>();
+    assertEquals(0, queue.drainBatch(batch, 10));
+    assertEquals(List.of("m0"), texts(batch));
+    assertEquals(-1, queue.drainBatch(batch, 10));
+  }
+
+  private static Frame chat(int i) {
+    return Frame.of(new Message(MessageKind.MESSAGE, "user", null, "general", "m" + i, 1_000L + i));
+  }
+
+  private static Frame control(String text) {
+    return Frame.of(new Message(MessageKind.SYSTEM, "server", "user", null, text, 1_000L));
+  }
+
+  private static List<String> texts(List<Frame> frames) {
+    return frames.stream().map(f -> f.message().text()).toList();
+  }
+}
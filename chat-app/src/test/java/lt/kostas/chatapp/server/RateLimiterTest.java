@@ -0,0 +1,134 @@
+package lt.kostas.chatapp.server;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.model.Room;
+import lt.kostas.chatapp.persistence.Persistence;
+import lt.kostas.chatapp.persistence.StoreEvent;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Kibirų pildymas, atmetimų skaičiavimas iki atjungimo ir draudimas vėl registruotis.
+ */
+class RateLimiterTest {
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+  // nanoTime atskaitos taškas bet koks - pradedame ne nuo nulio
+  private static final long T0 = 5_000_000_000L;
+
+  @Test
+  void burstIsAllowedThenRefillsAtRate() {
+    // 10 žinučių per sekundę - viena kas 100 ms, iš karto iki 3
+    RateLimiter limiter = new RateLimiter(() -> limits(0, 10_000, 0));
+    for (int i = 0; i < 3; i++) assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.MESSAGE, T0));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+    assertEquals(100, limiter.retryAfterMillis());
+
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0 + 99 * MS));
+    assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.MESSAGE, T0 + 100 * MS));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0 + 100 * MS));
+
+    // po ilgos pertraukos kibiras vėl pilnas, bet ne daugiau nei burst
+    long later = T0 + 10_000 * MS;
+    for (int i = 0; i < 3; i++) assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.MESSAGE, later));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, later));
+  }
+
+  @Test
+  void categoriesHaveSeparateBuckets() {
+    RateLimiter limiter = new RateLimiter(() -> limits(0, 10_000, 0));
+    for (int i = 0; i < 3; i++) limiter.check(MessageKind.MESSAGE, T0);
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+    // užklausų kibiras (history, search) nepaliestas
+    assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.HISTORY, T0));
+    assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.SEARCH, T0));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.HISTORY, T0));
+  }
+
+  @Test
+  void strikesWithinWindowDisconnect() {
+    RateLimiter limiter = new RateLimiter(() -> limits(3, 1_000, 0));
+    for (int i = 0; i < 3; i++) limiter.check(MessageKind.MESSAGE, T0);
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0 + MS));
+    assertEquals(RateLimiter.Verdict.DISCONNECT, limiter.check(MessageKind.MESSAGE, T0 + 2 * MS));
+  }
+
+  @Test
+  void strikesResetAfterQuietWindow() {
+    RateLimiter limiter = new RateLimiter(() -> limits(3, 1_000, 0));
+    for (int i = 0; i < 3; i++) limiter.check(MessageKind.MESSAGE, T0);
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+
+    // ilgiau nei strikeWindowMillis be atmetimų - skaičiuojama iš naujo
+    long later = T0 + 2_000 * MS;
+    for (int i = 0; i < 3; i++) assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.MESSAGE, later));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, later));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, later));
+    assertEquals(RateLimiter.Verdict.DISCONNECT, limiter.check(MessageKind.MESSAGE, later));
+  }
+
+  @Test
+  void zeroStrikesNeverDisconnects() {
+    RateLimiter limiter = new RateLimiter(() -> limits(0, 1_000, 0));
+    for (int i = 0; i < 3; i++) limiter.check(MessageKind.MESSAGE, T0);
+    for (int i = 0; i < 100; i++) assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+  }
+
+  @Test
+  void changedLimitsApplyToNextCheck() {
+    AtomicReference<RateLimits> current = new AtomicReference<>(limits(0, 1_000, 0));
+    RateLimiter limiter = new RateLimiter(current::get);
+    for (int i = 0; i < 3; i++) limiter.check(MessageKind.MESSAGE, T0);
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0));
+
+    // 1000 per sekundę - po 1 ms vėl leidžiama, nors pagal senas ribas reikėtų laukti 100 ms
+    current.set(RateLimits.defaults().withSpec("messages=1000;messages.burst=1"));
+    assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.MESSAGE, T0 + 301 * MS));
+    assertEquals(RateLimiter.Verdict.REJECT, limiter.check(MessageKind.MESSAGE, T0 + 301 * MS));
+    assertEquals(RateLimiter.Verdict.ALLOW, limiter.check(MessageKind.MESSAGE, T0 + 302 * MS));
+  }
+
+  @Test
+  void cooldownBlocksRegistrationUntilExpired() throws InterruptedException {
+    ChatServer server = new ChatServer(0, new NoStore());
+    server.setRateLimits(limits(3, 1_000, 200));
+    assertEquals(0, server.cooldownRemainingMillis("alice"));
+
+    assertEquals(200, server.coolDown("alice"));
+    long left = server.cooldownRemainingMillis("alice");
+    assertTrue(left > 0 && left <= 200, "left=" + left);
+    assertEquals(0, server.cooldownRemainingMillis("bob"));
+
+    Thread.sleep(250);
+    assertEquals(0, server.cooldownRemainingMillis("alice"));
+
+    // draudimai išjungti
+    server.setRateLimits(limits(3, 1_000, 0));
+    assertEquals(0, server.coolDown("alice"));
+    assertEquals(0, server.cooldownRemainingMillis("alice"));
+  }
+
+  /**
+   * Žinutės - 10 per sekundę, iki 3 iš karto; užklausos - 1 per sekundę, iki 2.
+   */
+  private static RateLimits limits(int strikes, long strikeWindowMillis, long cooldownMillis) {
+    return new RateLimits(10, 3, 1, 1, 1, 2, 1, 1, 64 * 1024, strikes, strikeWindowMillis, cooldownMillis);
+  }
+
+  private static final class NoStore implements Persistence {
+    @Override
+    public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+    }
+
+    @Override
+    public void append(StoreEvent event) {
+    }
+  }
+}
@@ -0,0 +1,61 @@
+package lt.kostas.chatapp.bench;
+
+import com.google.gson.Gson;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.BinaryCodec;
+import org.openjdk.jmh.annotations.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vienos žinutės kodavimas ir dekodavimas: dabartinis Gson kelias (kaip {@code MessageDispatcher}
+ * ir {@code Frame}) prieš {@link BinaryCodec}. Alokacijas rodo {@code -prof gc}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+  @Param({"16", "256", "4096"})
+  public int textLength;
+
+  private final Gson gson = new Gson();
+  private Message message;
+  private String jsonLine;
+  private byte[] binaryFrame;
+
+  @Setup
+  public void setup() {
+    String text = "ą".repeat(textLength / 4) + "x".repeat(textLength - textLength / 4);
+    message = new Message(MessageKind.MESSAGE, "alice", null, "general", text, 1_700_000_000_000L);
+    jsonLine = gson.toJson(message);
+    binaryFrame = BinaryCodec.encode(message);
+  }
+
+  @Benchmark
+  public byte[] encodeJson() {
+    return (gson.toJson(message) + "\n").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Benchmark
+  public Message decodeJson() {
+    return gson.fromJson(jsonLine, Message.class);
+  }
+
+  @Benchmark
+  public byte[] encodeBinary() {
+    return BinaryCodec.encode(message);
+  }
+
+  @Benchmark
+  public Message decodeBinary() throws ProtocolException {
+    return BinaryCodec.tryDecode(ByteBuffer.wrap(binaryFrame));
+  }
+}
@@ -0,0 +1,138 @@
+package lt.kostas.chatapp.bench;
+
+import com.google.gson.Gson;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.presence.PresenceTracker;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.WireFormat;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+/**
+ * Gautų kadrų maršrutizavimas vienoje gijoje (kadrai per sekundę vienam branduoliui): tipas kaip eilutė
+ * su {@code switch} (kaip buvo) prieš {@link MessageKind}, iškoduotą Gson'u, ir {@link EnumMap} lentelę.
+ * {@code route*} matuoja tik maršrutizavimą jau iškoduotoms žinutėms, {@code decodeAndRoute*} - su JSON.
+ * <p>
+ * {@code presenceSnapshot*} - ką kainuoja {@code presence-snapshot} kiekvienam naujam klientui,
+ * kai jis kuriamas iš naujo ir kai naudojamas tarp langų išsaugotas kadras.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+  private static final int FRAMES = 1024;
+
+  @Param({"1000"})
+  public int online;
+
+  /**
+   * Žinutė su tipu eilute - ankstesnis {@link Message} pavidalas.
+   */
+  record LegacyMessage(String type, String from, String to, String roomId, String text, long timestamp) {
+  }
+
+  private final Gson gson = new Gson();
+  private final Map<MessageKind, ToIntFunction<Message>> handlers = new EnumMap<>(MessageKind.class);
+  private String[] lines;
+  private Message[] messages;
+  private LegacyMessage[] legacy;
+  private int next;
+  private PresenceTracker presence;
+  private List<String> names;
+
+  @Setup
+  public void setup() {
+    // tipų santykis kaip aktyviame pokalbyje: daugiausia žinučių, retkarčiais istorija ir kambariai
+    MessageKind[] mix = {MessageKind.MESSAGE, MessageKind.MESSAGE, MessageKind.MESSAGE, MessageKind.MESSAGE,
+            MessageKind.MESSAGE, MessageKind.MESSAGE, MessageKind.HISTORY, MessageKind.JOIN_ROOM,
+            MessageKind.SEARCH, MessageKind.CREATE_ROOM, MessageKind.REGISTER, MessageKind.MESSAGE};
+    lines = new String[FRAMES];
+    messages = new Message[FRAMES];
+    legacy = new LegacyMessage[FRAMES];
+    for (int i = 0; i < FRAMES; i++) {
+      Message m = new Message(mix[i % mix.length], "user-" + (i % 50), null, "general", "žinutė " + i, 1_700_000_000_000L + i);
+      lines[i] = gson.toJson(m);
+      messages[i] = m;
+      legacy[i] = gson.fromJson(lines[i], LegacyMessage.class);
+    }
+    handlers.put(MessageKind.REGISTER, m -> 1);
+    handlers.put(MessageKind.CREATE_ROOM, m -> 2);
+    handlers.put(MessageKind.MESSAGE, m -> m.text().length());
+    handlers.put(MessageKind.JOIN_ROOM, m -> 4);
+    handlers.put(MessageKind.HISTORY, m -> 5);
+    handlers.put(MessageKind.SEARCH, m -> 6);
+
+    presence = new PresenceTracker(List.of(), 200);
+    names = new ArrayList<>(online);
+    for (int i = 0; i < online; i++) {
+      names.add("user-" + i);
+      presence.online("user-" + i);
+    }
+    presence.flush();
+  }
+
+  @TearDown
+  public void tearDown() {
+    presence.close();
+  }
+
+  @Benchmark
+  public int routeStringSwitch() {
+    return routeLegacy(legacy[next++ & (FRAMES - 1)]);
+  }
+
+  @Benchmark
+  public int routeEnumTable() {
+    return route(messages[next++ & (FRAMES - 1)]);
+  }
+
+  @Benchmark
+  public int decodeAndRouteStringSwitch() {
+    return routeLegacy(gson.fromJson(lines[next++ & (FRAMES - 1)], LegacyMessage.class));
+  }
+
+  @Benchmark
+  public int decodeAndRouteEnumTable() {
+    return route(gson.fromJson(lines[next++ & (FRAMES - 1)], Message.class));
+  }
+
+  @Benchmark
+  public int presenceSnapshotRebuilt() {
+    // kaip anksčiau: eilutė ir kadras kiekvienam naujam klientui, todėl ir kodavimas kiekvieną kartą
+    Frame frame = Frame.of(new Message(MessageKind.PRESENCE_SNAPSHOT, "server", null, null, String.join("\n", names)));
+    return frame.length(WireFormat.JSON);
+  }
+
+  @Benchmark
+  public int presenceSnapshotCached() {
+    return presence.snapshot().length(WireFormat.JSON);
+  }
+
+  private int route(Message m) {
+    ToIntFunction<Message> handler = handlers.get(m.type());
+    return handler == null ? 0 : handler.applyAsInt(m);
+  }
+
+  private static int routeLegacy(LegacyMessage m) {
+    if (m.type() == null) return 0;
+    return switch (m.type()) {
+      case "register" -> 1;
+      case "create-room" -> 2;
+      case "message" -> m.text().length();
+      case "join-room" -> 4;
+      case "history" -> 5;
+      case "search" -> 6;
+      default -> 0;
+    };
+  }
+}
@@ -0,0 +1,49 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.protocol.WireFormat;
+import lt.kostas.chatapp.server.ChatServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ChatServer#broadcastToRoom} vienam kambariui su skirtingu narių skaičiumi.
+ * Nariai - {@link InMemoryConnection}, todėl matuojamas paieška, kadro kodavimas ir eilės, ne tinklas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FanOutBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int roomSize;
+
+  @Param({"JSON", "BINARY"})
+  public WireFormat format;
+
+  private ChatServer server;
+  private Message message;
+
+  @Setup
+  public void setup() {
+    server = new ChatServer(0, new NoopPersistence());
+    server.createRoom("bench", "Bench", null);
+    for (int i = 0; i < roomSize; i++) {
+      String name = "user-" + i;
+      server.registerClient(name, new InMemoryConnection(name, format));
+      server.joinRoom("bench", name);
+    }
+    message = new Message(MessageKind.MESSAGE, "user-0", null, "bench", "labas visiems kambaryje");
+  }
+
+  @Benchmark
+  public void broadcast() {
+    // nauja žinutė kiekvieną kartą, kad kadras būtų koduojamas iš naujo, kaip tikrame sraute
+    server.broadcastToRoom(new Message(message.type(), message.from(), null, message.roomId(), message.text()));
+  }
+}
@@ -0,0 +1,64 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.server.ClientConnection;
+import lt.kostas.chatapp.server.OutboundQueue;
+import lt.kostas.chatapp.protocol.Frame;
+import lt.kostas.chatapp.protocol.WireFormat;
+
+/**
+ * Ryšys be socket'o: kadrą tik užkoduoja (kaip tai darytų rašymo gija) ir suskaičiuoja baitus,
+ * todėl matuojamas serverio darbas, o ne tinklas.
+ */
+final class InMemoryConnection implements ClientConnection {
+  private volatile String username;
+  private WireFormat format = WireFormat.JSON;
+  long frames;
+  long bytes;
+
+  InMemoryConnection(String username) {
+    this.username = username;
+  }
+
+  InMemoryConnection(String username, WireFormat format) {
+    this.username = username;
+    this.format = format;
+  }
+
+  @Override
+  public String getUsername() {
+    return username;
+  }
+
+  @Override
+  public void setUsername(String username) {
+    this.username = username;
+  }
+
+  @Override
+  public void send(Frame frame) {
+    if (frame.switchFormat() != null) {
+      format = frame.switchFormat();
+      return;
+    }
+    frames++;
+    bytes += frame.length(format);
+  }
+
+  @Override
+  public void switchFormat(WireFormat format) {
+    this.format = format;
+  }
+
+  @Override
+  public OutboundQueue.Stats outboundStats() {
+    return new OutboundQueue.Stats(0, 0, frames, 0, 0);
+  }
+
+  @Override
+  public void drain() {
+  }
+
+  @Override
+  public void close() {
+  }
+}
@@ -0,0 +1,68 @@
+package lt.kostas.chatapp.bench;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Vėlinimų histograma milisekundžių tikslumu (0..{@value #MAX_MILLIS} ms, didesni - paskutiniame kibire).
+ * Rašoma be užraktų iš daugelio gijų; procentiliai skaičiuojami perbėgant kibirus.
+ */
+final class LatencyRecorder {
+  static final int MAX_MILLIS = 60_000;
+
+  private final AtomicLongArray buckets = new AtomicLongArray(MAX_MILLIS + 1);
+  private final LongAdder count = new LongAdder();
+
+  void record(long millis) {
+    int bucket = (int) Math.max(0, Math.min(millis, MAX_MILLIS));
+    buckets.incrementAndGet(bucket);
+    count.increment();
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  /**
+   * Mažiausia reikšmė, už kurią ne didesnės yra bent {@code q} dalis įrašų, arba -1, jei įrašų nėra.
+   */
+  long percentile(double q) {
+    long total = count();
+    if (total == 0) return -1;
+    long rank = (long) Math.ceil(q * total);
+    long seen = 0;
+    for (int i = 0; i <= MAX_MILLIS; i++) {
+      seen += buckets.get(i);
+      if (seen >= rank) return i;
+    }
+    return MAX_MILLIS;
+  }
+
+  long max() {
+    for (int i = MAX_MILLIS; i >= 0; i--) {
+      if (buckets.get(i) > 0) return i;
+    }
+    return -1;
+  }
+
+  void reset() {
+    for (int i = 0; i <= MAX_MILLIS; i++) {
+      buckets.set(i, 0);
+    }
+    count.reset();
+  }
+
+  /**
+   * @param count įrašų skaičius
+   * @param p50   mediana (ms)
+   * @param p99   99-as procentilis (ms)
+   * @param p999  99,9-as procentilis (ms)
+   * @param max   didžiausia reikšmė (ms)
+   */
+  record Summary(long count, long p50, long p99, long p999, long max) {
+  }
+
+  Summary summary() {
+    return new Summary(count(), percentile(0.50), percentile(0.99), percentile(0.999), max());
+  }
+}
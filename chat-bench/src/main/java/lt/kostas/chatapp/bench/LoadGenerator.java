@@ -0,0 +1,298 @@
+package lt.kostas.chatapp.bench;
+
+import com.google.gson.GsonBuilder;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.network.NetworkClient;
+import lt.kostas.chatapp.protocol.WireFormat;
+import lt.kostas.chatapp.server.ChatServer;
+import lt.kostas.chatapp.server.ServerOptions;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Apkrovos generatorius per tikrą socket'o protokolą: daug {@link NetworkClient} be UI
+ * registruojasi, kuria kambarius ir į juos jungiasi, o tada nurodytu dažniu siunčia kambario
+ * žinutes ir privačias žinutes. Pristatymo vėlinimas matuojamas nuo siuntimo laiko, įrašyto žinutės
+ * tekste ({@link Message#timestamp()} nustato serveris, gavęs žinutę).
+ * <p>
+ * Nustatymai - {@code load.*} sistemos savybės (žr. {@link Config#fromSystemProperties()});
+ * įterpto serverio nustatymai - tie patys {@code chat.*} kaip {@link ServerOptions}.
+ */
+public final class LoadGenerator {
+
+  /**
+   * @param host               serverio adresas
+   * @param port               serverio portas
+   * @param embedded           paleisti {@link ChatServer} šiame procese (be saugyklos)
+   * @param users              aktyvūs vartotojai, kurie siunčia žinutes
+   * @param idleUsers          papildomi vartotojai, kurie tik prisijungia ir laiko ryšį
+   * @param rooms              kiek kambarių sukurti; vartotojai paskirstomi po lygiai
+   * @param messagesPerSecond  bendras siuntimo dažnis
+   * @param dmRatio            kokia dalis žinučių - privačios
+   * @param senders            kiek gijų siunčia (kiekviena - savo dalį dažnio)
+   * @param warmupSeconds      apšilimas, po kurio matavimai išvalomi
+   * @param durationSeconds    matavimo trukmė
+   * @param connectConcurrency kiek ryšių kuriama lygiagrečiai
+   * @param codec              ryšio formatas
+   * @param out                kur įrašyti JSON ataskaitą (null - tik į konsolę)
+   */
+  record Config(String host, int port, boolean embedded, int users, int idleUsers, int rooms,
+                double messagesPerSecond, double dmRatio, int senders, int warmupSeconds,
+                int durationSeconds, int connectConcurrency, WireFormat codec, String out) {
+
+    static Config fromSystemProperties() {
+      return new Config(
+              System.getProperty("load.host", "localhost"),
+              Integer.getInteger("load.port", 55556),
+              Boolean.parseBoolean(System.getProperty("load.embedded", "true")),
+              Integer.getInteger("load.users", 1000),
+              Integer.getInteger("load.idleUsers", 0),
+              Integer.getInteger("load.rooms", 20),
+              Double.parseDouble(System.getProperty("load.rate", "5000")),
+              Double.parseDouble(System.getProperty("load.dmRatio", "0.1")),
+              Integer.getInteger("load.senders", 4),
+              Integer.getInteger("load.warmupSeconds", 5),
+              Integer.getInteger("load.durationSeconds", 30),
+              Integer.getInteger("load.connectConcurrency", 200),
+              WireFormat.fromOption(System.getProperty("load.codec")),
+              System.getProperty("load.out"));
+    }
+  }
+
+  /**
+   * @param config             paleidimo nustatymai
+   * @param connectMillis      ryšio sukūrimo iki {@code registered} laikas (ms)
+   * @param failedConnections  kiek ryšių nepavyko sukurti ar užregistruoti
+   * @param delivery           žinutės pristatymo vėlinimas (ms)
+   * @param sentPerSecond      išsiųsta žinučių per sekundę
+   * @param deliveredPerSecond pristatyta žinučių per sekundę (kambario žinutė - kiekvienam nariui)
+   */
+  record Report(Config config, LatencyRecorder.Summary connectMillis, long failedConnections,
+                LatencyRecorder.Summary delivery, double sentPerSecond, double deliveredPerSecond) {
+  }
+
+  private final Config config;
+  private final LatencyRecorder connectLatency = new LatencyRecorder();
+  private final LatencyRecorder deliveryLatency = new LatencyRecorder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder delivered = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final List<SimulatedUser> active = new CopyOnWriteArrayList<>();
+  private final List<SimulatedUser> idle = new CopyOnWriteArrayList<>();
+  private volatile boolean recording;
+  private volatile boolean sending = true;
+
+  LoadGenerator(Config config) {
+    this.config = config;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = Config.fromSystemProperties();
+    Report report = new LoadGenerator(config).run();
+    String json = new GsonBuilder().setPrettyPrinting().create().toJson(report);
+    System.out.println(json);
+    if (config.out() != null) {
+      try (Writer w = Files.newBufferedWriter(Path.of(config.out()), StandardCharsets.UTF_8)) {
+        w.write(json);
+      }
+    }
+    System.exit(0);
+  }
+
+  Report run() throws Exception {
+    if (config.embedded()) startEmbeddedServer();
+
+    // kambarius sukuria pirmieji vartotojai, kad kiti turėtų prie ko jungtis
+    for (int r = 0; r < config.rooms() && r < config.users(); r++) {
+      SimulatedUser owner = connect("user-" + r, roomOf(r));
+      if (owner == null) continue;
+      owner.createRoomAndWait();
+      active.add(owner);
+    }
+    connectAll(config.rooms(), config.users(), "user-", active, true);
+    connectAll(0, config.idleUsers(), "idle-", idle, false);
+    System.err.printf("Prisijungė %d aktyvių ir %d neaktyvių vartotojų, nepavyko %d%n",
+            active.size(), idle.size(), failed.sum());
+
+    List<Thread> senderThreads = new ArrayList<>();
+    for (int i = 0; i < config.senders(); i++) {
+      Thread t = new Thread(this::sendLoop, "load-sender-" + i);
+      t.setDaemon(true);
+      t.start();
+      senderThreads.add(t);
+    }
+
+    Thread.sleep(config.warmupSeconds() * 1000L);
+    deliveryLatency.reset();
+    sent.reset();
+    delivered.reset();
+    recording = true;
+    long start = System.nanoTime();
+    Thread.sleep(config.durationSeconds() * 1000L);
+    sending = false;
+    for (Thread t : senderThreads) t.join();
+    double seconds = (System.nanoTime() - start) / 1e9;
+    // leidžiame pristatyti tai, kas dar kelyje
+    Thread.sleep(1000);
+    recording = false;
+
+    for (SimulatedUser u : active) u.client.close();
+    for (SimulatedUser u : idle) u.client.close();
+    return new Report(config, connectLatency.summary(), failed.sum(), deliveryLatency.summary(),
+            sent.sum() / seconds, delivered.sum() / seconds);
+  }
+
+  private void startEmbeddedServer() throws InterruptedException {
+    ChatServer server = new ChatServer(config.port(), new NoopPersistence(), ServerOptions.fromSystemProperties());
+    Thread t = new Thread(() -> {
+      try {
+        server.start();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "embedded-server");
+    t.setDaemon(true);
+    t.start();
+    while (server.getReadyMillis() < 0) {
+      Thread.sleep(10);
+    }
+  }
+
+  private String roomOf(int user) {
+    return "load-" + (user % Math.max(1, config.rooms()));
+  }
+
+  private void connectAll(int from, int to, String prefix, List<SimulatedUser> into, boolean join)
+          throws InterruptedException {
+    Semaphore permits = new Semaphore(config.connectConcurrency());
+    try (ExecutorService pool = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = from; i < to; i++) {
+        permits.acquire();
+        int n = i;
+        pool.execute(() -> {
+          try {
+            SimulatedUser u = connect(prefix + n, roomOf(n));
+            if (u == null) return;
+            if (join) u.client.send(new Message(MessageKind.JOIN_ROOM, u.name, null, u.room, null));
+            into.add(u);
+          } finally {
+            permits.release();
+          }
+        });
+      }
+    }
+  }
+
+  private SimulatedUser connect(String name, String room) {
+    long t0 = System.nanoTime();
+    SimulatedUser u = new SimulatedUser(name, room);
+    try {
+      u.client.connect(config.host(), config.port(), u::onMessage);
+      u.client.register(name);
+      if (!u.registered.await(30, TimeUnit.SECONDS) || !u.accepted) {
+        failed.increment();
+        u.client.close();
+        return null;
+      }
+    } catch (IOException e) {
+      failed.increment();
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    }
+    connectLatency.record((System.nanoTime() - t0) / 1_000_000);
+    return u;
+  }
+
+  /**
+   * Atviro ciklo siuntimas: kiekviena gija siunčia savo dažniu pagal tvarkaraštį, nelaukdama atsakymų,
+   * todėl serverio lėtėjimas matomas vėlinime, o ne mažesniame dažnyje.
+   */
+  private void sendLoop() {
+    double perThread = config.messagesPerSecond() / Math.max(1, config.senders());
+    if (perThread <= 0 || active.isEmpty()) return;
+    long interval = (long) (1_000_000_000L / perThread);
+    long next = System.nanoTime();
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    while (sending) {
+      next += interval;
+      long wait = next - System.nanoTime();
+      if (wait > 0) LockSupport.parkNanos(wait);
+      SimulatedUser from = active.get(random.nextInt(active.size()));
+      Message m;
+      if (random.nextDouble() < config.dmRatio() && active.size() > 1) {
+        SimulatedUser to = active.get(random.nextInt(active.size()));
+        if (to == from) continue;
+        m = new Message(MessageKind.MESSAGE, from.name, to.name, null, "load dm " + System.currentTimeMillis());
+      } else {
+        m = new Message(MessageKind.MESSAGE, from.name, null, from.room, "load message " + System.currentTimeMillis());
+      }
+      from.client.send(m);
+      if (recording) sent.increment();
+    }
+  }
+
+  private final class SimulatedUser {
+    final String name;
+    final String room;
+    final NetworkClient client;
+    final CountDownLatch registered = new CountDownLatch(1);
+    final CountDownLatch roomCreated = new CountDownLatch(1);
+    volatile boolean accepted;
+
+    SimulatedUser(String name, String room) {
+      this.name = name;
+      this.room = room;
+      // žinutės apdorojamos tiesiai skaitymo gijoje; skaitymo gijos virtualios
+      this.client = new NetworkClient(config.codec(), Runnable::run, Thread.ofVirtual().name(name).factory());
+    }
+
+    void createRoomAndWait() throws InterruptedException {
+      client.send(new Message(MessageKind.CREATE_ROOM, name, null, room, room));
+      roomCreated.await(30, TimeUnit.SECONDS);
+    }
+
+    void onMessage(Message m) {
+      if (m.type() == null) return;
+      switch (m.type()) {
+        case MESSAGE -> {
+          if (recording) {
+            deliveryLatency.record(System.currentTimeMillis() - sentAt(m.text()));
+            delivered.increment();
+          }
+        }
+        case SYSTEM -> {
+          if (m.text() != null && m.text().startsWith("registered")) {
+            accepted = true;
+            registered.countDown();
+          } else if ("register-failed".equals(m.text())) {
+            registered.countDown();
+          }
+        }
+        case ROOM_CREATED -> {
+          if (room.equals(m.roomId())) roomCreated.countDown();
+        }
+        default -> {
+        }
+      }
+    }
+  }
+
+  /**
+   * Siuntimo laikas iš žinutės teksto pabaigos ("load message <ms>").
+   */
+  private static long sentAt(String text) {
+    return Long.parseLong(text.substring(text.lastIndexOf(' ') + 1));
+  }
+}
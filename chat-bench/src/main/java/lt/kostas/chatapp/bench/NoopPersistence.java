@@ -0,0 +1,21 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.model.Room;
+import lt.kostas.chatapp.persistence.Persistence;
+import lt.kostas.chatapp.persistence.StoreEvent;
+
+import java.util.Collection;
+
+/**
+ * Saugykla, kuri nieko nerašo - kad serverio matavimuose neatsirastų disko.
+ */
+final class NoopPersistence implements Persistence {
+  @Override
+  public void saveState(Collection<Room> rooms, Collection<String> users, Collection<Message> messages) {
+  }
+
+  @Override
+  public void append(StoreEvent event) {
+  }
+}
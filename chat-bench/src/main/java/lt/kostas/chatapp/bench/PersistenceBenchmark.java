@@ -0,0 +1,121 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.dto.ConversationKey;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.model.Room;
+import lt.kostas.chatapp.persistence.FsyncPolicy;
+import lt.kostas.chatapp.persistence.MappedPersistence;
+import lt.kostas.chatapp.persistence.MessageStoreOptions;
+import lt.kostas.chatapp.persistence.PersistenceImpl;
+import lt.kostas.chatapp.persistence.StoreEvent;
+import lt.kostas.chatapp.persistence.WalOptions;
+import lt.kostas.chatapp.persistence.WriteAheadLogPersistence;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Saugyklos kaina augant istorijai: {@link PersistenceImpl} perrašo visą failą ir per
+ * {@code saveState}, ir per kiekvieną {@code append}, o {@link WriteAheadLogPersistence}
+ * prideda tik vieną įrašą.
+ * <p>
+ * {@code *ReadHistory} - 50 žinučių iš istorijos vidurio, kurios nebėra atmintyje: WAL perskaito ir
+ * iškoduoja visus failus, {@link MappedPersistence} - tik reikalingus įrašus iš atvaizduotų segmentų.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PersistenceBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int history;
+
+  private Path dir;
+  private PersistenceImpl json;
+  private WriteAheadLogPersistence wal;
+  private MappedPersistence mapped;
+  private List<Room> rooms;
+  private List<String> users;
+  private List<Message> messages;
+  private Message next;
+  private long middle;
+
+  @Setup
+  public void setup() throws IOException {
+    dir = Files.createTempDirectory("chat-bench");
+    rooms = List.of(new Room("general", "General"), new Room("bench", "Bench"));
+    users = new ArrayList<>();
+    for (int i = 0; i < 50; i++) users.add("user-" + i);
+    messages = new ArrayList<>(history);
+    for (int i = 0; i < history; i++) {
+      messages.add(new Message(MessageKind.MESSAGE, users.get(i % users.size()), null, "general", "žinutė nr. " + i,
+              1_700_000_000_000L + i));
+    }
+    middle = 1_700_000_000_000L + history / 2;
+
+    json = new PersistenceImpl(dir.resolve("chat-data.json").toString());
+    json.saveState(rooms, users, messages);
+    // fsync kiekvienam įrašui - blogiausias, bet sąžiningas palyginimas su failo perrašymu
+    wal = new WriteAheadLogPersistence(dir.resolve("wal").toString(),
+            WalOptions.defaults().withFsyncPolicy(FsyncPolicy.EVERY_RECORD));
+    List<StoreEvent> events = new ArrayList<>(history);
+    for (Message m : messages) events.add(StoreEvent.message(m));
+    wal.appendBatch(events);
+    mapped = new MappedPersistence(dir.resolve("store").toString(),
+            MessageStoreOptions.defaults().withFsyncPolicy(FsyncPolicy.EVERY_RECORD));
+    mapped.appendBatch(events);
+    next = new Message(MessageKind.MESSAGE, "user-0", null, "general", "nauja žinutė");
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    wal.close();
+    mapped.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(p);
+      }
+    }
+  }
+
+  @Benchmark
+  public void jsonSaveState() {
+    json.saveState(rooms, users, messages);
+  }
+
+  @Benchmark
+  public void jsonAppend() {
+    json.append(StoreEvent.roomJoined("bench", "user-1"));
+  }
+
+  @Benchmark
+  public void walAppend() {
+    wal.append(StoreEvent.message(next));
+  }
+
+  @Benchmark
+  public void mappedAppend() {
+    mapped.append(StoreEvent.message(next));
+  }
+
+  @Benchmark
+  public List<Message> walReadHistory() {
+    return wal.readHistory(ConversationKey.room("general"), middle, 50);
+  }
+
+  @Benchmark
+  public List<Message> mappedReadHistory() {
+    return mapped.readHistory(ConversationKey.room("general"), middle, 50);
+  }
+}
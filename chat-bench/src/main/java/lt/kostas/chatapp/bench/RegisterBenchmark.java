@@ -0,0 +1,44 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.server.ChatServer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Vieno vartotojo prisijungimo ir atsijungimo kaina, kai serveryje jau yra {@code users} vartotojų:
+ * {@link ChatServer#registerClient} siunčia naujokui {@code presence-snapshot}, o pasikeitimai
+ * kitiems išsiunčiami sukaupti. Matuojama pora, kad būsena nesikeistų.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RegisterBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int users;
+
+  private ChatServer server;
+  private long next;
+
+  @Setup
+  public void setup() {
+    server = new ChatServer(0, new NoopPersistence());
+    for (int i = 0; i < users; i++) {
+      String name = "user-" + i;
+      server.registerClient(name, new InMemoryConnection(name));
+    }
+  }
+
+  @Benchmark
+  public boolean registerAndLeave() {
+    String name = "guest-" + next++;
+    InMemoryConnection conn = new InMemoryConnection(name);
+    boolean ok = server.registerClient(name, conn);
+    server.unregisterClient(name, conn);
+    return ok;
+  }
+}
@@ -0,0 +1,215 @@
+package lt.kostas.chatapp.bench;
+
+import com.google.gson.GsonBuilder;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.network.ClientOptions;
+import lt.kostas.chatapp.network.NetworkClient;
+import lt.kostas.chatapp.persistence.AsyncPersistence;
+import lt.kostas.chatapp.persistence.MappedPersistence;
+import lt.kostas.chatapp.persistence.StoreEvent;
+import lt.kostas.chatapp.protocol.WireFormat;
+import lt.kostas.chatapp.server.ChatServer;
+import lt.kostas.chatapp.server.ServerOptions;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serverio perkrovimas su prisijungusiais klientais: {@link ChatServer} su {@link MappedPersistence}, kurioje
+ * jau yra istorija, ir {@code restart.users} {@link NetworkClient}. Matuojama, kiek trunka {@link ChatServer#stop()}
+ * (pranešimas klientams, eilių ištuštinimas, saugyklos įrašymas), kiek - naujo serverio paleidimas iki
+ * {@code accept()} (saugyklos atidarymas ir atkūrimas) ir per kiek laiko nuo sustabdymo pradžios kiekvienas
+ * klientas vėl užsiregistravo.
+ * <p>
+ * Nustatymai - {@code restart.*} sistemos savybės (žr. {@link Config#fromSystemProperties()}); serverio -
+ * tie patys {@code chat.*} kaip {@link ServerOptions}, pvz. {@code chat.shutdown.reconnectSpreadMillis}.
+ */
+public final class RestartBenchmark {
+
+  /**
+   * @param port    serverio portas
+   * @param users   prisijungusių klientų skaičius
+   * @param rooms   kambarių skaičius istorijoje
+   * @param history kiek žinučių įrašyti į saugyklą prieš pirmą paleidimą
+   * @param dir     saugyklos katalogas (null - laikinas)
+   * @param out     kur įrašyti JSON ataskaitą (null - tik į konsolę)
+   */
+  record Config(int port, int users, int rooms, int history, String dir, String out) {
+
+    static Config fromSystemProperties() {
+      return new Config(
+              Integer.getInteger("restart.port", 55557),
+              Integer.getInteger("restart.users", 200),
+              Integer.getInteger("restart.rooms", 20),
+              Integer.getInteger("restart.history", 200_000),
+              System.getProperty("restart.dir"),
+              System.getProperty("restart.out"));
+    }
+  }
+
+  /**
+   * @param config          paleidimo nustatymai
+   * @param stopMillis      {@link ChatServer#stop()} trukmė
+   * @param restartMillis   nuo naujo serverio kūrimo (įskaitant saugyklos atidarymą) iki pirmo galimo {@code accept()}
+   * @param notified        kiek klientų gavo {@code server-restarting}
+   * @param resumed         kiek klientų pratęsė sesiją naujame serveryje
+   * @param reconnectMillis kada klientas vėl užsiregistravo, skaičiuojant nuo sustabdymo pradžios (ms)
+   */
+  record Report(Config config, long stopMillis, long restartMillis, long notified, long resumed,
+                LatencyRecorder.Summary reconnectMillis) {
+  }
+
+  /**
+   * Veikiantis serveris su savo saugykla.
+   */
+  private record Running(ChatServer server, AsyncPersistence persistence, Thread thread) {
+  }
+
+  private final Config config;
+  private final LatencyRecorder reconnect = new LatencyRecorder();
+  private final LongAdder notified = new LongAdder();
+  private final LongAdder resumed = new LongAdder();
+  private volatile long stoppingSince;
+  private volatile CountDownLatch registered;
+
+  RestartBenchmark(Config config) {
+    this.config = config;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = Config.fromSystemProperties();
+    Report report = new RestartBenchmark(config).run();
+    String json = new GsonBuilder().setPrettyPrinting().create().toJson(report);
+    System.out.println(json);
+    if (config.out() != null) {
+      try (Writer w = Files.newBufferedWriter(Path.of(config.out()), StandardCharsets.UTF_8)) {
+        w.write(json);
+      }
+    }
+    System.exit(0);
+  }
+
+  Report run() throws Exception {
+    Path dir = config.dir() == null ? Files.createTempDirectory("restart") : Files.createDirectories(Path.of(config.dir()));
+    seed(dir);
+    Running first = start(dir);
+
+    registered = new CountDownLatch(config.users());
+    List<NetworkClient> clients = new ArrayList<>();
+    for (int i = 0; i < config.users(); i++) {
+      clients.add(connect("user-" + i));
+    }
+    if (!registered.await(60, TimeUnit.SECONDS)) throw new IllegalStateException("Ne visi klientai užsiregistravo: liko " + registered.getCount());
+    System.err.printf("Prisijungė %d klientų%n", config.users());
+
+    registered = new CountDownLatch(config.users());
+    stoppingSince = System.nanoTime();
+    long stopMillis = first.server().stop();
+    stop(first, dir);
+
+    long t0 = System.nanoTime();
+    Running second = start(dir);
+    long restartMillis = (System.nanoTime() - t0) / 1_000_000;
+
+    long wait = ServerOptions.fromSystemProperties().reconnectSpreadMillis() + 60_000;
+    if (!registered.await(wait, TimeUnit.MILLISECONDS)) {
+      System.err.printf("Per %d ms neprisijungė %d klientų%n", wait, registered.getCount());
+    }
+    Report report = new Report(config, stopMillis, restartMillis, notified.sum(), resumed.sum(), reconnect.summary());
+    clients.forEach(NetworkClient::close);
+    second.server().stop();
+    stop(second, dir);
+    return report;
+  }
+
+  /**
+   * Kambariai ir istorija įrašomi tiesiai į saugyklą, kad paleidimas turėtų ką atkurti.
+   */
+  private void seed(Path dir) {
+    MappedPersistence storage = new MappedPersistence(dir.resolve("store").toString());
+    try {
+      if (!storage.isEmpty()) return;
+      List<StoreEvent> batch = new ArrayList<>();
+      for (int r = 0; r < config.rooms(); r++) {
+        batch.add(StoreEvent.roomCreated("room-" + r, "Kambarys " + r));
+      }
+      long start = System.currentTimeMillis() - config.history();
+      for (int i = 0; i < config.history(); i++) {
+        String room = "room-" + (i % config.rooms());
+        batch.add(StoreEvent.message(new Message(MessageKind.MESSAGE, "user-" + (i % Math.max(1, config.users())),
+                null, room, "istorijos žinutė " + i, start + i)));
+        if (batch.size() == 1024) {
+          storage.appendBatch(batch);
+          batch.clear();
+        }
+      }
+      storage.appendBatch(batch);
+    } finally {
+      storage.close();
+    }
+  }
+
+  private Running start(Path dir) throws IOException, InterruptedException {
+    ServerOptions options = ServerOptions.fromSystemProperties();
+    AsyncPersistence persistence = new AsyncPersistence(new MappedPersistence(dir.resolve("store").toString()),
+            AsyncPersistence.DEFAULT_CAPACITY, options.stateShards());
+    ChatServer server = new ChatServer(config.port(), persistence, options);
+    server.loadSessions(dir.resolve("sessions.json"));
+    Thread t = new Thread(() -> {
+      try {
+        server.start();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }, "restart-server");
+    t.setDaemon(true);
+    t.start();
+    while (server.getReadyMillis() < 0) {
+      Thread.sleep(1);
+    }
+    return new Running(server, persistence, t);
+  }
+
+  /**
+   * Tai, ką {@code ChatServer.main} daro po {@code start()}: sesijos įrašomos, saugykla uždaroma.
+   */
+  private void stop(Running running, Path dir) throws IOException, InterruptedException {
+    running.thread().join();
+    running.server().saveSessions(dir.resolve("sessions.json"));
+    running.persistence().close();
+  }
+
+  private NetworkClient connect(String name) throws IOException {
+    NetworkClient client = new NetworkClient(WireFormat.JSON, Runnable::run, Thread.ofVirtual().name(name).factory(),
+            ClientOptions.fromSystemProperties());
+    client.connect("localhost", config.port(), this::onMessage);
+    client.register(name);
+    return client;
+  }
+
+  private void onMessage(Message m) {
+    if (m.type() != MessageKind.SYSTEM || m.text() == null) return;
+    if (m.text().startsWith("registered")) {
+      if (stoppingSince == 0) {
+        registered.countDown();
+      } else {
+        reconnect.record((System.nanoTime() - stoppingSince) / 1_000_000);
+      }
+    } else if (m.text().startsWith("server-restarting")) {
+      notified.increment();
+    } else if (m.text().startsWith("resumed")) {
+      // po perkrovimo laukiama pratęstų sesijų - "resumed" ateina po praleistų žinučių
+      resumed.increment();
+      registered.countDown();
+    }
+  }
+}
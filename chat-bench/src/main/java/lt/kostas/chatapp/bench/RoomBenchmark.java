@@ -0,0 +1,87 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.model.Member;
+import lt.kostas.chatapp.model.Room;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kambario narių perėjimas siuntimui, kol kitos gijos nuolat prijungia ir atjungia narius:
+ * vardų kopija {@link Room#getMembersSnapshot()} prieš nekintamą {@link Room#onlineMembers()} masyvą.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class RoomBenchmark {
+
+  @Param({"10", "100", "1000"})
+  public int members;
+
+  private Room room;
+  private final Member[] guests = new Member[64];
+
+  @Setup
+  public void setup() {
+    room = new Room("bench", "Bench");
+    for (int i = 0; i < members; i++) {
+      room.addMember("user-" + i);
+      room.attach(new InMemoryConnection("user-" + i));
+    }
+    for (int i = 0; i < guests.length; i++) {
+      guests[i] = new InMemoryConnection("guest-" + i);
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class Churn {
+    long next;
+  }
+
+  @Benchmark
+  @Group("churn")
+  @GroupThreads(3)
+  public Set<String> snapshot() {
+    return room.getMembersSnapshot();
+  }
+
+  @Benchmark
+  @Group("churn")
+  @GroupThreads(1)
+  public void joinLeave(Churn churn, Blackhole bh) {
+    String name = "guest-" + (churn.next++ & 63);
+    room.addMember(name);
+    room.removeMember(name);
+    bh.consume(name);
+  }
+
+  @Benchmark
+  public Set<String> snapshotUncontended() {
+    return room.getMembersSnapshot();
+  }
+
+  @Benchmark
+  @Group("online")
+  @GroupThreads(3)
+  public int iterateOnline(Blackhole bh) {
+    Member[] online = room.onlineMembers();
+    for (Member m : online) {
+      bh.consume(m);
+    }
+    return online.length;
+  }
+
+  @Benchmark
+  @Group("online")
+  @GroupThreads(1)
+  public void attachDetach(Churn churn) {
+    Member guest = guests[(int) (churn.next++ & 63)];
+    room.attach(guest);
+    room.detach(guest);
+  }
+}
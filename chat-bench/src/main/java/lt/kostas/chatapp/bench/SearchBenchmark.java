@@ -0,0 +1,108 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.search.SearchIndex;
+import lt.kostas.chatapp.search.SearchPage;
+import lt.kostas.chatapp.search.SearchQuery;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Paieškos užklausų trukmė pagal indekso dydį. Žodžiai parenkami pagal Zipf'o skirstinį, kaip tikrame
+ * tekste: keli labai dažni ir ilga retų uodega. Dauguma segmentų - diske, todėl matuojamas ir mmap skaitymas.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SearchBenchmark {
+  private static final int VOCABULARY = 50_000;
+  private static final int ROOMS = 20;
+  private static final int PAGE = 20;
+
+  @Param({"100000", "1000000"})
+  public int messages;
+
+  private Path dir;
+  private SearchIndex index;
+
+  @Setup
+  public void setup() throws IOException, InterruptedException {
+    dir = Files.createTempDirectory("chat-search-bench");
+    index = new SearchIndex(dir);
+    Random random = new Random(42);
+    double[] cdf = zipf(VOCABULARY);
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < messages; i++) {
+      text.setLength(0);
+      int words = 3 + random.nextInt(10);
+      for (int w = 0; w < words; w++) {
+        if (w > 0) text.append(' ');
+        text.append(word(sample(cdf, random)));
+      }
+      index.add(new Message(MessageKind.MESSAGE, "user-" + random.nextInt(500), null, "room-" + random.nextInt(ROOMS),
+              text.toString(), 1_700_000_000_000L + i));
+    }
+    index.flush();
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    index.close();
+    try (Stream<Path> files = Files.walk(dir)) {
+      for (Path p : files.sorted(Comparator.reverseOrder()).toList()) {
+        Files.deleteIfExists(p);
+      }
+    }
+  }
+
+  @Benchmark
+  public SearchPage rareTerm() {
+    return index.search(query(word(VOCABULARY / 2), null));
+  }
+
+  @Benchmark
+  public SearchPage commonTerm() {
+    return index.search(query(word(0), null));
+  }
+
+  @Benchmark
+  public SearchPage twoTermsInRoom() {
+    return index.search(query(word(3) + " " + word(40), "room-7"));
+  }
+
+  private static SearchQuery query(String text, String roomId) {
+    return new SearchQuery(text, roomId, null, 0, 0, 0, PAGE, "user-1", room -> true);
+  }
+
+  private static String word(int rank) {
+    return "w" + Integer.toString(rank, 36);
+  }
+
+  private static double[] zipf(int n) {
+    double[] cdf = new double[n];
+    double sum = 0;
+    for (int i = 0; i < n; i++) {
+      sum += 1.0 / (i + 1);
+      cdf[i] = sum;
+    }
+    for (int i = 0; i < n; i++) cdf[i] /= sum;
+    return cdf;
+  }
+
+  private static int sample(double[] cdf, Random random) {
+    int i = Arrays.binarySearch(cdf, random.nextDouble());
+    return Math.min(i >= 0 ? i : -i - 1, cdf.length - 1);
+  }
+}
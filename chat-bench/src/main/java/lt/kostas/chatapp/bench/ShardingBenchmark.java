@@ -0,0 +1,96 @@
+package lt.kostas.chatapp.bench;
+
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.persistence.AsyncPersistence;
+import lt.kostas.chatapp.server.ChatServer;
+import lt.kostas.chatapp.server.ServerOptions;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serverio būsenos pakeitimų mastelis pagal gijų skaičių: {@code shards=1} - visi pakeitimai ir saugyklos
+ * eilė po vienu užraktu, kaip anksčiau; {@code shards=64} - skaidyta pagal kambarį ir vartotoją.
+ * Gijų skaičius nurodomas paleidžiant ({@code -t}), pvz. {@code for t in 1 2 4 8 16 32}.
+ * <p>
+ * {@code joinRoom} - narystė atsitiktiniame iš {@value #ROOMS} kambarių, {@code roomMessage} - žinutė į kambarį
+ * (istorija + įvykis saugyklos eilėje), {@code registerAndLeave} - prisijungimas ir atsijungimas.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardingBenchmark {
+  private static final int ROOMS = 1024;
+  private static final int USERS_PER_THREAD = 1024;
+
+  @Param({"1", "64"})
+  public int shards;
+
+  private ChatServer server;
+  private AsyncPersistence persistence;
+  private String[] roomIds;
+  private final AtomicInteger workers = new AtomicInteger();
+
+  @Setup
+  public void setup() {
+    ServerOptions d = ServerOptions.defaults();
+    ServerOptions options = new ServerOptions(d.transport(), d.nioThreads(), d.threadMode(), d.outboundCapacity(),
+            d.overflowPolicy(), d.roomHistory(), d.directHistory(), d.historyMaxAgeMillis(), d.presenceWindowMillis(),
+            d.metricsPort(), d.cluster(), d.rateLimits(), shards, d.drainMillis(), d.reconnectSpreadMillis());
+    persistence = new AsyncPersistence(new NoopPersistence(), AsyncPersistence.DEFAULT_CAPACITY, shards);
+    server = new ChatServer(0, persistence, options);
+    roomIds = new String[ROOMS];
+    for (int i = 0; i < ROOMS; i++) {
+      roomIds[i] = "room-" + i;
+      server.createRoom(roomIds[i], roomIds[i], null);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    persistence.close();
+  }
+
+  @State(Scope.Thread)
+  public static class Worker {
+    String[] users;
+    long next;
+
+    @Setup
+    public void setup(ShardingBenchmark bench) {
+      int id = bench.workers.getAndIncrement();
+      users = new String[USERS_PER_THREAD];
+      for (int i = 0; i < users.length; i++) {
+        users[i] = "t" + id + "-user-" + i;
+      }
+    }
+  }
+
+  @Benchmark
+  public void joinRoom(Worker w) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    server.joinRoom(roomIds[random.nextInt(ROOMS)], w.users[random.nextInt(USERS_PER_THREAD)]);
+  }
+
+  @Benchmark
+  public void roomMessage(Worker w) {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    String room = roomIds[random.nextInt(ROOMS)];
+    server.broadcastToRoom(new Message(MessageKind.MESSAGE, w.users[(int) (w.next++ % USERS_PER_THREAD)], null, room, "bench"));
+  }
+
+  @Benchmark
+  public boolean registerAndLeave(Worker w) {
+    String name = w.users[(int) (w.next++ % USERS_PER_THREAD)];
+    InMemoryConnection conn = new InMemoryConnection(name);
+    boolean ok = server.registerClient(name, conn);
+    server.unregisterClient(name, conn);
+    return ok;
+  }
+}
@@ -0,0 +1,247 @@
+package lt.kostas.chatapp.bench;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import lt.kostas.chatapp.dto.Message;
+import lt.kostas.chatapp.dto.MessageKind;
+import lt.kostas.chatapp.model.Room;
+import lt.kostas.chatapp.persistence.*;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Saugyklų rašymo apimtis ir užimama vieta tam pačiam, iš sėklos sugeneruotam žinučių srautui,
+ * išskleistam per kelias dienas iki dabar:
+ * <ul>
+ *   <li>{@code json-pretty} - senas {@link PersistenceImpl} formatas su {@code setPrettyPrinting}</li>
+ *   <li>{@code json} - {@link PersistenceImpl} dabar (kompaktiškas JSON), vienas pilnas įrašymas</li>
+ *   <li>{@code wal} - {@link WriteAheadLogPersistence}, paketais</li>
+ *   <li>{@code mapped} - {@link MappedPersistence} be archyvų</li>
+ *   <li>{@code mapped-tiered} - {@link MappedPersistence}, po kurio senesni nei {@code chat.retention.hotDays}
+ *   segmentai perkeliami į suspaustus dienų archyvus (taikoma ir {@code chat.retention.*} saugojimo politika)</li>
+ * </ul>
+ * JSON variantai kiekvieno pakeitimo metu perrašo visą failą, todėl jiems matuojamas vienas įrašymas.
+ * <p>
+ * Nustatymai - {@code footprint.*} sistemos savybės (žr. {@link Config#fromSystemProperties()}).
+ */
+public final class StorageFootprint {
+  private static final String[] WORDS = {
+          "labas", "kaip", "sekasi", "šiandien", "susitikimas", "rytoj", "dešimtą", "projektas", "ataskaita",
+          "klaida", "serveris", "paleidimas", "ačiū", "gerai", "matysimės", "pietūs", "kava", "dokumentas",
+          "peržiūra", "testai", "praėjo", "nepavyko", "pataisiau", "žiūrėk", "nuoroda", "vakare", "savaitgalį"
+  };
+
+  /**
+   * @param messages  kiek žinučių sugeneruoti
+   * @param days      per kiek paskutinių dienų paskirstyti jų laikus
+   * @param rooms     kambarių skaičius
+   * @param users     vartotojų skaičius
+   * @param dmRatio   kokia dalis žinučių - privačios
+   * @param batch     kiek žinučių viename {@code appendBatch}
+   * @param segmentMB {@link MappedMessageStore} segmento dydis (MB) - archyvuojami tik uždaryti segmentai
+   * @param seed      atsitiktinių skaičių sėkla
+   * @param dir       darbinis katalogas (null - laikinas)
+   * @param out       kur įrašyti JSON ataskaitą (null - tik į konsolę)
+   */
+  record Config(int messages, int days, int rooms, int users, double dmRatio, int batch, int segmentMB,
+                long seed, String dir, String out) {
+
+    static Config fromSystemProperties() {
+      return new Config(
+              Integer.getInteger("footprint.messages", 500_000),
+              Integer.getInteger("footprint.days", 30),
+              Integer.getInteger("footprint.rooms", 50),
+              Integer.getInteger("footprint.users", 1000),
+              Double.parseDouble(System.getProperty("footprint.dmRatio", "0.1")),
+              Integer.getInteger("footprint.batch", 500),
+              Integer.getInteger("footprint.segmentMB", 8),
+              Long.getLong("footprint.seed", 42),
+              System.getProperty("footprint.dir"),
+              System.getProperty("footprint.out"));
+    }
+  }
+
+  /**
+   * @param storage            saugyklos variantas
+   * @param millis             rašymo (ir archyvavimo) trukmė
+   * @param bytesWritten       kiek baitų įrašyta į diską iš viso
+   * @param writtenMBPerSecond įrašymo sparta
+   * @param bytesPerMessage    įrašyta baitų vienai žinutei
+   * @param diskBytes          užimama vieta po rašymo
+   * @param diskBytesPerMessage užimama vieta vienai žinutei
+   */
+  record Result(String storage, long millis, long bytesWritten, double writtenMBPerSecond, double bytesPerMessage,
+                long diskBytes, double diskBytesPerMessage) {
+  }
+
+  record Report(Config config, RetentionPolicy retention, List<Result> results) {
+  }
+
+  private final Config config;
+  private final RetentionPolicy retention = RetentionPolicy.fromSystemProperties();
+  private final List<Room> rooms = new ArrayList<>();
+  private final List<String> users = new ArrayList<>();
+  private final List<Message> messages = new ArrayList<>();
+
+  StorageFootprint(Config config) {
+    this.config = config;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Config config = Config.fromSystemProperties();
+    Report report = new StorageFootprint(config).run();
+    String json = new GsonBuilder().setPrettyPrinting().create().toJson(report);
+    System.out.println(json);
+    if (config.out() != null) {
+      try (Writer w = Files.newBufferedWriter(Path.of(config.out()), StandardCharsets.UTF_8)) {
+        w.write(json);
+      }
+    }
+  }
+
+  Report run() throws IOException {
+    generate();
+    Path root = config.dir() == null ? Files.createTempDirectory("footprint") : Files.createDirectories(Path.of(config.dir()));
+    List<Result> results = new ArrayList<>();
+    try {
+      Path json = root.resolve("chat-data.json");
+      results.add(json(json));
+      results.add(prettyJson(json, root.resolve("chat-data-pretty.json")));
+      results.add(wal(root.resolve("wal")));
+      results.add(mapped("mapped", root.resolve("mapped"), new RetentionPolicy(0, 0, Map.of(), retention.maintenanceIntervalMillis())));
+      results.add(mapped("mapped-tiered", root.resolve("mapped-tiered"), retention));
+    } finally {
+      if (config.dir() == null) delete(root);
+    }
+    return new Report(config, retention, results);
+  }
+
+  private void generate() {
+    Random random = new Random(config.seed());
+    for (int u = 0; u < config.users(); u++) users.add("user-" + u);
+    for (int r = 0; r < config.rooms(); r++) {
+      Room room = new Room("room-" + r, "Kambarys " + r);
+      for (int u = r; u < config.users(); u += config.rooms()) room.addMember(users.get(u));
+      rooms.add(room);
+    }
+    long end = System.currentTimeMillis();
+    long span = config.days() * 24L * 60 * 60 * 1000;
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < config.messages(); i++) {
+      long ts = end - span + span * i / config.messages();
+      String from = users.get(random.nextInt(users.size()));
+      text.setLength(0);
+      int words = 2 + random.nextInt(15);
+      for (int w = 0; w < words; w++) {
+        if (w > 0) text.append(' ');
+        text.append(WORDS[random.nextInt(WORDS.length)]);
+      }
+      if (random.nextDouble() < config.dmRatio()) {
+        String to = users.get(random.nextInt(users.size()));
+        messages.add(new Message(MessageKind.MESSAGE, from, to, null, text.toString(), ts));
+      } else {
+        String room = rooms.get(random.nextInt(rooms.size())).getId();
+        messages.add(new Message(MessageKind.MESSAGE, from, null, room, text.toString(), ts));
+      }
+    }
+  }
+
+  private Result json(Path file) {
+    PersistenceImpl p = new PersistenceImpl(file.toString());
+    long start = System.nanoTime();
+    p.saveState(rooms, users, messages);
+    return result("json", start, p.bytesWritten(), p.diskBytes());
+  }
+
+  /**
+   * Tas pats dokumentas, kaip jį rašė {@link PersistenceImpl} prieš atsisakant {@code setPrettyPrinting}.
+   */
+  private Result prettyJson(Path compact, Path file) throws IOException {
+    JsonElement tree;
+    try (Reader r = Files.newBufferedReader(compact, StandardCharsets.UTF_8)) {
+      tree = JsonParser.parseReader(r);
+    }
+    long start = System.nanoTime();
+    Files.writeString(file, new GsonBuilder().setPrettyPrinting().create().toJson(tree), StandardCharsets.UTF_8);
+    long size = Files.size(file);
+    return result("json-pretty", start, size, size);
+  }
+
+  private Result wal(Path dir) {
+    WalOptions d = WalOptions.defaults();
+    WriteAheadLogPersistence p = new WriteAheadLogPersistence(dir.toString(), new WalOptions(FsyncPolicy.BATCH,
+            d.fsyncIntervalMillis(), d.fsyncBatchSize(), d.segmentBytes(), d.compactAfterSegments(), d.recentMessages()));
+    try {
+      long start = System.nanoTime();
+      writeAll(p);
+      return result("wal", start, p.bytesWritten(), p.diskBytes());
+    } finally {
+      p.close();
+    }
+  }
+
+  private Result mapped(String name, Path dir, RetentionPolicy policy) {
+    MessageStoreOptions options = MessageStoreOptions.defaults()
+            .withSegmentBytes(config.segmentMB() * 1024 * 1024)
+            .withFsyncPolicy(FsyncPolicy.BATCH)
+            .withRetention(policy);
+    MappedPersistence p = new MappedPersistence(dir.toString(), options);
+    try {
+      long start = System.nanoTime();
+      writeAll(p);
+      p.messages().maintain(System.currentTimeMillis());
+      return result(name, start, p.bytesWritten(), p.diskBytes());
+    } finally {
+      p.close();
+    }
+  }
+
+  private void writeAll(Persistence p) {
+    List<StoreEvent> structure = new ArrayList<>();
+    for (String u : users) structure.add(StoreEvent.userRegistered(u));
+    for (Room r : rooms) {
+      structure.add(StoreEvent.roomCreated(r.getId(), r.getDisplayName()));
+      for (String member : r.getMembersSnapshot()) structure.add(StoreEvent.roomJoined(r.getId(), member));
+    }
+    p.appendBatch(structure);
+    List<StoreEvent> batch = new ArrayList<>(config.batch());
+    for (Message m : messages) {
+      batch.add(StoreEvent.message(m));
+      if (batch.size() == config.batch()) {
+        p.appendBatch(batch);
+        batch.clear();
+      }
+    }
+    if (!batch.isEmpty()) p.appendBatch(batch);
+    p.flush();
+  }
+
+  private Result result(String storage, long startNanos, long bytesWritten, long diskBytes) {
+    long nanos = System.nanoTime() - startNanos;
+    double seconds = nanos / 1e9;
+    int n = messages.size();
+    return new Result(storage, nanos / 1_000_000, bytesWritten, bytesWritten / 1e6 / seconds,
+            (double) bytesWritten / n, diskBytes, (double) diskBytes / n);
+  }
+
+  private static void delete(Path root) throws IOException {
+    try (Stream<Path> files = Files.walk(root)) {
+      files.sorted(Comparator.reverseOrder()).forEach(f -> {
+        try {
+          Files.deleteIfExists(f);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      });
+    }
+  }
+}